@@ -1,6 +1,7 @@
 package org.opensha.sha.calc.mcer;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.opensha.commons.data.Site;
@@ -9,6 +10,7 @@ import org.opensha.commons.data.function.DiscretizedFunc;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
 
 public abstract class AbstractMCErDeterministicCalc {
 	
@@ -22,6 +24,26 @@ public abstract class AbstractMCErDeterministicCalc {
 		return result.get(period);
 	}
 	
+	/**
+	 * Calculates deterministic MCEr for the given periods at each site
+	 * @param sites
+	 * @param periods
+	 * @return (site x period) matrix of values, NaN for any period which could not be calculated
+	 */
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		SpectrumMatrix matrix = new SpectrumMatrix(sites.size(), periods);
+		List<Double> periodList = Doubles.asList(periods);
+		for (int s=0; s<sites.size(); s++) {
+			Map<Double, DeterministicResult> results = calc(sites.get(s), periodList);
+			for (int p=0; p<periods.length; p++) {
+				DeterministicResult result = results.get(periods[p]);
+				if (result != null)
+					matrix.set(s, p, result.getVal());
+			}
+		}
+		return matrix;
+	}
+	
 	public static DiscretizedFunc toSpectrumFunc(Map<Double, DeterministicResult> results) {
 		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
 		
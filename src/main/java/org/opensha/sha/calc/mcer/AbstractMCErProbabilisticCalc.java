@@ -1,7 +1,12 @@
 package org.opensha.sha.calc.mcer;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.stat.StatUtils;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -17,8 +22,10 @@ import org.opensha.sha.util.component.ComponentTranslation;
 import org.opensha.sra.rtgm.RTGM;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterators;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
 
 public abstract class AbstractMCErProbabilisticCalc {
 	
@@ -67,44 +74,183 @@ public abstract class AbstractMCErProbabilisticCalc {
 		return func.getY(index);
 	}
 	
-	private static void validateCurveForRTGM(DiscretizedFunc curve) {
+	/**
+	 * Calculates probabilistic MCEr for the given periods at each site
+	 * @param sites
+	 * @param periods
+	 * @return (site x period) matrix of values, NaN for any period which could not be calculated
+	 */
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		SpectrumMatrix matrix = new SpectrumMatrix(sites.size(), periods);
+		List<Double> periodList = Doubles.asList(periods);
+		for (int s=0; s<sites.size(); s++) {
+			DiscretizedFunc spectrum = calc(sites.get(s), periodList);
+			for (int p=0; p<periods.length; p++) {
+				int index = spectrum.getXIndex(periods[p]);
+				if (index >= 0)
+					matrix.set(s, p, spectrum.getY(index));
+			}
+		}
+		return matrix;
+	}
+	
+	private static void validateCurveForRTGM(double[] yVals) {
 		// make sure it's not empty
-		Preconditions.checkState(curve.size() > 2, "curve is empty");
+		Preconditions.checkState(yVals.length > 2, "curve is empty");
+		double maxY = StatUtils.max(yVals);
 		// make sure it has actual values
-		Preconditions.checkState(curve.getMaxY() > 0d, "curve has all zero y values");
+		Preconditions.checkState(maxY > 0d, "curve has all zero y values");
 		// make sure it is in probability space (never > 1)
-		Preconditions.checkState(curve.getMaxY() <= 1d,
-				"curve not in probability space. Max=%s > 1", curve.getMaxY());
-		// make sure it is monotonically decreasing
-		String xValStr = Iterators.toString(curve.getYValuesIterator());
-		for (int j=1; j<curve.size(); j++)
-			Preconditions.checkState(curve.getY(j) <= curve.getY(j-1),
-				"Curve not monotonically decreasing: "+xValStr);
+		Preconditions.checkState(maxY <= 1d, "curve not in probability space. Max=%s > 1", maxY);
+		// make sure it is monotonically decreasing, only build the message if it's not
+		for (int j=1; j<yVals.length; j++)
+			if (yVals[j] > yVals[j-1])
+				throw new IllegalStateException("Curve not monotonically decreasing: "+Arrays.toString(yVals));
 	}
 	
+	/**
+	 * Hazard curve key for the RTGM cache. Hash code is computed once up front, equality is exact
+	 */
+	private static class CurveKey {
+		private final double[] xVals;
+		private final double[] yVals;
+		private final int hashCode;
+		
+		public CurveKey(double[] xVals, double[] yVals) {
+			this.xVals = xVals;
+			this.yVals = yVals;
+			this.hashCode = 31*Arrays.hashCode(xVals) + Arrays.hashCode(yVals);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof CurveKey))
+				return false;
+			CurveKey other = (CurveKey) obj;
+			return hashCode == other.hashCode && Arrays.equals(yVals, other.yVals) && Arrays.equals(xVals, other.xVals);
+		}
+	}
+	
+	private static final int MAX_RTGM_CACHE_SIZE = 100000;
+	
+	private static final Cache<CurveKey, Double> rtgmCache =
+			CacheBuilder.newBuilder().maximumSize(MAX_RTGM_CACHE_SIZE).build();
+	
 	/**
 	 * Calculates a RTGM value for the given hazard curve. Curve must be in probability space
-	 * (will be converted to annualized rates).
+	 * (will be converted to annualized rates). Results are memoized.
 	 * @param curve
 	 * @return
 	 */
 	public static double calcRTGM(DiscretizedFunc curve) {
-		validateCurveForRTGM(curve);
+		int size = curve.size();
+		double[] xVals = new double[size];
+		double[] yVals = new double[size];
+		for (int i=0; i<size; i++) {
+			xVals[i] = curve.getX(i);
+			yVals[i] = curve.getY(i);
+		}
+		return calcRTGM(xVals, yVals);
+	}
+	
+	/**
+	 * Calculates a RTGM value for the given hazard curve. Curve must be in probability space
+	 * (will be converted to annualized rates). Results are memoized, arrays must not be modified after this call.
+	 * @param xVals
+	 * @param yVals
+	 * @return
+	 */
+	public static double calcRTGM(double[] xVals, double[] yVals) {
+		Preconditions.checkArgument(xVals.length == yVals.length, "x and y arrays must be the same length");
+		CurveKey key = new CurveKey(xVals, yVals);
+		Double cached = rtgmCache.getIfPresent(key);
+		if (cached != null)
+			return cached;
+		
+		validateCurveForRTGM(yVals);
+		ArbitrarilyDiscretizedFunc curve = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.length; i++)
+			curve.set(xVals[i], yVals[i]);
 		// convert from annual probability to annual frequency
-		curve = curveCalcForRTGM.getAnnualizedRates(curve, 1d);
-		RTGM calc = RTGM.create(curve, null, null);
+		DiscretizedFunc rateCurve = curveCalcForRTGM.getAnnualizedRates(curve, 1d);
+		RTGM calc = RTGM.create(rateCurve, null, null);
 		try {
 			calc.call();
 		} catch (RuntimeException e) {
-			System.err.println("RTGM Calc failed for Hazard Curve:\n"+curve);
+			System.err.println("RTGM Calc failed for Hazard Curve:\n"+rateCurve);
 			System.err.flush();
 			throw e;
 		}
 		double rtgm = calc.get();
 		Preconditions.checkState(rtgm > 0, "RTGM is not positive");
+		rtgmCache.put(key, rtgm);
 		return rtgm;
 	}
 	
+	/**
+	 * Batch RTGM calculation for many curves with shared x values, calculated in parallel. Curves must be in
+	 * probability space (will be converted to annualized rates). Results are memoized, arrays must not be modified
+	 * after this call.
+	 * @param xVals x values shared by all curves
+	 * @param yVals y values for each curve
+	 * @return RTGM value for each curve
+	 */
+	public static double[] calcRTGM(double[] xVals, double[][] yVals) {
+		double[] ret = new double[yVals.length];
+		IntStream.range(0, yVals.length).parallel().forEach(i -> ret[i] = calcRTGM(xVals, yVals[i]));
+		return ret;
+	}
+	
+	/**
+	 * Batch RTGM calculation for many curves, calculated in parallel. Curves must be in probability space
+	 * (will be converted to annualized rates). Results are memoized, arrays must not be modified after this call.
+	 * @param xVals x values for each curve
+	 * @param yVals y values for each curve
+	 * @return RTGM value for each curve
+	 */
+	public static double[] calcRTGM(double[][] xVals, double[][] yVals) {
+		Preconditions.checkArgument(xVals.length == yVals.length, "must supply x values for each curve");
+		double[] ret = new double[yVals.length];
+		IntStream.range(0, yVals.length).parallel().forEach(i -> ret[i] = calcRTGM(xVals[i], yVals[i]));
+		return ret;
+	}
+	
+	/**
+	 * Batch RTGM calculation for many curves, calculated in parallel. Curves must be in probability space
+	 * (will be converted to annualized rates). Results are memoized.
+	 * @param curves
+	 * @return RTGM value for each curve
+	 */
+	public static double[] calcRTGM(List<? extends DiscretizedFunc> curves) {
+		double[][] xVals = new double[curves.size()][];
+		double[][] yVals = new double[curves.size()][];
+		for (int c=0; c<xVals.length; c++) {
+			DiscretizedFunc curve = curves.get(c);
+			int size = curve.size();
+			xVals[c] = new double[size];
+			yVals[c] = new double[size];
+			for (int i=0; i<size; i++) {
+				xVals[c][i] = curve.getX(i);
+				yVals[c][i] = curve.getY(i);
+			}
+		}
+		return calcRTGM(xVals, yVals);
+	}
+	
+	/**
+	 * Clears the memoized RTGM values
+	 */
+	public static void clearRTGMCache() {
+		rtgmCache.invalidateAll();
+	}
+	
 	/**
 	 * Use uniform hazard spectrum instead of RTGM (if uhsVal > 0)
 	 * @param uhsVal
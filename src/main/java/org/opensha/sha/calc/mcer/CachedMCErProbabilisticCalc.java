@@ -35,17 +35,7 @@ public class CachedMCErProbabilisticCalc extends AbstractMCErProbabilisticCalc {
 	public synchronized DiscretizedFunc calc(Site site, Collection<Double> periods) {
 		Preconditions.checkArgument(!periods.isEmpty());
 		
-		if (cache == null) {
-			if (cacheFile != null && cacheFile.exists()) {
-				try {
-					cache = loadCache(cacheFile);
-				} catch (Exception e) {
-					throw ExceptionUtils.asRuntimeException(e);
-				}
-			} else {
-				cache = Maps.newHashMap();
-			}
-		}
+		checkInitCache();
 		
 		Location loc = site.getLocation();
 		
@@ -129,6 +119,41 @@ public class CachedMCErProbabilisticCalc extends AbstractMCErProbabilisticCalc {
 		XMLUtils.writeDocumentToFile(cacheFile, doc);
 	}
 
+	private void checkInitCache() {
+		if (cache == null) {
+			if (cacheFile != null && cacheFile.exists()) {
+				try {
+					cache = loadCache(cacheFile);
+				} catch (Exception e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+			} else {
+				cache = Maps.newHashMap();
+			}
+		}
+	}
+	
+	public synchronized void addToCache(Map<Location, DiscretizedFunc> cache) {
+		checkInitCache();
+		for (Location loc : cache.keySet()) {
+			DiscretizedFunc func = this.cache.get(loc);
+			if (func == null) {
+				func = new ArbitrarilyDiscretizedFunc();
+				this.cache.put(loc, func);
+			}
+			DiscretizedFunc oFunc = cache.get(loc);
+			for (int i=0; i<oFunc.size(); i++)
+				if (!func.hasX(oFunc.getX(i)))
+					func.set(oFunc.getX(i), oFunc.getY(i));
+		}
+		cacheChanged = true;
+	}
+	
+	public synchronized void addToCache(CachedMCErProbabilisticCalc o) {
+		o.checkInitCache();
+		addToCache(o.cache);
+	}
+
 	@Override
 	public void setUseUHS(double uhsVal) {
 		if (uhsVal != this.uhsVal)
@@ -40,7 +40,8 @@ public class CombinedMultiMCErDeterministicCalc extends
 			DeterministicResult maxResult = null;
 			for (AbstractMCErDeterministicCalc calc : calcs) {
 				DeterministicResult result = calc.calc(site, period);
-				if (maxResult == null || result.getVal() > maxResult.getVal())
+				// NaN values are ignored regardless of order, consistent with SpectrumMatrix.max(...)
+				if (maxResult == null || result.getVal() > maxResult.getVal() || Double.isNaN(maxResult.getVal()))
 					maxResult = result;
 			}
 			Preconditions.checkNotNull(maxResult);
@@ -50,4 +51,12 @@ public class CombinedMultiMCErDeterministicCalc extends
 		return ret;
 	}
 
+	@Override
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		List<SpectrumMatrix> matrices = Lists.newArrayList();
+		for (AbstractMCErDeterministicCalc calc : calcs)
+			matrices.add(calc.calc(sites, periods));
+		return SpectrumMatrix.max(matrices);
+	}
+
 }
@@ -1,5 +1,6 @@
 package org.opensha.sha.calc.mcer;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -11,6 +12,7 @@ import org.opensha.sha.calc.hazardMap.HazardDataSetLoader;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
 
 /**
  * Averages Probabilistic MCEr results from multiple calculators
@@ -49,34 +51,19 @@ public class CombinedMultiMCErProbabilisticCalc extends
 		ArbitrarilyDiscretizedFunc result = new ArbitrarilyDiscretizedFunc();
 		
 		if (curveBased) {
-			DiscretizedFunc xVals = null;
-			for (double period : periods) {
-				DiscretizedFunc avgCurve = null;
-				for (AbstractMCErProbabilisticCalc calc : calcs) {
-					CurveBasedMCErProbabilisitCalc curveCalc = (CurveBasedMCErProbabilisitCalc)calc;
-					if (xVals != null && curveCalc instanceof GMPE_MCErProbabilisticCalc)
-						((GMPE_MCErProbabilisticCalc)curveCalc).setXVals(xVals);
-					DiscretizedFunc curve = curveCalc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
-					if (xVals == null)
-						xVals = curve.deepClone();
-					if (avgCurve == null) {
-						avgCurve = curve.deepClone();
-						avgCurve.scale(weightEach);
-					} else {
-						Preconditions.checkState(avgCurve.size() == curve.size() && avgCurve.getX(0) == curve.getX(0));
-						for (int i=0; i<avgCurve.size(); i++)
-							avgCurve.set(i, avgCurve.getY(i) + weightEach*curve.getY(i));
-					}
-				}
+			List<Double> periodList = Lists.newArrayList(periods);
+			List<DiscretizedFunc> avgCurves = calcAvgCurves(site, periodList);
+			double[] rtgms = uhsVal > 0 ? null : calcRTGM(avgCurves);
+			for (int p=0; p<periodList.size(); p++) {
 				double rtgm;
 				if (uhsVal > 0) {
-					rtgm = HazardDataSetLoader.getCurveVal(avgCurve, false, uhsVal);
+					rtgm = HazardDataSetLoader.getCurveVal(avgCurves.get(p), false, uhsVal);
 				} else {
-					rtgm = calcRTGM(avgCurve);
+					rtgm = rtgms[p];
 				}
 				Preconditions.checkState(rtgm > 0, "RTGM is not positive");
 				
-				result.set(period, rtgm);
+				result.set(periodList.get(p), rtgm);
 			}
 		} else {
 			for (double period : periods) {
@@ -89,5 +76,74 @@ public class CombinedMultiMCErProbabilisticCalc extends
 		
 		return result;
 	}
+	
+	/**
+	 * Averages the hazard curves from each calculator at each period for the given site
+	 * @param site
+	 * @param periods
+	 * @return average curve for each period, in order
+	 */
+	private List<DiscretizedFunc> calcAvgCurves(Site site, List<Double> periods) {
+		List<DiscretizedFunc> avgCurves = Lists.newArrayList();
+		DiscretizedFunc xVals = null;
+		for (double period : periods) {
+			DiscretizedFunc avgCurve = null;
+			for (AbstractMCErProbabilisticCalc calc : calcs) {
+				CurveBasedMCErProbabilisitCalc curveCalc = (CurveBasedMCErProbabilisitCalc)calc;
+				if (xVals != null && curveCalc instanceof GMPE_MCErProbabilisticCalc)
+					((GMPE_MCErProbabilisticCalc)curveCalc).setXVals(xVals);
+				DiscretizedFunc curve = curveCalc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
+				if (xVals == null)
+					xVals = curve.deepClone();
+				if (avgCurve == null) {
+					avgCurve = curve.deepClone();
+					avgCurve.scale(weightEach);
+				} else {
+					Preconditions.checkState(avgCurve.size() == curve.size() && avgCurve.getX(0) == curve.getX(0));
+					for (int i=0; i<avgCurve.size(); i++)
+						avgCurve.set(i, avgCurve.getY(i) + weightEach*curve.getY(i));
+				}
+			}
+			avgCurves.add(avgCurve);
+		}
+		return avgCurves;
+	}
+
+	/**
+	 * Bulk calculation. If all calculators are curve based, curves are averaged for every site and period and
+	 * RTGM values are then calculated for all of them in a single parallel batch. Otherwise, each calculator's
+	 * matrix is computed and they are summed in bulk.
+	 */
+	@Override
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		if (!curveBased) {
+			List<SpectrumMatrix> matrices = Lists.newArrayList();
+			double[][] weights = new double[calcs.size()][periods.length];
+			for (int i=0; i<calcs.size(); i++) {
+				matrices.add(calcs.get(i).calc(sites, periods));
+				Arrays.fill(weights[i], weightEach);
+			}
+			return SpectrumMatrix.weightedSum(matrices, weights);
+		}
+		SpectrumMatrix matrix = new SpectrumMatrix(sites.size(), periods);
+		List<Double> periodList = Doubles.asList(periods);
+		List<DiscretizedFunc> allCurves = Lists.newArrayList();
+		for (Site site : sites)
+			allCurves.addAll(calcAvgCurves(site, periodList));
+		double[] rtgms = uhsVal > 0 ? null : calcRTGM(allCurves);
+		for (int s=0; s<sites.size(); s++) {
+			for (int p=0; p<periods.length; p++) {
+				int index = s*periods.length + p;
+				double rtgm;
+				if (uhsVal > 0)
+					rtgm = HazardDataSetLoader.getCurveVal(allCurves.get(index), false, uhsVal);
+				else
+					rtgm = rtgms[index];
+				Preconditions.checkState(rtgm > 0, "RTGM is not positive");
+				matrix.set(s, p, rtgm);
+			}
+		}
+		return matrix;
+	}
 
 }
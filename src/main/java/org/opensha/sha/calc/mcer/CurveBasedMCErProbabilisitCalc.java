@@ -1,6 +1,8 @@
 package org.opensha.sha.calc.mcer;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.opensha.commons.data.Site;
@@ -9,6 +11,8 @@ import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.sha.calc.hazardMap.HazardDataSetLoader;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
 
 public abstract class CurveBasedMCErProbabilisitCalc extends
 		AbstractMCErProbabilisticCalc {
@@ -27,14 +31,23 @@ public abstract class CurveBasedMCErProbabilisitCalc extends
 		Preconditions.checkArgument(!curves.isEmpty(), "curves map empty!");
 		ArbitrarilyDiscretizedFunc spectrum = new ArbitrarilyDiscretizedFunc();
 		
-		for (Double period : curves.keySet()) {
-			DiscretizedFunc curve = curves.get(period);
+		List<Double> curvePeriods = Lists.newArrayList(curves.keySet());
+		double[] rtgms = null;
+		if (!(uhsVal > 0)) {
+			// batch calculation for all periods
+			List<DiscretizedFunc> periodCurves = Lists.newArrayList();
+			for (Double period : curvePeriods)
+				periodCurves.add(curves.get(period));
+			rtgms = calcRTGM(periodCurves);
+		}
+		for (int i=0; i<curvePeriods.size(); i++) {
+			Double period = curvePeriods.get(i);
 			
 			double rtgm;
 			if (uhsVal > 0) {
-				rtgm = HazardDataSetLoader.getCurveVal(curve, false, uhsVal);
+				rtgm = HazardDataSetLoader.getCurveVal(curves.get(period), false, uhsVal);
 			} else {
-				rtgm = calcRTGM(curve);
+				rtgm = rtgms[i];
 			}
 			Preconditions.checkState(rtgm > 0, "RTGM is not positive");
 			
@@ -44,6 +57,57 @@ public abstract class CurveBasedMCErProbabilisitCalc extends
 		return spectrum;
 	}
 	
+	/**
+	 * Calculates hazard curves for every site and period, then calculates RTGM for all curves in a single parallel
+	 * batch
+	 */
+	@Override
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		SpectrumMatrix matrix = new SpectrumMatrix(sites.size(), periods);
+		List<Double> periodList = Doubles.asList(periods);
+		
+		int maxCurves = sites.size()*periods.length;
+		double[][] xVals = new double[maxCurves][];
+		double[][] yVals = new double[maxCurves][];
+		int[] curveSites = new int[maxCurves];
+		int[] curvePeriods = new int[maxCurves];
+		int numCurves = 0;
+		for (int s=0; s<sites.size(); s++) {
+			Map<Double, DiscretizedFunc> curves = calcHazardCurves(sites.get(s), periodList);
+			for (int p=0; p<periods.length; p++) {
+				DiscretizedFunc curve = curves.get(periods[p]);
+				if (curve == null)
+					continue;
+				if (uhsVal > 0) {
+					double val = HazardDataSetLoader.getCurveVal(curve, false, uhsVal);
+					Preconditions.checkState(val > 0, "RTGM is not positive");
+					matrix.set(s, p, val);
+					continue;
+				}
+				int size = curve.size();
+				xVals[numCurves] = new double[size];
+				yVals[numCurves] = new double[size];
+				for (int i=0; i<size; i++) {
+					xVals[numCurves][i] = curve.getX(i);
+					yVals[numCurves][i] = curve.getY(i);
+				}
+				curveSites[numCurves] = s;
+				curvePeriods[numCurves] = p;
+				numCurves++;
+			}
+		}
+		
+		if (numCurves > 0) {
+			double[] rtgms = calcRTGM(Arrays.copyOf(xVals, numCurves), Arrays.copyOf(yVals, numCurves));
+			for (int i=0; i<numCurves; i++) {
+				Preconditions.checkState(rtgms[i] > 0, "RTGM is not positive");
+				matrix.set(curveSites[i], curvePeriods[i], rtgms[i]);
+			}
+		}
+		
+		return matrix;
+	}
+	
 	protected abstract Map<Double, DiscretizedFunc> calcHazardCurves(Site site, Collection<Double> periods);
 	
 	public abstract void setXVals(DiscretizedFunc xVals);
@@ -26,6 +26,8 @@ public class GMPE_MCErDeterministicCalc extends AbstractMCErDeterministicCalc {
 	
 	private double cutoffDist = 200d;
 	
+	private SiteRuptureCache siteCache;
+	
 	public GMPE_MCErDeterministicCalc(ERF erf, ScalarIMR gmpe, Component convertToComponent) {
 		this.erf = erf;
 		this.gmpe = gmpe;
@@ -34,6 +36,29 @@ public class GMPE_MCErDeterministicCalc extends AbstractMCErDeterministicCalc {
 			converter = AbstractMCErProbabilisticCalc.getComponentTranslator(gmpe, convertToComponent);
 	}
 
+	/**
+	 * Sets a per-site rupture/distance cache, which can be shared with calculators for other GMPEs at the same site.
+	 * It will be used for any calculation at the cache's site location, and must have been built for the same ERF
+	 * as this calculator. Set to null to clear.
+	 * 
+	 * @param siteCache
+	 */
+	public void setSiteRuptureCache(SiteRuptureCache siteCache) {
+		Preconditions.checkArgument(siteCache == null || siteCache.getERF() == erf,
+				"Site rupture cache was built for a different ERF");
+		this.siteCache = siteCache;
+	}
+	
+	public ERF getERF() {
+		return erf;
+	}
+	
+	private ERF getERF(Site site) {
+		if (siteCache != null && siteCache.isForLocation(site.getLocation()))
+			return siteCache.getCachedERF();
+		return erf;
+	}
+
 	@Override
 	public Map<Double, DeterministicResult> calc(Site site, Collection<Double> periods) {
 		gmpe.setSite(site);
@@ -58,6 +83,7 @@ public class GMPE_MCErDeterministicCalc extends AbstractMCErDeterministicCalc {
 	private DeterministicResult doCalc(Site site) {
 		// assumes Site and IMT have been set
 		DeterministicResult maxVal = null;
+		ERF erf = getERF(site);
 		for (int sourceID=0; sourceID<erf.getNumSources(); sourceID++) {
 			ProbEqkSource source = erf.getSource(sourceID);
 			if (source.getMinDistance(site) > cutoffDist)
@@ -80,6 +106,10 @@ public class GMPE_MCErDeterministicCalc extends AbstractMCErDeterministicCalc {
 		return maxVal;
 	}
 	
+	public double getCutoffDist() {
+		return cutoffDist;
+	}
+	
 	public DeterministicResult calcPGA_G(Site site) {
 		gmpe.setSite(site);
 		
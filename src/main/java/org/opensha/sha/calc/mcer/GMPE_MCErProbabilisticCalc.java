@@ -29,6 +29,8 @@ public class GMPE_MCErProbabilisticCalc extends CurveBasedMCErProbabilisitCalc {
 	
 	private ComponentTranslation converter;
 	
+	private SiteRuptureCache siteCache;
+	
 	/**
 	 * @param erf ERF to use, forecast should already be updated and be for a single year
 	 * @param gmpe GMPE to use, should already have component set as appropriate
@@ -50,6 +52,29 @@ public class GMPE_MCErProbabilisticCalc extends CurveBasedMCErProbabilisitCalc {
 	public void setXVals(DiscretizedFunc xVals) {
 		this.xVals = xVals;
 	}
+	
+	/**
+	 * Sets a per-site rupture/distance cache, which can be shared with calculators for other GMPEs at the same site.
+	 * It will be used for any calculation at the cache's site location, and must have been built for the same ERF
+	 * as this calculator. Set to null to clear.
+	 * 
+	 * @param siteCache
+	 */
+	public void setSiteRuptureCache(SiteRuptureCache siteCache) {
+		Preconditions.checkArgument(siteCache == null || siteCache.getERF() == erf,
+				"Site rupture cache was built for a different ERF");
+		this.siteCache = siteCache;
+	}
+	
+	public ERF getERF() {
+		return erf;
+	}
+	
+	private ERF getERF(Site site) {
+		if (siteCache != null && siteCache.isForLocation(site.getLocation()))
+			return siteCache.getCachedERF();
+		return erf;
+	}
 
 	@Override
 	public Map<Double, DiscretizedFunc> calcHazardCurves(Site site, Collection<Double> periods) {
@@ -73,7 +98,7 @@ public class GMPE_MCErProbabilisticCalc extends CurveBasedMCErProbabilisitCalc {
 					myXVals.set(pt.getX()/ratio, 0d);
 			}
 			DiscretizedFunc hazFunction = HazardCurveSetCalculator.getLogFunction(myXVals);
-			curveCalc.getHazardCurve(hazFunction, site, gmpe, erf);
+			curveCalc.getHazardCurve(hazFunction, site, gmpe, getERF(site));
 			hazFunction = HazardCurveSetCalculator.unLogFunction(myXVals, hazFunction);
 			
 			if (converter != null) {
@@ -94,7 +119,7 @@ public class GMPE_MCErProbabilisticCalc extends CurveBasedMCErProbabilisitCalc {
 		gmpe.setIntensityMeasure(PGA_Param.NAME);
 		
 		DiscretizedFunc hazFunction = HazardCurveSetCalculator.getLogFunction(xVals);
-		curveCalc.getHazardCurve(hazFunction, site, gmpe, erf);
+		curveCalc.getHazardCurve(hazFunction, site, gmpe, getERF(site));
 		hazFunction = HazardCurveSetCalculator.unLogFunction(xVals, hazFunction);
 		
 		return hazFunction;
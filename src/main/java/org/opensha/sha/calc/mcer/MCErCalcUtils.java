@@ -16,9 +16,38 @@ public class MCErCalcUtils {
 
 	public static double calcMCER(double dVal, double pVal, double dLowVal) {
 		double val = Math.min(pVal, Math.max(dVal, dLowVal));
-		Preconditions.checkState(val > 0d, "It's zero???? pVal="+pVal+", dVal="+dVal+", dLowVal="+dLowVal);
+		Preconditions.checkState(val > 0d, "It's zero???? pVal=%s, dVal=%s, dLowVal=%s", pVal, dVal, dLowVal);
 		return val;
 	}
+	
+	/**
+	 * Element-wise MCEr calculation for all sites and periods
+	 * @param det deterministic values
+	 * @param prob probabilistic values
+	 * @param detLower deterministic lower limit values
+	 * @return
+	 */
+	public static SpectrumMatrix calcMCER(SpectrumMatrix det, SpectrumMatrix prob, SpectrumMatrix detLower) {
+		det.checkCompatible(prob);
+		det.checkCompatible(detLower);
+		int numSites = det.getNumSites();
+		int numPeriods = det.getNumPeriods();
+		double[][] ret = new double[numSites][numPeriods];
+		for (int s=0; s<numSites; s++) {
+			double[] dVals = det.getSiteValues(s);
+			double[] pVals = prob.getSiteValues(s);
+			double[] dLowVals = detLower.getSiteValues(s);
+			double[] retRow = ret[s];
+			for (int p=0; p<numPeriods; p++) {
+				double val = Math.min(pVals[p], Math.max(dVals[p], dLowVals[p]));
+				if (!(val > 0d))
+					// will throw the exception
+					calcMCER(dVals[p], pVals[p], dLowVals[p]);
+				retRow[p] = val;
+			}
+		}
+		return new SpectrumMatrix(det.getPeriods(), ret);
+	}
 
 	public static double saToPsuedoVel(double sa, double period) {
 		sa *= HazardCurveComputation.CONVERSION_TO_G; // convert to cm/sec^2
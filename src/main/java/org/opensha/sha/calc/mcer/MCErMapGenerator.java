@@ -4,8 +4,17 @@ import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.SerializationUtils;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
@@ -20,6 +29,7 @@ import org.opensha.commons.mapping.gmt.elements.PSXYSymbol;
 import org.opensha.commons.mapping.gmt.elements.PSXYSymbol.Symbol;
 import org.opensha.commons.mapping.gmt.elements.PSXYSymbolSet;
 import org.opensha.commons.mapping.gmt.elements.TopographicSlopeFile;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.commons.util.cpt.CPTVal;
@@ -242,6 +252,160 @@ public class MCErMapGenerator {
 				((CachedMCErDeterministicCalc)compareDetCalc).flushCache();
 		}
 		
+		ArbDiscrGeoDataSet detLowerLimit = calcDetLowerLimit(sites, period);
+		
+		generateAllMaps(region, name, prefix, probData, detData, detLowerLimit,
+				compareName, compareProbData, compareDetData, outputDir, period);
+	}
+	
+	/**
+	 * Parallel version of {@link #calculateMaps(String, String, AbstractMCErProbabilisticCalc,
+	 * AbstractMCErDeterministicCalc, String, AbstractMCErProbabilisticCalc, AbstractMCErDeterministicCalc, Region,
+	 * Collection, double, File)}. Each calculator list (any of which can be null) must contain one independent
+	 * calculator instance for each thread, and all non null lists must be the same size. Sites are handed out to
+	 * threads as they finish their previous site. Maps are then rendered with {@link #renderThreads} threads.
+	 * <br>
+	 * Per-thread cached calculators (which may also be nested inside the given calculators) are neither merged nor
+	 * flushed here, as the caller may use them in further passes. Once all passes are done, use
+	 * {@link #mergeCaches(List)} and then flush a single instance with {@link #flushCache(Object)}.
+	 */
+	public static void calculateMapsParallel(String name, String prefix,
+			List<? extends AbstractMCErProbabilisticCalc> probCalcs, List<? extends AbstractMCErDeterministicCalc> detCalcs,
+			String compareName, List<? extends AbstractMCErProbabilisticCalc> compareProbCalcs,
+			List<? extends AbstractMCErDeterministicCalc> compareDetCalcs,
+			Region region, Collection<? extends Site> sites, double period, File outputDir)
+					throws IOException, GMT_MapException {
+		Preconditions.checkNotNull(region);
+		Preconditions.checkState(!sites.isEmpty(), "No sites given!");
+		
+		int numThreads = checkNumThreads(0, probCalcs);
+		numThreads = checkNumThreads(numThreads, detCalcs);
+		numThreads = checkNumThreads(numThreads, compareProbCalcs);
+		numThreads = checkNumThreads(numThreads, compareDetCalcs);
+		Preconditions.checkState(numThreads > 0, "Must supply at least one calculator");
+		
+		List<Site> siteList = new ArrayList<>(sites);
+		
+		ArbDiscrGeoDataSet probData = null;
+		ArbDiscrGeoDataSet detData = null;
+		ArbDiscrGeoDataSet compareProbData = null;
+		ArbDiscrGeoDataSet compareDetData = null;
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			if (probCalcs != null)
+				probData = MCErMapGenerator.<AbstractMCErProbabilisticCalc>calcParallel("main probabilistic",
+						probCalcs, (calc, site) -> calc.calc(site, period), siteList, exec);
+			if (detCalcs != null)
+				detData = MCErMapGenerator.<AbstractMCErDeterministicCalc>calcParallel("main deterministic",
+						detCalcs, (calc, site) -> calc.calc(site, period).getVal(), siteList, exec);
+			if (compareProbCalcs != null)
+				compareProbData = MCErMapGenerator.<AbstractMCErProbabilisticCalc>calcParallel("comparison probabilistic",
+						compareProbCalcs, (calc, site) -> calc.calc(site, period), siteList, exec);
+			if (compareDetCalcs != null)
+				compareDetData = MCErMapGenerator.<AbstractMCErDeterministicCalc>calcParallel("comparison deterministic",
+						compareDetCalcs, (calc, site) -> calc.calc(site, period).getVal(), siteList, exec);
+		} finally {
+			exec.shutdown();
+		}
+		
+		ArbDiscrGeoDataSet detLowerLimit = calcDetLowerLimit(sites, period);
+		
+		generateAllMaps(region, name, prefix, probData, detData, detLowerLimit,
+				compareName, compareProbData, compareDetData, outputDir, period);
+	}
+	
+	private static int checkNumThreads(int numThreads, List<?> calcs) {
+		if (calcs == null)
+			return numThreads;
+		Preconditions.checkState(!calcs.isEmpty(), "Calculator lists cannot be empty");
+		Preconditions.checkState(numThreads == 0 || calcs.size() == numThreads,
+				"Calculator lists must all be the same size (one per thread)");
+		return calcs.size();
+	}
+	
+	private interface SiteCalc<C> {
+		public double calc(C calc, Site site);
+	}
+	
+	private static <C> ArbDiscrGeoDataSet calcParallel(String label, List<? extends C> calcs, SiteCalc<C> siteCalc,
+			List<Site> sites, ExecutorService exec) throws IOException {
+		Stopwatch watch = Stopwatch.createStarted();
+		System.out.println("Calculating "+label+" for "+sites.size()+" sites with "+calcs.size()+" threads.");
+		double[] vals = new double[sites.size()];
+		AtomicInteger nextIndex = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+		for (C calc : calcs) {
+			futures.add(exec.submit(() -> {
+				int index;
+				while ((index = nextIndex.getAndIncrement()) < vals.length)
+					vals[index] = siteCalc.calc(calc, sites.get(index));
+			}));
+		}
+		waitOnFutures(futures);
+		// populate in site order so that output is identical to a serial calculation
+		ArbDiscrGeoDataSet data = new ArbDiscrGeoDataSet(true);
+		for (int i=0; i<vals.length; i++)
+			data.set(sites.get(i).getLocation(), vals[i]);
+		watch.stop();
+		System.out.println("Took "+smartElapsed(watch));
+		return data;
+	}
+	
+	private static void waitOnFutures(List<? extends Future<?>> futures) throws IOException {
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Merges the caches of the given per-thread instances of a cached calculator (all of which must be of the same type
+	 * and use the same cache file) so that every instance contains all values calculated by any thread. This should
+	 * be done between passes so that values cached by one thread aren't recalculated by another, and before flushing
+	 * a single instance with {@link #flushCache(Object)}. Instances which are not cached calculators are ignored.
+	 */
+	public static void mergeCaches(List<?> calcs) {
+		Object first = calcs.get(0);
+		// merge everything into the first
+		for (int i=1; i<calcs.size(); i++)
+			addToCache(first, calcs.get(i));
+		// then back into the others
+		for (int i=1; i<calcs.size(); i++)
+			addToCache(calcs.get(i), first);
+	}
+	
+	private static void addToCache(Object dest, Object source) {
+		if (dest == source)
+			return;
+		if (dest instanceof CachedMCErProbabilisticCalc)
+			((CachedMCErProbabilisticCalc)dest).addToCache((CachedMCErProbabilisticCalc)source);
+		else if (dest instanceof CachedCurveBasedMCErProbabilisticCalc)
+			((CachedCurveBasedMCErProbabilisticCalc)dest).addToCache((CachedCurveBasedMCErProbabilisticCalc)source);
+		else if (dest instanceof CachedMCErDeterministicCalc)
+			((CachedMCErDeterministicCalc)dest).addToCache((CachedMCErDeterministicCalc)source);
+	}
+	
+	/**
+	 * Flushes the given calculator's cache to disk if it is a cached calculator. When per-thread instances share a
+	 * cache file, merge them with {@link #mergeCaches(List)} and flush only one of them.
+	 */
+	public static void flushCache(Object calc) throws IOException {
+		if (calc instanceof CachedMCErProbabilisticCalc)
+			((CachedMCErProbabilisticCalc)calc).flushCache();
+		else if (calc instanceof CachedCurveBasedMCErProbabilisticCalc)
+			((CachedCurveBasedMCErProbabilisticCalc)calc).flushCache();
+		else if (calc instanceof CachedMCErDeterministicCalc)
+			((CachedMCErDeterministicCalc)calc).flushCache();
+	}
+	
+	private static ArbDiscrGeoDataSet calcDetLowerLimit(Collection<? extends Site> sites, double period) {
 		ArbDiscrGeoDataSet detLowerLimit = new ArbDiscrGeoDataSet(true);
 		for (Site site : sites) {
 			double vs30;
@@ -250,31 +414,77 @@ public class MCErMapGenerator {
 			} catch (ParameterException e) {
 				// no Vs30
 				System.out.println("Skipping Det Lower Limit, site doesn't have Vs30");
-				detLowerLimit = null;
-				break;
+				return null;
 			}
 			try {
 				detLowerLimit.set(site.getLocation(), ASCEDetLowerLimitCalc.calc(period, vs30, site.getLocation()));
 			} catch (IllegalStateException e) {
 				// no TL data found
 				System.out.println("Skipping Det Lower Limit, site doesn't have TL data available");
-				detLowerLimit = null;
-				break;
+				return null;
 			}
 		}
-		
+		return detLowerLimit;
+	}
+	
+	private static void generateAllMaps(Region region, String name, String prefix, GeoDataSet probData,
+			GeoDataSet detData, GeoDataSet detLowerLimit, String compareName, GeoDataSet compareProbData,
+			GeoDataSet compareDetData, File outputDir, double period) throws IOException, GMT_MapException {
+		List<MapRender> renders = new ArrayList<>();
 		if (doPSV) {
 			File psvDir = new File(outputDir, "psv");
 			Preconditions.checkState(psvDir.exists() || psvDir.mkdir());
-			generateMaps(region, name, prefix, probData, detData, detLowerLimit,
+			addMapRenders(renders, region, name, prefix, probData, detData, detLowerLimit,
 					compareName, compareProbData, compareDetData, psvDir, period, true);
 		}
 		if (doSA) {
 			File saDir = new File(outputDir, "sa");
 			Preconditions.checkState(saDir.exists() || saDir.mkdir());
-			generateMaps(region, name, prefix, probData, detData, detLowerLimit,
+			addMapRenders(renders, region, name, prefix, probData, detData, detLowerLimit,
 					compareName, compareProbData, compareDetData, saDir, period, false);
 		}
+		runRenders(renders);
+	}
+	
+	/**
+	 * Number of threads used to render maps. Each map is rendered independently, so this mostly just allows map
+	 * requests to be in flight concurrently.
+	 */
+	public static int renderThreads = 1;
+	
+	private interface MapRender {
+		public void render() throws IOException, GMT_MapException;
+	}
+	
+	private static void runRenders(List<MapRender> renders) throws IOException, GMT_MapException {
+		if (renderThreads <= 1 || renders.size() < 2) {
+			for (MapRender render : renders)
+				render.render();
+			return;
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(Integer.min(renderThreads, renders.size()));
+		List<Future<Void>> futures = new ArrayList<>();
+		for (MapRender render : renders) {
+			futures.add(exec.submit(() -> {
+				render.render();
+				return null;
+			}));
+		}
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof GMT_MapException)
+				throw (GMT_MapException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		} finally {
+			exec.shutdown();
+		}
 	}
 	
 	private static String smartElapsed(Stopwatch watch) {
@@ -297,6 +507,16 @@ public class MCErMapGenerator {
 	public static void generateMaps(Region region, String name, String prefix, GeoDataSet probData, GeoDataSet detData,
 			GeoDataSet detLowerLimit, String compareName, GeoDataSet compareProbData, GeoDataSet compareDetData,
 			File outputDir, double period, boolean psv) throws IOException, GMT_MapException {
+		List<MapRender> renders = new ArrayList<>();
+		addMapRenders(renders, region, name, prefix, probData, detData, detLowerLimit,
+				compareName, compareProbData, compareDetData, outputDir, period, psv);
+		runRenders(renders);
+	}
+	
+	private static void addMapRenders(List<MapRender> renders, Region region, String name, String prefix,
+			GeoDataSet probData, GeoDataSet detData, GeoDataSet detLowerLimit, String compareName,
+			GeoDataSet compareProbData, GeoDataSet compareDetData, File outputDir, double period, boolean psv)
+					throws IOException {
 		Preconditions.checkArgument(probData != null || detData != null || detLowerLimit != null);
 		boolean generateMCER = probData != null && detData != null;
 		if (generateMCER && detLowerLimit == null)
@@ -326,23 +546,31 @@ public class MCErMapGenerator {
 			Preconditions.checkState(compareName != null && !compareName.isEmpty(),
 					"Must supply name for comparison data");
 		
+		final String mapName = name;
+		final String mapPrefixAdd = prefixAdd;
+		final String mapUnits = units;
+		
 		if (probData != null) {
-			generateMaps(region, probData, outputDir, period, psv, "prob_mcer"+prefixAdd, name+"Prob. MCE@-R@-, "+units, cpt, plot_log);
+			renders.add(() -> generateMaps(region, probData, outputDir, period, psv, "prob_mcer"+mapPrefixAdd,
+					mapName+"Prob. MCE@-R@-, "+mapUnits, cpt, plot_log));
 			if (compareProbData != null)
-				generateMaps(region, compareProbData, outputDir, period, psv, compareName.toLowerCase()+"_prob_mcer"+prefixAdd,
-						compareName+" Prob. MCE@-R@-, "+units, cpt, plot_log);
+				renders.add(() -> generateMaps(region, compareProbData, outputDir, period, psv,
+						compareName.toLowerCase()+"_prob_mcer"+mapPrefixAdd,
+						compareName+" Prob. MCE@-R@-, "+mapUnits, cpt, plot_log));
 		}
 		
 		if (detData != null) {
-			generateMaps(region, detData, outputDir, period, psv, "det_mcer"+prefixAdd, name+"Det. MCE@-R@-, "+units, cpt, plot_log);
+			renders.add(() -> generateMaps(region, detData, outputDir, period, psv, "det_mcer"+mapPrefixAdd,
+					mapName+"Det. MCE@-R@-, "+mapUnits, cpt, plot_log));
 			if (compareDetData != null)
-				generateMaps(region, compareDetData, outputDir, period, psv, compareName.toLowerCase()+"_det_mcer"+prefixAdd,
-						compareName+" Det. MCE@-R@-, "+units, cpt, plot_log);
+				renders.add(() -> generateMaps(region, compareDetData, outputDir, period, psv,
+						compareName.toLowerCase()+"_det_mcer"+mapPrefixAdd,
+						compareName+" Det. MCE@-R@-, "+mapUnits, cpt, plot_log));
 		}
 		
 		if (detLowerLimit != null) {
-			generateMaps(region, detLowerLimit, outputDir, period, psv, "det_lower_limit"+prefixAdd,
-					"Det. Lower Limit, "+units, cpt, plot_log);
+			renders.add(() -> generateMaps(region, detLowerLimit, outputDir, period, psv, "det_lower_limit"+mapPrefixAdd,
+					"Det. Lower Limit, "+mapUnits, cpt, plot_log));
 		}
 		
 		if (probData != null && detData != null && detLowerLimit != null) {
@@ -355,8 +583,8 @@ public class MCErMapGenerator {
 				double combinedVal = MCErCalcUtils.calcMCER(dVal, pVal, dLowVal);
 				combinedData.set(loc, combinedVal);
 			}
-			generateMaps(region, combinedData, outputDir, period, psv, "combined_mcer"+prefixAdd,
-					"Combined MCE@-R@-, "+units, cpt, plot_log);
+			renders.add(() -> generateMaps(region, combinedData, outputDir, period, psv, "combined_mcer"+mapPrefixAdd,
+					"Combined MCE@-R@-, "+mapUnits, cpt, plot_log));
 			if (compareProbData != null && compareDetData != null) {
 				ArbDiscrGeoDataSet gmpeCombinedData = new ArbDiscrGeoDataSet(probData.isLatitudeX());
 				for (Location loc : probData.getLocationList()) {
@@ -367,23 +595,30 @@ public class MCErMapGenerator {
 					double combinedVal = MCErCalcUtils.calcMCER(dVal, pVal, dLowVal);
 					gmpeCombinedData.set(loc, combinedVal);
 				}
-				generateMaps(region, gmpeCombinedData, outputDir, period, psv, compareName.toLowerCase()+"_combined_mcer"+prefixAdd,
-						"GMPE Combined MCE@-R@-, "+units, cpt, plot_log);
+				renders.add(() -> generateMaps(region, gmpeCombinedData, outputDir, period, psv,
+						compareName.toLowerCase()+"_combined_mcer"+mapPrefixAdd,
+						"GMPE Combined MCE@-R@-, "+mapUnits, cpt, plot_log));
 				
 				// now ratio
 				GeoDataSet ratioData = GeoDataSetMath.divide(combinedData, gmpeCombinedData);
 				CPT ratioCPT = CyberShake_GMT_MapGenerator.getRatioCPT();
-				generateMaps(region, ratioData, outputDir, period, false, compareName.toLowerCase()+"_combined_ratio",
-						name.trim()+"/"+compareName+" MCE@-R@- Ratio, "+units, ratioCPT, false);
+				renders.add(() -> generateMaps(region, ratioData, outputDir, period, false,
+						compareName.toLowerCase()+"_combined_ratio",
+						mapName.trim()+"/"+compareName+" MCE@-R@- Ratio, "+mapUnits, ratioCPT, false));
 			}
 			
 			// now governing scatter
-			GMT_Map govMap = buildGoverningScatterMap(region, probData, detData, detLowerLimit, name+"Governing Scatter");
-			FaultBasedMapGen.plotMap(outputDir, "governing_scatter"+prefixAdd, false, govMap);
+			renders.add(() -> {
+				GMT_Map govMap = buildGoverningScatterMap(region, probData, detData, detLowerLimit,
+						mapName+"Governing Scatter");
+				FaultBasedMapGen.plotMap(outputDir, "governing_scatter"+mapPrefixAdd, false, govMap);
+			});
 			if (compareProbData != null && compareDetData != null) {
-				govMap = buildGoverningScatterMap(region, compareProbData, compareDetData,
-						detLowerLimit, compareName+" Governing Scatter");
-				FaultBasedMapGen.plotMap(outputDir, "gmpe_governing_scatter"+prefixAdd, false, govMap);
+				renders.add(() -> {
+					GMT_Map govMap = buildGoverningScatterMap(region, compareProbData, compareDetData,
+							detLowerLimit, compareName+" Governing Scatter");
+					FaultBasedMapGen.plotMap(outputDir, "gmpe_governing_scatter"+mapPrefixAdd, false, govMap);
+				});
 			}
 		}
 	}
@@ -550,7 +785,8 @@ public class MCErMapGenerator {
 	}
 	
 	public static void applyGMTSettings(GMT_Map map, CPT cpt, String label) {
-		map.setInterpSettings(interpSettings);
+		// copy so that per map changes (e.g. saving the interpolated surface) don't leak into concurrent renders
+		map.setInterpSettings(SerializationUtils.clone(interpSettings));
 		map.setLogPlot(false); // already did manually
 		map.setMaskIfNotRectangular(true);
 		map.setTopoResolution(TopographicSlopeFile.CA_THREE);
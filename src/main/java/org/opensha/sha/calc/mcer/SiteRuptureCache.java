@@ -0,0 +1,248 @@
+package org.opensha.sha.calc.mcer;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.TimeSpan;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.faultSurface.RuptureSurface;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Per-site cache of sources and ruptures which can be shared between the calculators for each GMPE
+ * at a single site. Source minimum distances are computed once for every source in the ERF, and the source and
+ * rupture objects for each source within the given distance are retained (keyed by source and rupture index).
+ * Retaining the rupture objects means that ruptures/surfaces that would otherwise be built on the fly by the ERF are
+ * reused, and that the distances memoized by each surface for this site location are reused by every GMPE rather
+ * than recomputed for each GMPE and period.
+ * <br>
+ * Some sources (e.g. point sources) return a single mutable rupture instance which is reset on each
+ * {@link ProbEqkSource#getRupture(int)} call. Ruptures are only retained for sources which return a distinct
+ * object for every rupture, other sources are passed through to the original source.
+ * <br>
+ * Use {@link #getCachedERF()} in place of the original ERF for calculations at this site. It is safe to use the cached
+ * ERF concurrently from multiple threads.
+ *
+ * @author kevin
+ *
+ */
+public class SiteRuptureCache {
+
+	private ERF erf;
+	private Location siteLoc;
+
+	private double[] sourceMinDists;
+	// null for sources beyond the retain distance
+	private ProbEqkSource[] sources;
+	// null for sources beyond the retain distance or which reuse rupture instances
+	private ProbEqkRupture[][] ruptures;
+
+	private CachedERF cachedERF;
+
+	/**
+	 * Builds a cache for the given site. This will compute distances to every source in the ERF.
+	 *
+	 * @param erf ERF, forecast must already be updated
+	 * @param site
+	 * @param retainDist ruptures for sources within this distance will be retained. Should be at least as large
+	 * as the maximum distance used in any calculation
+	 */
+	public SiteRuptureCache(ERF erf, Site site, double retainDist) {
+		Preconditions.checkNotNull(erf);
+		this.erf = erf;
+		this.siteLoc = site.getLocation();
+
+		int numSources = erf.getNumSources();
+		sourceMinDists = new double[numSources];
+		sources = new ProbEqkSource[numSources];
+		ruptures = new ProbEqkRupture[numSources][];
+
+		for (int sourceID=0; sourceID<numSources; sourceID++) {
+			ProbEqkSource source = erf.getSource(sourceID);
+			sourceMinDists[sourceID] = source.getMinDistance(site);
+			if (sourceMinDists[sourceID] > retainDist)
+				continue;
+			sources[sourceID] = source;
+			int numRups = source.getNumRuptures();
+			ProbEqkRupture[] sourceRups = new ProbEqkRupture[numRups];
+			Set<ProbEqkRupture> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (int rupID=0; rupID<numRups; rupID++) {
+				ProbEqkRupture rup = source.getRupture(rupID);
+				if (!distinct.add(rup)) {
+					// source reuses a mutable rupture instance, can't retain them
+					sourceRups = null;
+					break;
+				}
+				sourceRups[rupID] = rup;
+			}
+			ruptures[sourceID] = sourceRups;
+		}
+
+		cachedERF = new CachedERF();
+	}
+
+	/**
+	 * @return the original ERF for which this cache was built
+	 */
+	public ERF getERF() {
+		return erf;
+	}
+
+	/**
+	 * @param loc
+	 * @return true if this cache was built for a site at the given location
+	 */
+	public boolean isForLocation(Location loc) {
+		return siteLoc.equals(loc);
+	}
+
+	/**
+	 * @return ERF view which uses the cached sources and ruptures for this site
+	 */
+	public ERF getCachedERF() {
+		return cachedERF;
+	}
+
+	public double getSourceMinDistance(int sourceID) {
+		return sourceMinDists[sourceID];
+	}
+
+	/**
+	 * @param sourceID
+	 * @return true if the ruptures for this source are cached
+	 */
+	public boolean isRetained(int sourceID) {
+		return ruptures[sourceID] != null;
+	}
+
+	private class CachedERF extends AbstractERF {
+
+		private CachedSource[] cachedSources;
+
+		public CachedERF() {
+			cachedSources = new CachedSource[sourceMinDists.length];
+		}
+
+		@Override
+		public int getNumSources() {
+			return sourceMinDists.length;
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			CachedSource source = cachedSources[idx];
+			if (source == null) {
+				// benign race, sources are lightweight
+				ProbEqkSource origSource = sources[idx];
+				if (origSource == null)
+					origSource = erf.getSource(idx);
+				source = new CachedSource(idx, origSource);
+				cachedSources[idx] = source;
+			}
+			return source;
+		}
+
+		@Override
+		public void updateForecast() {
+			// do nothing, forecast must be updated before the cache is built
+		}
+
+		@Override
+		public String getName() {
+			return erf.getName();
+		}
+
+		@Override
+		public Parameter getParameter(String paramName) {
+			return erf.getAdjustableParameterList().getParameter(paramName);
+		}
+
+		@Override
+		public void setTimeSpan(TimeSpan time) {
+			throw new UnsupportedOperationException("Cannot modify the time span of a cached ERF");
+		}
+
+		@Override
+		public TimeSpan getTimeSpan() {
+			return erf.getTimeSpan();
+		}
+
+		@Override
+		public void setParameter(String name, Object value) {
+			throw new UnsupportedOperationException("Cannot modify the parameters of a cached ERF");
+		}
+
+		@Override
+		public ParameterList getAdjustableParameterList() {
+			return erf.getAdjustableParameterList();
+		}
+
+	}
+
+	private class CachedSource extends ProbEqkSource {
+
+		private int sourceID;
+		private ProbEqkSource origSource;
+
+		public CachedSource(int sourceID, ProbEqkSource origSource) {
+			this.sourceID = sourceID;
+			this.origSource = origSource;
+		}
+
+		@Override
+		public String getName() {
+			return origSource.getName();
+		}
+
+		@Override
+		public String getInfo() {
+			return origSource.getInfo();
+		}
+
+		@Override
+		public LocationList getAllSourceLocs() {
+			return origSource.getAllSourceLocs();
+		}
+
+		@Override
+		public RuptureSurface getSourceSurface() {
+			return origSource.getSourceSurface();
+		}
+
+		@Override
+		public boolean isPoissonianSource() {
+			return origSource.isPoissonianSource();
+		}
+
+		@Override
+		public double getMinDistance(Site site) {
+			if (isForLocation(site.getLocation()))
+				return sourceMinDists[sourceID];
+			return origSource.getMinDistance(site);
+		}
+
+		@Override
+		public int getNumRuptures() {
+			return origSource.getNumRuptures();
+		}
+
+		@Override
+		public ProbEqkRupture getRupture(int nRupture) {
+			if (ruptures[sourceID] != null)
+				return ruptures[sourceID][nRupture];
+			return origSource.getRupture(nRupture);
+		}
+
+	}
+
+}
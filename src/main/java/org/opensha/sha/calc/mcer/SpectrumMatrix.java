@@ -0,0 +1,213 @@
+package org.opensha.sha.calc.mcer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Spectra for many sites stored as a primitive (site x period) matrix, for bulk calculations across a whole map
+ * without allocating a function for each site. Missing values are NaN.
+ *
+ * @author kevin
+ *
+ */
+public class SpectrumMatrix {
+
+	private final double[] periods;
+	private final double[][] values;
+
+	/**
+	 * Creates a new matrix with all values set to NaN
+	 * @param numSites
+	 * @param periods
+	 */
+	public SpectrumMatrix(int numSites, double[] periods) {
+		this.periods = periods;
+		this.values = new double[numSites][periods.length];
+		for (double[] row : values)
+			Arrays.fill(row, Double.NaN);
+	}
+
+	/**
+	 * Creates a matrix backed by the given arrays
+	 * @param periods
+	 * @param values values indexed by [site][period]
+	 */
+	public SpectrumMatrix(double[] periods, double[][] values) {
+		for (double[] row : values)
+			Preconditions.checkArgument(row.length == periods.length, "Row length doesn't match number of periods");
+		this.periods = periods;
+		this.values = values;
+	}
+
+	/**
+	 * Builds a matrix from the given spectra. Periods not present in a spectrum will be NaN.
+	 * @param spectra
+	 * @param periods
+	 * @return
+	 */
+	public static SpectrumMatrix fromSpectra(List<? extends DiscretizedFunc> spectra, double[] periods) {
+		SpectrumMatrix matrix = new SpectrumMatrix(spectra.size(), periods);
+		for (int s=0; s<spectra.size(); s++) {
+			DiscretizedFunc spectrum = spectra.get(s);
+			for (int p=0; p<periods.length; p++) {
+				int index = spectrum.getXIndex(periods[p]);
+				if (index >= 0)
+					matrix.values[s][p] = spectrum.getY(index);
+			}
+		}
+		return matrix;
+	}
+
+	public int getNumSites() {
+		return values.length;
+	}
+
+	public int getNumPeriods() {
+		return periods.length;
+	}
+
+	public double[] getPeriods() {
+		return periods;
+	}
+
+	public double getPeriod(int periodIndex) {
+		return periods[periodIndex];
+	}
+
+	public double get(int siteIndex, int periodIndex) {
+		return values[siteIndex][periodIndex];
+	}
+
+	public void set(int siteIndex, int periodIndex, double value) {
+		values[siteIndex][periodIndex] = value;
+	}
+
+	/**
+	 * @param siteIndex
+	 * @return backing array of values for the given site
+	 */
+	public double[] getSiteValues(int siteIndex) {
+		return values[siteIndex];
+	}
+
+	/**
+	 * @param periodIndex
+	 * @return copy of the values for all sites at the given period
+	 */
+	public double[] getPeriodValues(int periodIndex) {
+		double[] ret = new double[values.length];
+		for (int s=0; s<values.length; s++)
+			ret[s] = values[s][periodIndex];
+		return ret;
+	}
+
+	/**
+	 * @param siteIndex
+	 * @return spectrum for the given site, excluding any missing (NaN) periods
+	 */
+	public DiscretizedFunc getSpectrum(int siteIndex) {
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		double[] row = values[siteIndex];
+		for (int p=0; p<periods.length; p++)
+			if (!Double.isNaN(row[p]))
+				func.set(periods[p], row[p]);
+		return func;
+	}
+
+	/**
+	 * Checks that the other matrix has the same sites and periods as this one
+	 * @param o
+	 */
+	public void checkCompatible(SpectrumMatrix o) {
+		Preconditions.checkArgument(o.getNumSites() == getNumSites(), "Site count mismatch: %s != %s",
+				o.getNumSites(), getNumSites());
+		Preconditions.checkArgument(periods == o.periods || Arrays.equals(periods, o.periods), "Periods mismatch");
+	}
+
+	/**
+	 * Weighted sum of the given matrices. Matrices with zero weight at a period are skipped for that period.
+	 *
+	 * @param matrices
+	 * @param weights weights indexed by [matrix][period]
+	 * @return
+	 */
+	public static SpectrumMatrix weightedSum(List<SpectrumMatrix> matrices, double[][] weights) {
+		Preconditions.checkArgument(!matrices.isEmpty());
+		Preconditions.checkArgument(weights.length == matrices.size());
+		SpectrumMatrix first = matrices.get(0);
+		int numSites = first.getNumSites();
+		int numPeriods = first.getNumPeriods();
+		for (SpectrumMatrix matrix : matrices)
+			first.checkCompatible(matrix);
+
+		double[][] ret = new double[numSites][numPeriods];
+		for (int m=0; m<matrices.size(); m++) {
+			double[][] vals = matrices.get(m).values;
+			double[] mWeights = weights[m];
+			Preconditions.checkArgument(mWeights.length == numPeriods);
+			for (int s=0; s<numSites; s++) {
+				double[] row = vals[s];
+				double[] retRow = ret[s];
+				for (int p=0; p<numPeriods; p++)
+					if (mWeights[p] != 0d)
+						retRow[p] += mWeights[p]*row[p];
+			}
+		}
+		return new SpectrumMatrix(first.periods, ret);
+	}
+
+	/**
+	 * Weighted average of the given matrices, normalized by the sum of the weights at each period. Matrices with
+	 * zero weight at a period are skipped for that period.
+	 *
+	 * @param matrices
+	 * @param weights weights indexed by [matrix][period]
+	 * @return
+	 */
+	public static SpectrumMatrix weightedAverage(List<SpectrumMatrix> matrices, double[][] weights) {
+		SpectrumMatrix sum = weightedSum(matrices, weights);
+		int numPeriods = sum.getNumPeriods();
+		double[] totWeights = new double[numPeriods];
+		for (double[] mWeights : weights)
+			for (int p=0; p<numPeriods; p++)
+				totWeights[p] += mWeights[p];
+		for (int p=0; p<numPeriods; p++)
+			Preconditions.checkState(totWeights[p] > 0, "No weight for period %s", sum.periods[p]);
+		for (double[] row : sum.values)
+			for (int p=0; p<numPeriods; p++)
+				if (totWeights[p] != 1d)
+					row[p] /= totWeights[p];
+		return sum;
+	}
+
+	/**
+	 * @param matrices
+	 * @return element-wise maximum of the given matrices. Missing (NaN) values are ignored regardless of which matrix
+	 * they are in, so an element is only NaN if it is NaN in every matrix
+	 */
+	public static SpectrumMatrix max(List<SpectrumMatrix> matrices) {
+		Preconditions.checkArgument(!matrices.isEmpty());
+		SpectrumMatrix first = matrices.get(0);
+		double[][] ret = new double[first.getNumSites()][];
+		for (int s=0; s<ret.length; s++)
+			ret[s] = Arrays.copyOf(first.values[s], first.getNumPeriods());
+		for (int m=1; m<matrices.size(); m++) {
+			SpectrumMatrix matrix = matrices.get(m);
+			first.checkCompatible(matrix);
+			for (int s=0; s<ret.length; s++) {
+				double[] row = matrix.values[s];
+				double[] retRow = ret[s];
+				for (int p=0; p<retRow.length; p++)
+					if (row[p] > retRow[p] || Double.isNaN(retRow[p]))
+						retRow[p] = row[p];
+			}
+		}
+		return new SpectrumMatrix(first.periods, ret);
+	}
+
+}
@@ -3,6 +3,7 @@ package org.opensha.sha.calc.mcer;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -20,8 +21,11 @@ import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.util.cpt.CPT;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 import scratch.UCERF3.analysis.FaultBasedMapGen;
 
@@ -32,6 +36,23 @@ public class TLDataLoader {
 	
 	private static final double distance_buffer = 10; // buffer in km for really close but just outside
 	
+	/*
+	 * uniform grid spatial index. each bucket lists the indexes (in original order) of all regions whose bounding box,
+	 * expanded by the distance buffer, overlaps that bucket
+	 */
+	private static final double bucket_size = 0.5; // degrees
+	private static final double km_per_degree = 111.19; // approximate, degrees latitude
+	private double bucketMinLat;
+	private double bucketMinLon;
+	private int numBucketLats;
+	private int numBucketLons;
+	private int[][] buckets;
+	
+	// cache of results, as the same grid locations are queried repeatedly for each map product. bounded as
+	// long running servers query arbitrary locations
+	private static final int MAX_POINT_CACHE_SIZE = 100000;
+	private Cache<Location, Double> pointCache;
+	
 	public TLDataLoader(CSVFile<String> polygons, CSVFile<String> attributes) {
 		regions = Lists.newArrayList();
 		values = Lists.newArrayList();
@@ -68,17 +89,114 @@ public class TLDataLoader {
 			regions.add(region);
 			values.add(val);
 		}
+		
+		buildBuckets();
+		pointCache = CacheBuilder.newBuilder().maximumSize(MAX_POINT_CACHE_SIZE).build();
+	}
+	
+	private void buildBuckets() {
+		double[] minLats = new double[regions.size()];
+		double[] maxLats = new double[regions.size()];
+		double[] minLons = new double[regions.size()];
+		double[] maxLons = new double[regions.size()];
+		double overallMinLat = Double.POSITIVE_INFINITY;
+		double overallMaxLat = Double.NEGATIVE_INFINITY;
+		double overallMinLon = Double.POSITIVE_INFINITY;
+		double overallMaxLon = Double.NEGATIVE_INFINITY;
+		// slightly larger than the buffer in degrees latitude, also covers great circle borders that bulge past the
+		// bounding box of the border vertices
+		double latBuffer = 1.1*distance_buffer/km_per_degree;
+		for (int i=0; i<regions.size(); i++) {
+			Region region = regions.get(i);
+			minLats[i] = region.getMinLat() - latBuffer;
+			maxLats[i] = region.getMaxLat() + latBuffer;
+			double maxAbsLat = Math.min(89d, Math.max(Math.abs(minLats[i]), Math.abs(maxLats[i])));
+			double lonBuffer = latBuffer/Math.cos(Math.toRadians(maxAbsLat));
+			minLons[i] = region.getMinLon() - lonBuffer;
+			maxLons[i] = region.getMaxLon() + lonBuffer;
+			overallMinLat = Math.min(overallMinLat, minLats[i]);
+			overallMaxLat = Math.max(overallMaxLat, maxLats[i]);
+			overallMinLon = Math.min(overallMinLon, minLons[i]);
+			overallMaxLon = Math.max(overallMaxLon, maxLons[i]);
+		}
+		if (regions.isEmpty()) {
+			numBucketLats = 0;
+			numBucketLons = 0;
+			buckets = new int[0][];
+			return;
+		}
+		bucketMinLat = overallMinLat;
+		bucketMinLon = overallMinLon;
+		numBucketLats = (int)((overallMaxLat - overallMinLat)/bucket_size)+1;
+		numBucketLons = (int)((overallMaxLon - overallMinLon)/bucket_size)+1;
+		
+		List<List<Integer>> bucketLists = new ArrayList<>(numBucketLats*numBucketLons);
+		for (int i=0; i<numBucketLats*numBucketLons; i++)
+			bucketLists.add(null);
+		for (int i=0; i<regions.size(); i++) {
+			int minLatIndex = getBucketLatIndex(minLats[i]);
+			int maxLatIndex = getBucketLatIndex(maxLats[i]);
+			int minLonIndex = getBucketLonIndex(minLons[i]);
+			int maxLonIndex = getBucketLonIndex(maxLons[i]);
+			for (int latIndex=minLatIndex; latIndex<=maxLatIndex; latIndex++) {
+				for (int lonIndex=minLonIndex; lonIndex<=maxLonIndex; lonIndex++) {
+					int bucketIndex = latIndex*numBucketLons + lonIndex;
+					List<Integer> bucket = bucketLists.get(bucketIndex);
+					if (bucket == null) {
+						bucket = new ArrayList<>();
+						bucketLists.set(bucketIndex, bucket);
+					}
+					bucket.add(i);
+				}
+			}
+		}
+		buckets = new int[bucketLists.size()][];
+		for (int i=0; i<buckets.length; i++) {
+			List<Integer> bucket = bucketLists.get(i);
+			buckets[i] = bucket == null ? new int[0] : Ints.toArray(bucket);
+		}
+	}
+	
+	private int getBucketLatIndex(double lat) {
+		return (int)((lat - bucketMinLat)/bucket_size);
+	}
+	
+	private int getBucketLonIndex(double lon) {
+		return (int)((lon - bucketMinLon)/bucket_size);
+	}
+	
+	/**
+	 * @param loc
+	 * @return indexes of all regions which could contain the given location or be within the distance buffer of it
+	 */
+	private int[] getCandidates(Location loc) {
+		int latIndex = getBucketLatIndex(loc.getLatitude());
+		int lonIndex = getBucketLonIndex(loc.getLongitude());
+		if (loc.getLatitude() < bucketMinLat || latIndex >= numBucketLats
+				|| loc.getLongitude() < bucketMinLon || lonIndex >= numBucketLons)
+			return new int[0];
+		return buckets[latIndex*numBucketLons + lonIndex];
 	}
 	
 	public double getValue(Location loc) {
 		Preconditions.checkNotNull(loc);
-		for (int i=0; i<regions.size(); i++)
+		Double cached = pointCache.getIfPresent(loc);
+		if (cached != null)
+			return cached;
+		double value = calcValue(loc);
+		pointCache.put(loc, value);
+		return value;
+	}
+	
+	private double calcValue(Location loc) {
+		int[] candidates = getCandidates(loc);
+		for (int i : candidates)
 			if (regions.get(i).contains(loc))
 				return values.get(i);
 		// ok see if it's a really near miss that we should still include
 		double minDistance = Double.POSITIVE_INFINITY;
 		int minIndex = -1;
-		for (int i=0; i<regions.size(); i++) {
+		for (int i : candidates) {
 			double dist = regions.get(i).distanceToLocation(loc);
 			if (dist < minDistance) {
 				minDistance= dist;
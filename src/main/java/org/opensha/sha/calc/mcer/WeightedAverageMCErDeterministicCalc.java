@@ -81,4 +81,23 @@ public class WeightedAverageMCErDeterministicCalc extends
 		return avgResult;
 	}
 
+	@Override
+	public SpectrumMatrix calc(List<? extends Site> sites, double[] periods) {
+		List<SpectrumMatrix> matrices = Lists.newArrayList();
+		List<double[]> weights = Lists.newArrayList();
+		for (AbstractMCErDeterministicCalc calc : calcs) {
+			double[] calcWeights = new double[periods.length];
+			boolean anyWeight = false;
+			for (int p=0; p<periods.length; p++) {
+				calcWeights[p] = weightProv.getDetWeight(calc, periods[p]);
+				anyWeight = anyWeight || calcWeights[p] != 0d;
+			}
+			if (!anyWeight)
+				continue;
+			matrices.add(calc.calc(sites, periods));
+			weights.add(calcWeights);
+		}
+		return SpectrumMatrix.weightedAverage(matrices, weights.toArray(new double[0][]));
+	}
+
 }
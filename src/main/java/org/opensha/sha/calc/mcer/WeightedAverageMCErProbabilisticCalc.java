@@ -42,7 +42,10 @@ public class WeightedAverageMCErProbabilisticCalc extends
 		Map<Double, DiscretizedFunc> avgCurves = Maps.newHashMap();
 		
 		for (double period : periods) {
-			ArbitrarilyDiscretizedFunc avgCurve = null;
+			// accumulate in primitive arrays, only build the function once done
+			ArbitrarilyDiscretizedFunc xValsFunc = null;
+			double[] xVals = null;
+			double[] yVals = null;
 			
 			double totWeight = 0d;
 			
@@ -55,29 +58,40 @@ public class WeightedAverageMCErProbabilisticCalc extends
 				
 				totWeight += weight;
 				
-				if (calc instanceof GMPE_MCErProbabilisticCalc && avgCurve != null)
+				if (calc instanceof GMPE_MCErProbabilisticCalc && xValsFunc != null)
 					// force it to use correct x values
-					((GMPE_MCErProbabilisticCalc)calc).setXVals(avgCurve);
+					((GMPE_MCErProbabilisticCalc)calc).setXVals(xValsFunc);
 				DiscretizedFunc curve = calc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
+				int size = curve.size();
 				
-				if (avgCurve == null) {
-					avgCurve = new ArbitrarilyDiscretizedFunc();
-					for (int j=0; j<curve.size(); j++)
-						avgCurve.set(curve.getX(j), 0);
+				if (xVals == null) {
+					xVals = new double[size];
+					yVals = new double[size];
+					xValsFunc = new ArbitrarilyDiscretizedFunc();
+					for (int j=0; j<size; j++) {
+						xVals[j] = curve.getX(j);
+						xValsFunc.set(xVals[j], 0);
+					}
 				} else {
-					Preconditions.checkState(avgCurve.size() == curve.size(), "x values mismatch between calculators");
-					for (int j=0; j<curve.size(); j++)
-						Preconditions.checkState((float)avgCurve.getX(j) == (float)curve.getX(j),
-						"x values mismatch between calculators for p=%ss at pt %s. %s != %s",
-						period, j, avgCurve.getX(j), curve.getX(j));
+					Preconditions.checkState(xVals.length == size, "x values mismatch between calculators");
+					for (int j=0; j<size; j++) {
+						double x = curve.getX(j);
+						if ((float)xVals[j] != (float)x)
+							throw new IllegalStateException("x values mismatch between calculators for p="+period
+									+"s at pt "+j+". "+xVals[j]+" != "+x);
+					}
 				}
 				
-				for (int j=0; j<curve.size(); j++)
-					avgCurve.set(j, avgCurve.getY(j) + weight*curve.getY(j));
+				for (int j=0; j<size; j++)
+					yVals[j] += weight*curve.getY(j);
 			}
 			
-			if (totWeight != 1d)
-				avgCurve.scale(1d/totWeight);
+			Preconditions.checkState(xVals != null, "No weight for period %s", period);
+			
+			double scale = 1d/totWeight;
+			ArbitrarilyDiscretizedFunc avgCurve = new ArbitrarilyDiscretizedFunc();
+			for (int j=0; j<xVals.length; j++)
+				avgCurve.set(xVals[j], totWeight == 1d ? yVals[j] : yVals[j]*scale);
 			
 			avgCurves.put(period, avgCurve);
 		}
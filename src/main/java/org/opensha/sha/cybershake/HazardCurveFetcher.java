@@ -28,6 +28,7 @@ import org.opensha.sha.cybershake.db.HazardCurve2DB;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
 
 public class HazardCurveFetcher {
 	
@@ -93,6 +94,7 @@ public class HazardCurveFetcher {
 		// as the accessor sorts by curve date desc
 		HashSet<Integer> siteIDs = new HashSet<Integer>();
 		List<Integer> duplicateCurveIDs = Lists.newArrayList();
+		List<Integer> siteIDsForCurves = Lists.newArrayList();
 		System.out.println("Start loop...");
 		for (int i=0; i<curveIDs.size(); i++) {
 			int id = curveIDs.get(i);
@@ -105,14 +107,21 @@ public class HazardCurveFetcher {
 				siteIDs.add(siteID);
 			}
 			sites.add(site2db.getSiteFromDB(siteID));
-			DiscretizedFunc curve = curvePointsDB.getHazardCurve(id);
-			Preconditions.checkNotNull(curve, "Curve is null? Curve ID=%s, site ID=%s", id, siteID);
-			funcs.add(curve);
+			siteIDsForCurves.add(siteID);
 			runIDs.add(curve2db.getRunIDForCurve(id));
 		}
 		for (int id : duplicateCurveIDs)
 			// use indexof because remove(int) will do index not object
 			curveIDs.remove(curveIDs.indexOf(id));
+		
+		// fetch the points for all curves in bulk rather than with a query per curve
+		Map<Integer, DiscretizedFunc> curves = curvePointsDB.getHazardCurves(curveIDs);
+		for (int i=0; i<curveIDs.size(); i++) {
+			int id = curveIDs.get(i);
+			DiscretizedFunc curve = curves == null ? curvePointsDB.getHazardCurve(id) : curves.get(id);
+			Preconditions.checkNotNull(curve, "Curve is null? Curve ID=%s, site ID=%s", id, siteIDsForCurves.get(i));
+			funcs.add(curve);
+		}
 	}
 	
 	public void scaleForDuration(double origDuration, double newDuration) {
@@ -165,22 +174,18 @@ public class HazardCurveFetcher {
 	}
 	
 	public ArrayList<Double> getSiteValues(boolean isProbAt_IML, double val) {
+		if (val < 0)
+			// RTGM
+			return calcRTGM();
 		ArrayList<Double> vals = new ArrayList<Double>();
-		for (DiscretizedFunc func : funcs) {
-			if (val < 0)
-				// RTGM
-				vals.add(AbstractMCErProbabilisticCalc.calcRTGM(func));
-			else
-				vals.add(HazardDataSetLoader.getCurveVal(func, isProbAt_IML, val));
-		}
+		for (DiscretizedFunc func : funcs)
+			vals.add(HazardDataSetLoader.getCurveVal(func, isProbAt_IML, val));
 		return vals;
 	}
 	
-	public List<Double> calcRTGM() {
-		List<Double> vals = new ArrayList<Double>();
-		for (DiscretizedFunc func : funcs)
-			vals.add(AbstractMCErProbabilisticCalc.calcRTGM(func));
-		return vals;
+	public ArrayList<Double> calcRTGM() {
+		// batch calculation, done in parallel
+		return new ArrayList<Double>(Doubles.asList(AbstractMCErProbabilisticCalc.calcRTGM(funcs)));
 	}
 	
 	public List<Double> calcDeterministic(CyberShakeMCErDeterministicCalc detCalc) {
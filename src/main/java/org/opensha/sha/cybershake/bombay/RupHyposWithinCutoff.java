@@ -1,20 +1,21 @@
 package org.opensha.sha.cybershake.bombay;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.ERF2DB;
 import org.opensha.sha.cybershake.db.MeanUCERF2_ToDB;
+import org.opensha.sha.cybershake.db.RVHypocenterStore;
 import org.opensha.sha.cybershake.db.SiteInfo2DB;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ProbEqkRupture;
@@ -33,6 +34,7 @@ public class RupHyposWithinCutoff {
 	private double minMag;
 	
 	private DBAccess db;
+	private File hypoCacheDir;
 	private ERF2DB erf2db;
 	private SiteInfo2DB site2db;
 	
@@ -51,7 +53,23 @@ public class RupHyposWithinCutoff {
 	
 	public RupHyposWithinCutoff(DBAccess db, Location hypoLocation,
 			double maxDistance, String sourceNameConstr, boolean useDepth, double minMag) {
+		this(db, RVHypocenterStore.getDefaultCacheDir(), hypoLocation, maxDistance, sourceNameConstr, useDepth, minMag);
+	}
+	
+	/**
+	 * @param db
+	 * @param hypoCacheDir directory where the rupture variation hypocenter store is cached, or null to always load it
+	 * from the database
+	 * @param hypoLocation
+	 * @param maxDistance
+	 * @param sourceNameConstr
+	 * @param useDepth
+	 * @param minMag
+	 */
+	public RupHyposWithinCutoff(DBAccess db, File hypoCacheDir, Location hypoLocation,
+			double maxDistance, String sourceNameConstr, boolean useDepth, double minMag) {
 		this.db = db;
+		this.hypoCacheDir = hypoCacheDir;
 		if (useDepth)
 			this.hypoLocation = hypoLocation;
 		else
@@ -112,47 +130,35 @@ public class RupHyposWithinCutoff {
 	}
 	
 	private ArrayList<Integer> getRupVars(int sourceID, int rupID) {
-		String sql = "SELECT Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth FROM Rupture_Variations " +
-					"WHERE ERF_ID=" + ERFID + " AND Rup_Var_Scenario_ID=" + RUP_VAR_SCEN_ID + " " +
-					"AND Source_ID=" + sourceID + " AND Rupture_ID=" + rupID;
+		RVHypocenterStore store;
+		try {
+			store = RVHypocenterStore.get(db, ERFID, RUP_VAR_SCEN_ID, hypoCacheDir);
+		} catch (IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
 		ArrayList<Integer> rvs = new ArrayList<Integer>();
 		int tot = 0;
-		try {
-			ArrayList<Integer> rvsExcluded = Lists.newArrayList();
-			ResultSet rs = db.selectData(sql);
-			boolean success = rs.next();
-			while (success) {
-				int rvID = rs.getInt("Rup_Var_ID");
-				double lat = rs.getDouble("Hypocenter_Lat");
-				double lon = rs.getDouble("Hypocenter_Lon");
-				double depth = rs.getDouble("Hypocenter_Depth");
-				Location loc;
-				if (useDepth)
-					loc = new Location(lat, lon, depth);
-				else
-					loc = new Location(lat, lon);
-				tot++;
-				
-				double dist = LocationUtils.linearDistance(loc, hypoLocation);
-				if (dist < maxDistance) {
-					rvs.add(rvID);
-					ArrayList<Location> locs = rvLocMap.get(getKey(sourceID, rupID));
-					if (locs == null) {
-						locs = new ArrayList<Location>();
-						rvLocMap.put(getKey(sourceID, rupID), locs);
-					}
-					locs.add(loc);
-				} else {
-					rvsExcluded.add(rvID);
+		ArrayList<Integer> rvsExcluded = Lists.newArrayList();
+		for (int rvID : store.getRVIDs(sourceID, rupID)) {
+			Location loc = store.getHypocenter(sourceID, rupID, rvID);
+			if (!useDepth)
+				loc = new Location(loc.getLatitude(), loc.getLongitude());
+			tot++;
+			
+			double dist = LocationUtils.linearDistance(loc, hypoLocation);
+			if (dist < maxDistance) {
+				rvs.add(rvID);
+				ArrayList<Location> locs = rvLocMap.get(getKey(sourceID, rupID));
+				if (locs == null) {
+					locs = new ArrayList<Location>();
+					rvLocMap.put(getKey(sourceID, rupID), locs);
 				}
-				
-				success = rs.next();
+				locs.add(loc);
+			} else {
+				rvsExcluded.add(rvID);
 			}
-			excludedMap.put(getKey(sourceID, rupID), rvsExcluded);
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+		excludedMap.put(getKey(sourceID, rupID), rvsExcluded);
 		
 		System.out.println("Source " + sourceID + ", Rup " + rupID + ", vars: " + rvs.size() + "/" + tot);
 		
@@ -54,6 +54,7 @@ import org.opensha.sha.cybershake.db.CybershakeSiteInfo2DB;
 import org.opensha.sha.cybershake.db.Cybershake_OpenSHA_DBApplication;
 import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.MeanUCERF2_ToDB;
+import org.opensha.sha.cybershake.db.RVHypocenterStore;
 import org.opensha.sha.cybershake.db.Runs2DB;
 import org.opensha.sha.cybershake.db.SiteInfo2DB;
 import org.opensha.sha.cybershake.maps.HardCodedInterpDiffMapCreator;
@@ -85,6 +86,7 @@ public class ConditionalHypocenterDistribution {
 	private RuptureVariationProbabilityModifier mod;
 	
 	private RVHypoCache hypoCache;
+	private File hypoCacheDir = RVHypocenterStore.getDefaultCacheDir();
 	
 	/*
 	 * Table organized by sourceID, ruptureID to already cached variation probabilities
@@ -113,6 +115,14 @@ public class ConditionalHypocenterDistribution {
 		this.distName = distName;
 	}
 	
+	/**
+	 * @param hypoCacheDir directory where rupture variation hypocenter stores are cached (see
+	 * {@link RVHypocenterStore#get(DBAccess, int, int, File)}), or null to always load them from the database
+	 */
+	public void setHypocenterCacheDir(File hypoCacheDir) {
+		this.hypoCacheDir = hypoCacheDir;
+	}
+	
 	private class StandardMod implements RuptureVariationProbabilityModifier {
 		
 		private RealDistribution dist;
@@ -215,7 +225,7 @@ public class ConditionalHypocenterDistribution {
 	
 	private List<Location> loadRVHypos(CybershakeRun run, int sourceID, int rupID) {
 		if (hypoCache == null)
-			hypoCache = new RVHypoCache(db, run.getERFID(), run.getRupVarScenID());
+			hypoCache = new RVHypoCache(db, run.getERFID(), run.getRupVarScenID(), hypoCacheDir);
 		return hypoCache.loadRVHypos(sourceID, rupID);
 	}
 	
@@ -224,11 +234,13 @@ public class ConditionalHypocenterDistribution {
 		private DBAccess db;
 		private int erfID;
 		private int rvScenID;
+		private File cacheDir;
 		
-		public RVHypoCache(DBAccess db, int erfID, int rvScenID) {
+		public RVHypoCache(DBAccess db, int erfID, int rvScenID, File cacheDir) {
 			this.db = db;
 			this.erfID = erfID;
 			this.rvScenID = rvScenID;
+			this.cacheDir = cacheDir;
 			
 			cache = HashBasedTable.create();
 		}
@@ -236,7 +248,21 @@ public class ConditionalHypocenterDistribution {
 		public synchronized List<Location> loadRVHypos(int sourceID, int rupID) {
 			List<Location> locs = cache.get(sourceID, rupID);
 			
+			if (locs == null && !bundle_hypos_by_name) {
+				// no need to cache these, the store lookup is just array reads
+				try {
+					locs = RVHypocenterStore.get(db, erfID, rvScenID, cacheDir).getHypocenterList(sourceID, rupID);
+				} catch (IOException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+				for (int i=0; i<locs.size(); i++)
+					Preconditions.checkNotNull(locs.get(i), "RV "+i+" has no hypo for rup with "+locs.size()
+						+" RVs. Source="+sourceID+", Rupture="+rupID);
+				return locs;
+			}
+			
 			if (locs == null) {
+				// bundling requires the RV LFNs, which aren't in the hypocenter store
 				String sql = "SELECT Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth,Rup_Var_LFN FROM Rupture_Variations " +
 						"WHERE ERF_ID=" + erfID + " AND Rup_Var_Scenario_ID=" + rvScenID + " " +
 						"AND Source_ID=" + sourceID + " AND Rupture_ID=" + rupID;
@@ -582,7 +608,8 @@ public class ConditionalHypocenterDistribution {
 		stepFunc.set(0.67d, (double)factor);
 		stepFunc.set(1d, (double)factor);
 		CybershakeRun run0 = study.runFetcher().fetch().get(0);
-		RVHypoCache hypoCache = new RVHypoCache(db, run0.getERFID(), run0.getRupVarScenID());
+		RVHypoCache hypoCache = new RVHypoCache(db, run0.getERFID(), run0.getRupVarScenID(),
+				new File(studyDir, "rv_hypo_cache"));
 		DistStepFuncMod funcMod = new DistStepFuncMod(stepFunc, db, hypoCache);
 		String distName = "Furthest "+factor+"x As Likely";
 		String distDesc = "step function applied uniquely to each site/source pair where the furthest third of the hypocenters "
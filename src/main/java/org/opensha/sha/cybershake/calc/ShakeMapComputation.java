@@ -2,9 +2,14 @@ package org.opensha.sha.cybershake.calc;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
 import org.opensha.commons.data.xyz.ArbDiscrXYZ_DataSet;
@@ -13,9 +18,9 @@ import org.opensha.commons.data.xyz.XYZ_DataSet;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
-import org.opensha.sha.cybershake.HazardCurveFetcher;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.IDPairing;
 import org.opensha.sha.cybershake.db.CybershakeIM;
-import org.opensha.sha.cybershake.db.CybershakeRun;
 import org.opensha.sha.cybershake.db.CybershakeSite;
 import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.ERF2DB;
@@ -23,7 +28,10 @@ import org.opensha.sha.cybershake.db.HazardCurve2DB;
 import org.opensha.sha.cybershake.db.PeakAmplitudesFromDB;
 import org.opensha.sha.cybershake.db.Runs2DB;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 
 public class ShakeMapComputation {
 	
@@ -67,11 +75,11 @@ public class ShakeMapComputation {
 	
 	public GeoDataSet getShakeMap(int datasetID, int erfID, int rupVarScenID, CybershakeIM im,
 			int sourceID, int rupID, List<Location> hypos) {
-		ArrayList<Integer> rvsToInclude;
+		BitSet rvs;
 		if (hypos == null || hypos.isEmpty()) {
-			rvsToInclude = null;
+			rvs = null;
 		} else {
-			HashSet<Integer> rvsToIncludeSet = new HashSet<Integer>();
+			rvs = new BitSet();
 			HashMap<Integer, Location> rvHypos = erf2db.getHypocenters(erfID, sourceID, rupID, rupVarScenID);
 			
 			for (Location hypo : hypos) {
@@ -89,15 +97,14 @@ public class ShakeMapComputation {
 				for (int rvID : rvHypos.keySet()) {
 					Location rvHypo = rvHypos.get(rvID);
 					if (closestRV.equals(rvHypo))
-						rvsToIncludeSet.add(rvID);
+						rvs.set(rvID);
 				}
 				
-				System.out.println("Matched hypocenter with RV hypo "+closestDist+" KM away. "+rvsToIncludeSet.size()+" RVs");
+				System.out.println("Matched hypocenter with RV hypo "+closestDist+" KM away. "+rvs.cardinality()+" RVs");
 			}
-			rvsToInclude = Lists.newArrayList(rvsToIncludeSet);
 		}
 		
-		return getShakeMap(datasetID, erfID, rupVarScenID, im, sourceID, rupID, rvsToInclude);
+		return buildShakeMap(datasetID, im, sourceID, rupID, rvs);
 	}
 	
 	public GeoDataSet getShakeMap(int datasetID, int erfID, int rupVarScenID, int imTypeID,
@@ -108,87 +115,253 @@ public class ShakeMapComputation {
 	
 	public GeoDataSet getShakeMap(int datasetID, int erfID, int rupVarScenID, CybershakeIM im,
 			int sourceID, int rupID, ArrayList<Integer> rvsToInclude) {
+		BitSet rvs = null;
+		if (rvsToInclude != null) {
+			rvs = new BitSet();
+			for (int rvID : rvsToInclude)
+				rvs.set(rvID);
+		}
+		return buildShakeMap(datasetID, im, sourceID, rupID, rvs);
+	}
+	
+	private GeoDataSet buildShakeMap(int datasetID, CybershakeIM im, int sourceID, int rupID, BitSet rvs) {
+		ScenarioShakeMap map = getScenarioShakeMap(datasetID, im, sourceID, rupID, rvs);
 		
 		GeoDataSet xyz = new ArbDiscrGeoDataSet(true);
-		
-		HazardCurveFetcher fetcher = new HazardCurveFetcher(db, datasetID, im.getID());
-		
-		List<CybershakeSite> sites = fetcher.getCurveSites();
+		double[] medians = map.getMedians();
 		MinMaxAveTracker numAmpsTrack = new MinMaxAveTracker();
 		int sitesLoaded = 0;
-		for (int i=0; i<sites.size(); i++) {
-			CybershakeSite site = sites.get(i);
-			int curveID = fetcher.getCurveIDs().get(i);
-			int runID = curves2db.getRunIDForCurve(curveID);
-			CybershakeRun run = runs2db.getRun(runID);
-			List<Double> imVals;
-			try {
-				imVals = amps2db.getIM_Values(run.getRunID(), sourceID, rupID, im);
-			} catch (SQLException e) {
-//				e.printStackTrace();
+		for (int i=0; i<map.getNumSites(); i++) {
+			CybershakeSite site = map.getSites().get(i);
+			if (!map.isLoaded(i)) {
 				if (valForMissing != null)
 					xyz.set(new Location(site.lat, site.lon), valForMissing);
 				continue;
 			}
-
-//			System.out.println("loaded " + imVals.size() + " amps for site: " + site);
-
-			if (rvsToInclude != null) {
-				ArrayList<Double> newIMVals = new ArrayList<Double>();
-				for (int rvID=0; rvID<imVals.size(); rvID++) {
-					if (rvsToInclude.contains(rvID))
-						newIMVals.add(imVals.get(rvID));
-				}
-				imVals = newIMVals;
-//				System.out.println("new size: " + imVals.size());
-			}
-			numAmpsTrack.addValue(imVals.size());
+			numAmpsTrack.addValue(map.getNumAmps()[i]);
 			sitesLoaded++;
-
-			//				if (rvsToInclude != null) {
-			//					if (imVals.size() != rvHypos.size())
-			//						throw new RuntimeException("rv count mismatch!");
-			//					ArrayList<Double> newIMVals = new ArrayList<Double>();
-			//					for (int rvID=0; rvID<imVals.size(); rvID++) {
-			//						Location rvHypo = rvHypos.get(rvID);
-			//						if (hypo.equals(rvHypo))
-			//							newIMVals.add(imVals.get(rvID));
-			//					}
-			//					imVals = newIMVals;
-			//					System.out.println("RV's with correct hypo: " + imVals.size());
-			//				}
-
-			double logTotal = 0;
-			for (int j=0; j<imVals.size(); j++) {
-				double logIM = Math.log(imVals.get(j) / HazardCurveComputation.CONVERSION_TO_G);
-				logTotal += logIM;
-			}
-//			System.out.println("logTotal: " + logTotal);
-			double logMean = logTotal / (double)imVals.size();
-//			System.out.println("logMean: " + logMean);
-			double mean = Math.exp(logMean);
-
-//			System.out.println("Mean: " + mean);
-
-			xyz.set(new Location(site.lat, site.lon), mean);
-
-			//				try {
-			//					System.out.println("Getting amps for site: " + site);
-			//					ArrayList<Double> vals = amps2db.getIM_Values(runID, sourceID, rupID, im);
-			//					if (vals != null && vals.size() > 0) {
-			//						for (double val : vals) {
-			//							val /= HazardCurveComputation.CONVERSION_TO_G;
-			//						}
-			//						xyz.addValue(site.lat, site.lon, val);
-			//					}
-			//				} catch (Exception e) {
-			//					System.out.println("No amp for site: " + site);
-			//				}
+			xyz.set(new Location(site.lat, site.lon), medians[i]);
 		}
 		
 		System.out.println("Loaded "+sitesLoaded+" sites, im vals loaded per: "+numAmpsTrack.getAverage());
 		
 		return xyz;
 	}
+	
+	/**
+	 * Bulk scenario ShakeMap calculation for a single rupture, see
+	 * {@link #getScenarioShakeMap(int, CybershakeIM, List, BitSet, double...)}
+	 * @param datasetID
+	 * @param im
+	 * @param sourceID
+	 * @param rupID
+	 * @param rvs rupture variation IDs to include, or null for all
+	 * @param fractiles fractiles to compute at each site, e.g. 0.16, 0.84
+	 * @return
+	 */
+	public ScenarioShakeMap getScenarioShakeMap(int datasetID, CybershakeIM im, int sourceID, int rupID,
+			BitSet rvs, double... fractiles) {
+		return getScenarioShakeMap(datasetID, im, Lists.newArrayList(new IDPairing(sourceID, rupID)), rvs, fractiles);
+	}
+	
+	/**
+	 * Bulk scenario ShakeMap calculation. Site runs for the dataset are resolved in a single query, and amplitudes
+	 * for all sites are fetched with a few IN (...) queries per rupture rather than one query per site. Amplitudes
+	 * from all of the given ruptures are pooled at each site, and statistics are computed for each site in parallel.
+	 * @param datasetID
+	 * @param im
+	 * @param ruptures source and rupture IDs
+	 * @param rvs rupture variation IDs to include (applied to each rupture), or null for all
+	 * @param fractiles fractiles to compute at each site, e.g. 0.16, 0.84
+	 * @return
+	 */
+	public ScenarioShakeMap getScenarioShakeMap(int datasetID, CybershakeIM im, List<IDPairing> ruptures,
+			BitSet rvs, double... fractiles) {
+		Preconditions.checkArgument(!ruptures.isEmpty(), "Must supply at least one rupture");
+		for (double fractile : fractiles)
+			Preconditions.checkArgument(fractile >= 0d && fractile <= 1d, "Bad fractile: %s", fractile);
+		Stopwatch watch = Stopwatch.createStarted();
+		LinkedHashMap<CybershakeSite, Integer> siteRuns = hc2db.getSiteRunsForDataset(datasetID, im.getID());
+		Preconditions.checkNotNull(siteRuns, "Couldn't load site runs for dataset %s", datasetID);
+		
+		List<Map<Integer, double[]>> rupAmps = new ArrayList<>();
+		for (IDPairing rup : ruptures) {
+			try {
+				rupAmps.add(amps2db.getIM_Values(siteRuns.values(), rup.getID1(), rup.getID2(), im));
+			} catch (SQLException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		long fetchMillis = watch.elapsed(TimeUnit.MILLISECONDS);
+		
+		ScenarioShakeMap map = new ScenarioShakeMap(new ArrayList<>(siteRuns.keySet()),
+				Ints.toArray(siteRuns.values()), fractiles);
+		IntStream.range(0, map.getNumSites()).parallel().forEach(i -> {
+			int runID = map.runIDs[i];
+			int num = 0;
+			boolean loaded = false;
+			for (Map<Integer, double[]> amps : rupAmps) {
+				double[] vals = amps.get(runID);
+				if (vals == null)
+					continue;
+				loaded = true;
+				for (int rvID=0; rvID<vals.length; rvID++)
+					if (!Double.isNaN(vals[rvID]) && (rvs == null || rvs.get(rvID)))
+						num++;
+			}
+			if (!loaded)
+				return;
+			double[] imVals = new double[num];
+			int index = 0;
+			for (Map<Integer, double[]> amps : rupAmps) {
+				double[] vals = amps.get(runID);
+				if (vals == null)
+					continue;
+				for (int rvID=0; rvID<vals.length; rvID++)
+					if (!Double.isNaN(vals[rvID]) && (rvs == null || rvs.get(rvID)))
+						imVals[index++] = vals[rvID] / HazardCurveComputation.CONVERSION_TO_G;
+			}
+			map.calcSite(i, imVals);
+		});
+		watch.stop();
+		System.out.println("Scenario ShakeMap for "+map.getNumSites()+" sites and "+ruptures.size()+" rupture(s) took "
+				+watch.elapsed(TimeUnit.MILLISECONDS)+" ms ("+fetchMillis+" ms fetching amplitudes)");
+		
+		return map;
+	}
+	
+	/**
+	 * Scenario ShakeMap statistics at each site, stored in primitive arrays which are indexed by site (in the order
+	 * of {@link #getSites()}). IM values are in units of g. Sites without any amplitudes for the scenario are not
+	 * loaded and have NaN values, as do loaded sites where no amplitudes matched the rupture variation selection.
+	 * 
+	 * @author kevin
+	 *
+	 */
+	public static class ScenarioShakeMap {
+		
+		private List<CybershakeSite> sites;
+		private int[] runIDs;
+		private boolean[] loaded;
+		private int[] numAmps;
+		private double[] medians;
+		private double[] means;
+		private double[] fractiles;
+		private double[][] fractileVals;
+		
+		private ScenarioShakeMap(List<CybershakeSite> sites, int[] runIDs, double[] fractiles) {
+			this.sites = sites;
+			this.runIDs = runIDs;
+			this.fractiles = fractiles;
+			int numSites = sites.size();
+			loaded = new boolean[numSites];
+			numAmps = new int[numSites];
+			medians = new double[numSites];
+			means = new double[numSites];
+			Arrays.fill(medians, Double.NaN);
+			Arrays.fill(means, Double.NaN);
+			fractileVals = new double[fractiles.length][numSites];
+			for (double[] vals : fractileVals)
+				Arrays.fill(vals, Double.NaN);
+		}
+		
+		private void calcSite(int index, double[] imVals) {
+			loaded[index] = true;
+			numAmps[index] = imVals.length;
+			if (imVals.length == 0)
+				return;
+			double logTotal = 0;
+			double total = 0;
+			for (double val : imVals) {
+				logTotal += Math.log(val);
+				total += val;
+			}
+			medians[index] = Math.exp(logTotal / (double)imVals.length);
+			means[index] = total / (double)imVals.length;
+			if (fractiles.length > 0) {
+				Arrays.sort(imVals);
+				for (int f=0; f<fractiles.length; f++)
+					fractileVals[f][index] = calcFractile(imVals, fractiles[f]);
+			}
+		}
+		
+		private static double calcFractile(double[] sorted, double fractile) {
+			// linear interpolation between order statistics
+			double pos = fractile * (sorted.length - 1);
+			int lower = (int)Math.floor(pos);
+			int upper = Math.min(lower+1, sorted.length-1);
+			return sorted[lower] + (pos - lower)*(sorted[upper] - sorted[lower]);
+		}
+		
+		public int getNumSites() {
+			return sites.size();
+		}
+		
+		public List<CybershakeSite> getSites() {
+			return sites;
+		}
+		
+		public int[] getRunIDs() {
+			return runIDs;
+		}
+		
+		/**
+		 * @param index
+		 * @return true if any amplitudes were found for the site at the given index
+		 */
+		public boolean isLoaded(int index) {
+			return loaded[index];
+		}
+		
+		/**
+		 * @return number of amplitudes used at each site
+		 */
+		public int[] getNumAmps() {
+			return numAmps;
+		}
+		
+		/**
+		 * @return median IM at each site, assuming a log-normal distribution (exponential of the mean log IM). This is
+		 * the value mapped by {@link ShakeMapComputation#getShakeMap(int, int, int, CybershakeIM, int, int, ArrayList)}
+		 */
+		public double[] getMedians() {
+			return medians;
+		}
+		
+		/**
+		 * @return arithmetic mean IM at each site
+		 */
+		public double[] getMeans() {
+			return means;
+		}
+		
+		public double[] getFractiles() {
+			return fractiles;
+		}
+		
+		/**
+		 * @param fractileIndex index in {@link #getFractiles()}
+		 * @return empirical fractile IM at each site
+		 */
+		public double[] getFractileValues(int fractileIndex) {
+			return fractileVals[fractileIndex];
+		}
+		
+		/**
+		 * @param values per site values, e.g. from {@link #getMedians()}
+		 * @return geographic dataset of the given values at each loaded site
+		 */
+		public GeoDataSet toGeoDataSet(double[] values) {
+			Preconditions.checkArgument(values.length == sites.size());
+			GeoDataSet xyz = new ArbDiscrGeoDataSet(true);
+			for (int i=0; i<values.length; i++) {
+				if (!loaded[i])
+					continue;
+				CybershakeSite site = sites.get(i);
+				xyz.set(new Location(site.lat, site.lon), values[i]);
+			}
+			return xyz;
+		}
+	}
 
 }
@@ -5,9 +5,6 @@ import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +39,7 @@ import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.ERF2DB;
 import org.opensha.sha.cybershake.db.HazardCurve2DB;
 import org.opensha.sha.cybershake.db.MeanUCERF2_ToDB;
+import org.opensha.sha.cybershake.db.RVHypocenterStore;
 import org.opensha.sha.cybershake.db.Runs2DB;
 import org.opensha.sha.earthquake.ERF;
 import org.opensha.sha.faultSurface.EvenlyGriddedSurface;
@@ -96,9 +94,9 @@ public class TaperedHypocenterRupVarProbModifier implements
 	
 	private ERF erf;
 	private DBAccess db;
+	private File hypoCacheDir = RVHypocenterStore.getDefaultCacheDir();
 	
 	private LoadingCache<PointCacheKey, List<Point2D>> pointCache;
-	private LoadingCache<HypoCacheKey, List<List<Location>>> hypoCache;
 
 	
 	private static double maxLocDiscrepancyEncountered = 0d;
@@ -108,7 +106,14 @@ public class TaperedHypocenterRupVarProbModifier implements
 		this.erf = erf;
 		this.db = db;
 		this.pointCache = CacheBuilder.newBuilder().maximumSize(100000).build(new PointCacheLoader());
-		this.hypoCache = CacheBuilder.newBuilder().maximumSize(500).build(new HypoCacheLoader());
+	}
+	
+	/**
+	 * @param hypoCacheDir directory where rupture variation hypocenter stores are cached (see
+	 * {@link RVHypocenterStore#get(DBAccess, int, int, File)}), or null to always load them from the database
+	 */
+	public void setHypocenterCacheDir(File hypoCacheDir) {
+		this.hypoCacheDir = hypoCacheDir;
 	}
 
 	@Override
@@ -150,52 +155,6 @@ public class TaperedHypocenterRupVarProbModifier implements
 		return 1d;
 	}
 	
-	private class HypoCacheKey {
-		private final int erfID, sourceID, rvID;
-
-		public HypoCacheKey(int erfID, int sourceID, int rvID) {
-			super();
-			this.erfID = erfID;
-			this.sourceID = sourceID;
-			this.rvID = rvID;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + getOuterType().hashCode();
-			result = prime * result + erfID;
-			result = prime * result + rvID;
-			result = prime * result + sourceID;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			HypoCacheKey other = (HypoCacheKey) obj;
-			if (!getOuterType().equals(other.getOuterType()))
-				return false;
-			if (erfID != other.erfID)
-				return false;
-			if (rvID != other.rvID)
-				return false;
-			if (sourceID != other.sourceID)
-				return false;
-			return true;
-		}
-
-		private TaperedHypocenterRupVarProbModifier getOuterType() {
-			return TaperedHypocenterRupVarProbModifier.this;
-		}
-	}
-	
 	/**
 	 * Key for accessing point on rupture surface cache
 	 * @author kevin
@@ -265,51 +224,12 @@ public class TaperedHypocenterRupVarProbModifier implements
 		return erf.getRupture(sourceID, rupID).getRuptureSurface();
 	}
 	
-	private class HypoCacheLoader extends CacheLoader<HypoCacheKey, List<List<Location>>> {
-
-		@Override
-		public List<List<Location>> load(HypoCacheKey key) throws Exception {
-			String sql = "SELECT Rupture_ID,Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth FROM Rupture_Variations " +
-					"WHERE ERF_ID=" + key.erfID + " AND Rup_Var_Scenario_ID=" + key.rvID + " " +
-					"AND Source_ID=" + key.sourceID + " ORDER BY Rupture_ID, Rup_Var_ID";
-
-			List<List<Location>> ret = Lists.newArrayList();
-			try {
-				ResultSet rs = db.selectData(sql);
-
-				boolean success = rs.next();
-				while (success) {
-					int rupID = rs.getInt("Rupture_ID");
-					int rvID = rs.getInt("Rup_Var_ID");
-					double lat = rs.getDouble("Hypocenter_Lat");
-					double lon = rs.getDouble("Hypocenter_Lon");
-					double depth = rs.getDouble("Hypocenter_Depth");
-					Location loc = new Location(lat, lon, depth);
-					
-					while (ret.size() <= rupID)
-						ret.add(new ArrayList<Location>());
-					
-					List<Location> locs = ret.get(rupID);
-					Preconditions.checkState(locs.size() == rvID);
-
-					locs.add(loc);
-
-					success = rs.next();
-				}
-			} catch (SQLException e) {
-				throw ExceptionUtils.asRuntimeException(e);
-			}
-			return ret;
-		}
-		
-	}
-	
-	private synchronized List<Location> getHypocenters(int sourceID, int rupID, int erfID, int rvScenID) {
-		try {
-			return hypoCache.get(new HypoCacheKey(erfID, sourceID, rvScenID)).get(rupID);
-		} catch (ExecutionException e) {
-			throw ExceptionUtils.asRuntimeException(e);
-		}
+	private List<Location> getHypocenters(int sourceID, int rupID, int erfID, int rvScenID) throws IOException {
+		List<Location> hypos = RVHypocenterStore.get(db, erfID, rvScenID, hypoCacheDir)
+				.getHypocenterList(sourceID, rupID);
+		for (int rvID=0; rvID<hypos.size(); rvID++)
+			Preconditions.checkState(hypos.get(rvID) != null, "No hypocenter for RV %s, RV IDs not contiguous?", rvID);
+		return hypos;
 	}
 	
 	private List<Point2D> getRelativeLocations(RuptureSurface surf, List<Location> locs) {
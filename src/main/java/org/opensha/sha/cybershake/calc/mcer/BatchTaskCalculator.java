@@ -0,0 +1,32 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+/**
+ * Calculation side of a batch task calculator, decoupled from the task dispatch mechanism so that the same logic
+ * can be run either through MPJ or locally with {@link LocalBatchTaskDriver}.
+ * 
+ * @author kevin
+ *
+ */
+public interface BatchTaskCalculator {
+	
+	/**
+	 * @return total number of tasks
+	 */
+	public int getNumTasks();
+	
+	/**
+	 * Calculates the given batch of task indexes
+	 * 
+	 * @param batch
+	 * @throws Exception
+	 */
+	public void calculateBatch(int[] batch) throws Exception;
+	
+	/**
+	 * Called once all tasks have been calculated
+	 * 
+	 * @throws Exception
+	 */
+	public void doFinalAssembly() throws Exception;
+
+}
@@ -3,6 +3,7 @@ package org.opensha.sha.cybershake.calc.mcer;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
@@ -81,6 +82,28 @@ public class CyberShakeMCErMapGenerator {
 	public static void calculateMaps(int datasetID, CyberShakeComponent component, double period,
 			ERF erf, ERF gmpeERF, List<AttenuationRelationship> gmpes, File outputDir, boolean weightAverage, File gmpeCacheDir)
 					throws IOException, GMT_MapException {
+		List<List<AttenuationRelationship>> gmpeSets = null;
+		if (gmpes != null)
+			gmpeSets = Collections.singletonList(gmpes);
+		calculateMaps(datasetID, component, period, erf, gmpeERF, gmpeSets, 1, outputDir, weightAverage, gmpeCacheDir);
+	}
+	
+	/**
+	 * Calculates maps using the given number of threads. Each thread gets its own set of calculators (and cached
+	 * calculator wrappers, which are merged after each pass and flushed once at the end), so if GMPEs are used then
+	 * gmpeSets must
+	 * contain one independent list of GMPE instances per thread. The ERFs and CyberShake curves/amplitudes are shared
+	 * between threads.
+	 * 
+	 * @param gmpeSets list of GMPE instances for each thread, or null for no GMPE comparison
+	 * @param numThreads
+	 */
+	public static void calculateMaps(int datasetID, CyberShakeComponent component, double period,
+			ERF erf, ERF gmpeERF, List<List<AttenuationRelationship>> gmpeSets, int numThreads, File outputDir,
+			boolean weightAverage, File gmpeCacheDir) throws IOException, GMT_MapException {
+		Preconditions.checkArgument(numThreads > 0);
+		Preconditions.checkArgument(gmpeSets == null || gmpeSets.size() == numThreads,
+				"Must supply one set of GMPEs for each thread");
 		DBAccess db = Cybershake_OpenSHA_DBApplication.getDB(Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME);
 		
 		CybershakeIM im = CyberShakeMCErProbabilisticCalc.getIMsForPeriods(db, component, Lists.newArrayList(period)).get(0);
@@ -100,109 +123,200 @@ public class CyberShakeMCErMapGenerator {
 		 * Create calculators
 		 */
 		
-		AbstractMCErDeterministicCalc csDetCalc = new CyberShakeMCErDeterministicCalc(amps2db, erf, component);
-		CurveBasedMCErProbabilisitCalc csProbCalc = new CyberShakeMCErProbabilisticCalc(db, component);
-		
-		RuptureProbabilityModifier detProbMod = ((CyberShakeMCErDeterministicCalc)csDetCalc).getRupProbMod();
+		// this is thread safe and shared between all threads
+		CyberShakeMCErProbabilisticCalc rawCSProbCalc = new CyberShakeMCErProbabilisticCalc(db, component);
+		// resolve and fetch all curves up front rather than with several queries per site
+		rawCSProbCalc.prefetch(sites, Lists.newArrayList(period));
 		
-		if (cache_cybershake) {
-			// now cache
-			File cacheDir = new File(outputDir, ".cs_cache");
-			Preconditions.checkState(cacheDir.exists() || cacheDir.mkdir());
-			
-			String cachePrefix = "cs_dataset"+datasetID+"_"+component.name();
-			File detCacheFile = new File(cacheDir, cachePrefix+"_deterministic.xml");
-			File probCacheFile = new File(cacheDir, cachePrefix+"_probabilistic_curve.xml");
-			
-			csDetCalc = new CachedMCErDeterministicCalc(csDetCalc, detCacheFile);
-//			csProbCalc = new CachedMCErProbabilisticCalc(csProbCalc, probCacheFile);
-			csProbCalc = new CachedCurveBasedMCErProbabilisticCalc(csProbCalc, probCacheFile);
+		List<MapCalcs> threadCalcs = new ArrayList<>();
+		for (int t=0; t<numThreads; t++) {
+			List<AttenuationRelationship> gmpes = gmpeSets == null ? null : gmpeSets.get(t);
+			threadCalcs.add(new MapCalcs(datasetID, component, period, erf, gmpeERF, gmpes, amps2db, rawCSProbCalc,
+					outputDir, weightAverage, gmpeCacheDir));
 		}
 		
-		AbstractMCErDeterministicCalc gmpeDetCalc = null;
-		AbstractMCErProbabilisticCalc gmpeProbCalc = null;
+		outputDir = new File(outputDir, getPeriodDirName(period));
+		Preconditions.checkState(outputDir.exists() || outputDir.mkdir());
 		
-		List<CurveBasedMCErProbabilisitCalc> gmpeProbCalcs = null;
-		if (gmpes != null && !gmpes.isEmpty()) {
-			Component gmpeComponent = MCErCalcUtils.getSupportedTranslationComponent(
-					gmpes.get(0), component.getGMPESupportedComponents());
-			Preconditions.checkNotNull(gmpeComponent);
-			
-			gmpes.get(0).setIntensityMeasure(SA_Param.NAME);
-			SA_Param.setPeriodInSA_Param(gmpes.get(0).getIntensityMeasure(), period);
-			DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(gmpes.get(0).getIntensityMeasure());
-			
-			List<AbstractMCErDeterministicCalc> detCalcs = Lists.newArrayList();
-			gmpeProbCalcs = Lists.newArrayList();
-			
-			if (gmpeERF == null)
-				gmpeERF = erf;
+		if (numThreads == 1) {
+			MapCalcs calcs = threadCalcs.get(0);
+			MCErMapGenerator.calculateMaps("CyberShake", null, calcs.csProbCalc, calcs.csDetCalc, "GMPE",
+					calcs.gmpeProbCalc, calcs.gmpeDetCalc, region, sites, period, outputDir);
 			
-			ERF gmpeDetERF = MCERDataProductsCalc.getGMPEDetERF(gmpeERF, detProbMod);
-			
-			for (AttenuationRelationship gmpe : gmpes) {
-				detCalcs.add(new GMPE_MCErDeterministicCalc(gmpeDetERF, gmpe, gmpeComponent));
-				gmpeProbCalcs.add(new GMPE_MCErProbabilisticCalc(gmpeERF, gmpe, gmpeComponent, xVals));
+			if (weightAverage) {
+				System.out.println("Generating Averaged Maps");
+				MCErMapGenerator.calculateMaps("Weight Avg", "weight_avg", calcs.avgProbCalc, calcs.avgDetCalc,
+						null, null, null, region, sites, period, outputDir);
 			}
-			
-			if (gmpeCacheDir != null) {
-				for (int i=0; i<gmpes.size(); i++) {
-					AttenuationRelationship gmpe = gmpes.get(i);
-					String cachePrefix = CyberShakeMCErMapGenerator.getCachePrefix(
-							-1, gmpeERF, gmpeComponent, Lists.newArrayList(gmpe));
-					
-					detCalcs.set(i, new CachedMCErDeterministicCalc(detCalcs.get(i),
-							new File(gmpeCacheDir, cachePrefix+"_deterministic.xml")));
-					gmpeProbCalcs.set(i, new CachedCurveBasedMCErProbabilisticCalc(gmpeProbCalcs.get(i),
-							new File(gmpeCacheDir, cachePrefix+"_probabilistic_curve.xml")));
+		} else {
+			List<CurveBasedMCErProbabilisitCalc> csProbCalcs = new ArrayList<>();
+			List<AbstractMCErDeterministicCalc> csDetCalcs = new ArrayList<>();
+			List<AbstractMCErProbabilisticCalc> gmpeProbCalcs = null;
+			List<AbstractMCErDeterministicCalc> gmpeDetCalcs = null;
+			if (threadCalcs.get(0).gmpeProbCalc != null) {
+				gmpeProbCalcs = new ArrayList<>();
+				gmpeDetCalcs = new ArrayList<>();
+			}
+			for (MapCalcs calcs : threadCalcs) {
+				csProbCalcs.add(calcs.csProbCalc);
+				csDetCalcs.add(calcs.csDetCalc);
+				if (gmpeProbCalcs != null) {
+					gmpeProbCalcs.add(calcs.gmpeProbCalc);
+					gmpeDetCalcs.add(calcs.gmpeDetCalc);
 				}
 			}
+			MCErMapGenerator.calculateMapsParallel("CyberShake", null, csProbCalcs, csDetCalcs, "GMPE",
+					gmpeProbCalcs, gmpeDetCalcs, region, sites, period, outputDir);
+			// so that values cached by any thread are reused in the averaging pass
+			mergeCaches(threadCalcs);
 			
-			if (gmpes.size() == 1){
-				gmpeDetCalc = detCalcs.get(0);
-				gmpeProbCalc = gmpeProbCalcs.get(0);
-			} else {
-				// this will take the max determ val from each GMPE
-				gmpeDetCalc = new CombinedMultiMCErDeterministicCalc(detCalcs);
-				// this will average the prob values from each GMPE
-				gmpeProbCalc = new CombinedMultiMCErProbabilisticCalc(gmpeProbCalcs);
+			if (weightAverage) {
+				System.out.println("Generating Averaged Maps");
+				List<WeightedAverageMCErProbabilisticCalc> avgProbCalcs = new ArrayList<>();
+				List<WeightedAverageMCErDeterministicCalc> avgDetCalcs = new ArrayList<>();
+				for (MapCalcs calcs : threadCalcs) {
+					avgProbCalcs.add(calcs.avgProbCalc);
+					avgDetCalcs.add(calcs.avgDetCalc);
+				}
+				MCErMapGenerator.calculateMapsParallel("Weight Avg", "weight_avg", avgProbCalcs, avgDetCalcs,
+						null, null, null, region, sites, period, outputDir);
+				mergeCaches(threadCalcs);
 			}
+		}
+		
+		// every thread's caches now hold all values, and share cache files, so only flush those of the first thread
+		for (Object cachedCalc : threadCalcs.get(0).cachedCalcs)
+			MCErMapGenerator.flushCache(cachedCalc);
+	}
+	
+	/**
+	 * Merges each per-thread cached calculator across all threads
+	 */
+	private static void mergeCaches(List<MapCalcs> threadCalcs) {
+		int numCached = threadCalcs.get(0).cachedCalcs.size();
+		for (int i=0; i<numCached; i++) {
+			List<Object> calcs = new ArrayList<>();
+			for (MapCalcs thread : threadCalcs)
+				calcs.add(thread.cachedCalcs.get(i));
+			MCErMapGenerator.mergeCaches(calcs);
+		}
+	}
+	
+	/**
+	 * Set of calculators used for a single calculation thread
+	 */
+	private static class MapCalcs {
+		
+		private AbstractMCErDeterministicCalc csDetCalc;
+		private CurveBasedMCErProbabilisitCalc csProbCalc;
+		
+		private AbstractMCErDeterministicCalc gmpeDetCalc;
+		private AbstractMCErProbabilisticCalc gmpeProbCalc;
+		
+		private WeightedAverageMCErDeterministicCalc avgDetCalc;
+		private WeightedAverageMCErProbabilisticCalc avgProbCalc;
+		
+		// all cached calculators, including those nested in combined calculators, in the same order for each thread
+		private List<Object> cachedCalcs = new ArrayList<>();
+		
+		public MapCalcs(int datasetID, CyberShakeComponent component, double period, ERF erf, ERF gmpeERF,
+				List<AttenuationRelationship> gmpes, CachedPeakAmplitudesFromDB amps2db,
+				CyberShakeMCErProbabilisticCalc rawCSProbCalc, File outputDir, boolean weightAverage, File gmpeCacheDir) {
+			csDetCalc = new CyberShakeMCErDeterministicCalc(amps2db, erf, component);
+			csProbCalc = rawCSProbCalc;
 			
-			if (cache_gmpe) {
+			RuptureProbabilityModifier detProbMod = ((CyberShakeMCErDeterministicCalc)csDetCalc).getRupProbMod();
+			
+			if (cache_cybershake) {
 				// now cache
-				File cacheDir = new File(outputDir, ".gmpe_cache");
+				File cacheDir = new File(outputDir, ".cs_cache");
 				Preconditions.checkState(cacheDir.exists() || cacheDir.mkdir());
 				
-				String cachePrefix = getCachePrefix(datasetID, erf,
-						gmpeComponent, gmpes);
+				String cachePrefix = "cs_dataset"+datasetID+"_"+component.name();
 				File detCacheFile = new File(cacheDir, cachePrefix+"_deterministic.xml");
-				File probCacheFile = new File(cacheDir, cachePrefix+"_probabilistic.xml");
+				File probCacheFile = new File(cacheDir, cachePrefix+"_probabilistic_curve.xml");
 				
-				gmpeDetCalc = new CachedMCErDeterministicCalc(gmpeDetCalc, detCacheFile);
-				gmpeProbCalc = new CachedMCErProbabilisticCalc(gmpeProbCalc, probCacheFile);
+				csDetCalc = new CachedMCErDeterministicCalc(csDetCalc, detCacheFile);
+//				csProbCalc = new CachedMCErProbabilisticCalc(csProbCalc, probCacheFile);
+				csProbCalc = new CachedCurveBasedMCErProbabilisticCalc(csProbCalc, probCacheFile);
+				cachedCalcs.add(csDetCalc);
+				cachedCalcs.add(csProbCalc);
 			}
-		}
-		
-		outputDir = new File(outputDir, getPeriodDirName(period));
-		Preconditions.checkState(outputDir.exists() || outputDir.mkdir());
-		
-		MCErMapGenerator.calculateMaps("CyberShake", null, csProbCalc, csDetCalc, "GMPE", gmpeProbCalc, gmpeDetCalc,
-				region, sites, period, outputDir);
-		
-		if (weightAverage) {
-			System.out.println("Generating Averaged Maps");
-			WeightProvider weightProv = new CyberShakeWeightProvider(csProbCalc, gmpeProbCalcs, csDetCalc, gmpeDetCalc);
 			
-			WeightedAverageMCErDeterministicCalc avgDetCalc =
-					new WeightedAverageMCErDeterministicCalc(weightProv, csDetCalc, gmpeDetCalc);
-			List<CurveBasedMCErProbabilisitCalc> allProbCalcs = Lists.newArrayList();
-			allProbCalcs.add(csProbCalc);
-			allProbCalcs.addAll(gmpeProbCalcs);
-			WeightedAverageMCErProbabilisticCalc avgProbCalc =
-					new WeightedAverageMCErProbabilisticCalc(weightProv, allProbCalcs);
+			List<CurveBasedMCErProbabilisitCalc> gmpeProbCalcs = null;
+			if (gmpes != null && !gmpes.isEmpty()) {
+				Component gmpeComponent = MCErCalcUtils.getSupportedTranslationComponent(
+						gmpes.get(0), component.getGMPESupportedComponents());
+				Preconditions.checkNotNull(gmpeComponent);
+				
+				gmpes.get(0).setIntensityMeasure(SA_Param.NAME);
+				SA_Param.setPeriodInSA_Param(gmpes.get(0).getIntensityMeasure(), period);
+				DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(gmpes.get(0).getIntensityMeasure());
+				
+				List<AbstractMCErDeterministicCalc> detCalcs = Lists.newArrayList();
+				gmpeProbCalcs = Lists.newArrayList();
+				
+				if (gmpeERF == null)
+					gmpeERF = erf;
+				
+				ERF gmpeDetERF = MCERDataProductsCalc.getGMPEDetERF(gmpeERF, detProbMod);
+				
+				for (AttenuationRelationship gmpe : gmpes) {
+					detCalcs.add(new GMPE_MCErDeterministicCalc(gmpeDetERF, gmpe, gmpeComponent));
+					gmpeProbCalcs.add(new GMPE_MCErProbabilisticCalc(gmpeERF, gmpe, gmpeComponent, xVals));
+				}
+				
+				if (gmpeCacheDir != null) {
+					for (int i=0; i<gmpes.size(); i++) {
+						AttenuationRelationship gmpe = gmpes.get(i);
+						String cachePrefix = CyberShakeMCErMapGenerator.getCachePrefix(
+								-1, gmpeERF, gmpeComponent, Lists.newArrayList(gmpe));
+						
+						detCalcs.set(i, new CachedMCErDeterministicCalc(detCalcs.get(i),
+								new File(gmpeCacheDir, cachePrefix+"_deterministic.xml")));
+						gmpeProbCalcs.set(i, new CachedCurveBasedMCErProbabilisticCalc(gmpeProbCalcs.get(i),
+								new File(gmpeCacheDir, cachePrefix+"_probabilistic_curve.xml")));
+						cachedCalcs.add(detCalcs.get(i));
+						cachedCalcs.add(gmpeProbCalcs.get(i));
+					}
+				}
+				
+				if (gmpes.size() == 1){
+					gmpeDetCalc = detCalcs.get(0);
+					gmpeProbCalc = gmpeProbCalcs.get(0);
+				} else {
+					// this will take the max determ val from each GMPE
+					gmpeDetCalc = new CombinedMultiMCErDeterministicCalc(detCalcs);
+					// this will average the prob values from each GMPE
+					gmpeProbCalc = new CombinedMultiMCErProbabilisticCalc(gmpeProbCalcs);
+				}
+				
+				if (cache_gmpe) {
+					// now cache
+					File cacheDir = new File(outputDir, ".gmpe_cache");
+					Preconditions.checkState(cacheDir.exists() || cacheDir.mkdir());
+					
+					String cachePrefix = getCachePrefix(datasetID, erf,
+							gmpeComponent, gmpes);
+					File detCacheFile = new File(cacheDir, cachePrefix+"_deterministic.xml");
+					File probCacheFile = new File(cacheDir, cachePrefix+"_probabilistic.xml");
+					
+					gmpeDetCalc = new CachedMCErDeterministicCalc(gmpeDetCalc, detCacheFile);
+					gmpeProbCalc = new CachedMCErProbabilisticCalc(gmpeProbCalc, probCacheFile);
+					cachedCalcs.add(gmpeDetCalc);
+					cachedCalcs.add(gmpeProbCalc);
+				}
+			}
 			
-			MCErMapGenerator.calculateMaps("Weight Avg", "weight_avg", avgProbCalc, avgDetCalc, null, null, null,
-					region, sites, period, outputDir);
+			if (weightAverage) {
+				WeightProvider weightProv = new CyberShakeWeightProvider(csProbCalc, gmpeProbCalcs, csDetCalc, gmpeDetCalc);
+				
+				avgDetCalc = new WeightedAverageMCErDeterministicCalc(weightProv, csDetCalc, gmpeDetCalc);
+				List<CurveBasedMCErProbabilisitCalc> allProbCalcs = Lists.newArrayList();
+				allProbCalcs.add(csProbCalc);
+				allProbCalcs.addAll(gmpeProbCalcs);
+				avgProbCalc = new WeightedAverageMCErProbabilisticCalc(weightProv, allProbCalcs);
+			}
 		}
 	}
 	
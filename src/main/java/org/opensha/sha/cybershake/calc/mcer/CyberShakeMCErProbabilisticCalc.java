@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.DiscretizedFunc;
@@ -17,13 +18,13 @@ import org.opensha.sha.cybershake.db.CybershakeIM.IMType;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.HazardCurve2DB;
-import org.opensha.sha.cybershake.db.HazardDataset2DB;
 import org.opensha.sha.cybershake.db.PeakAmplitudesFromDB;
 import org.opensha.sha.gui.infoTools.IMT_Info;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
 
 public class CyberShakeMCErProbabilisticCalc extends
 	CurveBasedMCErProbabilisitCalc {
@@ -32,7 +33,6 @@ public class CyberShakeMCErProbabilisticCalc extends
 	private CyberShakeComponent component;
 	
 	private HazardCurve2DB curves2db;
-	private HazardDataset2DB dataset2db;
 	
 	private static List<CybershakeIM> allIMs;
 	
@@ -40,12 +40,15 @@ public class CyberShakeMCErProbabilisticCalc extends
 	private HazardCurveComputation curveCalc = null;
 	private List<Double> curveXVals = null;
 	
+	// caches for the life of this calculator, keyed by run ID and curve ID respectively
+	private Map<Integer, Map<CybershakeIM, Integer>> runCurveIDsCache = new ConcurrentHashMap<>();
+	private Map<Integer, DiscretizedFunc> curveCache = new ConcurrentHashMap<>();
+	
 	public CyberShakeMCErProbabilisticCalc(DBAccess db, CyberShakeComponent component) {
 		this.db = db;
 		this.component = component;
 		
 		this.curves2db = new HazardCurve2DB(db);
-		this.dataset2db = new HazardDataset2DB(db);
 	}
 	
 	public void setCalculateCurves(boolean calculateCurves) {
@@ -133,27 +136,17 @@ public class CyberShakeMCErProbabilisticCalc extends
 		List<CybershakeIM> ims = getIMsForPeriods(db, component, periods);
 		validateIMs(ims);
 		
-		List<Integer> curveIDs = curves2db.getAllHazardCurveIDsForRun(siteRun.getCS_Run().getRunID(), -1, -1);
-		// filter out any oddball probability models
-		int origSize = curveIDs.size();
-		for (int i=curveIDs.size(); --i>=0;) {
-			int datasetID = curves2db.getDatasetIDForCurve(curveIDs.get(i));
-			int probModelID = dataset2db.getProbModelID(datasetID);
-			if (probModelID != 1)
-				// 1 is time independent poisson
-				curveIDs.remove(i);
-			if (dataset2db.getBackSeisAttenRelID(datasetID) > 0)
-				// this has background seismicity, skip it
-				curveIDs.remove(i);
-		}
-		if (origSize != curveIDs.size())
-			System.out.println((origSize-curveIDs.size())+"/"+origSize
-					+" were filtered out due to Prob Model ID != 1");
-		
-		Map<CybershakeIM, Integer> imToCurveIDMap = Maps.newHashMap();
+		int runID = siteRun.getCS_Run().getRunID();
+		Map<CybershakeIM, Integer> imToCurveIDMap = getCurveIDs(runID);
 		
-		for (int curveID : curveIDs)
-			imToCurveIDMap.put(curves2db.getIMForCurve(curveID), curveID);
+		// fetch any curves which aren't yet cached with a single query
+		List<Integer> toFetch = Lists.newArrayList();
+		for (CybershakeIM im : ims) {
+			Integer curveID = imToCurveIDMap.get(im);
+			if (curveID != null && !curveCache.containsKey(curveID))
+				toFetch.add(curveID);
+		}
+		fetchCurves(toFetch);
 		
 		Map<Double, DiscretizedFunc> curves = Maps.newHashMap();
 		
@@ -177,18 +170,92 @@ public class CyberShakeMCErProbabilisticCalc extends
 					System.out.println("Inserting...");
 					curveID = curves2db.insertHazardCurve(siteRun.getCS_Run(), im.getID(), curve);
 					System.out.println("Inserted");
+					imToCurveIDMap.put(im, curveID);
+					fetchCurves(Lists.newArrayList(curveID));
 				} else {
 					System.out.println("Skipping period "+period+" for site "+site.getName()
 						+", no curve exists and alculateCurves="+calculateCurves);
 					continue;
 				}
 			}
-			DiscretizedFunc curve = curves2db.getHazardCurve(curveID);
-			curves.put(period, curve);
+			DiscretizedFunc curve = curveCache.get(curveID);
+			// return a copy, cached curves are shared between calls
+			curves.put(period, curve == null ? null : curve.deepClone());
 		}
 		
 		return curves;
 	}
+	
+	/**
+	 * Resolves curve IDs and fetches hazard curves for all of the given sites and periods in bulk, caching the results
+	 * for subsequent calls to {@link #calcHazardCurves(Site, Collection)}. This issues a handful of queries in total
+	 * rather than several per site and period.
+	 * 
+	 * @param sites must be {@link CyberShakeSiteRun} instances
+	 * @param periods
+	 */
+	public void prefetch(Collection<? extends Site> sites, Collection<Double> periods) {
+		List<CybershakeIM> ims = getIMsForPeriods(db, component, periods);
+		
+		List<Integer> runIDs = Lists.newArrayList();
+		for (Site site : sites) {
+			Preconditions.checkArgument(site instanceof CyberShakeSiteRun,
+					"CS MCEr calcs can only be called with CyberShakeSiteRun instances");
+			int runID = ((CyberShakeSiteRun)site).getCS_Run().getRunID();
+			if (!runCurveIDsCache.containsKey(runID))
+				runIDs.add(runID);
+		}
+		fetchCurveIDs(runIDs);
+		
+		HashSet<Integer> toFetch = new HashSet<>();
+		for (Site site : sites) {
+			Map<CybershakeIM, Integer> imToCurveIDMap = getCurveIDs(((CyberShakeSiteRun)site).getCS_Run().getRunID());
+			for (CybershakeIM im : ims) {
+				Integer curveID = imToCurveIDMap.get(im);
+				if (curveID != null && !curveCache.containsKey(curveID))
+					toFetch.add(curveID);
+			}
+		}
+		fetchCurves(toFetch);
+	}
+	
+	/**
+	 * Clears all cached curve IDs and curves
+	 */
+	public void clearCache() {
+		runCurveIDsCache.clear();
+		curveCache.clear();
+	}
+	
+	private Map<CybershakeIM, Integer> getCurveIDs(int runID) {
+		Map<CybershakeIM, Integer> imToCurveIDMap = runCurveIDsCache.get(runID);
+		if (imToCurveIDMap == null) {
+			fetchCurveIDs(Lists.newArrayList(runID));
+			imToCurveIDMap = runCurveIDsCache.get(runID);
+		}
+		return imToCurveIDMap;
+	}
+	
+	private void fetchCurveIDs(Collection<Integer> runIDs) {
+		if (runIDs.isEmpty())
+			return;
+		Table<Integer, CybershakeIM, Integer> table = curves2db.getPoissonCurveIDsForRuns(runIDs);
+		Preconditions.checkNotNull(table, "Error fetching curve IDs for runs");
+		for (int runID : runIDs) {
+			Map<CybershakeIM, Integer> imToCurveIDMap = new ConcurrentHashMap<>();
+			if (table.containsRow(runID))
+				imToCurveIDMap.putAll(table.row(runID));
+			runCurveIDsCache.put(runID, imToCurveIDMap);
+		}
+	}
+	
+	private void fetchCurves(Collection<Integer> curveIDs) {
+		if (curveIDs.isEmpty())
+			return;
+		Map<Integer, DiscretizedFunc> fetched = curves2db.getHazardCurves(curveIDs);
+		Preconditions.checkNotNull(fetched, "Error fetching hazard curves");
+		curveCache.putAll(fetched);
+	}
 
 	@Override
 	public void setXVals(DiscretizedFunc xVals) {
@@ -34,6 +34,7 @@ import org.opensha.sha.calc.mcer.CachedCurveBasedMCErProbabilisticCalc;
 import org.opensha.sha.calc.mcer.CachedMCErDeterministicCalc;
 import org.opensha.sha.calc.mcer.MCErCalcUtils;
 import org.opensha.sha.calc.mcer.MCErMapGenerator;
+import org.opensha.sha.calc.mcer.SpectrumMatrix;
 import org.opensha.sha.cybershake.HazardCurveFetcher;
 import org.opensha.sha.cybershake.calc.HazardCurveComputation;
 import org.opensha.sha.cybershake.calc.mcer.UGMS_WebToolCalc.SpectraType;
@@ -169,23 +170,30 @@ public class CyberShakeScatterWriter {
 			GeoDataSet bse2eScatter = new ArbDiscrGeoDataSet(true);
 			GeoDataSet bse1eScatter = new ArbDiscrGeoDataSet(true);
 			GeoDataSet sleScatter = new ArbDiscrGeoDataSet(true);
-			for (Site site : sites) {
-				DiscretizedFunc probCurve = csProbCalc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
-				double probVal = csProbCalc.calc(site, period);
-				double detVal = csDetCalc.calc(site, period).getVal();
+			// MCER ingredients for all sites at once, RTGM values are calculated in a single parallel batch
+			double[] periodArray = { period };
+			SpectrumMatrix probVals = csProbCalc.calc(sites, periodArray);
+			SpectrumMatrix detVals = csDetCalc.calc(sites, periodArray);
+			SpectrumMatrix detLowerVals = new SpectrumMatrix(sites.size(), periodArray);
+			for (int s=0; s<sites.size(); s++) {
+				Site site = sites.get(s);
 				double vs30;
 				try {
 					vs30 = site.getParameter(Double.class, Vs30_Param.NAME).getValue();
 				} catch (ParameterException e) {
 					throw new IllegalStateException(e);
 				}
-				double detLowerVal;
-				try {
-					detLowerVal =  ASCEDetLowerLimitCalc.calc(period, vs30, site.getLocation());
-				} catch (IllegalStateException e) {
-					throw new IllegalStateException(e);
-				}
-				double mcer = MCErCalcUtils.calcMCER(detVal, probVal, detLowerVal);
+				detLowerVals.set(s, 0, ASCEDetLowerLimitCalc.calc(period, vs30, site.getLocation()));
+			}
+			SpectrumMatrix mcerVals = MCErCalcUtils.calcMCER(detVals, probVals, detLowerVals);
+			
+			for (int s=0; s<sites.size(); s++) {
+				Site site = sites.get(s);
+				DiscretizedFunc probCurve = csProbCalc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
+				double probVal = probVals.get(s, 0);
+				double detVal = detVals.get(s, 0);
+				double detLowerVal = detLowerVals.get(s, 0);
+				double mcer = mcerVals.get(s, 0);
 				double bse2e = HazardDataSetLoader.getCurveVal(probCurve, false, bse2e_level);
 				double bse1e = HazardDataSetLoader.getCurveVal(probCurve, false, bse1e_level);
 				
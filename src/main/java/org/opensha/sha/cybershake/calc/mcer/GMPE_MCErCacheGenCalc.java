@@ -0,0 +1,677 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
+
+import org.apache.commons.cli.CommandLine;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.commons.util.DataUtils;
+import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.XMLUtils;
+import org.opensha.commons.util.binFile.BinaryDoubleScalarRandomAccessFile;
+import org.opensha.commons.util.binFile.BinaryGeoDatasetRandomAccessFile;
+import org.opensha.commons.util.threads.Task;
+import org.opensha.commons.util.threads.ThreadedTaskComputer;
+import org.opensha.sha.calc.hazardMap.components.BinaryCurveArchiver;
+import org.opensha.sha.calc.hazardMap.components.CurveMetadata;
+import org.opensha.sha.calc.mcer.ASCEDetLowerLimitCalc;
+import org.opensha.sha.calc.mcer.AbstractMCErDeterministicCalc;
+import org.opensha.sha.calc.mcer.AbstractMCErProbabilisticCalc;
+import org.opensha.sha.calc.mcer.CachedCurveBasedMCErProbabilisticCalc;
+import org.opensha.sha.calc.mcer.CachedMCErDeterministicCalc;
+import org.opensha.sha.calc.mcer.CachedMCErProbabilisticCalc;
+import org.opensha.sha.calc.mcer.GMPE_MCErDeterministicCalc;
+import org.opensha.sha.calc.mcer.GMPE_MCErProbabilisticCalc;
+import org.opensha.sha.calc.mcer.MCErCalcUtils;
+import org.opensha.sha.calc.mcer.SiteRuptureCache;
+import org.opensha.sha.cybershake.calc.RuptureProbabilityModifier;
+import org.opensha.sha.cybershake.db.CybershakeIM;
+import org.opensha.sha.cybershake.db.CybershakeIM.CyberShakeComponent;
+import org.opensha.sha.cybershake.gui.util.AttenRelSaver;
+import org.opensha.sha.cybershake.gui.util.ERFSaver;
+import org.opensha.sha.cybershake.plot.HazardCurvePlotter;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.imr.param.OtherParams.Component;
+import org.opensha.sha.imr.param.OtherParams.ComponentParam;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Calculation logic for GMPE MCEr cache generation, independent of the task dispatch mechanism. Used by both
+ * {@link MPJ_GMPE_MCErCacheGen} for MPJ runs and {@link LocalBatchTaskDriver} for local multi-threaded runs.
+ * 
+ * @author kevin
+ *
+ */
+public class GMPE_MCErCacheGenCalc implements BatchTaskCalculator {
+	
+	private int rank;
+	
+	private List<Double> periods;
+	private DiscretizedFunc periodsFunc;
+	private List<CalcTask> calcTasks;
+	
+//	private AbstractMCErDeterministicCalc[] detCalcs;
+//	private AbstractMCErProbabilisticCalc[] probCalcs;
+	private CalcWorker[] calcs;
+	private String[] cachePrefixes;
+	private String[] pgaPrefixes;
+	
+	private static final boolean duplicateERF = false;
+	
+	/*
+	 * per-site rupture/distance caches shared between the tasks for each GMPE at a site, released once all of
+	 * that site's tasks in the current batch are complete. tasks are split across ranks and batches, so counts are
+	 * of the tasks actually received in each batch. requires a shared ERF
+	 */
+	private static final boolean shareSiteCaches = !duplicateERF;
+	private Map<Integer, SiteCaches> siteCachesMap;
+	
+	private boolean storeCurves;
+	private BinaryCurveArchiver archiver;
+	private Map<String, BinaryGeoDatasetRandomAccessFile> pgaFiles;
+	
+	/*
+	 * persistent node-local thread pool, workers check out calculators from the deque
+	 */
+	private ExecutorService exec;
+	private Deque<CalcWorker> workerDeque;
+	// tasks that have been submitted but not yet confirmed complete, in submission order
+	private Deque<Future<?>> outstanding;
+	
+	/*
+	 * dedicated ERF instance used to estimate the cost of each site (ruptures within the cutoff distance), kept
+	 * separate from the calculation ERFs which are shared by the workers. costs are NaN until computed
+	 */
+	private ERF costERF;
+	private double[] siteCosts;
+	private static final double COST_CUTOFF_DIST = 200d;
+	
+	public GMPE_MCErCacheGenCalc(CommandLine cmd, int rank, int numThreads)
+			throws InvocationTargetException, MalformedURLException, DocumentException {
+		this.rank = rank;
+		Preconditions.checkState(numThreads >= 1);
+		
+		List<List<AttenuationRelationship>> attenRelsList = Lists.newArrayList();
+		for (int t=0; t<numThreads; t++) {
+			List<AttenuationRelationship> attenRels = Lists.newArrayList();
+			
+			for (String attenRelFile : DataUtils.commaSplit(cmd.getOptionValue("atten-rel-file"))) {
+				AttenuationRelationship attenRel = AttenRelSaver.LOAD_ATTEN_REL_FROM_FILE(attenRelFile);
+				attenRels.add(attenRel);
+			}
+			
+			attenRelsList.add(attenRels);
+		}
+		
+		ERF[] erfs = new ERF[numThreads];
+		ERF[] detERFs = new ERF[numThreads];
+		
+		if (duplicateERF) {
+			// build ERFs in parallel
+			List<Thread> erfInitThreads = Lists.newArrayList();
+			for (int i=0; i<numThreads; i++) {
+				Thread t = new Thread(new ERFInitRunnable(i, erfs, detERFs, cmd.getOptionValue("erf-file")));
+				t.start();
+				erfInitThreads.add(t);
+			}
+			for (int i=0; i<erfInitThreads.size(); i++) {
+				Thread t = erfInitThreads.get(i);
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					ExceptionUtils.throwAsRuntimeException(e);
+				}
+				Preconditions.checkNotNull(erfs[i]);
+			}
+		} else {
+			// shared ERF
+			new ERFInitRunnable(0, erfs, detERFs, cmd.getOptionValue("erf-file")).run();
+			for (int i=1; i<numThreads; i++) {
+				erfs[i] = erfs[0];
+				detERFs[i] = detERFs[0];
+			}
+		}
+		
+		String periodStrs;
+		if (cmd.hasOption("period"))
+			periodStrs = cmd.getOptionValue("period");
+		else
+			periodStrs = MCERDataProductsCalc.default_periods;
+		periods = DataUtils.commaDoubleSplit(periodStrs);
+		
+		File outputDir = new File(cmd.getOptionValue("output-dir"));
+		if (rank == 0)
+			Preconditions.checkArgument((outputDir.exists() && outputDir.isDirectory()) || outputDir.mkdir(),
+				"Output dir does not exist and could not be created");
+		
+		CyberShakeComponent comp = CybershakeIM.fromShortName(cmd.getOptionValue("component"), CyberShakeComponent.class);
+		
+		File sitesFile = new File(cmd.getOptionValue("sites"));
+		Preconditions.checkState(sitesFile.exists(), "Sites file doesn't exist: %s", sitesFile);
+		
+		// load sites
+		Document siteDoc = XMLUtils.loadDocument(sitesFile);
+		List<Site> sites = Lists.newArrayList();
+		
+		ParameterList siteParams = MCERDataProductsCalc.getSiteParams(attenRelsList.get(0));
+		
+		for (Element elem : XMLUtils.getSubElementsList(siteDoc.getRootElement(), "Site")) {
+			// will clone site params list
+			sites.add(Site.fromXMLMetadata(elem, siteParams));
+		}
+		
+		Collections.sort(sites, new SiteComparator());
+		
+		// create calcs
+		calcs = new CalcWorker[numThreads];
+		cachePrefixes = new String[attenRelsList.get(0).size()];
+		pgaPrefixes = new String[attenRelsList.get(0).size()];
+		
+		Component gmpeComp = MCErCalcUtils.getSupportedTranslationComponent(
+				attenRelsList.get(0).get(0), comp.getGMPESupportedComponents());
+		
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(SA_Param.NAME);
+		
+		periodsFunc = new ArbitrarilyDiscretizedFunc();
+		for (double period : periods)
+			periodsFunc.set(period, 0d);
+		
+		Map<String, DiscretizedFunc> xValsMap = Maps.newHashMap();
+		pgaFiles = Maps.newHashMap();
+		
+		storeCurves = cmd.hasOption("curves");
+		
+		for (int t=0; t<numThreads; t++) {
+			List<AttenuationRelationship> attenRels = attenRelsList.get(t);
+			GMPE_MCErDeterministicCalc[] detCalcs = new GMPE_MCErDeterministicCalc[attenRels.size()];
+			GMPE_MCErProbabilisticCalc[] probCalcs = new GMPE_MCErProbabilisticCalc[attenRels.size()];
+			for (int i=0; i<attenRels.size(); i++) {
+				
+				cachePrefixes[i] = CyberShakeMCErMapGenerator.getCachePrefix(
+						-1, erfs[t], gmpeComp, Lists.newArrayList(attenRels.get(i)));
+				pgaPrefixes[i] = CyberShakeMCErMapGenerator.getCachePrefix(
+						-1, erfs[t], (Component)attenRels.get(i).getParameter(ComponentParam.NAME).getValue(),
+						Lists.newArrayList(attenRels.get(i)));
+				detCalcs[i] = new GMPE_MCErDeterministicCalc(detERFs[t], attenRels.get(i), gmpeComp);
+				probCalcs[i] = new GMPE_MCErProbabilisticCalc(erfs[t], attenRels.get(i), gmpeComp, xVals);
+				
+				if (t == 0) {
+					xValsMap.put(cachePrefixes[i]+"_det", periodsFunc);
+					xValsMap.put(cachePrefixes[i]+"_prob", periodsFunc);
+					xValsMap.put(cachePrefixes[i]+"_mcer", periodsFunc);
+					
+					if (storeCurves) {
+						for (double period : periods)
+							xValsMap.put(cachePrefixes[i]+"_sa_"+(float)period+"s", xVals);
+						xValsMap.put(pgaPrefixes[i]+"_pga", xVals);
+					}
+					
+					pgaFiles.put(pgaPrefixes[i]+"_pga_g_det",
+							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g_det.bin"),
+									BinaryCurveArchiver.byteOrder, sites.size()));
+					pgaFiles.put(pgaPrefixes[i]+"_pga_g_prob",
+							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g_prob.bin"),
+									BinaryCurveArchiver.byteOrder, sites.size()));
+					pgaFiles.put(pgaPrefixes[i]+"_pga_g",
+							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g.bin"),
+									BinaryCurveArchiver.byteOrder, sites.size()));
+				}
+			}
+			calcs[t] = new CalcWorker(t, detCalcs, probCalcs);
+		}
+		
+		workerDeque = new ArrayDeque<>();
+		for (CalcWorker calc : calcs)
+			workerDeque.push(calc);
+		exec = Executors.newFixedThreadPool(numThreads);
+		outstanding = new ArrayDeque<>();
+		
+		siteCachesMap = new ConcurrentHashMap<>();
+		
+		costERF = ERFSaver.LOAD_ERF_FROM_FILE(cmd.getOptionValue("erf-file"));
+		costERF.updateForecast();
+		siteCosts = new double[sites.size()];
+		Arrays.fill(siteCosts, Double.NaN);
+		
+		archiver = new BinaryCurveArchiver(outputDir, sites.size(), xValsMap);
+		if (rank == 0) {
+			archiver.initialize();
+			try {
+				for (BinaryGeoDatasetRandomAccessFile pgaFile : pgaFiles.values())
+					pgaFile.initialize();
+			} catch (IOException e) {
+				ExceptionUtils.throwAsRuntimeException(e);
+			}
+		}
+		
+		calcTasks = Lists.newArrayList();
+		for (int i=0; i<sites.size(); i++) {
+			Site site = sites.get(i);
+			for (int j=0; j<cachePrefixes.length; j++)
+				calcTasks.add(new CalcTask(cachePrefixes[j], pgaPrefixes[j], i, j, site));
+		}
+	}
+	
+	private class ERFInitRunnable implements Runnable {
+		private int index;
+		private ERF[] erfs;
+		private ERF[] detERFs;
+		private String erfPath;
+
+		public ERFInitRunnable(int index, ERF[] erfs, ERF[] detERFs, String erfPath) {
+			this.index = index;
+			this.erfs = erfs;
+			this.detERFs = detERFs;
+			this.erfPath = erfPath;
+		}
+
+		@Override
+		public void run() {
+			try {
+				erfs[index] = ERFSaver.LOAD_ERF_FROM_FILE(erfPath);
+				
+				RuptureProbabilityModifier detProbMod = CyberShakeMCErDeterministicCalc.getProbMod(erfs[index]);
+				detERFs[index] = MCERDataProductsCalc.getGMPEDetERF(erfs[index], detProbMod);
+				
+				erfs[index].updateForecast();
+			} catch (Exception e) {
+				erfs[index] = null;
+				ExceptionUtils.throwAsRuntimeException(e);
+			}
+		}
+	}
+	
+	private class CalcWorker {
+		
+		private int index;
+		private GMPE_MCErDeterministicCalc[] detCalcs;
+		private GMPE_MCErProbabilisticCalc[] probCalcs;
+		
+		// timing metrics, only updated while checked out
+		private int numTasks = 0;
+		private long busyMillis = 0l;
+		
+		public CalcWorker(int index, GMPE_MCErDeterministicCalc[] detCalcs, GMPE_MCErProbabilisticCalc[] probCalcs) {
+			this.index = index;
+			this.detCalcs = detCalcs;
+			this.probCalcs = probCalcs;
+		}
+		
+		public void compute(CalcTask task) {
+			Stopwatch watch = Stopwatch.createStarted();
+			SiteCaches siteCaches = null;
+			if (shareSiteCaches)
+				siteCaches = siteCachesMap.get(task.siteIndex);
+			try {
+				task.compute(detCalcs, probCalcs, siteCaches);
+			} finally {
+				if (siteCaches != null) {
+					detCalcs[task.gmpeIndex].setSiteRuptureCache(null);
+					probCalcs[task.gmpeIndex].setSiteRuptureCache(null);
+					if (siteCaches.release())
+						siteCachesMap.remove(task.siteIndex);
+				}
+			}
+			watch.stop();
+			numTasks++;
+			busyMillis += watch.elapsed(TimeUnit.MILLISECONDS);
+		}
+		
+	}
+	
+	private class SiteCaches {
+		
+		private Site site;
+		private int remainingTasks;
+		
+		private SiteRuptureCache probCache;
+		private SiteRuptureCache detCache;
+		
+		public SiteCaches(Site site) {
+			this.site = site;
+		}
+		
+		/**
+		 * Registers a task for this site, must be called before the task is submitted
+		 */
+		public synchronized void addTask() {
+			remainingTasks++;
+		}
+		
+		/**
+		 * Builds the caches if needed (only the first time it is called for this site) and sets them in the given calcs
+		 * 
+		 * @param detCalc
+		 * @param probCalc
+		 */
+		public synchronized void apply(GMPE_MCErDeterministicCalc detCalc, GMPE_MCErProbabilisticCalc probCalc) {
+			if (probCache == null) {
+				Stopwatch watch = Stopwatch.createStarted();
+				ERF erf = probCalc.getERF();
+				probCache = new SiteRuptureCache(erf, site, detCalc.getCutoffDist());
+				ERF detERF = detCalc.getERF();
+				if (detERF == erf)
+					detCache = probCache;
+				else
+					detCache = new SiteRuptureCache(detERF, site, detCalc.getCutoffDist());
+				watch.stop();
+				debug("Built rupture distance cache for site at "+site.getLocation()+" in "
+						+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+			}
+			detCalc.setSiteRuptureCache(detCache);
+			probCalc.setSiteRuptureCache(probCache);
+		}
+		
+		/**
+		 * @return true if all tasks for this site are now complete and the caches can be evicted
+		 */
+		public synchronized boolean release() {
+			remainingTasks--;
+			if (remainingTasks <= 0) {
+				probCache = null;
+				detCache = null;
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private CalcWorker checkOutWorker() {
+		synchronized (workerDeque) {
+			// pool size equals the number of workers, so one will always be available
+			Preconditions.checkState(!workerDeque.isEmpty(), "No calculation workers available");
+			return workerDeque.pop();
+		}
+	}
+	
+	private void checkInWorker(CalcWorker worker) {
+		synchronized (workerDeque) {
+			workerDeque.push(worker);
+		}
+	}
+	
+	private class CalcTaskRunnable implements Runnable {
+		
+		private CalcTask task;
+
+		public CalcTaskRunnable(CalcTask task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			CalcWorker worker = checkOutWorker();
+			try {
+				worker.compute(task);
+			} finally {
+				checkInWorker(worker);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Estimates the calculation cost for the given site using the dedicated cost ERF. Must only be called from
+	 * the calling thread.
+	 * @param site
+	 * @return
+	 */
+	private double estimateSiteCost(Site site) {
+		// number of ruptures within the cutoff is a good proxy for calculation time
+		int numRups = 0;
+		for (int sourceID=0; sourceID<costERF.getNumSources(); sourceID++) {
+			ProbEqkSource source = costERF.getSource(sourceID);
+			if (source.getMinDistance(site) <= COST_CUTOFF_DIST)
+				numRups += source.getNumRuptures();
+		}
+		return numRups;
+	}
+	
+	/**
+	 * Comparator to ensure consistent ordering of site list
+	 * @author kevin
+	 *
+	 */
+	private static class SiteComparator implements Comparator<Site> {
+
+		@Override
+		public int compare(Site o1, Site o2) {
+			int ret = o1.getLocation().compareTo(o2.getLocation());
+			if (ret == 0 && o1.getName() != null && o2.getName() != null)
+				ret = o1.getName().compareTo(o2.getName());
+			return ret;
+		}
+		
+	}
+	
+	private class CalcTask {
+		private String cachePrefix;
+		private String pgaCachePrefix;
+		private int gmpeIndex;
+		private int siteIndex;
+		private Site site;
+		
+		public CalcTask(String cachePrefix, String pgaCachePrefix, int siteIndex, int gmpeIndex, Site site) {
+			this.cachePrefix = cachePrefix;
+			this.pgaCachePrefix = pgaCachePrefix;
+			this.siteIndex = siteIndex;
+			this.gmpeIndex = gmpeIndex;
+			this.site = site;
+		}
+		
+		public void compute(GMPE_MCErDeterministicCalc[] detCalcs, GMPE_MCErProbabilisticCalc[] probCalcs,
+				SiteCaches siteCaches) {
+			String name = siteIndex+", prefix '"+cachePrefix+"'";
+			
+			// MCER
+			CurveMetadata mcerMetadata = new CurveMetadata(site, siteIndex, null, cachePrefix+"_mcer");
+			if (archiver.isCurveCalculated(mcerMetadata, periodsFunc)) {
+				debug("Site "+name+" MCEr dalready done!");
+			} else {
+				if (siteCaches != null)
+					siteCaches.apply(detCalcs[gmpeIndex], probCalcs[gmpeIndex]);
+				debug("Calculating MCEr deterministic, site "+name);
+				DiscretizedFunc det = AbstractMCErDeterministicCalc.toSpectrumFunc(detCalcs[gmpeIndex].calc(site, periods));
+				debug("Calculating MCEr probabilistic, site "+name);
+				Map<Double, DiscretizedFunc> probCurves = new HashMap<>();
+				DiscretizedFunc prob = probCalcs[gmpeIndex].calc(site, periods, probCurves);
+				DiscretizedFunc asceDeterm = null;
+				try {
+					asceDeterm = ASCEDetLowerLimitCalc.calc(
+							periodsFunc, site.getParameter(Double.class, Vs30_Param.NAME).getValue(), site.getLocation());
+				} catch (Exception e1) {
+					System.out.println("WARNING: couldn't fetch Deterministic Lower Limit for site at "+site.getLocation());
+				}
+				DiscretizedFunc mcer = MCERDataProductsCalc.calcMCER(det, prob, asceDeterm);
+				
+				debug("Archiving MCEr site "+name);
+				try {
+					archiver.archiveCurve(det, new CurveMetadata(site, siteIndex, null, cachePrefix+"_det"));
+					archiver.archiveCurve(prob, new CurveMetadata(site, siteIndex, null, cachePrefix+"_prob"));
+					archiver.archiveCurve(mcer, mcerMetadata);
+					if (storeCurves)
+						for (double period : periods)
+							archiver.archiveCurve(probCurves.get(period), new CurveMetadata(site, siteIndex, null, cachePrefix+"_sa_"+(float)period+"s"));
+				} catch (IOException e) {
+					ExceptionUtils.throwAsRuntimeException(e);
+				}
+				debug("DONE MCEr site "+name);
+			}
+			
+			// PGA
+			try {
+				CurveMetadata pgaCurveMetadata = new CurveMetadata(site, siteIndex, null, pgaCachePrefix+"_pga");
+				if (pgaFiles.get(pgaCachePrefix+"_pga_g").isCalculated(siteIndex)
+						&& (!storeCurves || archiver.isCurveCalculated(pgaCurveMetadata, periodsFunc))) {
+					debug("Site "+name+" PGA already done!");
+				} else {
+					if (siteCaches != null)
+						siteCaches.apply(detCalcs[gmpeIndex], probCalcs[gmpeIndex]);
+					debug("Calculating PGA deterministic, site "+name);
+					double det = detCalcs[gmpeIndex].calcPGA_G(site).getVal();
+					debug("Calculating PGA probabilistic, site "+name);
+					DiscretizedFunc probCurve = probCalcs[gmpeIndex].calcPGAcurve(site);
+					double prob = probCalcs[gmpeIndex].calcPGA_G(probCurve);
+					double vs30 = site.getParameter(Double.class, Vs30_Param.NAME).getValue();
+					double detLower = ASCEDetLowerLimitCalc.calcPGA_G(vs30);
+					double pga = MCErCalcUtils.calcMCER(det, prob, detLower);
+					
+					debug("Archiving PGA site "+name);
+					Location loc = site.getLocation();
+					pgaFiles.get(pgaCachePrefix+"_pga_g_det").write(siteIndex, loc, det);
+					pgaFiles.get(pgaCachePrefix+"_pga_g_prob").write(siteIndex, loc, prob);
+					pgaFiles.get(pgaCachePrefix+"_pga_g").write(siteIndex, loc, pga);
+					archiver.archiveCurve(probCurve, pgaCurveMetadata);
+					debug("DONE PGA site "+name);
+				}
+			} catch (IOException e) {
+				ExceptionUtils.throwAsRuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public int getNumTasks() {
+		return calcTasks.size();
+	}
+
+	@Override
+	public void calculateBatch(int[] batch) throws Exception {
+		Stopwatch watch = Stopwatch.createStarted();
+		List<CalcTask> tasks = new ArrayList<>();
+		for (int index : batch)
+			tasks.add(calcTasks.get(index));
+		
+		// estimate cost of any new sites, serially as there is only one cost ERF
+		for (CalcTask task : tasks)
+			if (Double.isNaN(siteCosts[task.siteIndex]))
+				siteCosts[task.siteIndex] = estimateSiteCost(task.site);
+		
+		// most expensive first so that slow sites don't end up at the tail of the batch
+		tasks.sort(new Comparator<CalcTask>() {
+
+			@Override
+			public int compare(CalcTask o1, CalcTask o2) {
+				int ret = Double.compare(siteCosts[o2.siteIndex], siteCosts[o1.siteIndex]);
+				if (ret == 0)
+					// keep tasks for the same site together so that they share rupture caches
+					ret = Integer.compare(o1.siteIndex, o2.siteIndex);
+				return ret;
+			}
+		});
+		
+		if (shareSiteCaches) {
+			// count the tasks for each site in this batch, caches are evicted once they're all done. no tasks are
+			// running at this point as the previous batch has completed
+			for (CalcTask task : tasks)
+				siteCachesMap.computeIfAbsent(task.siteIndex, k -> new SiteCaches(task.site)).addTask();
+		}
+		
+		for (CalcTask task : tasks)
+			outstanding.add(exec.submit(new CalcTaskRunnable(task)));
+		
+		// wait for every task in this batch: the batch must not be reported done before its sites are computed, and
+		// workers share ERFs which aren't thread safe, so the next batch can't start while these are still running
+		waitForOutstanding(0);
+		if (shareSiteCaches)
+			// tasks release their caches in a finally block, so every site in this batch should have been evicted
+			Preconditions.checkState(siteCachesMap.isEmpty(), "%s site caches not released", siteCachesMap.size());
+		watch.stop();
+		
+		debug("Batch of "+batch.length+" tasks done in "+watch.elapsed(TimeUnit.SECONDS)+" s. "+getWorkerMetrics());
+	}
+	
+	/**
+	 * Waits until no more than the given number of submitted tasks are incomplete. Exceptions from completed tasks
+	 * are rethrown.
+	 * 
+	 * @param maxIncomplete
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	private void waitForOutstanding(int maxIncomplete) throws InterruptedException, ExecutionException {
+		while (true) {
+			for (Iterator<Future<?>> it = outstanding.iterator(); it.hasNext();) {
+				Future<?> future = it.next();
+				if (future.isDone()) {
+					future.get();
+					it.remove();
+				}
+			}
+			if (outstanding.size() <= maxIncomplete)
+				return;
+			// tasks are started in submission order, so block on the oldest
+			outstanding.peek().get();
+		}
+	}
+	
+	private String getWorkerMetrics() {
+		MinMaxAveTracker busyTrack = new MinMaxAveTracker();
+		int numTasks = 0;
+		for (CalcWorker calc : calcs) {
+			busyTrack.addValue(calc.busyMillis/1000d);
+			numTasks += calc.numTasks;
+		}
+		// fraction of worker time that was idle relative to the busiest worker
+		double imbalance = busyTrack.getMax() > 0 ? 1d - busyTrack.getAverage()/busyTrack.getMax() : 0d;
+		return "Worker metrics: "+numTasks+" tasks, busy secs min="+(float)busyTrack.getMin()
+				+", max="+(float)busyTrack.getMax()+", avg="+(float)busyTrack.getAverage()
+				+", imbalance="+(float)imbalance;
+	}
+
+	@Override
+	public void doFinalAssembly() throws Exception {
+		waitForOutstanding(0);
+		exec.shutdown();
+		debug("Done with all tasks. "+getWorkerMetrics());
+		for (CalcWorker calc : calcs)
+			debug("\tWorker "+calc.index+": "+calc.numTasks+" tasks, "+(float)(calc.busyMillis/1000d)+" busy secs");
+		archiver.close();
+		for (BinaryGeoDatasetRandomAccessFile pgaFile : pgaFiles.values())
+			pgaFile.close();
+	}
+	
+	private void debug(String message) {
+		System.out.println("["+MPJTaskCalculator.df.format(new Date())+" Process "+rank+"]: "+message);
+	}
+
+}
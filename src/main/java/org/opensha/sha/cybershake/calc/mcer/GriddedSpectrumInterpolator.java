@@ -2,11 +2,12 @@ package org.opensha.sha.cybershake.calc.mcer;
 
 import java.awt.Color;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
-import org.opensha.commons.data.xyz.EvenlyDiscrXYZ_DataSet;
 import org.opensha.commons.data.xyz.GriddedGeoDataSet;
 import org.opensha.commons.geo.GriddedRegion;
 import org.opensha.commons.geo.Location;
@@ -25,11 +26,11 @@ import scratch.UCERF3.analysis.FaultBasedMapGen;
 public class GriddedSpectrumInterpolator {
 	
 	/*
-	 * Organized by lon,lat
+	 * Organized as [lat][lon][period] in a single contiguous array, see getIndex(...)
 	 */
-//	private DiscretizedFunc[][] gridded;
+	private double[] values;
 	private double[] periods;
-	private EvenlyDiscrXYZ_DataSet[] xyzs;
+	private int numPeriods;
 	private double latSpacing;
 	private double lonSpacing;
 	private double minLat;
@@ -66,16 +67,13 @@ public class GriddedSpectrumInterpolator {
 		checkGridding("Longitude", minLon, maxLon, numLon, lonSpacing);
 		
 		DiscretizedFunc example = map.values().iterator().next();
-		periods = new double[example.size()];
-		for (int p=0; p<periods.length; p++)
+		numPeriods = example.size();
+		periods = new double[numPeriods];
+		for (int p=0; p<numPeriods; p++)
 			periods[p] = example.getX(p);
-		xyzs = new EvenlyDiscrXYZ_DataSet[periods.length];
-		for (int p=0; p<periods.length; p++) {
-			xyzs[p] = new EvenlyDiscrXYZ_DataSet(numLon, numLat, minLon, minLat, lonSpacing, latSpacing);
-			// initialize to NaNs
-			for (int i=0; i<xyzs[p].size(); i++)
-				xyzs[p].set(i, Double.NaN);
-		}
+		// initialize to NaNs
+		values = new double[numLat*numLon*numPeriods];
+		Arrays.fill(values, Double.NaN);
 		
 		System.out.println("Gridded to new grid with corner "+minLat+","+minLon+" and size "+numLat+","+numLon);
 		
@@ -83,11 +81,11 @@ public class GriddedSpectrumInterpolator {
 		double maxDiffLon = lonSpacing*0.01;
 		// now associate to nodes
 		for (Location loc : map.keySet()) {
-			int latIndex = xyzs[0].getYIndex(loc.getLatitude());
+			int latIndex = getLatIndex(loc.getLatitude());
 			Preconditions.checkState(latIndex >= 0 && latIndex < numLat,
 					"Bad input latitude. latRage=[%s %s], myLat=%s, numLat=%s, myIndex=%s",
 					minLat, maxLat, loc.getLatitude(), numLat, latIndex);
-			int lonIndex = xyzs[0].getXIndex(loc.getLongitude());
+			int lonIndex = getLonIndex(loc.getLongitude());
 			Preconditions.checkState(lonIndex >= 0 && lonIndex < numLon,
 					"Bad input longitude. lonRage=[%s %s], myLon=%s, numLon=%s, myIndex=%s",
 					minLon, maxLon, loc.getLongitude(), numLon, lonIndex);
@@ -96,16 +94,49 @@ public class GriddedSpectrumInterpolator {
 					"Couldn't snap to grid, too far!\n\tOrig: %s\n\tGrid: %s", loc, gridLoc);
 			Preconditions.checkState(Math.abs(gridLoc.getLongitude() - loc.getLongitude())<=maxDiffLon,
 					"Couldn't snap to grid, too far!\n\tOrig: %s\n\tGrid: %s", loc, gridLoc);
-			Preconditions.checkState(Double.isNaN(xyzs[0].get(lonIndex, latIndex)), "Duplicate found at %s, %s!", lonIndex, latIndex);
+			int index = getIndex(latIndex, lonIndex);
+			Preconditions.checkState(Double.isNaN(values[index]), "Duplicate found at %s, %s!", lonIndex, latIndex);
 			DiscretizedFunc func = map.get(loc);
-			Preconditions.checkState(func.size() == periods.length, "Spectrum periods inconsistent!");
-			for (int p=0; p<periods.length; p++) {
+			Preconditions.checkState(func.size() == numPeriods, "Spectrum periods inconsistent!");
+			for (int p=0; p<numPeriods; p++) {
 				Preconditions.checkState((float)func.getX(p) == (float)periods[p], "Spectrum periods inconsistent!");
-				xyzs[p].set(lonIndex, latIndex, func.getY(p));
+				values[index+p] = func.getY(p);
 			}
 		}
 	}
 	
+	/**
+	 * @param latIndex
+	 * @param lonIndex
+	 * @return index of the first period value for the given grid node in the flat values array
+	 * @throws IndexOutOfBoundsException if either index is outside of the grid (which would otherwise silently wrap
+	 * into an adjacent row)
+	 */
+	private int getIndex(int latIndex, int lonIndex) {
+		Preconditions.checkElementIndex(latIndex, numLat, "latitude index");
+		Preconditions.checkElementIndex(lonIndex, numLon, "longitude index");
+		return (latIndex*numLon + lonIndex)*numPeriods;
+	}
+	
+	private int getLatIndex(double lat) {
+		return (int)Math.round((lat - minLat)/latSpacing);
+	}
+	
+	private int getLonIndex(double lon) {
+		return (int)Math.round((lon - minLon)/lonSpacing);
+	}
+	
+	/**
+	 * @return copy of the spectrum periods, in the order used for all batch output arrays
+	 */
+	public double[] getPeriods() {
+		return Arrays.copyOf(periods, numPeriods);
+	}
+	
+	public int getNumPeriods() {
+		return numPeriods;
+	}
+	
 	public Location getGridLocation(int latIndex, int lonIndex) {
 		double lat = minLat + latIndex*latSpacing;
 		double lon = minLon + lonIndex*lonSpacing;
@@ -113,64 +144,161 @@ public class GriddedSpectrumInterpolator {
 	}
 	
 	public DiscretizedFunc getInterpolated(Location loc) {
-		DiscretizedFunc ret = new ArbitrarilyDiscretizedFunc();
-		
-		double lat = loc.getLatitude();
-		double lon = loc.getLongitude();
-		
-		for (int i=0; i<periods.length; i++) {
-			double y = xyzs[i].bilinearInterpolation(lon, lat);
-			Preconditions.checkState(!Double.isNaN(y),
-					"Bad interpolation, one or more of the surrounding points was undefined! loc: %s", loc);
-			ret.set(periods[i], y);
-		}
+		double[] interp = new double[numPeriods];
+		boolean success = interpolate(loc.getLatitude(), loc.getLongitude(), interp, 0);
+		Preconditions.checkState(success,
+				"Bad interpolation, one or more of the surrounding points was undefined! loc: %s", loc);
 		
+		DiscretizedFunc ret = new ArbitrarilyDiscretizedFunc();
+		for (int p=0; p<numPeriods; p++)
+			ret.set(periods[p], interp[p]);
 		return ret;
 	}
 	
-	public DiscretizedFunc getClosest(Location loc) {
-		DiscretizedFunc ret = new ArbitrarilyDiscretizedFunc();
+	/**
+	 * Batch bilinear interpolation for many points at once. Results are written to the given output array which
+	 * must be of length lats.length*getNumPeriods(), ordered by point and then by period, such that the value for
+	 * point i and period index p is stored at output[i*getNumPeriods()+p]. Points that are outside of the grid, or for
+	 * which one or more surrounding points are undefined, will be populated with NaNs rather than throwing an exception.
+	 * 
+	 * @param lats
+	 * @param lons
+	 * @param output
+	 * @return the number of points that were successfully interpolated
+	 */
+	public int interpolate(double[] lats, double[] lons, double[] output) {
+		return interpolate(lats, lons, output, false);
+	}
+	
+	/**
+	 * Batch bilinear interpolation for many points at once, optionally in parallel via a parallel stream
+	 * 
+	 * @param lats
+	 * @param lons
+	 * @param output
+	 * @param parallel
+	 * @return the number of points that were successfully interpolated
+	 * @see #interpolate(double[], double[], double[])
+	 */
+	public int interpolate(double[] lats, double[] lons, double[] output, boolean parallel) {
+		Preconditions.checkArgument(lats.length == lons.length, "Lat and lon array lengths inconsistent");
+		Preconditions.checkArgument(output.length == lats.length*numPeriods,
+				"Output array length (%s) should be numPoints*numPeriods=%s", output.length, lats.length*numPeriods);
+		IntStream stream = IntStream.range(0, lats.length);
+		if (parallel)
+			stream = stream.parallel();
+		return (int)stream.filter(i -> interpolate(lats[i], lons[i], output, i*numPeriods)).count();
+	}
+	
+	/**
+	 * Bilinear interpolation of all periods at the given point, written to dest starting at the given offset.
+	 * 
+	 * @param lat
+	 * @param lon
+	 * @param dest
+	 * @param offset
+	 * @return true if successful, false if out of the grid or any surrounding point is undefined (in which case
+	 * the destination will be filled with NaNs)
+	 */
+	private boolean interpolate(double lat, double lon, double[] dest, int offset) {
+		double latIndex = (lat - minLat)/latSpacing;
+		double lonIndex = (lon - minLon)/lonSpacing;
+		int latIndex0 = snapLowerIndex(latIndex, numLat);
+		int lonIndex0 = snapLowerIndex(lonIndex, numLon);
+		if (latIndex0 < 0 || lonIndex0 < 0) {
+			Arrays.fill(dest, offset, offset+numPeriods, Double.NaN);
+			return false;
+		}
+		// fractional distances from the lower nodes, both in [0 1]
+		double fracLat = Math.max(0d, Math.min(1d, latIndex - latIndex0));
+		double fracLon = Math.max(0d, Math.min(1d, lonIndex - lonIndex0));
+		int latIndex1 = Math.min(latIndex0+1, numLat-1);
+		int lonIndex1 = Math.min(lonIndex0+1, numLon-1);
 		
-		double lat = loc.getLatitude();
-		double lon = loc.getLongitude();
+		int i00 = getIndex(latIndex0, lonIndex0);
+		int i01 = getIndex(latIndex0, lonIndex1);
+		int i10 = getIndex(latIndex1, lonIndex0);
+		int i11 = getIndex(latIndex1, lonIndex1);
 		
-		int xInd = xyzs[0].getXIndex(lon);
-		int yInd = xyzs[0].getYIndex(lat);
+		double w00 = (1d-fracLat)*(1d-fracLon);
+		double w01 = (1d-fracLat)*fracLon;
+		double w10 = fracLat*(1d-fracLon);
+		double w11 = fracLat*fracLon;
 		
-		for (int i=0; i<periods.length; i++) {
-			double y = xyzs[i].get(xInd, yInd);
-			ret.set(periods[i], y);
+		for (int p=0; p<numPeriods; p++) {
+			double y = w00*values[i00+p] + w01*values[i01+p] + w10*values[i10+p] + w11*values[i11+p];
+			if (Double.isNaN(y)) {
+				Arrays.fill(dest, offset, offset+numPeriods, Double.NaN);
+				return false;
+			}
+			dest[offset+p] = y;
 		}
+		return true;
+	}
+	
+	/**
+	 * @param index fractional grid index
+	 * @param num number of grid nodes in this dimension
+	 * @return lower grid index for interpolation, or -1 if outside of the grid
+	 */
+	private static int snapLowerIndex(double index, int num) {
+		// tolerance for points that are on the edge of the grid but with floating point error
+		double tol = 1e-6;
+		if (index < -tol || index > num-1+tol)
+			return -1;
+		int lower = (int)Math.floor(index);
+		if (lower < 0)
+			return 0;
+		if (num > 1 && lower >= num-1)
+			// on the upper edge
+			return num-2;
+		return lower;
+	}
+	
+	private boolean isInGrid(int latIndex, int lonIndex) {
+		return latIndex >= 0 && latIndex < numLat && lonIndex >= 0 && lonIndex < numLon;
+	}
+	
+	/**
+	 * @param loc
+	 * @return spectrum at the closest grid node (which may contain NaNs if undefined)
+	 * @throws IllegalArgumentException if the location is more than half a grid spacing outside of the grid
+	 */
+	public DiscretizedFunc getClosest(Location loc) {
+		int latIndex = getLatIndex(loc.getLatitude());
+		int lonIndex = getLonIndex(loc.getLongitude());
+		Preconditions.checkArgument(isInGrid(latIndex, lonIndex), "Location is outside of the grid: %s", loc);
+		
+		DiscretizedFunc ret = new ArbitrarilyDiscretizedFunc();
+		int index = getIndex(latIndex, lonIndex);
+		for (int p=0; p<numPeriods; p++)
+			ret.set(periods[p], values[index+p]);
 		
 		return ret;
 	}
 	
+	/**
+	 * @param loc
+	 * @return closest grid node to the given location
+	 * @throws IllegalArgumentException if the location is more than half a grid spacing outside of the grid
+	 */
 	public Location getClosestGridLoc(Location loc) {
-		double lat = loc.getLatitude();
-		double lon = loc.getLongitude();
-		
-		int xInd = xyzs[0].getXIndex(lon);
-		int yInd = xyzs[0].getYIndex(lat);
+		int latIndex = getLatIndex(loc.getLatitude());
+		int lonIndex = getLonIndex(loc.getLongitude());
+		Preconditions.checkArgument(isInGrid(latIndex, lonIndex), "Location is outside of the grid: %s", loc);
 		
-		return getGridLocation(yInd, xInd);
+		return getGridLocation(latIndex, lonIndex);
 	}
 	
 	public Location getClosestDefinedGridLoc(Location loc) {
-		double lat = loc.getLatitude();
-		double lon = loc.getLongitude();
-		
-		int xInd = xyzs[0].getXIndex(lon);
-		int yInd = xyzs[0].getYIndex(lat);
+		int xInd = getLonIndex(loc.getLongitude());
+		int yInd = getLatIndex(loc.getLatitude());
 		
 		double minDist = Double.POSITIVE_INFINITY;
 		Location closestLoc = null;
 		
 		for (int x=xInd-1; x<=xInd+1; x++) {
-			if (xInd < 0 || xInd >= xyzs[0].getNumX())
-				continue;
 			for (int y=yInd-1; y<=yInd+1; y++) {
-				if (yInd < 0 || yInd >= xyzs[0].getNumY())
-					continue;
 				if (!isDefined(x, y))
 					continue;
 				Location gridLoc = getGridLocation(y, x);
@@ -192,14 +320,15 @@ public class GriddedSpectrumInterpolator {
 	 * 
 	 * @param xInd
 	 * @param yInd
-	 * @return true if at least one spectrum value defined
+	 * @return true if at least one spectrum value defined, false if none are or if outside of the grid
 	 */
 	private boolean isDefined(int xInd, int yInd) {
-		for (int i=0; i<periods.length; i++) {
-			double y = xyzs[i].get(xInd, yInd);
-			if (!Double.isNaN(y))
+		if (!isInGrid(yInd, xInd))
+			return false;
+		int index = getIndex(yInd, xInd);
+		for (int p=0; p<numPeriods; p++)
+			if (!Double.isNaN(values[index+p]))
 				return true;
-		}
 		return false;
 	}
 	
@@ -0,0 +1,175 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.MissingOptionException;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.opensha.commons.util.ClassUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Runs a {@link BatchTaskCalculator} in a single process without MPI. Tasks are dispatched in batches in order,
+ * and each calculator does its own node-local threading, so the output archives are identical to an MPJ run
+ * with a single process. Useful for sizing and benchmarking runs on a workstation before submitting to a cluster:
+ * the --local-max-tasks option will only calculate a subset of the tasks and then print a projected total time.
+ * 
+ * @author kevin
+ *
+ */
+public class LocalBatchTaskDriver {
+	
+	public enum CalcType {
+		MCER_CACHE_GEN {
+			@Override
+			public Options createOptions() {
+				return MPJ_GMPE_MCErCacheGen.createOptions();
+			}
+
+			@Override
+			public BatchTaskCalculator build(CommandLine cmd, int numThreads) throws Exception {
+				return new GMPE_MCErCacheGenCalc(cmd, 0, numThreads);
+			}
+		},
+		CACHE_GEN {
+			@Override
+			public Options createOptions() {
+				return MPJ_GMPE_CacheGen.createOptions();
+			}
+
+			@Override
+			public BatchTaskCalculator build(CommandLine cmd, int numThreads) throws Exception {
+				// calculations are serial within a process
+				return new GMPE_CacheGenCalc(cmd, 0);
+			}
+		};
+		
+		public abstract Options createOptions();
+		
+		public abstract BatchTaskCalculator build(CommandLine cmd, int numThreads) throws Exception;
+	}
+	
+	private BatchTaskCalculator calc;
+	private int batchSize;
+	private int maxTasks;
+	
+	public LocalBatchTaskDriver(BatchTaskCalculator calc, int batchSize) {
+		this(calc, batchSize, -1);
+	}
+	
+	/**
+	 * @param calc
+	 * @param batchSize number of tasks to pass to each {@link BatchTaskCalculator#calculateBatch(int[])} call
+	 * @param maxTasks if positive, only the first maxTasks tasks will be calculated
+	 */
+	public LocalBatchTaskDriver(BatchTaskCalculator calc, int batchSize, int maxTasks) {
+		Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+		this.calc = calc;
+		this.batchSize = batchSize;
+		this.maxTasks = maxTasks;
+	}
+	
+	public void run() throws Exception {
+		int totalTasks = calc.getNumTasks();
+		int numTasks = maxTasks > 0 ? Math.min(maxTasks, totalTasks) : totalTasks;
+		System.out.println("Calculating "+numTasks+"/"+totalTasks+" tasks in batches of "+batchSize);
+		
+		Stopwatch watch = Stopwatch.createStarted();
+		for (int start=0; start<numTasks; start+=batchSize) {
+			int end = Math.min(numTasks, start+batchSize);
+			int[] batch = new int[end-start];
+			for (int i=0; i<batch.length; i++)
+				batch[i] = start+i;
+			calc.calculateBatch(batch);
+			
+			double secs = watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
+			double secsPerTask = secs/end;
+			System.out.println("Done with "+end+"/"+numTasks+" tasks after "+(float)secs+" s ("
+					+(float)secsPerTask+" s/task). Time remaining: "+(float)((numTasks-end)*secsPerTask)+" s");
+		}
+		
+		System.out.println("Doing final assembly");
+		calc.doFinalAssembly();
+		watch.stop();
+		
+		double secs = watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
+		System.out.println("Done with "+numTasks+" tasks in "+(float)secs+" s");
+		if (numTasks < totalTasks && numTasks > 0)
+			System.out.println("Projected time for all "+totalTasks+" tasks: "+(float)(secs*totalTasks/numTasks)+" s");
+	}
+	
+	private static Options addLocalOptions(Options ops) {
+		Option threads = new Option("lt", "local-threads", true, "Number of calculation threads. Default: all available");
+		threads.setRequired(false);
+		ops.addOption(threads);
+		
+		Option batchSize = new Option("lbs", "local-batch-size", true,
+				"Number of tasks to calculate in each batch. Default: 10 per thread");
+		batchSize.setRequired(false);
+		ops.addOption(batchSize);
+		
+		Option maxTasks = new Option("lmt", "local-max-tasks", true,
+				"Only calculate this many tasks and print a projected total time, for benchmarking");
+		maxTasks.setRequired(false);
+		ops.addOption(maxTasks);
+		
+		return ops;
+	}
+	
+	public static void main(String[] args) {
+		String appName = ClassUtils.getClassNameWithoutPackage(LocalBatchTaskDriver.class);
+		if (args.length == 0) {
+			System.err.println("USAGE: "+appName+" <"+Joiner.on("|").join(CalcType.values())+"> [options]");
+			System.exit(2);
+		}
+		
+		try {
+			CalcType type = CalcType.valueOf(args[0]);
+			String[] calcArgs = new String[args.length-1];
+			System.arraycopy(args, 1, calcArgs, 0, calcArgs.length);
+			
+			Options options = addLocalOptions(type.createOptions());
+			
+			CommandLineParser parser = new GnuParser();
+			CommandLine cmd;
+			try {
+				cmd = parser.parse(options, calcArgs);
+			} catch (MissingOptionException e) {
+				System.err.println(e.getMessage());
+				DeterministicResultPlotter.printUsage(options, appName+" "+type.name());
+				return;
+			} catch (ParseException e) {
+				e.printStackTrace();
+				DeterministicResultPlotter.printUsage(options, appName+" "+type.name());
+				return;
+			}
+			
+			int numThreads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("local-threads"))
+				numThreads = Integer.parseInt(cmd.getOptionValue("local-threads"));
+			int batchSize = numThreads*10;
+			if (cmd.hasOption("local-batch-size"))
+				batchSize = Integer.parseInt(cmd.getOptionValue("local-batch-size"));
+			int maxTasks = -1;
+			if (cmd.hasOption("local-max-tasks"))
+				maxTasks = Integer.parseInt(cmd.getOptionValue("local-max-tasks"));
+			
+			BatchTaskCalculator calc = type.build(cmd, numThreads);
+			
+			new LocalBatchTaskDriver(calc, batchSize, maxTasks).run();
+			
+			System.exit(0);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
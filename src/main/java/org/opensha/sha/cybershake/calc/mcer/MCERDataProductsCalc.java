@@ -7,10 +7,21 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.text.DecimalFormat;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import oracle.net.aso.a;
 
@@ -55,6 +66,7 @@ import org.opensha.sha.calc.mcer.DeterministicResult;
 import org.opensha.sha.calc.mcer.GMPE_MCErDeterministicCalc;
 import org.opensha.sha.calc.mcer.GMPE_MCErProbabilisticCalc;
 import org.opensha.sha.calc.mcer.MCErCalcUtils;
+import org.opensha.sha.calc.mcer.SpectrumMatrix;
 import org.opensha.sha.calc.mcer.WeightProvider;
 import org.opensha.sha.calc.mcer.WeightedAverageMCErDeterministicCalc;
 import org.opensha.sha.calc.mcer.WeightedAverageMCErProbabilisticCalc;
@@ -99,6 +111,7 @@ import scratch.peter.ucerf3.NSHMP13_DeterminisiticERF;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -126,18 +139,18 @@ public class MCERDataProductsCalc {
 //	private HSSFSheet asceSheet;
 //	private FormulaEvaluator evaluator;
 	
-	private CyberShakeMCErDeterministicCalc csDetCalc;
 	private CyberShakeMCErProbabilisticCalc csProbCalc;
 	
-	private List<AbstractMCErDeterministicCalc> gmpeDetCalcs;
-	private List<CurveBasedMCErProbabilisitCalc> gmpeProbCalcs;
+	// CyberShake deterministic and GMPE calculators for each compute thread, ERFs and GMPEs are not thread safe
+	private List<GMPECalcSet> gmpeCalcSets;
+	// GMPE instances for the render stage, only used for metadata and disaggregation
+	private List<AttenuationRelationship> renderGMPEs;
 	
-	private WeightedAverageMCErDeterministicCalc avgDetCalc;
-	private WeightedAverageMCErProbabilisticCalc avgProbCalc;
 	private static boolean directAverage = false;
-	private WeightProvider avgWeightProv;
 	private static boolean doFinalMCER = true;
 	
+	private int numThreads = 1;
+	
 	private boolean includeNEHRP = false;
 	
 	static final String default_periods = "1,1.5,2,3,4,5,7.5,10";
@@ -151,29 +164,44 @@ public class MCERDataProductsCalc {
 	private boolean disaggregate = false;
 	private Map<String, List<Integer>> combinedSources = null;
 	
+	// ERF for the render stage (and the amplitude cache, see init)
 	private AbstractERF erf;
 	
 	public MCERDataProductsCalc(AbstractERF erf, List<AttenuationRelationship> gmpes,
 			CyberShakeComponent comp, List<Double> periods, File outputDir) throws IOException {
-		init(db = Cybershake_OpenSHA_DBApplication.getDB(), erf, gmpes, null, comp, periods, outputDir, false, null, false);
+		List<List<AttenuationRelationship>> gmpeSets = null;
+		if (gmpes != null) {
+			gmpeSets = Lists.newArrayList();
+			gmpeSets.add(gmpes);
+		}
+		init(db = Cybershake_OpenSHA_DBApplication.getDB(), Lists.newArrayList(erf), gmpeSets, 1, null, comp, periods,
+				outputDir, false, null, false);
 	}
 	
 	public MCERDataProductsCalc(CommandLine cmd) throws IOException, DocumentException, InvocationTargetException {
-		AbstractERF erf = ERFSaver.LOAD_ERF_FROM_FILE(cmd.getOptionValue("erf-file"));
-		List<AttenuationRelationship> attenRels = Lists.newArrayList();
-		
-		for (String attenRelFile : DataUtils.commaSplit(cmd.getOptionValue("atten-rel-file"))) {
-			AttenuationRelationship attenRel = AttenRelSaver.LOAD_ATTEN_REL_FROM_FILE(attenRelFile);
-			attenRels.add(attenRel);
+		int numThreads = 1;
+		if (cmd.hasOption("threads"))
+			numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+		Preconditions.checkArgument(numThreads >= 1, "Must have at least 1 thread");
+		
+		// one set of GMPEs per compute thread, plus one for the render stage if pipelined
+		int numGMPESets = numThreads == 1 ? 1 : numThreads+1;
+		List<List<AttenuationRelationship>> attenRelSets = Lists.newArrayList();
+		for (int i=0; i<numGMPESets; i++) {
+			List<AttenuationRelationship> attenRels = Lists.newArrayList();
+			
+			for (String attenRelFile : DataUtils.commaSplit(cmd.getOptionValue("atten-rel-file"))) {
+				AttenuationRelationship attenRel = AttenRelSaver.LOAD_ATTEN_REL_FROM_FILE(attenRelFile);
+				attenRels.add(attenRel);
+			}
+			attenRelSets.add(attenRels);
 		}
 		
-		erf.updateForecast();
-		
-		ERF gmpeERF = null;
-		if (cmd.hasOption("gmpe-erf-file")) {
-			gmpeERF = ERFSaver.LOAD_ERF_FROM_FILE(cmd.getOptionValue("gmpe-erf-file"));
-			gmpeERF.updateForecast();
-		}
+		// ERFs aren't thread safe, so one ERF per compute thread, plus one for the render stage if pipelined
+		List<AbstractERF> erfs = loadERFs(cmd.getOptionValue("erf-file"), numGMPESets);
+		List<AbstractERF> gmpeERFs = null;
+		if (cmd.hasOption("gmpe-erf-file"))
+			gmpeERFs = loadERFs(cmd.getOptionValue("gmpe-erf-file"), numThreads);
 		
 		CyberShakeComponent comp = CybershakeIM.fromShortName(cmd.getOptionValue("component"), CyberShakeComponent.class);
 		
@@ -199,40 +227,130 @@ public class MCERDataProductsCalc {
 		
 		disaggregate = cmd.hasOption("disaggregate");
 		
-		init(Cybershake_OpenSHA_DBApplication.getDB(), erf, attenRels, gmpeERF, comp, periods, outputDir,
-				cmd.hasOption("weight-average"), gmpeCacheDir, includeNEHRP);
+		init(Cybershake_OpenSHA_DBApplication.getDB(), erfs, attenRelSets, numThreads, gmpeERFs, comp, periods,
+				outputDir, cmd.hasOption("weight-average"), gmpeCacheDir, includeNEHRP);
+	}
+	
+	/**
+	 * Loads and updates the given number of instances of the ERF in parallel
+	 */
+	private static List<AbstractERF> loadERFs(String erfPath, int num) throws IOException {
+		ExecutorService exec = Executors.newFixedThreadPool(num);
+		List<Future<AbstractERF>> futures = Lists.newArrayList();
+		for (int i=0; i<num; i++) {
+			futures.add(exec.submit(() -> {
+				AbstractERF erf = ERFSaver.LOAD_ERF_FROM_FILE(erfPath);
+				erf.updateForecast();
+				return erf;
+			}));
+		}
+		List<AbstractERF> erfs = Lists.newArrayList();
+		try {
+			for (Future<AbstractERF> future : futures)
+				erfs.add(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		return erfs;
 	}
 	
-	private void init(DBAccess db, AbstractERF erf, List<AttenuationRelationship> gmpes, ERF gmpeERF,
-			CyberShakeComponent comp, List<Double> periods, File outputDir, boolean weightAverage,
-			File gmpeCacheDir, boolean includeNEHRP) throws IOException {
+	/**
+	 * @param erfs ERF instances. One is needed for each thread, plus one for the render stage if numThreads > 1.
+	 * @param gmpeSets sets of GMPE instances. One set is needed for each thread, plus one for the render stage if
+	 * numThreads > 1. Sets must contain the same GMPEs in the same order.
+	 * @param gmpeERFs GMPE ERF instances, one for each thread, or null to use the CyberShake ERFs
+	 */
+	private void init(DBAccess db, List<? extends AbstractERF> erfs, List<List<AttenuationRelationship>> gmpeSets,
+			int numThreads, List<? extends ERF> gmpeERFs, CyberShakeComponent comp, List<Double> periods,
+			File outputDir, boolean weightAverage, File gmpeCacheDir, boolean includeNEHRP) throws IOException {
 		this.db = db;
 		this.comp = comp;
 		this.periods = periods;
-		this.gmpes = gmpes;
 		this.outputDir = outputDir;
 		this.includeNEHRP = includeNEHRP;
-		this.erf = erf;
+		this.numThreads = numThreads;
+		
+		if (numThreads == 1) {
+			Preconditions.checkArgument(!erfs.isEmpty(), "Need an ERF");
+			erf = erfs.get(0);
+		} else {
+			Preconditions.checkArgument(erfs.size() > numThreads,
+					"Need %s ERFs for %s threads, have %s", numThreads+1, numThreads, erfs.size());
+			erf = erfs.get(numThreads);
+		}
+		Preconditions.checkArgument(gmpeERFs == null || gmpeERFs.size() >= numThreads,
+				"Need %s GMPE ERFs for %s threads, have %s", numThreads, numThreads,
+				gmpeERFs == null ? 0 : gmpeERFs.size());
 		
 		runs2db = new Runs2DB(db);
 		sites2db = new CybershakeSiteInfo2DB(db);
+		// the amplitude cache only uses its ERF for rupture counts while holding its own lock, so it shares the render
+		// ERF, and the render stage holds that same lock whenever it uses the ERF
 		amps2db = new CachedPeakAmplitudesFromDB(db, cacheDir, erf);
 		
-		csDetCalc = new CyberShakeMCErDeterministicCalc(amps2db, erf, comp);
+		// CyberShake probabilistic calc is shared between threads, it doesn't use an ERF
 		csProbCalc = new CyberShakeMCErProbabilisticCalc(db, comp);
 		
-		if (gmpes != null && !gmpes.isEmpty()) {
-			gmpeDetCalcs = Lists.newArrayList();
-			gmpeProbCalcs = Lists.newArrayList();
-			
-			if (gmpeERF == null)
-				gmpeERF = erf;
-			ERF gmpeDetERF = getGMPEDetERF(gmpeERF, csDetCalc.getRupProbMod());
-			System.out.println("GMPE Det ERF: "+ClassUtils.getClassNameWithoutPackage(gmpeDetERF.getClass()));
+		gmpeCalcSets = Lists.newArrayList();
+		if (gmpeSets != null && !gmpeSets.isEmpty() && !gmpeSets.get(0).isEmpty()) {
+			gmpes = gmpeSets.get(0);
+			if (numThreads == 1) {
+				renderGMPEs = gmpes;
+			} else {
+				Preconditions.checkArgument(gmpeSets.size() > numThreads,
+						"Need %s sets of GMPEs for %s threads, have %s", numThreads+1, numThreads, gmpeSets.size());
+				renderGMPEs = gmpeSets.get(numThreads);
+			}
 			
 			Component gmpeComp = MCErCalcUtils.getSupportedTranslationComponent(
 					gmpes.get(0), comp.getGMPESupportedComponents());
 			
+			for (int t=0; t<numThreads; t++) {
+				CyberShakeMCErDeterministicCalc csDetCalc = new CyberShakeMCErDeterministicCalc(amps2db, erfs.get(t), comp);
+				ERF gmpeERF = gmpeERFs == null ? erfs.get(t) : gmpeERFs.get(t);
+				ERF gmpeDetERF = getGMPEDetERF(gmpeERF, csDetCalc.getRupProbMod());
+				if (t == 0)
+					System.out.println("GMPE Det ERF: "+ClassUtils.getClassNameWithoutPackage(gmpeDetERF.getClass()));
+				gmpeCalcSets.add(new GMPECalcSet(csDetCalc, gmpeSets.get(t), gmpeERF, gmpeDetERF, gmpeComp,
+						weightAverage, gmpeCacheDir));
+			}
+		} else {
+			Preconditions.checkState(!weightAverage, "Can't weight average without GMPEs!");
+			for (int t=0; t<numThreads; t++)
+				gmpeCalcSets.add(new GMPECalcSet(new CyberShakeMCErDeterministicCalc(amps2db, erfs.get(t), comp)));
+		}
+	}
+	
+	/**
+	 * CyberShake deterministic and GMPE calculators for a single thread, each with that thread's own ERF instances
+	 */
+	private class GMPECalcSet {
+		private CyberShakeMCErDeterministicCalc csDetCalc;
+		
+		private List<AttenuationRelationship> gmpes;
+		
+		private List<AbstractMCErDeterministicCalc> gmpeDetCalcs;
+		private List<CurveBasedMCErProbabilisitCalc> gmpeProbCalcs;
+		
+		private WeightedAverageMCErDeterministicCalc avgDetCalc;
+		private WeightedAverageMCErProbabilisticCalc avgProbCalc;
+		
+		/**
+		 * No GMPEs
+		 */
+		public GMPECalcSet(CyberShakeMCErDeterministicCalc csDetCalc) {
+			this.csDetCalc = csDetCalc;
+		}
+		
+		public GMPECalcSet(CyberShakeMCErDeterministicCalc csDetCalc, List<AttenuationRelationship> gmpes,
+				ERF gmpeERF, ERF gmpeDetERF, Component gmpeComp, boolean weightAverage, File gmpeCacheDir) {
+			this.csDetCalc = csDetCalc;
+			this.gmpes = gmpes;
+			gmpeDetCalcs = Lists.newArrayList();
+			gmpeProbCalcs = Lists.newArrayList();
+			
 			DiscretizedFunc xVals = IMT_Info.getUSGS_SA_Function();
 			
 			for (AttenuationRelationship gmpe : gmpes) {
@@ -255,7 +373,8 @@ public class MCERDataProductsCalc {
 			
 			if (weightAverage) {
 				CombinedMultiMCErDeterministicCalc gmpeDetCalc = new CombinedMultiMCErDeterministicCalc(gmpeDetCalcs);
-				avgWeightProv = new CyberShakeWeightProvider(csProbCalc, gmpeProbCalcs, csDetCalc, gmpeDetCalc);
+				WeightProvider avgWeightProv = new CyberShakeWeightProvider(
+						csProbCalc, gmpeProbCalcs, csDetCalc, gmpeDetCalc);
 				
 				avgDetCalc = new WeightedAverageMCErDeterministicCalc(avgWeightProv, csDetCalc, gmpeDetCalc);
 				List<CurveBasedMCErProbabilisitCalc> allProbCalcs = Lists.newArrayList();
@@ -263,8 +382,6 @@ public class MCERDataProductsCalc {
 				allProbCalcs.addAll(gmpeProbCalcs);
 				avgProbCalc = new WeightedAverageMCErProbabilisticCalc(avgWeightProv, allProbCalcs);
 			}
-		} else {
-			Preconditions.checkState(!weightAverage, "Can't weight average without GMPEs!");
 		}
 	}
 	
@@ -288,13 +405,98 @@ public class MCERDataProductsCalc {
 	}
 	
 	public void calc(List<Integer> runIDs) throws IOException {
-		for (int runID : runIDs) {
-			CybershakeRun run = runs2db.getRun(runID);
-			Preconditions.checkNotNull(run, "Run not found: %s", runID);
-			CybershakeSite site = sites2db.getSiteFromDB(run.getSiteID());
-			
-			doCalc(run, site);
+		if (numThreads == 1) {
+			GMPECalcSet calcs = gmpeCalcSets.get(0);
+			for (int runID : runIDs)
+				render(compute(prepare(runID), calcs));
+		} else {
+			calcPipelined(runIDs);
+		}
+	}
+	
+	/**
+	 * Staged pipeline: a single prefetch thread loads run/site metadata, builds sites, and warms the CyberShake curve
+	 * and amplitude caches; numThreads compute threads (each with their own ERF, CyberShake deterministic calc and GMPE
+	 * instances) calculate all values; and
+	 * a single render thread writes plots and CSV files. Stages are connected by bounded queues so that the DB,
+	 * CPU and disk can be kept busy at the same time without prefetching too far ahead.
+	 * 
+	 * @param runIDs
+	 * @throws IOException
+	 */
+	private void calcPipelined(List<Integer> runIDs) throws IOException {
+		int queueSize = 2*numThreads;
+		BlockingQueue<SiteJob> computeQueue = new ArrayBlockingQueue<>(queueSize);
+		BlockingQueue<SiteResults> renderQueue = new ArrayBlockingQueue<>(queueSize);
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads+2);
+		CompletionService<Void> ecs = new ExecutorCompletionService<>(exec);
+		int numStageThreads = 0;
+		
+		Stopwatch watch = Stopwatch.createStarted();
+		
+		// prefetch stage
+		ecs.submit(() -> {
+			for (int runID : runIDs) {
+				SiteJob job = prepare(runID);
+				prefetch(job);
+				computeQueue.put(job);
+			}
+			for (int t=0; t<numThreads; t++)
+				computeQueue.put(END_JOB);
+			return null;
+		});
+		numStageThreads++;
+		
+		// compute stage
+		AtomicInteger computeThreadsLeft = new AtomicInteger(numThreads);
+		for (int t=0; t<numThreads; t++) {
+			GMPECalcSet calcs = gmpeCalcSets.get(t);
+			ecs.submit(() -> {
+				while (true) {
+					SiteJob job = computeQueue.take();
+					if (job == END_JOB)
+						break;
+					renderQueue.put(compute(job, calcs));
+				}
+				if (computeThreadsLeft.decrementAndGet() == 0)
+					// last one out
+					renderQueue.put(END_RESULTS);
+				return null;
+			});
+			numStageThreads++;
+		}
+		
+		// render stage
+		ecs.submit(() -> {
+			int numDone = 0;
+			while (true) {
+				SiteResults results = renderQueue.take();
+				if (results == END_RESULTS)
+					break;
+				render(results);
+				numDone++;
+				System.out.println("Done with "+numDone+"/"+runIDs.size()+" runs after "
+						+watch.elapsed(TimeUnit.SECONDS)+" s");
+			}
+			return null;
+		});
+		numStageThreads++;
+		
+		try {
+			for (int i=0; i<numStageThreads; i++)
+				ecs.take().get();
+		} catch (InterruptedException | ExecutionException e) {
+			// interrupt any stages which are blocked on a queue
+			exec.shutdownNow();
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
 		}
+		exec.shutdown();
+		watch.stop();
+		System.out.println("Pipeline done with "+runIDs.size()+" runs in "+watch.elapsed(TimeUnit.SECONDS)+" s");
 	}
 	
 	static ParameterList getSiteParams(List<? extends ScalarIMR> gmpes) {
@@ -311,7 +513,56 @@ public class MCERDataProductsCalc {
 		return siteParams;
 	}
 	
-	private void doCalc(CybershakeRun run, CybershakeSite csSite) throws IOException {
+	private static class SiteJob {
+		private final CybershakeRun run;
+		private final CybershakeSite csSite;
+		private final CyberShakeSiteRun site;
+		private final File runOutputDir;
+		
+		public SiteJob(CybershakeRun run, CybershakeSite csSite, CyberShakeSiteRun site, File runOutputDir) {
+			this.run = run;
+			this.csSite = csSite;
+			this.site = site;
+			this.runOutputDir = runOutputDir;
+		}
+	}
+	
+	private static final SiteJob END_JOB = new SiteJob(null, null, null, null);
+	
+	private static class SiteResults {
+		private final SiteJob job;
+		
+		private List<DeterministicResult> csDeterms;
+		private DiscretizedFunc csDetSpectrum;
+		private DiscretizedFunc csProbSpectrum;
+		
+		private List<DiscretizedFunc> gmpeDetSpectrums;
+		private List<DiscretizedFunc> gmpeProbSpectrums;
+		private DiscretizedFunc gmpeCombinedDetSpectrum;
+		private DiscretizedFunc gmpeCombinedProbSpectrum;
+		private List<List<DeterministicResult>> gmpeDeterms;
+		
+		private DiscretizedFunc avgProbVals;
+		private Map<Double, DeterministicResult> avgDetVals;
+		private List<DeterministicResult> avgDetValsList;
+		
+		private DiscretizedFunc asceDeterm;
+		
+		public SiteResults(SiteJob job) {
+			this.job = job;
+		}
+	}
+	
+	private static final SiteResults END_RESULTS = new SiteResults(END_JOB);
+	
+	/**
+	 * Loads the run and site from the DB and builds the site with GMPE site parameters
+	 */
+	private SiteJob prepare(int runID) throws IOException {
+		CybershakeRun run = runs2db.getRun(runID);
+		Preconditions.checkNotNull(run, "Run not found: %s", runID);
+		CybershakeSite csSite = sites2db.getSiteFromDB(run.getSiteID());
+		
 		System.out.println("Calculating for "+csSite.short_name+", runID="+run.getRunID());
 		File runOutputDir = new File(outputDir, csSite.short_name+"_run"+run.getRunID());
 		Preconditions.checkState(runOutputDir.exists() && runOutputDir.isDirectory() || runOutputDir.mkdir());
@@ -321,13 +572,49 @@ public class MCERDataProductsCalc {
 		CyberShakeSiteRun site = new CyberShakeSiteRun(csSite, run);
 		site.addParameterList(gmpeSite);
 		
+		return new SiteJob(run, csSite, site, runOutputDir);
+	}
+	
+	/**
+	 * Warms the CyberShake hazard curve cache, and the amplitude file cache if enabled, for the given job so that
+	 * compute threads don't wait on the DB. Failures here are not fatal, the compute stage will try again and
+	 * handle any missing data.
+	 */
+	private void prefetch(SiteJob job) {
+		int runID = job.run.getRunID();
+		try {
+			csProbCalc.prefetch(Lists.newArrayList(job.site), periods);
+		} catch (RuntimeException e) {
+			System.err.println("WARNING: couldn't prefetch curves for run "+runID+": "+e.getMessage());
+		}
+		if (amps2db.getCacheDir() == null)
+			// in memory amplitude cache is too small to hold amplitudes for queued runs
+			return;
+		for (double period : periods) {
+			try {
+				CybershakeIM im = CyberShakeMCErProbabilisticCalc.getIMsForPeriods(
+						db, comp, Lists.newArrayList(period)).get(0);
+				if (!amps2db.isFileCached(runID, im))
+					amps2db.getAllIM_Values(runID, im);
+			} catch (SQLException | RuntimeException e) {
+				System.err.println("WARNING: couldn't prefetch amplitudes for run "+runID+", period "+period
+						+": "+e.getMessage());
+			}
+		}
+	}
+	
+	private SiteResults compute(SiteJob job, GMPECalcSet calcs) {
+		CyberShakeSiteRun site = job.site;
+		CybershakeSite csSite = job.csSite;
+		SiteResults r = new SiteResults(job);
+		
 		// calc CyberShake deterministic
-		System.out.println("Calculating CyberShake Values");
-		List<DeterministicResult> csDeterms = Lists.newArrayList();
-		DiscretizedFunc csDetSpectrum = new ArbitrarilyDiscretizedFunc();
-		csDetSpectrum.setName("CyberShake Deterministic");
-		DiscretizedFunc csProbSpectrum = new ArbitrarilyDiscretizedFunc();
-		csProbSpectrum.setName("CyberShake Probabilistic");
+		System.out.println("Calculating CyberShake Values for "+csSite.short_name);
+		r.csDeterms = Lists.newArrayList();
+		r.csDetSpectrum = new ArbitrarilyDiscretizedFunc();
+		r.csDetSpectrum.setName("CyberShake Deterministic");
+		r.csProbSpectrum = new ArbitrarilyDiscretizedFunc();
+		r.csProbSpectrum.setName("CyberShake Probabilistic");
 		
 		// to use consistent x values between CyberShake and GMPEs for prob calcs
 		Map<Double, DiscretizedFunc> xValsMap = Maps.newHashMap();
@@ -335,91 +622,96 @@ public class MCERDataProductsCalc {
 		// calc CyberShake
 		for (double period : periods) {
 			try {
-				DeterministicResult csDet = csDetCalc.calc(site, period);
+				DeterministicResult csDet = calcs.csDetCalc.calc(site, period);
 				Preconditions.checkNotNull(csDet); // will kick down to catch and skip this period if null
-				csDeterms.add(csDet);
+				r.csDeterms.add(csDet);
 				DiscretizedFunc curve = csProbCalc.calcHazardCurves(site, Lists.newArrayList(period)).get(period);
 				xValsMap.put(period, curve);
 				double csProb = CurveBasedMCErProbabilisitCalc.calcRTGM(curve);
 //				double csProb = csProbCalc.calc(site, period);
-				csProbSpectrum.set(period, csProb);
+				r.csProbSpectrum.set(period, csProb);
 			} catch (RuntimeException e) {
 				if (e.getMessage() != null && e.getMessage().startsWith("No CyberShake IM match")
 						|| e instanceof NullPointerException) {
 					System.out.println("Skipping period "+period+", no matching CyberShake IM");
-					csDeterms.add(null);
+					r.csDeterms.add(null);
 					continue;
 				}
 				throw e;
 			}
 		}
-		Preconditions.checkState(csDeterms.size() == periods.size());
+		Preconditions.checkState(r.csDeterms.size() == periods.size());
 		for (int i=0; i<periods.size(); i++)
-			if (csDeterms.get(i) != null)
-				csDetSpectrum.set(periods.get(i), csDeterms.get(i).getVal());
-		
-		System.out.println("Calculating GMPE Values");
-		List<DiscretizedFunc> gmpeDetSpectrums = null;
-		List<DiscretizedFunc> gmpeProbSpectrums = null;
-		DiscretizedFunc gmpeCombinedDetSpectrum = null;
-		DiscretizedFunc gmpeCombinedProbSpectrum = null;
-		List<List<DeterministicResult>> gmpeDeterms = null;
-		if (gmpeDetCalcs != null) {
-			gmpeDetSpectrums = Lists.newArrayList();
-			gmpeProbSpectrums = Lists.newArrayList();
-			gmpeDeterms = Lists.newArrayList();
+			if (r.csDeterms.get(i) != null)
+				r.csDetSpectrum.set(periods.get(i), r.csDeterms.get(i).getVal());
+		
+		if (calcs.gmpeDetCalcs != null) {
+			System.out.println("Calculating GMPE Values for "+csSite.short_name);
+			r.gmpeDetSpectrums = Lists.newArrayList();
+			r.gmpeProbSpectrums = Lists.newArrayList();
+			r.gmpeDeterms = Lists.newArrayList();
 			
-			CombinedMultiMCErProbabilisticCalc gmpeCombinedCalc = new CombinedMultiMCErProbabilisticCalc(gmpeProbCalcs);
-			for (int i=0; i<gmpes.size(); i++) {
-//				ArbitrarilyDiscretizedFunc detSpectrum = new ArbitrarilyDiscretizedFunc(
-//						gmpes.get(i).getShortName()+" Deterministic");
-//				ArbitrarilyDiscretizedFunc probSpectrum = new ArbitrarilyDiscretizedFunc(
-//						gmpes.get(i).getShortName()+" Probabilistic");
-				System.out.println("Calculating GMPE Det "+gmpes.get(i).getShortName());
-				Map<Double, DeterministicResult> detResults = gmpeDetCalcs.get(i).calc(site, periods);
+			CombinedMultiMCErProbabilisticCalc gmpeCombinedCalc = new CombinedMultiMCErProbabilisticCalc(calcs.gmpeProbCalcs);
+			for (int i=0; i<calcs.gmpes.size(); i++) {
+				String gmpeName = calcs.gmpes.get(i).getShortName();
+				System.out.println("Calculating GMPE Det "+gmpeName);
+				Map<Double, DeterministicResult> detResults = calcs.gmpeDetCalcs.get(i).calc(site, periods);
 				List<DeterministicResult> gmpeDeterm = Lists.newArrayList();
 				for (double period : periods)
 					gmpeDeterm.add(detResults.get(period));
-				gmpeDeterms.add(gmpeDeterm);
+				r.gmpeDeterms.add(gmpeDeterm);
 				DiscretizedFunc detSpectrum = AbstractMCErDeterministicCalc.toSpectrumFunc(detResults);
-				detSpectrum.setName(gmpes.get(i).getShortName()+" Deterministic");
+				detSpectrum.setName(gmpeName+" Deterministic");
 //				DiscretizedFunc probSpectrum = gmpeProbCalcs.get(i).calc(site, periods);
 				DiscretizedFunc probSpectrum = new ArbitrarilyDiscretizedFunc();
 				for (double period : periods) {
-					System.out.println("Calculating GMPE Prob "+gmpes.get(i).getShortName()+" "+period+"s");
+					System.out.println("Calculating GMPE Prob "+gmpeName+" "+period+"s");
 					if (xValsMap.containsKey(period))
-						gmpeProbCalcs.get(i).setXVals(xValsMap.get(period));
-					probSpectrum.set(period, gmpeProbCalcs.get(i).calc(site, period));
+						calcs.gmpeProbCalcs.get(i).setXVals(xValsMap.get(period));
+					probSpectrum.set(period, calcs.gmpeProbCalcs.get(i).calc(site, period));
 				}
-				probSpectrum.setName(gmpes.get(i).getShortName()+" Probabilistic");
+				probSpectrum.setName(gmpeName+" Probabilistic");
 				
-				gmpeDetSpectrums.add(detSpectrum);
-				gmpeProbSpectrums.add(probSpectrum);
+				r.gmpeDetSpectrums.add(detSpectrum);
+				r.gmpeProbSpectrums.add(probSpectrum);
 			}
-			gmpeCombinedDetSpectrum = maximum(gmpeDetSpectrums);
+			r.gmpeCombinedDetSpectrum = maximum(r.gmpeDetSpectrums);
 //			gmpeCombinedProbSpectrum = average(gmpeProbSpectrums);
 			// do it right, average hazard curves not spectrum
-			gmpeCombinedProbSpectrum = gmpeCombinedCalc.calc(site, periods);
+			r.gmpeCombinedProbSpectrum = gmpeCombinedCalc.calc(site, periods);
 		}
 		
-		DiscretizedFunc avgProbVals = null;
-		if (avgProbCalc != null) {
-			avgProbVals = avgProbCalc.calc(site, periods);
+		if (calcs.avgProbCalc != null) {
+			r.avgProbVals = calcs.avgProbCalc.calc(site, periods);
 		}
 		
-		Map<Double, DeterministicResult> avgDetVals = null;
-		List<DeterministicResult> avgDetValsList = null;
-		if (avgDetCalc != null) {
-			avgDetVals = avgDetCalc.calc(site, periods);
-			avgDetValsList = Lists.newArrayList();
+		if (calcs.avgDetCalc != null) {
+			r.avgDetVals = calcs.avgDetCalc.calc(site, periods);
+			r.avgDetValsList = Lists.newArrayList();
 			for (double period : periods)
-				avgDetValsList.add(avgDetVals.get(period));
+				r.avgDetValsList.add(r.avgDetVals.get(period));
 		}
 		
+		// get vs30 from GMPE calc
+		Preconditions.checkState(site.containsParameter(Vs30_Param.NAME));
+		double vs30 = site.getParameter(Double.class, Vs30_Param.NAME).getValue();
+		// gmpeProb just used for x values here
+		r.asceDeterm = ASCEDetLowerLimitCalc.calc(r.gmpeCombinedProbSpectrum, vs30, csSite.createLocation());
+		
+		return r;
+	}
+	
+	private void render(SiteResults r) throws IOException {
+		SiteJob job = r.job;
+		CybershakeRun run = job.run;
+		CybershakeSite csSite = job.csSite;
+		CyberShakeSiteRun site = job.site;
+		File runOutputDir = job.runOutputDir;
+		
 		// plot deterministic
 		for (boolean velPlot : new boolean[] {true, false})
-			DeterministicResultPlotter.plot(comp, buildDetermMapForSite(csSite.short_name, csDetSpectrum),
-					buildDetermMapForSite(csSite.short_name, gmpeDetSpectrums),
+			DeterministicResultPlotter.plot(comp, buildDetermMapForSite(csSite.short_name, r.csDetSpectrum),
+					buildDetermMapForSite(csSite.short_name, r.gmpeDetSpectrums),
 					Lists.newArrayList(PlotType.PNG, PlotType.PDF), velPlot, runOutputDir);
 		
 		// write deterministic CSV
@@ -434,80 +726,24 @@ public class MCERDataProductsCalc {
 		name += comp.getShortName()+"_"+perStr+"per_"+dateFormat.format(new Date())+".csv";
 		
 		File outputFile = new File(runOutputDir, name);
-		DeterministicResultPlotter.writeCSV(periods, csDeterms, avgDetValsList, gmpes, gmpeDeterms, outputFile, false);
+		DeterministicResultPlotter.writeCSV(periods, r.csDeterms, r.avgDetValsList, renderGMPEs, r.gmpeDeterms, outputFile, false);
 		
 		// now PSV
 		name = site.getCS_Site().short_name+"_run"+run.getRunID()+"_Deterministic_";
 		name += comp.getShortName()+"_vel_"+perStr+"per_"+dateFormat.format(new Date())+".csv";
 		
 		outputFile = new File(runOutputDir, name);
-		DeterministicResultPlotter.writeCSV(periods, csDeterms, avgDetValsList, gmpes, gmpeDeterms, outputFile, true);
+		DeterministicResultPlotter.writeCSV(periods, r.csDeterms, r.avgDetValsList, renderGMPEs, r.gmpeDeterms, outputFile, true);
 		
 		// plot probabilistic
 		for (boolean velPlot : new boolean[] {true, false})
-			ProbabilisticResultPlotter.plotProbMCEr(site, comp, csProbSpectrum, avgProbVals, gmpes, gmpeProbSpectrums, periods,
-					Lists.newArrayList(PlotType.PNG, PlotType.PDF, PlotType.CSV), velPlot, runOutputDir);
-		
-//		// calc probabalistic
-//		System.out.println("Calculating Probabilistic");
-//		RTGMCalc probCalc = new RTGMCalc(run.getRunID(), comp, runOutputDir, db);
-//		probCalc.setForceAddIMs(forceAddIMs);
-//		probCalc.setGMPEs(erf, gmpes);
-//		probCalc.setVelPlot(true);
-//		probCalc.setPlotTypes(Lists.newArrayList(PlotType.CSV, PlotType.PNG, PlotType.PDF));
-//		Preconditions.checkState(probCalc.calc());
-//		// now do again for regular plot
-//		probCalc.setVelPlot(false);
-//		probCalc.setPlotTypes(Lists.newArrayList(PlotType.PNG, PlotType.PDF));
-//		Preconditions.checkState(probCalc.calc());
-//		DiscretizedFunc csProb = probCalc.getCSSpectrumMap().get(comp);
-//		
-//		// get mean GMPE RTGM
-//		Map<Double, List<DiscretizedFunc>> gmpeHazCurvesMap = probCalc.getGMPEHazardCurves().rowMap().get(comp);
-//		ArbitrarilyDiscretizedFunc gmpeProb = new ArbitrarilyDiscretizedFunc("GMPE Probabilistic");
-//		for (int i=0; i<periods.size(); i++) {
-//			Double period = periods.get(i);
-//			List<DiscretizedFunc> gmpeHazCurves = gmpeHazCurvesMap.get(csRoundedPeriods.get(i));
-//			Preconditions.checkNotNull(gmpeHazCurves, "No GMPE haz curves for period="+period
-//					+". Avail: "+Joiner.on(",").join(gmpeHazCurvesMap.keySet()));
-//			DiscretizedFunc meanCurve = average(gmpeHazCurves);
-//			double rtgm = RTGMCalc.calcRTGM(meanCurve);
-//			gmpeProb.set(period, rtgm);
-//		}
+			ProbabilisticResultPlotter.plotProbMCEr(site, comp, r.csProbSpectrum, r.avgProbVals, renderGMPEs, r.gmpeProbSpectrums,
+					periods, Lists.newArrayList(PlotType.PNG, PlotType.PDF, PlotType.CSV), velPlot, runOutputDir);
 		
-//		// load in ASCE values if available
-//		HSSFRow row = null;
-//		for (int r=0; r<=asceSheet.getLastRowNum(); r++) {
-//			HSSFRow testRow = asceSheet.getRow(r);
-//			HSSFCell nameCell = testRow.getCell(0);
-//			if (nameCell != null && nameCell.getStringCellValue().trim().equals(site.short_name)) {
-//				row = testRow;
-//				break;
-//			}
-//		}
-//		DiscretizedFunc asceDeterm, asceProb;
-//		if (row == null) {
-//			System.out.println("WARNING: Couldn't find site "+site.short_name+" in ASCE spreadsheet");
-//			asceDeterm = null;
-//			asceProb = null;
-//		} else {
-//			DiscretizedFunc xVals = gmpeProb;
-//			double tl = loadASCEValue(row.getCell(4), evaluator);
-//			double prob = loadASCEValue(row.getCell(5), evaluator);
-//			double det = loadASCEValue(row.getCell(7), evaluator);
-//			asceDeterm = calcASCE(xVals, det, tl);
-//			asceProb = calcASCE(xVals, prob, tl);
-//			asceProb = null;
-//		}
-		// get vs30 from GMPE calc
-		Preconditions.checkState(site.containsParameter(Vs30_Param.NAME));
-		double vs30 = site.getParameter(Double.class, Vs30_Param.NAME).getValue();
-		// gmpeProb just used for x values here
-		DiscretizedFunc asceDeterm = ASCEDetLowerLimitCalc.calc(gmpeCombinedProbSpectrum, vs30, csSite.createLocation());
 		DiscretizedFunc asceProb = null;
 		if (includeNEHRP) {
 			try {
-				asceProb = MCEr_USGS_ComparisonFetcher.getMCEr(site, gmpeCombinedProbSpectrum);
+				asceProb = MCEr_USGS_ComparisonFetcher.getMCEr(site, r.gmpeCombinedProbSpectrum);
 			} catch (Exception e) {
 				System.err.println("Error fetching USGS NEHRP MCEr:");
 				e.printStackTrace();
@@ -517,89 +753,97 @@ public class MCERDataProductsCalc {
 		DiscretizedFunc weightAverageProb = null;
 		DiscretizedFunc weightAverageDet = null;
 		
-		if (avgProbCalc != null)
-			weightAverageProb = MCErCalcUtils.saToPsuedoVel(avgProbVals);
-		if (avgDetCalc != null)
+		if (r.avgProbVals != null)
+			weightAverageProb = MCErCalcUtils.saToPsuedoVel(r.avgProbVals);
+		if (r.avgDetVals != null)
 			weightAverageDet = MCErCalcUtils.saToPsuedoVel(
-					AbstractMCErDeterministicCalc.toSpectrumFunc(avgDetVals));
+					AbstractMCErDeterministicCalc.toSpectrumFunc(r.avgDetVals));
 		
 		// now generate combined plots
-		System.out.println("Generating plots");
-		makePlots(runOutputDir, csSite, run, comp, MCErCalcUtils.saToPsuedoVel(csDetSpectrum),
-				MCErCalcUtils.saToPsuedoVel(gmpeCombinedDetSpectrum), MCErCalcUtils.saToPsuedoVel(asceDeterm),
-				MCErCalcUtils.saToPsuedoVel(csProbSpectrum), MCErCalcUtils.saToPsuedoVel(gmpeCombinedProbSpectrum),
+		System.out.println("Generating plots for "+csSite.short_name);
+		makePlots(runOutputDir, csSite, run, comp, MCErCalcUtils.saToPsuedoVel(r.csDetSpectrum),
+				MCErCalcUtils.saToPsuedoVel(r.gmpeCombinedDetSpectrum), MCErCalcUtils.saToPsuedoVel(r.asceDeterm),
+				MCErCalcUtils.saToPsuedoVel(r.csProbSpectrum), MCErCalcUtils.saToPsuedoVel(r.gmpeCombinedProbSpectrum),
 				asceProb, weightAverageDet, weightAverageProb);
 		
 		if (disaggregate) {
-			List<CybershakeIM> ims = amps2db.getSupportedIMs(run.getRunID());
-			CybershakeIM imForOrder = null;
-			for (int i=ims.size(); --i>=0;) {
-				CybershakeIM im = ims.get(i);
-				if (im.getComponent() != comp)
-					ims.remove(i);
-				else if ((float)im.getVal() == 5f)
-					imForOrder = im;
+			// the amplitude cache shares the render ERF, see init
+			synchronized (amps2db) {
+				renderDisaggregations(run, csSite, site, runOutputDir);
 			}
-			if (imForOrder == null)
-				imForOrder = ims.get(0);
-			DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(SA_Param.NAME);
-			int numToInclude = 5;
-			if (combinedSources == null)
-				combinedSources = MeanUCERF2_ToDB.getFaultsToSourcesMap(erf);
+		}
+	}
+	
+	private void renderDisaggregations(CybershakeRun run, CybershakeSite csSite, CyberShakeSiteRun site,
+			File runOutputDir) throws IOException {
+		List<CybershakeIM> ims = amps2db.getSupportedIMs(run.getRunID());
+		CybershakeIM imForOrder = null;
+		for (int i=ims.size(); --i>=0;) {
+			CybershakeIM im = ims.get(i);
+			if (im.getComponent() != comp)
+				ims.remove(i);
+			else if ((float)im.getVal() == 5f)
+				imForOrder = im;
+		}
+		if (imForOrder == null)
+			imForOrder = ims.get(0);
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(SA_Param.NAME);
+		int numToInclude = 5;
+		if (combinedSources == null)
+			combinedSources = MeanUCERF2_ToDB.getFaultsToSourcesMap(erf);
 //			numToInclude = combinedSources.size()-1;
-			System.out.println("Sources: "+combinedSources.size());
-			
-			String prefix = csSite.short_name+"_run"+run.getRunID()+"_"+comp.getShortName();
-			File disaggDir = new File(runOutputDir, "disaggregations");
-			Preconditions.checkState(disaggDir.exists() || disaggDir.mkdir());
-			HazardCurveComputation calc = new HazardCurveComputation(db);
-			calc.setPeakAmpsAccessor(amps2db);
-			double uhsVal = Double.NaN; // RTGM if NaN
-			SiteInfo2DB site2db = new SiteInfo2DB(db);
-			HazardDecompositionPlotter.writeBarChart(calc, site2db, run, csSite,
-					ims, imForOrder, xVals, disaggDir, numToInclude, prefix+"_hazard_decomp_bar",
-					erf, combinedSources, uhsVal);
-			
-			// now hazard decomposition
-			List<CybershakeIM> imsForDisagg = Lists.newArrayList();
-			for (CybershakeIM im : ims) {
-				float period = (float)PeakAmplitudesFromDB.getCleanedCS_Period(im.getVal());
-				if (period == 5f || period == 7.5f)
-					imsForDisagg.add(im);
-			}
-			
-			uhsVal = 4e-4;
-			AttenuationRelationship gmpe = null;
-			if (gmpes != null) {
-				if (gmpes.size() > 1) {
-					gmpe = new MultiIMR_Averaged_AttenRel(gmpes) {
-						@Override
-						public String getShortName() {
-							return "GMPE";
-						}
-					};
-					gmpe.setParamDefaults();
-				} else {
-					gmpe = gmpes.get(0);
-				}
-			}
-			HazardCurveCalculator gmpeCalc = new HazardCurveCalculator();
-			for (CybershakeIM im : imsForDisagg) {
-				float period = (float)PeakAmplitudesFromDB.getCleanedCS_Period(im.getVal());
-				String xAxisLabel = period+"s SA";
-				HazardDecompositionPlotter.doCyberShake(calc, site2db, run, csSite, im, xVals, disaggDir,
-						numToInclude, xAxisLabel, prefix+"_hazard_decomp_"+period+"s", erf, combinedSources, uhsVal);
-				if (gmpes != null)
-					HazardDecompositionPlotter.doGMPE(gmpeCalc, site, gmpe, erf, xVals, disaggDir, numToInclude,
-						xAxisLabel, prefix+"_hazard_decomp_gmpe_"+period+"s", im, combinedSources, uhsVal);
+		System.out.println("Sources: "+combinedSources.size());
+		
+		String prefix = csSite.short_name+"_run"+run.getRunID()+"_"+comp.getShortName();
+		File disaggDir = new File(runOutputDir, "disaggregations");
+		Preconditions.checkState(disaggDir.exists() || disaggDir.mkdir());
+		HazardCurveComputation calc = new HazardCurveComputation(db);
+		calc.setPeakAmpsAccessor(amps2db);
+		double uhsVal = Double.NaN; // RTGM if NaN
+		SiteInfo2DB site2db = new SiteInfo2DB(db);
+		HazardDecompositionPlotter.writeBarChart(calc, site2db, run, csSite,
+				ims, imForOrder, xVals, disaggDir, numToInclude, prefix+"_hazard_decomp_bar",
+				erf, combinedSources, uhsVal);
+		
+		// now hazard decomposition
+		List<CybershakeIM> imsForDisagg = Lists.newArrayList();
+		for (CybershakeIM im : ims) {
+			float period = (float)PeakAmplitudesFromDB.getCleanedCS_Period(im.getVal());
+			if (period == 5f || period == 7.5f)
+				imsForDisagg.add(im);
+		}
+		
+		uhsVal = 4e-4;
+		AttenuationRelationship gmpe = null;
+		if (renderGMPEs != null) {
+			if (renderGMPEs.size() > 1) {
+				gmpe = new MultiIMR_Averaged_AttenRel(renderGMPEs) {
+					@Override
+					public String getShortName() {
+						return "GMPE";
+					}
+				};
+				gmpe.setParamDefaults();
+			} else {
+				gmpe = renderGMPEs.get(0);
 			}
-			
-			// now disagg
-			DisaggregationPlotter disagg = new DisaggregationPlotter(db, run.getRunID(), erf, imsForDisagg,
-					Lists.newArrayList(gmpe), Lists.newArrayList(uhsVal), null, disaggDir,
-					Lists.newArrayList(PlotType.PDF, PlotType.PNG, PlotType.TXT));
-			disagg.disaggregate();
 		}
+		HazardCurveCalculator gmpeCalc = new HazardCurveCalculator();
+		for (CybershakeIM im : imsForDisagg) {
+			float period = (float)PeakAmplitudesFromDB.getCleanedCS_Period(im.getVal());
+			String xAxisLabel = period+"s SA";
+			HazardDecompositionPlotter.doCyberShake(calc, site2db, run, csSite, im, xVals, disaggDir,
+					numToInclude, xAxisLabel, prefix+"_hazard_decomp_"+period+"s", erf, combinedSources, uhsVal);
+			if (renderGMPEs != null)
+				HazardDecompositionPlotter.doGMPE(gmpeCalc, site, gmpe, erf, xVals, disaggDir, numToInclude,
+					xAxisLabel, prefix+"_hazard_decomp_gmpe_"+period+"s", im, combinedSources, uhsVal);
+		}
+		
+		// now disagg
+		DisaggregationPlotter disagg = new DisaggregationPlotter(db, run.getRunID(), erf, imsForDisagg,
+				Lists.newArrayList(gmpe), Lists.newArrayList(uhsVal), null, disaggDir,
+				Lists.newArrayList(PlotType.PDF, PlotType.PNG, PlotType.TXT));
+		disagg.disaggregate();
 	}
 	
 	private static DiscretizedFunc average(List<DiscretizedFunc> funcs) {
@@ -964,17 +1208,42 @@ public class MCERDataProductsCalc {
 		return finalMCER;
 	}
 	
-	public static double calcFinalMCER(double csVal, double gmpeVal, double period) {
-		if (gmpeVal >= csVal) {
-			// CS can only increase, not decrease
-			return gmpeVal;
-		} else {
+	/**
+	 * Bulk version of {@link #calcFinalMCER(DiscretizedFunc, DiscretizedFunc)} for many sites at once, which gives
+	 * identical results to the scalar version for each site. Weights are computed once per period. As in the scalar
+	 * version, a NaN CyberShake (or GMPE) value results in a NaN final value.
+	 * @param csMCER
+	 * @param gmpeMCER
+	 * @return
+	 */
+	public static SpectrumMatrix calcFinalMCER(SpectrumMatrix csMCER, SpectrumMatrix gmpeMCER) {
+		gmpeMCER.checkCompatible(csMCER);
+		int numSites = gmpeMCER.getNumSites();
+		int numPeriods = gmpeMCER.getNumPeriods();
+		SpectrumMatrix finalMCER = new SpectrumMatrix(numSites, gmpeMCER.getPeriods());
+		
+		for (int p=0; p<numPeriods; p++) {
+			double period = gmpeMCER.getPeriod(p);
 			double csWeight = CyberShakeWeightProvider.calcCyberShakeWeight(period);
 			double gmpeWeight = CyberShakeWeightProvider.calcGMPEWeight(period);
-			
-			// weighted average in log space
-			return Math.exp(Math.log(csVal)*csWeight + Math.log(gmpeVal)*gmpeWeight);
+			for (int s=0; s<numSites; s++)
+				finalMCER.set(s, p, calcFinalMCER(csMCER.get(s, p), gmpeMCER.get(s, p), csWeight, gmpeWeight));
 		}
+		
+		return finalMCER;
+	}
+	
+	public static double calcFinalMCER(double csVal, double gmpeVal, double period) {
+		return calcFinalMCER(csVal, gmpeVal, CyberShakeWeightProvider.calcCyberShakeWeight(period),
+				CyberShakeWeightProvider.calcGMPEWeight(period));
+	}
+	
+	private static double calcFinalMCER(double csVal, double gmpeVal, double csWeight, double gmpeWeight) {
+		if (gmpeVal >= csVal)
+			// CS can only increase, not decrease
+			return gmpeVal;
+		// weighted average in log space
+		return Math.exp(Math.log(csVal)*csWeight + Math.log(gmpeVal)*gmpeWeight);
 	}
 	
 	static String getValIfPresent(DiscretizedFunc func, double period) {
@@ -1108,6 +1377,11 @@ public class MCERDataProductsCalc {
 		disagg.setRequired(false);
 		ops.addOption(disagg);
 		
+		Option threads = new Option("t", "threads", true, "Number of calculation threads. If greater than 1, runs "
+				+ "will be processed in a pipeline with separate DB prefetch, calculation, and plotting stages. Default: 1");
+		threads.setRequired(false);
+		ops.addOption(threads);
+		
 		Option help = new Option("?", "help", false, "Display this message");
 		help.setRequired(false);
 		ops.addOption(help);
@@ -1,441 +1,42 @@
 package org.opensha.sha.cybershake.calc.mcer;
 
-import java.io.File;
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
-import java.util.ArrayDeque;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
 
-import mpi.MPI;
 import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
-import org.dom4j.Document;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.opensha.commons.data.Site;
-import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
-import org.opensha.commons.data.function.DiscretizedFunc;
-import org.opensha.commons.geo.Location;
-import org.opensha.commons.param.ParameterList;
-import org.opensha.commons.util.DataUtils;
-import org.opensha.commons.util.ExceptionUtils;
-import org.opensha.commons.util.XMLUtils;
-import org.opensha.commons.util.binFile.BinaryDoubleScalarRandomAccessFile;
-import org.opensha.commons.util.binFile.BinaryGeoDatasetRandomAccessFile;
-import org.opensha.commons.util.threads.Task;
-import org.opensha.commons.util.threads.ThreadedTaskComputer;
-import org.opensha.sha.calc.hazardMap.components.BinaryCurveArchiver;
-import org.opensha.sha.calc.hazardMap.components.CurveMetadata;
-import org.opensha.sha.calc.mcer.ASCEDetLowerLimitCalc;
-import org.opensha.sha.calc.mcer.AbstractMCErDeterministicCalc;
-import org.opensha.sha.calc.mcer.AbstractMCErProbabilisticCalc;
-import org.opensha.sha.calc.mcer.CachedCurveBasedMCErProbabilisticCalc;
-import org.opensha.sha.calc.mcer.CachedMCErDeterministicCalc;
-import org.opensha.sha.calc.mcer.CachedMCErProbabilisticCalc;
-import org.opensha.sha.calc.mcer.GMPE_MCErDeterministicCalc;
-import org.opensha.sha.calc.mcer.GMPE_MCErProbabilisticCalc;
-import org.opensha.sha.calc.mcer.MCErCalcUtils;
-import org.opensha.sha.cybershake.calc.RuptureProbabilityModifier;
 import org.opensha.sha.cybershake.db.CybershakeIM;
 import org.opensha.sha.cybershake.db.CybershakeIM.CyberShakeComponent;
-import org.opensha.sha.cybershake.gui.util.AttenRelSaver;
-import org.opensha.sha.cybershake.gui.util.ERFSaver;
-import org.opensha.sha.cybershake.plot.HazardCurvePlotter;
-import org.opensha.sha.earthquake.ERF;
-import org.opensha.sha.gui.infoTools.IMT_Info;
-import org.opensha.sha.imr.AttenuationRelationship;
-import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
-import org.opensha.sha.imr.param.OtherParams.Component;
-import org.opensha.sha.imr.param.OtherParams.ComponentParam;
-import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 public class MPJ_GMPE_MCErCacheGen extends MPJTaskCalculator {
 	
-	private List<Double> periods;
-	private DiscretizedFunc periodsFunc;
-	private List<CalcTask> calcTasks;
-	
-//	private AbstractMCErDeterministicCalc[] detCalcs;
-//	private AbstractMCErProbabilisticCalc[] probCalcs;
-	private CalcRunnable[] calcs;
-	private String[] cachePrefixes;
-	private String[] pgaPrefixes;
-	
-	private static final boolean duplicateERF = false;
-	
-	private boolean storeCurves;
-	private BinaryCurveArchiver archiver;
-	private Map<String, BinaryGeoDatasetRandomAccessFile> pgaFiles;
+	private GMPE_MCErCacheGenCalc calc;
 	
 	public MPJ_GMPE_MCErCacheGen(CommandLine cmd) throws InvocationTargetException, MalformedURLException, DocumentException {
 		super(cmd);
 		
-		int numThreads = getNumThreads();
-		Preconditions.checkState(numThreads >= 1);
-		
-		List<List<AttenuationRelationship>> attenRelsList = Lists.newArrayList();
-		for (int t=0; t<numThreads; t++) {
-			List<AttenuationRelationship> attenRels = Lists.newArrayList();
-			
-			for (String attenRelFile : DataUtils.commaSplit(cmd.getOptionValue("atten-rel-file"))) {
-				AttenuationRelationship attenRel = AttenRelSaver.LOAD_ATTEN_REL_FROM_FILE(attenRelFile);
-				attenRels.add(attenRel);
-			}
-			
-			attenRelsList.add(attenRels);
-		}
-		
-		ERF[] erfs = new ERF[numThreads];
-		ERF[] detERFs = new ERF[numThreads];
-		
-		if (duplicateERF) {
-			// build ERFs in parallel
-			List<Thread> erfInitThreads = Lists.newArrayList();
-			for (int i=0; i<numThreads; i++) {
-				Thread t = new Thread(new ERFInitRunnable(i, erfs, detERFs, cmd.getOptionValue("erf-file")));
-				t.start();
-				erfInitThreads.add(t);
-			}
-			for (int i=0; i<erfInitThreads.size(); i++) {
-				Thread t = erfInitThreads.get(i);
-				try {
-					t.join();
-				} catch (InterruptedException e) {
-					ExceptionUtils.throwAsRuntimeException(e);
-				}
-				Preconditions.checkNotNull(erfs[i]);
-			}
-		} else {
-			// shared ERF
-			new ERFInitRunnable(0, erfs, detERFs, cmd.getOptionValue("erf-file")).run();
-			for (int i=1; i<numThreads; i++) {
-				erfs[i] = erfs[0];
-				detERFs[i] = detERFs[0];
-			}
-		}
-		
-		String periodStrs;
-		if (cmd.hasOption("period"))
-			periodStrs = cmd.getOptionValue("period");
-		else
-			periodStrs = MCERDataProductsCalc.default_periods;
-		periods = DataUtils.commaDoubleSplit(periodStrs);
-		
-		File outputDir = new File(cmd.getOptionValue("output-dir"));
-		if (rank == 0)
-			Preconditions.checkArgument((outputDir.exists() && outputDir.isDirectory()) || outputDir.mkdir(),
-				"Output dir does not exist and could not be created");
-		
-		CyberShakeComponent comp = CybershakeIM.fromShortName(cmd.getOptionValue("component"), CyberShakeComponent.class);
-		
-		File sitesFile = new File(cmd.getOptionValue("sites"));
-		Preconditions.checkState(sitesFile.exists(), "Sites file doesn't exist: %s", sitesFile);
-		
-		// load sites
-		Document siteDoc = XMLUtils.loadDocument(sitesFile);
-		List<Site> sites = Lists.newArrayList();
-		
-		ParameterList siteParams = MCERDataProductsCalc.getSiteParams(attenRelsList.get(0));
-		
-		for (Element elem : XMLUtils.getSubElementsList(siteDoc.getRootElement(), "Site")) {
-			// will clone site params list
-			sites.add(Site.fromXMLMetadata(elem, siteParams));
-		}
-		
-		Collections.sort(sites, new SiteComparator());
-		
-		// create calcs
-		calcs = new CalcRunnable[numThreads];
-		cachePrefixes = new String[attenRelsList.get(0).size()];
-		pgaPrefixes = new String[attenRelsList.get(0).size()];
-		
-		Component gmpeComp = MCErCalcUtils.getSupportedTranslationComponent(
-				attenRelsList.get(0).get(0), comp.getGMPESupportedComponents());
-		
-		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(SA_Param.NAME);
-		
-		periodsFunc = new ArbitrarilyDiscretizedFunc();
-		for (double period : periods)
-			periodsFunc.set(period, 0d);
-		
-		Map<String, DiscretizedFunc> xValsMap = Maps.newHashMap();
-		pgaFiles = Maps.newHashMap();
-		
-		storeCurves = cmd.hasOption("curves");
-		
-		for (int t=0; t<numThreads; t++) {
-			List<AttenuationRelationship> attenRels = attenRelsList.get(t);
-			GMPE_MCErDeterministicCalc[] detCalcs = new GMPE_MCErDeterministicCalc[attenRels.size()];
-			GMPE_MCErProbabilisticCalc[] probCalcs = new GMPE_MCErProbabilisticCalc[attenRels.size()];
-			for (int i=0; i<attenRels.size(); i++) {
-				
-				cachePrefixes[i] = CyberShakeMCErMapGenerator.getCachePrefix(
-						-1, erfs[t], gmpeComp, Lists.newArrayList(attenRels.get(i)));
-				pgaPrefixes[i] = CyberShakeMCErMapGenerator.getCachePrefix(
-						-1, erfs[t], (Component)attenRels.get(i).getParameter(ComponentParam.NAME).getValue(),
-						Lists.newArrayList(attenRels.get(i)));
-				detCalcs[i] = new GMPE_MCErDeterministicCalc(detERFs[t], attenRels.get(i), gmpeComp);
-				probCalcs[i] = new GMPE_MCErProbabilisticCalc(erfs[t], attenRels.get(i), gmpeComp, xVals);
-				
-				if (t == 0) {
-					xValsMap.put(cachePrefixes[i]+"_det", periodsFunc);
-					xValsMap.put(cachePrefixes[i]+"_prob", periodsFunc);
-					xValsMap.put(cachePrefixes[i]+"_mcer", periodsFunc);
-					
-					if (storeCurves) {
-						for (double period : periods)
-							xValsMap.put(cachePrefixes[i]+"_sa_"+(float)period+"s", xVals);
-						xValsMap.put(pgaPrefixes[i]+"_pga", xVals);
-					}
-					
-					pgaFiles.put(pgaPrefixes[i]+"_pga_g_det",
-							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g_det.bin"),
-									BinaryCurveArchiver.byteOrder, sites.size()));
-					pgaFiles.put(pgaPrefixes[i]+"_pga_g_prob",
-							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g_prob.bin"),
-									BinaryCurveArchiver.byteOrder, sites.size()));
-					pgaFiles.put(pgaPrefixes[i]+"_pga_g",
-							new BinaryGeoDatasetRandomAccessFile(new File(outputDir, pgaPrefixes[i]+"_pga_g.bin"),
-									BinaryCurveArchiver.byteOrder, sites.size()));
-				}
-			}
-			calcs[t] = new CalcRunnable(detCalcs, probCalcs);
-		}
-		
-		archiver = new BinaryCurveArchiver(outputDir, sites.size(), xValsMap);
-		if (rank == 0) {
-			archiver.initialize();
-			try {
-				for (BinaryGeoDatasetRandomAccessFile pgaFile : pgaFiles.values())
-					pgaFile.initialize();
-			} catch (IOException e) {
-				ExceptionUtils.throwAsRuntimeException(e);
-			}
-		}
-		
-		calcTasks = Lists.newArrayList();
-		for (int i=0; i<sites.size(); i++) {
-			Site site = sites.get(i);
-			for (int j=0; j<cachePrefixes.length; j++)
-				calcTasks.add(new CalcTask(cachePrefixes[j], pgaPrefixes[j], i, j, site));
-		}
-	}
-	
-	private class ERFInitRunnable implements Runnable {
-		private int index;
-		private ERF[] erfs;
-		private ERF[] detERFs;
-		private String erfPath;
-
-		public ERFInitRunnable(int index, ERF[] erfs, ERF[] detERFs, String erfPath) {
-			this.index = index;
-			this.erfs = erfs;
-			this.detERFs = detERFs;
-			this.erfPath = erfPath;
-		}
-
-		@Override
-		public void run() {
-			try {
-				erfs[index] = ERFSaver.LOAD_ERF_FROM_FILE(erfPath);
-				
-				RuptureProbabilityModifier detProbMod = CyberShakeMCErDeterministicCalc.getProbMod(erfs[index]);
-				detERFs[index] = MCERDataProductsCalc.getGMPEDetERF(erfs[index], detProbMod);
-				
-				erfs[index].updateForecast();
-			} catch (Exception e) {
-				erfs[index] = null;
-				ExceptionUtils.throwAsRuntimeException(e);
-			}
-		}
-	}
-	
-	private class CalcRunnable implements Runnable {
-		
-		private GMPE_MCErDeterministicCalc[] detCalcs;
-		private GMPE_MCErProbabilisticCalc[] probCalcs;
-		
-		private Deque<CalcTask> tasks;
-		
-		public CalcRunnable(GMPE_MCErDeterministicCalc[] detCalcs, GMPE_MCErProbabilisticCalc[] probCalcs) {
-			this.detCalcs = detCalcs;
-			this.probCalcs = probCalcs;
-		}
-		
-		private CalcTask popTask() {
-			Preconditions.checkNotNull(tasks);
-			synchronized (tasks) {
-				try {
-					return tasks.pop();
-				} catch (NoSuchElementException e) {
-					return null;
-				}
-			}
-		}
-
-		@Override
-		public void run() {
-			while (true) {
-				CalcTask task = popTask();
-				if (task == null)
-					break;
-				task.compute(detCalcs, probCalcs);
-			}
-		}
-		
-	}
-	
-	/**
-	 * Comparator to ensure consistent ordering of site list
-	 * @author kevin
-	 *
-	 */
-	private static class SiteComparator implements Comparator<Site> {
-
-		@Override
-		public int compare(Site o1, Site o2) {
-			int ret = o1.getLocation().compareTo(o2.getLocation());
-			if (ret == 0 && o1.getName() != null && o2.getName() != null)
-				ret = o1.getName().compareTo(o2.getName());
-			return ret;
-		}
-		
-	}
-	
-	private class CalcTask {
-		private String cachePrefix;
-		private String pgaCachePrefix;
-		private int gmpeIndex;
-		private int siteIndex;
-		private Site site;
-		
-		public CalcTask(String cachePrefix, String pgaCachePrefix, int siteIndex, int gmpeIndex, Site site) {
-			this.cachePrefix = cachePrefix;
-			this.pgaCachePrefix = pgaCachePrefix;
-			this.siteIndex = siteIndex;
-			this.gmpeIndex = gmpeIndex;
-			this.site = site;
-		}
-		
-		public void compute(GMPE_MCErDeterministicCalc[] detCalcs, GMPE_MCErProbabilisticCalc[] probCalcs) {
-			String name = siteIndex+", prefix '"+cachePrefix+"'";
-			
-			// MCER
-			CurveMetadata mcerMetadata = new CurveMetadata(site, siteIndex, null, cachePrefix+"_mcer");
-			if (archiver.isCurveCalculated(mcerMetadata, periodsFunc)) {
-				debug("Site "+name+" MCEr dalready done!");
-			} else {
-				debug("Calculating MCEr deterministic, site "+name);
-				DiscretizedFunc det = AbstractMCErDeterministicCalc.toSpectrumFunc(detCalcs[gmpeIndex].calc(site, periods));
-				debug("Calculating MCEr probabilistic, site "+name);
-				Map<Double, DiscretizedFunc> probCurves = new HashMap<>();
-				DiscretizedFunc prob = probCalcs[gmpeIndex].calc(site, periods, probCurves);
-				DiscretizedFunc asceDeterm = null;
-				try {
-					asceDeterm = ASCEDetLowerLimitCalc.calc(
-							periodsFunc, site.getParameter(Double.class, Vs30_Param.NAME).getValue(), site.getLocation());
-				} catch (Exception e1) {
-					System.out.println("WARNING: couldn't fetch Deterministic Lower Limit for site at "+site.getLocation());
-				}
-				DiscretizedFunc mcer = MCERDataProductsCalc.calcMCER(det, prob, asceDeterm);
-				
-				debug("Archiving MCEr site "+name);
-				try {
-					archiver.archiveCurve(det, new CurveMetadata(site, siteIndex, null, cachePrefix+"_det"));
-					archiver.archiveCurve(prob, new CurveMetadata(site, siteIndex, null, cachePrefix+"_prob"));
-					archiver.archiveCurve(mcer, mcerMetadata);
-					if (storeCurves)
-						for (double period : periods)
-							archiver.archiveCurve(probCurves.get(period), new CurveMetadata(site, siteIndex, null, cachePrefix+"_sa_"+(float)period+"s"));
-				} catch (IOException e) {
-					ExceptionUtils.throwAsRuntimeException(e);
-				}
-				debug("DONE MCEr site "+name);
-			}
-			
-			// PGA
-			try {
-				CurveMetadata pgaCurveMetadata = new CurveMetadata(site, siteIndex, null, pgaCachePrefix+"_pga");
-				if (pgaFiles.get(pgaCachePrefix+"_pga_g").isCalculated(siteIndex)
-						&& (!storeCurves || archiver.isCurveCalculated(pgaCurveMetadata, periodsFunc))) {
-					debug("Site "+name+" PGA already done!");
-				} else {
-					debug("Calculating PGA deterministic, site "+name);
-					double det = detCalcs[gmpeIndex].calcPGA_G(site).getVal();
-					debug("Calculating PGA probabilistic, site "+name);
-					DiscretizedFunc probCurve = probCalcs[gmpeIndex].calcPGAcurve(site);
-					double prob = probCalcs[gmpeIndex].calcPGA_G(probCurve);
-					double vs30 = site.getParameter(Double.class, Vs30_Param.NAME).getValue();
-					double detLower = ASCEDetLowerLimitCalc.calcPGA_G(vs30);
-					double pga = MCErCalcUtils.calcMCER(det, prob, detLower);
-					
-					debug("Archiving PGA site "+name);
-					Location loc = site.getLocation();
-					pgaFiles.get(pgaCachePrefix+"_pga_g_det").write(siteIndex, loc, det);
-					pgaFiles.get(pgaCachePrefix+"_pga_g_prob").write(siteIndex, loc, prob);
-					pgaFiles.get(pgaCachePrefix+"_pga_g").write(siteIndex, loc, pga);
-					archiver.archiveCurve(probCurve, pgaCurveMetadata);
-					debug("DONE PGA site "+name);
-				}
-			} catch (IOException e) {
-				ExceptionUtils.throwAsRuntimeException(e);
-			}
-		}
+		calc = new GMPE_MCErCacheGenCalc(cmd, rank, getNumThreads());
 	}
 
 	@Override
 	protected int getNumTasks() {
-		return calcTasks.size();
+		return calc.getNumTasks();
 	}
 
 	@Override
 	protected void calculateBatch(int[] batch) throws Exception {
-		Deque<CalcTask> deque = new ArrayDeque<MPJ_GMPE_MCErCacheGen.CalcTask>();
-		for (int index : batch)
-			deque.push(calcTasks.get(index));
-		
-		List<Thread> threads = Lists.newArrayList();
-		
-		for (int i=0; i<calcs.length; i++) {
-			calcs[i].tasks = deque;
-			threads.add(new Thread(calcs[i]));
-		}
-		
-		// start the threads
-		for (Thread t : threads) {
-			t.start();
-		}
-		
-		// join the threads
-		for (Thread t : threads) {
-			t.join();
-		}
-		
-//		for (int index : batch)
-//			calcTasks.get(index).compute();
+		calc.calculateBatch(batch);
 	}
 
 	@Override
 	protected void doFinalAssembly() throws Exception {
-		// do nothing
-		archiver.close();
-		for (BinaryGeoDatasetRandomAccessFile pgaFile : pgaFiles.values())
-			pgaFile.close();
+		calc.doFinalAssembly();
 	}
 	
 	public static Options createOptions() {
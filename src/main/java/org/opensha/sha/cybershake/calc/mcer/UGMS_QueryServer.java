@@ -0,0 +1,693 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.opensha.commons.data.CSVFile;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.siteData.impl.WillsMap2015;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.binFile.GeolocatedRectangularBinaryMesh2DCalculator;
+import org.opensha.sha.calc.mcer.ASCEDetLowerLimitCalc;
+import org.opensha.sha.cybershake.calc.mcer.UGMS_WebToolCalc.DesignParameter;
+import org.opensha.sha.cybershake.calc.mcer.UGMS_WebToolCalc.SpectraSource;
+import org.opensha.sha.cybershake.calc.mcer.UGMS_WebToolCalc.SpectraType;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Resident version of the precomputed data path of {@link UGMS_WebToolCalc}. Spectra and PGA data files are each
+ * loaded once into full grid {@link GriddedSpectrumInterpolator}s which are then reused for every query, rather than
+ * being read from disk and gridded for each location. Queries of the form "lat,lon[,vs30 or site class]" can be
+ * answered either over a socket bound to the loopback interface (one line per query, one CSV line per response) or
+ * in batch from a CSV file. Queries are handled concurrently, the interpolators are read only once loaded.
+ * <br>
+ * If no Vs30 or site class is supplied, the Wills 2015 GMPE data files are used along with the Wills 2015 Vs30 value
+ * at that location (which requires a Wills data file).
+ *
+ * @author kevin
+ *
+ */
+public class UGMS_QueryServer {
+
+	// DecimalFormat isn't thread safe, and lines are formatted by concurrent query threads
+	private static final ThreadLocal<DecimalFormat> valDF = ThreadLocal.withInitial(() -> new DecimalFormat("0.0000"));
+	private static final ThreadLocal<DecimalFormat> latLonDF = ThreadLocal.withInitial(() -> new DecimalFormat("0.00000"));
+
+	private File csDataDir;
+	private double csSpacing;
+	private File gmpeDir;
+	private double gmpeSpacing;
+
+	// can be null, in which case queries must supply a Vs30 value or site class
+	private WillsMap2015 wills;
+
+	private int numThreads;
+
+	// memoized loads, so that slow file loads happen outside of the map and concurrent requests for the same file wait
+	// on a single load
+	private ConcurrentMap<File, FutureTask<GriddedSpectrumInterpolator>> interpolators = new ConcurrentHashMap<>();
+	private double[] periods;
+
+	private volatile ServerSocket serverSocket;
+
+	/**
+	 * @param csDataDir directory containing precomputed CyberShake data files
+	 * @param csSpacing grid spacing of CyberShake data files
+	 * @param gmpeDir GMPE data directory for a single ERF (e.g. gmpe/UCERF3)
+	 * @param gmpeSpacing grid spacing of GMPE data files
+	 * @param wills Wills 2015 provider used if no Vs30 is supplied, or null
+	 * @param numThreads number of threads used to handle queries
+	 */
+	public UGMS_QueryServer(File csDataDir, double csSpacing, File gmpeDir, double gmpeSpacing, WillsMap2015 wills,
+			int numThreads) {
+		Preconditions.checkState(csDataDir.exists() && csDataDir.isDirectory(),
+				"CS data dir doesn't exist: %s", csDataDir.getAbsolutePath());
+		Preconditions.checkState(gmpeDir.exists(), "GMPE/ERF dir doesn't exist: %s", gmpeDir.getAbsolutePath());
+		Preconditions.checkArgument(numThreads > 0);
+		this.csDataDir = csDataDir;
+		this.csSpacing = csSpacing;
+		this.gmpeDir = gmpeDir;
+		this.gmpeSpacing = gmpeSpacing;
+		this.wills = wills;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Loads all available data files in parallel so that no query has to wait on I/O or gridding, then runs
+	 * queries at the given location (if non null) to warm up the query path.
+	 *
+	 * @param warmupLoc
+	 */
+	public void preload(Location warmupLoc) {
+		Stopwatch watch = Stopwatch.createStarted();
+
+		List<File> spectrumFiles = new ArrayList<>();
+		List<File> pgaFiles = new ArrayList<>();
+		spectrumFiles.add(getCSFile());
+		for (String siteClass : getGMPEPrefixes()) {
+			File spectrumFile = getGMPEFile(siteClass, false);
+			if (spectrumFile.exists())
+				spectrumFiles.add(spectrumFile);
+			File pgaFile = getGMPEFile(siteClass, true);
+			if (pgaFile.exists())
+				pgaFiles.add(pgaFile);
+		}
+
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<Future<GriddedSpectrumInterpolator>> futures = new ArrayList<>();
+		for (File file : spectrumFiles)
+			futures.add(exec.submit(() -> getInterpolator(file, false)));
+		for (File file : pgaFiles)
+			futures.add(exec.submit(() -> getInterpolator(file, true)));
+		try {
+			for (Future<GriddedSpectrumInterpolator> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		watch.stop();
+		System.out.println("Preloaded "+spectrumFiles.size()+" spectrum and "+pgaFiles.size()+" PGA files in "
+				+watch.elapsed(TimeUnit.SECONDS)+" s");
+
+		if (warmupLoc != null) {
+			watch.reset().start();
+			int numWarmup = 0;
+			for (String siteClass : getGMPEPrefixes()) {
+				Double vs30 = siteClass == null ? Double.NaN : UGMS_WebToolCalc.vs30Map.get(siteClass);
+				if (siteClass == null && wills == null)
+					continue;
+				if (siteClass != null && !getGMPEFile(siteClass, false).exists())
+					continue;
+				try {
+					query(warmupLoc, vs30);
+					numWarmup++;
+				} catch (RuntimeException e) {
+					System.out.println("Warmup query failed for class "+siteClass+": "+e.getMessage());
+				}
+			}
+			watch.stop();
+			System.out.println("Ran "+numWarmup+" warmup queries in "+watch.elapsed(TimeUnit.MILLISECONDS)+" ms");
+		}
+	}
+
+	private List<String> getGMPEPrefixes() {
+		List<String> classes = new ArrayList<>();
+		for (String siteClass : UGMS_WebToolCalc.vs30Map.keySet())
+			if (UGMS_WebToolCalc.vs30Map.get(siteClass) > 0)
+				classes.add(siteClass);
+		// null indicates the Wills 2015 files
+		classes.add(null);
+		return classes;
+	}
+
+	private File getCSFile() {
+		return new File(csDataDir, SpectraType.MCER.getFileName(csSpacing));
+	}
+
+	private File getGMPEFile(String siteClass, boolean pga) {
+		String typeFileName;
+		if (pga)
+			typeFileName = DesignParameter.PGAM.getFileName(gmpeSpacing, SpectraType.MCER, SpectraSource.COMBINED);
+		else
+			typeFileName = SpectraType.MCER.getFileName(gmpeSpacing);
+		if (siteClass == null)
+			return new File(gmpeDir, "Wills_"+typeFileName);
+		return new File(gmpeDir, "class"+siteClass+"_"+typeFileName);
+	}
+
+	private GriddedSpectrumInterpolator getInterpolator(File dataFile, boolean pga) {
+		FutureTask<GriddedSpectrumInterpolator> task = interpolators.get(dataFile);
+		if (task == null) {
+			FutureTask<GriddedSpectrumInterpolator> newTask = new FutureTask<>(() -> loadInterpolator(dataFile, pga));
+			task = interpolators.putIfAbsent(dataFile, newTask);
+			if (task == null) {
+				task = newTask;
+				task.run();
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			// don't memoize failures, a later request can retry
+			interpolators.remove(dataFile, task);
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+
+	private GriddedSpectrumInterpolator loadInterpolator(File file, boolean pga) throws Exception {
+		Preconditions.checkState(file.exists(), "Data file doesn't exist: %s", file.getAbsolutePath());
+		double spacing = file.getParentFile().equals(csDataDir) ? csSpacing : gmpeSpacing;
+		Stopwatch watch = Stopwatch.createStarted();
+		GriddedSpectrumInterpolator interp;
+		if (pga)
+			interp = new GriddedSpectrumInterpolator(UGMS_WebToolCalc.loadPGAMap(file), spacing);
+		else
+			interp = new GriddedSpectrumInterpolator(UGMS_WebToolCalc.loadSpectrumMap(file), spacing);
+		watch.stop();
+		System.out.println("Took "+watch.elapsed(TimeUnit.SECONDS)+" s to load and grid "+file.getName());
+		return interp;
+	}
+
+	private static DiscretizedFunc getGMPEValue(GriddedSpectrumInterpolator interp, Location loc) {
+		Location closestLoc = interp.getClosestGridLoc(loc);
+		DiscretizedFunc ret;
+		try {
+			ret = interp.getInterpolated(loc);
+		} catch (IllegalStateException e) {
+			// one of the surrounding points is in the ocean
+			closestLoc = interp.getClosestDefinedGridLoc(loc);
+			ret = interp.getClosest(closestLoc);
+		}
+		double minDist = LocationUtils.horzDistanceFast(closestLoc, loc);
+		Preconditions.checkState(minDist <= UGMS_WebToolCalc.GMPE_MAX_DIST,
+				"Closest location in GMPE data file too far from user location: %s > %s",
+				minDist, UGMS_WebToolCalc.GMPE_MAX_DIST);
+		return ret;
+	}
+
+	private DiscretizedFunc getGMPE(Location loc, List<String> siteClassNames, double vs30, boolean pga) {
+		List<Double> vs30Vals = new ArrayList<>();
+		List<DiscretizedFunc> spectra = new ArrayList<>();
+		if (siteClassNames == null) {
+			spectra.add(getGMPEValue(getInterpolator(getGMPEFile(null, pga), pga), loc));
+			vs30Vals.add(vs30);
+		} else {
+			for (String siteClass : siteClassNames) {
+				spectra.add(getGMPEValue(getInterpolator(getGMPEFile(siteClass, pga), pga), loc));
+				vs30Vals.add(UGMS_WebToolCalc.vs30Map.get(siteClass));
+			}
+		}
+		if (spectra.size() == 1)
+			return spectra.get(0);
+		return UGMS_WebToolCalc.interpolateSpectraWithVs30(vs30Vals, spectra, vs30, null);
+	}
+
+	/**
+	 * Query result for a single location. PGAM will be NaN if PGA data files are not available.
+	 */
+	public static class QueryResult {
+		public final Location loc;
+		public final double vs30;
+		public final DiscretizedFunc mcer;
+		public final double sms, sm1, sds, sd1, tl, pgam;
+
+		private QueryResult(Location loc, double vs30, DiscretizedFunc mcer,
+				double sms, double sm1, double sds, double sd1, double tl, double pgam) {
+			this.loc = loc;
+			this.vs30 = vs30;
+			this.mcer = mcer;
+			this.sms = sms;
+			this.sm1 = sm1;
+			this.sds = sds;
+			this.sd1 = sd1;
+			this.tl = tl;
+			this.pgam = pgam;
+		}
+	}
+
+	/**
+	 * Computes the combined MCER spectrum and design parameters at the given location
+	 *
+	 * @param loc
+	 * @param vs30 Vs30 value, or NaN to use the Wills 2015 map
+	 * @return
+	 */
+	public QueryResult query(Location loc, double vs30) {
+		List<String> siteClassNames;
+		if (Double.isNaN(vs30)) {
+			Preconditions.checkState(wills != null, "No Vs30 supplied and no Wills 2015 file loaded");
+			try {
+				synchronized (wills) {
+					vs30 = wills.getValue(loc);
+				}
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			Preconditions.checkState(Double.isFinite(vs30) && vs30 > 0, "No Wills 2015 Vs30 value at %s", loc);
+			siteClassNames = null;
+		} else {
+			siteClassNames = UGMS_WebToolCalc.getSiteClassesForVs30(vs30, false);
+			vs30 = UGMS_WebToolCalc.getCalcVs30(vs30);
+		}
+
+		DiscretizedFunc csMCER = getInterpolator(getCSFile(), false).getInterpolated(loc);
+		DiscretizedFunc gmpeMCER = getGMPE(loc, siteClassNames, vs30, false);
+		DiscretizedFunc mcer = MCERDataProductsCalc.calcFinalMCER(csMCER, gmpeMCER);
+		DiscretizedFunc design = mcer.deepClone();
+		design.scale(2d/3d);
+
+		double pgam = Double.NaN;
+		if (getGMPEFile(siteClassNames == null ? null : siteClassNames.get(0), true).exists())
+			pgam = getGMPE(loc, siteClassNames, vs30, true).getY(0);
+
+		double tl;
+		synchronized (ASCEDetLowerLimitCalc.class) {
+			tl = ASCEDetLowerLimitCalc.getTl(loc);
+		}
+
+		return new QueryResult(loc, vs30, mcer,
+				UGMS_WebToolCalc.calcSXS(mcer), UGMS_WebToolCalc.calcSX1(mcer, vs30),
+				UGMS_WebToolCalc.calcSXS(design), UGMS_WebToolCalc.calcSX1(design, vs30), tl, pgam);
+	}
+
+	/**
+	 * Parses and executes a query line of the form "lat,lon[,vs30 or site class]"
+	 *
+	 * @param line
+	 * @return
+	 */
+	public QueryResult query(String line) {
+		List<String> fields = Splitter.on(',').trimResults().splitToList(line.trim());
+		Preconditions.checkArgument(fields.size() == 2 || fields.size() == 3,
+				"Expected 'lat,lon[,vs30 or site class]', got '%s'", line);
+		Location loc;
+		try {
+			loc = new Location(Double.parseDouble(fields.get(0)), Double.parseDouble(fields.get(1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad location: "+line);
+		}
+		double vs30 = Double.NaN;
+		if (fields.size() == 3 && !fields.get(2).isEmpty()) {
+			String vs30Str = fields.get(2);
+			try {
+				vs30 = Double.parseDouble(vs30Str);
+			} catch (NumberFormatException e) {
+				Double classVs30 = null;
+				for (String key : UGMS_WebToolCalc.vs30Map.keySet()) {
+					if (key.toUpperCase().equals(vs30Str.toUpperCase())) {
+						classVs30 = UGMS_WebToolCalc.vs30Map.get(key);
+						break;
+					}
+				}
+				Preconditions.checkArgument(classVs30 != null && classVs30 > 0, "Unknown site class: %s", vs30Str);
+				vs30 = classVs30;
+			}
+			Preconditions.checkArgument(vs30 > 0, "Vs30 must be positive: %s", vs30);
+		}
+		return query(loc, vs30);
+	}
+
+	private double[] getPeriods() {
+		if (periods == null)
+			periods = getInterpolator(getCSFile(), false).getPeriods();
+		return periods;
+	}
+
+	public List<String> getHeader() {
+		List<String> header = new ArrayList<>();
+		header.add("Latitude");
+		header.add("Longitude");
+		header.add("Vs30");
+		header.add("SMS");
+		header.add("SM1");
+		header.add("SDS");
+		header.add("SD1");
+		header.add("TL");
+		header.add("PGAM");
+		for (double period : getPeriods())
+			header.add("MCER "+(float)period+"s");
+		return header;
+	}
+
+	public List<String> toLine(QueryResult result) {
+		List<String> line = new ArrayList<>();
+		line.add(latLonDF.get().format(result.loc.getLatitude()));
+		line.add(latLonDF.get().format(result.loc.getLongitude()));
+		line.add((float)result.vs30+"");
+		line.add(valDF.get().format(result.sms));
+		line.add(valDF.get().format(result.sm1));
+		line.add(valDF.get().format(result.sds));
+		line.add(valDF.get().format(result.sd1));
+		line.add((float)result.tl+"");
+		line.add(Double.isNaN(result.pgam) ? "" : valDF.get().format(result.pgam));
+		for (double period : getPeriods())
+			line.add(valDF.get().format(result.mcer.getInterpolatedY(period)));
+		return line;
+	}
+
+	/**
+	 * Answers every query in the input CSV file (in parallel) and writes results to the output CSV file in input
+	 * order. The first line is skipped if it is not a query. Failed queries are written with the error message.
+	 *
+	 * @param inputFile
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public void batch(File inputFile, File outputFile) throws IOException {
+		CSVFile<String> input = CSVFile.readFile(inputFile, false);
+		int startRow = 0;
+		if (input.getNumRows() > 0) {
+			try {
+				Double.parseDouble(input.get(0, 0));
+			} catch (NumberFormatException e) {
+				// header
+				startRow = 1;
+			}
+		}
+
+		Stopwatch watch = Stopwatch.createStarted();
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<Future<List<String>>> futures = new ArrayList<>();
+		for (int row=startRow; row<input.getNumRows(); row++) {
+			String line = Joiner.on(",").join(input.getLine(row));
+			futures.add(exec.submit(() -> {
+				try {
+					return toLine(query(line));
+				} catch (RuntimeException e) {
+					List<String> errLine = new ArrayList<>();
+					errLine.add("ERROR: "+e.getMessage());
+					errLine.add(line);
+					return errLine;
+				}
+			}));
+		}
+
+		CSVFile<String> output = new CSVFile<>(false);
+		output.addLine(getHeader());
+		try {
+			for (Future<List<String>> future : futures)
+				output.addLine(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		watch.stop();
+		double secs = watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
+		System.out.println("Answered "+futures.size()+" queries in "+(float)secs+" s ("
+				+(float)(futures.size()/secs)+" queries/s)");
+		output.writeToFile(outputFile);
+	}
+
+	/**
+	 * Listens on the loopback interface and answers queries until {@link #close()} is called. Each connection may
+	 * send any number of query lines, each of which is answered with a single CSV line (or a line starting with
+	 * "ERROR:"). "HEADER" returns the CSV header and "QUIT" closes the connection.
+	 * <br>
+	 * Each connection is read by its own (mostly idle) thread, and queries are dispatched to a pool of the configured
+	 * number of query threads, so idle long-lived clients can't block other clients.
+	 *
+	 * @param port port to listen on, or 0 to pick a free port (see {@link #getPort()})
+	 * @throws IOException
+	 */
+	public void serve(int port) throws IOException {
+		ExecutorService connExec = Executors.newCachedThreadPool();
+		ExecutorService queryExec = Executors.newFixedThreadPool(numThreads);
+		Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			serverSocket = server;
+			System.out.println("Listening for queries on "+server.getLocalSocketAddress());
+			while (!server.isClosed()) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					// closed
+					break;
+				}
+				sockets.add(socket);
+				connExec.submit(() -> {
+					try {
+						handle(socket, queryExec);
+					} finally {
+						sockets.remove(socket);
+					}
+				});
+			}
+		} finally {
+			// closing the sockets unblocks any connection threads waiting on input
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+			connExec.shutdownNow();
+			queryExec.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the port the server is listening on, or -1 if not yet listening
+	 */
+	public int getPort() {
+		ServerSocket server = serverSocket;
+		if (server == null)
+			return -1;
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Stops the server
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		ServerSocket server = serverSocket;
+		if (server != null)
+			server.close();
+	}
+
+	private String answer(String line) {
+		if (line.equalsIgnoreCase("HEADER"))
+			return Joiner.on(",").join(getHeader());
+		try {
+			return Joiner.on(",").join(toLine(query(line)));
+		} catch (RuntimeException e) {
+			return "ERROR: "+e.getMessage();
+		}
+	}
+
+	private void handle(Socket socket, ExecutorService queryExec) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				if (line.equalsIgnoreCase("QUIT"))
+					break;
+				String query = line;
+				try {
+					out.println(queryExec.submit(() -> answer(query)).get());
+				} catch (ExecutionException e) {
+					out.println("ERROR: "+e.getCause().getMessage());
+				} catch (InterruptedException | RejectedExecutionException e) {
+					// shutting down
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (!socket.isClosed())
+				System.err.println("Connection error: "+e.getMessage());
+		}
+	}
+
+	private static Options createOptions() {
+		Options ops = new Options();
+
+		Option gmpeDir = new Option("g", "gmpe-dir", true, "Directory containing GMPE precomputed data files");
+		gmpeDir.setRequired(true);
+		ops.addOption(gmpeDir);
+
+		Option gmpeSpacing = new Option("gs", "gmpe-spacing", true, "Grid spacing of GMPE precomputed data files");
+		gmpeSpacing.setRequired(true);
+		ops.addOption(gmpeSpacing);
+
+		Option gmpeERF = new Option("e", "gmpe-erf", true, "GMPE ERF ('UCERF2' or 'UCERF3')");
+		gmpeERF.setRequired(true);
+		ops.addOption(gmpeERF);
+
+		Option csData = new Option("csdata", "cs-data-dir", true, "CS precomputed data dir");
+		csData.setRequired(true);
+		ops.addOption(csData);
+
+		Option csSpacing = new Option("csspacing", "cs-spacing", true, "Grid spacing of CS precomputed data file");
+		csSpacing.setRequired(true);
+		ops.addOption(csSpacing);
+
+		Option willsFile = new Option("w", "wills-file", true,
+				"Path to Wills 2015 data file, used for queries that do not specify a Vs30 value or site class");
+		willsFile.setRequired(false);
+		ops.addOption(willsFile);
+
+		Option willsHeaderFile = new Option("wh", "wills-header", true, "Path to custom Wills 2015 header file");
+		willsHeaderFile.setRequired(false);
+		ops.addOption(willsHeaderFile);
+
+		Option port = new Option("p", "port", true, "Port to listen on (loopback interface only)");
+		port.setRequired(false);
+		ops.addOption(port);
+
+		Option batchInput = new Option("bi", "batch-input", true, "Batch query CSV file (lat,lon[,vs30 or class])");
+		batchInput.setRequired(false);
+		ops.addOption(batchInput);
+
+		Option batchOutput = new Option("bo", "batch-output", true, "Batch output CSV file");
+		batchOutput.setRequired(false);
+		ops.addOption(batchOutput);
+
+		Option threads = new Option("t", "threads", true, "Number of query threads, default is number of processors");
+		threads.setRequired(false);
+		ops.addOption(threads);
+
+		Option warmup = new Option("wl", "warmup-location", true, "Location used for warmup queries, 'lat,lon'");
+		warmup.setRequired(false);
+		ops.addOption(warmup);
+
+		Option help = new Option("?", "help", false, "Display this message");
+		help.setRequired(false);
+		ops.addOption(help);
+
+		return ops;
+	}
+
+	public static void main(String[] args) {
+		Options options = createOptions();
+		String appName = ClassUtils.getClassNameWithoutPackage(UGMS_QueryServer.class);
+
+		if (args.length == 0)
+			UGMS_WebToolCalc.printUsage(options, appName);
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			UGMS_WebToolCalc.printUsage(options, appName);
+			return;
+		}
+		if (cmd.hasOption("help"))
+			UGMS_WebToolCalc.printHelp(options, appName);
+
+		try {
+			File csDataDir = new File(cmd.getOptionValue("cs-data-dir"));
+			double csSpacing = Double.parseDouble(cmd.getOptionValue("cs-spacing"));
+			File gmpeDir = new File(new File(cmd.getOptionValue("gmpe-dir")), cmd.getOptionValue("gmpe-erf"));
+			double gmpeSpacing = Double.parseDouble(cmd.getOptionValue("gmpe-spacing"));
+
+			WillsMap2015 wills = null;
+			if (cmd.hasOption("wills-file")) {
+				File willsFile = new File(cmd.getOptionValue("wills-file"));
+				Preconditions.checkState(willsFile.exists(),
+						"Wills 2015 file specified but doesnt exist: %s", willsFile.getAbsolutePath());
+				if (cmd.hasOption("wills-header")) {
+					File hdrFile = new File(cmd.getOptionValue("wills-header"));
+					Preconditions.checkState(hdrFile.exists(),
+							"Wills 2015 header file specified but doesnt exist: %s", hdrFile.getAbsolutePath());
+					GeolocatedRectangularBinaryMesh2DCalculator calc = GeolocatedRectangularBinaryMesh2DCalculator.readHDR(hdrFile);
+					wills = new WillsMap2015(willsFile.getAbsolutePath(), calc);
+				} else {
+					wills = new WillsMap2015(willsFile.getAbsolutePath());
+				}
+			}
+
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads"))
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+
+			Location warmupLoc = null;
+			if (cmd.hasOption("warmup-location")) {
+				List<String> fields = Splitter.on(',').trimResults().splitToList(cmd.getOptionValue("warmup-location"));
+				Preconditions.checkArgument(fields.size() == 2, "Warmup location must be 'lat,lon'");
+				warmupLoc = new Location(Double.parseDouble(fields.get(0)), Double.parseDouble(fields.get(1)));
+			}
+
+			UGMS_QueryServer server = new UGMS_QueryServer(csDataDir, csSpacing, gmpeDir, gmpeSpacing, wills, threads);
+			server.preload(warmupLoc);
+
+			if (cmd.hasOption("batch-input")) {
+				Preconditions.checkArgument(cmd.hasOption("batch-output"), "Must supply batch output file");
+				server.batch(new File(cmd.getOptionValue("batch-input")), new File(cmd.getOptionValue("batch-output")));
+			}
+			if (cmd.hasOption("port"))
+				server.serve(Integer.parseInt(cmd.getOptionValue("port")));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println("Done!");
+		System.exit(0);
+	}
+
+}
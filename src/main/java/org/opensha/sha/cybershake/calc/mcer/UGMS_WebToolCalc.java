@@ -121,7 +121,7 @@ public class UGMS_WebToolCalc {
 	}
 	
 	private static final double CS_MAX_DIST = 10d;
-	private static final double GMPE_MAX_DIST = 5d;
+	static final double GMPE_MAX_DIST = 5d;
 	
 	private static final int IM_TYPE_ID_FOR_SEARCH = 146; // RotD100, 3s
 	private static final CyberShakeComponent component = CyberShakeComponent.RotD100;
@@ -457,42 +457,8 @@ public class UGMS_WebToolCalc {
 			userVs30 = matchingVs30;
 		} else if (cmd.hasOption("vs30")) {
 			double vs30 = Double.parseDouble(cmd.getOptionValue("vs30"));
-			double minDiff = Double.POSITIVE_INFINITY;
-			int closestIndex = -1;
-			for (int i=0; i<vs30ValsSorted.size(); i++) {
-				Double catVs30 = vs30ValsSorted.get(i);
-				double diff = Math.abs(vs30 - catVs30);
-				if (diff < minDiff) {
-					closestIndex = i;
-					minDiff = diff;
-				}
-			}
-			double closestVs30 = vs30ValsSorted.get(closestIndex);
-			String closestClass = vs30Map.inverse().get(closestVs30);
-			System.out.println("Closest GMPE site class "+closestClass+"="+(float)closestVs30
-					+" for user Vs30 of "+vs30+" (diff="+minDiff+")");
-			siteClassNames = new ArrayList<>();
-			siteClassNames.add(closestClass);
-			if (vs30 > minCalcVs30 && vs30 < maxCalcVs30 && (float)minDiff > 0f) {
-				// only add second point for interp if within range and not an exact match
-				int index2;
-				// figure out sign
-				if (vs30 > closestVs30)
-					index2 = closestIndex + 1;
-				else
-					index2 = closestIndex - 1;
-				double boundingVs30 = vs30ValsSorted.get(index2);
-				String boundingClass = vs30Map.inverse().get(boundingVs30);
-				double boundingDiff = Math.abs(boundingVs30 - vs30);
-				System.out.println("\tBounding GMPE site class for interp "+boundingClass+"="+(float)boundingVs30
-						+" (diff="+boundingDiff+")");
-				siteClassNames.add(boundingClass);
-			} else {
-				if (vs30 < minCalcVs30)
-					vs30 = minCalcVs30;
-				else if (vs30 > maxCalcVs30)
-					vs30 = maxCalcVs30;
-			}
+			siteClassNames = getSiteClassesForVs30(vs30, true);
+			vs30 = getCalcVs30(vs30);
 			userVs30 = vs30;
 		} else {
 			// use Wills map
@@ -702,6 +668,63 @@ public class UGMS_WebToolCalc {
 		}
 	}
 	
+	/**
+	 * Finds the GMPE site class closest to the given Vs30 value, as well as the bounding site class which should be
+	 * used for Vs30 interpolation if the value is within the calculation range and not an exact match.
+	 * 
+	 * @param vs30
+	 * @param verbose if true, matches are printed
+	 * @return list containing the closest class and (optionally) the bounding class
+	 */
+	static List<String> getSiteClassesForVs30(double vs30, boolean verbose) {
+		double minDiff = Double.POSITIVE_INFINITY;
+		int closestIndex = -1;
+		for (int i=0; i<vs30ValsSorted.size(); i++) {
+			Double catVs30 = vs30ValsSorted.get(i);
+			double diff = Math.abs(vs30 - catVs30);
+			if (diff < minDiff) {
+				closestIndex = i;
+				minDiff = diff;
+			}
+		}
+		double closestVs30 = vs30ValsSorted.get(closestIndex);
+		String closestClass = vs30Map.inverse().get(closestVs30);
+		if (verbose)
+			System.out.println("Closest GMPE site class "+closestClass+"="+(float)closestVs30
+					+" for user Vs30 of "+vs30+" (diff="+minDiff+")");
+		List<String> siteClassNames = new ArrayList<>();
+		siteClassNames.add(closestClass);
+		if (vs30 > minCalcVs30 && vs30 < maxCalcVs30 && (float)minDiff > 0f) {
+			// only add second point for interp if within range and not an exact match
+			int index2;
+			// figure out sign
+			if (vs30 > closestVs30)
+				index2 = closestIndex + 1;
+			else
+				index2 = closestIndex - 1;
+			double boundingVs30 = vs30ValsSorted.get(index2);
+			String boundingClass = vs30Map.inverse().get(boundingVs30);
+			double boundingDiff = Math.abs(boundingVs30 - vs30);
+			if (verbose)
+				System.out.println("\tBounding GMPE site class for interp "+boundingClass+"="+(float)boundingVs30
+						+" (diff="+boundingDiff+")");
+			siteClassNames.add(boundingClass);
+		}
+		return siteClassNames;
+	}
+	
+	/**
+	 * @param vs30
+	 * @return the given Vs30 value, clipped to the range supported by the GMPE site classes
+	 */
+	static double getCalcVs30(double vs30) {
+		if (vs30 < minCalcVs30)
+			return minCalcVs30;
+		if (vs30 > maxCalcVs30)
+			return maxCalcVs30;
+		return vs30;
+	}
+	
 	private DiscretizedFunc calcGMPE(SpectraType type) {
 		if (type == SpectraType.BSE_1N) {
 			DiscretizedFunc designResponseSpectrum = getCalcSpectrum(SpectraType.BSE_2N, SpectraSource.GMPE);
@@ -806,7 +829,7 @@ public class UGMS_WebToolCalc {
 		}
 	}
 
-	private static DiscretizedFunc interpolateSpectraWithVs30(List<Double> vs30Vals, List<DiscretizedFunc> spectrum,
+	static DiscretizedFunc interpolateSpectraWithVs30(List<Double> vs30Vals, List<DiscretizedFunc> spectrum,
 			double vs30, Element interpEl) {
 		// need to interpolate
 		Preconditions.checkState(spectrum.size() == 2, "need exactly 2 for interpolation");
@@ -900,17 +923,27 @@ public class UGMS_WebToolCalc {
 	}
 	
 	private GriddedSpectrumInterpolator getInterpolator(File dataFile, double spacing) throws Exception {
+		return getInterpolator(loadSpectrumMap(dataFile), spacing);
+	}
+	
+	static Map<Location, ArbitrarilyDiscretizedFunc> loadSpectrumMap(File dataFile) throws Exception {
 		System.out.println("Loading spectrum from "+dataFile.getAbsolutePath());
 		Stopwatch watch = Stopwatch.createStarted();
 		BinaryHazardCurveReader reader = new BinaryHazardCurveReader(dataFile.getAbsolutePath());
 		Map<Location, ArbitrarilyDiscretizedFunc> map = reader.getCurveMap();
 		watch.stop();
 		System.out.println("Took "+watch.elapsed(TimeUnit.SECONDS)+" s to load spectrum");
-		
-		return getInterpolator(map, spacing);
+		return map;
 	}
 	
 	private GriddedSpectrumInterpolator getPGAInterpolator(File dataFile, double spacing) throws Exception {
+		return getInterpolator(loadPGAMap(dataFile), spacing);
+	}
+	
+	/**
+	 * Loads PGA data as single valued spectra (at x=0) for use with a {@link GriddedSpectrumInterpolator}
+	 */
+	static Map<Location, DiscretizedFunc> loadPGAMap(File dataFile) throws Exception {
 		System.out.println("Loading PGA from "+dataFile.getAbsolutePath());
 		Stopwatch watch = Stopwatch.createStarted();
 		ArbDiscrGeoDataSet data = BinaryGeoDatasetRandomAccessFile.loadGeoDataset(dataFile);
@@ -922,8 +955,7 @@ public class UGMS_WebToolCalc {
 		}
 		watch.stop();
 		System.out.println("Took "+watch.elapsed(TimeUnit.SECONDS)+" s to load PGA");
-		
-		return getInterpolator(map, spacing);
+		return map;
 	}
 	
 	private GriddedSpectrumInterpolator getInterpolator(Map<Location, ? extends DiscretizedFunc> map, double spacing) {
@@ -1011,7 +1043,7 @@ public class UGMS_WebToolCalc {
 		return value;
 	}
 	
-	private double calcSXS(DiscretizedFunc spectrum) {
+	static double calcSXS(DiscretizedFunc spectrum) {
 		double value = 0;
 		for (int i=0; i<spectrum.size(); i++) {
 			double x = spectrum.getX(i);
@@ -1026,9 +1058,13 @@ public class UGMS_WebToolCalc {
 	}
 	
 	private double calcSX1(DiscretizedFunc spectrum) {
+		return calcSX1(spectrum, userVs30);
+	}
+	
+	static double calcSX1(DiscretizedFunc spectrum, double vs30) {
 		double minPeriodSX1 = 1d;
 		double maxPeriodSX1;
-		if (userVs30 > 365.76) {
+		if (vs30 > 365.76) {
 			// SD1  = max(T * Sa) for 1s <= T <= 2s
 			maxPeriodSX1 = 2d;
 		} else {
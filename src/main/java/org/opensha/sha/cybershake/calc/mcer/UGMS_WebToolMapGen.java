@@ -4,6 +4,7 @@ import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -74,6 +75,25 @@ public class UGMS_WebToolMapGen {
 				"cs_mcer_"+(float)period, "gmpe_mcer_"+(float)period };
 		
 		System.out.println("Building XYZ");
+		double[] lats = new double[combXYZ.size()];
+		double[] lons = new double[combXYZ.size()];
+		for (int i=0; i<combXYZ.size(); i++) {
+			Location loc = combXYZ.getLocation(i);
+			lats[i] = loc.getLatitude();
+			lons[i] = loc.getLongitude();
+		}
+		double[] csPeriods = csInterp.getPeriods();
+		double[] gmpePeriods = gmpeInterp.getPeriods();
+		double[] csVals = new double[lats.length*csPeriods.length];
+		double[] gmpeVals = new double[lats.length*gmpePeriods.length];
+		if (doInterp) {
+			// batch interpolate everything up front, failures will be NaN
+			csInterp.interpolate(lats, lons, csVals, true);
+			gmpeInterp.interpolate(lats, lons, gmpeVals, true);
+		} else {
+			Arrays.fill(csVals, Double.NaN);
+			Arrays.fill(gmpeVals, Double.NaN);
+		}
 		for (int i=0; i<combXYZ.size(); i++) {
 			Location loc = combXYZ.getLocation(i);
 			if (!region.contains(loc)) {
@@ -86,17 +106,12 @@ public class UGMS_WebToolMapGen {
 			try {
 				DiscretizedFunc csMCER;
 				DiscretizedFunc gmpeMCER;
-				if (doInterp) {
-					try {
-						csMCER = csInterp.getInterpolated(loc);
-						gmpeMCER = gmpeInterp.getInterpolated(loc);
-					} catch (Exception e) {
-						csMCER = csInterp.getClosest(loc);
-						gmpeMCER = gmpeInterp.getClosest(loc);
-					}
-				} else {
+				if (Double.isNaN(csVals[i*csPeriods.length]) || Double.isNaN(gmpeVals[i*gmpePeriods.length])) {
 					csMCER = csInterp.getClosest(loc);
 					gmpeMCER = gmpeInterp.getClosest(loc);
+				} else {
+					csMCER = buildSpectrum(csPeriods, csVals, i);
+					gmpeMCER = buildSpectrum(gmpePeriods, gmpeVals, i);
 				}
 				
 //				DiscretizedFunc csMCER = csInterp.getClosest(loc);
@@ -221,6 +236,14 @@ public class UGMS_WebToolMapGen {
 		}
 	}
 	
+	private static DiscretizedFunc buildSpectrum(double[] periods, double[] batchVals, int pointIndex) {
+		DiscretizedFunc ret = new ArbitrarilyDiscretizedFunc();
+		int offset = pointIndex*periods.length;
+		for (int p=0; p<periods.length; p++)
+			ret.set(periods[p], batchVals[offset+p]);
+		return ret;
+	}
+	
 	private static GriddedSpectrumInterpolator getInterpolator(File dataFile, double spacing) throws Exception {
 		System.out.println("Loading spectrum from "+dataFile.getAbsolutePath());
 		Stopwatch watch = Stopwatch.createStarted();
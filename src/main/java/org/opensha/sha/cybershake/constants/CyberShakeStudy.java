@@ -54,8 +54,10 @@ import org.opensha.sha.cybershake.db.Cybershake_OpenSHA_DBApplication;
 import org.opensha.sha.cybershake.db.DBAccess;
 import org.opensha.sha.cybershake.db.MeanUCERF2_ToDB;
 import org.opensha.sha.cybershake.db.RunIDFetcher;
+import org.opensha.sha.cybershake.db.RunIndex;
 import org.opensha.sha.cybershake.db.Runs2DB;
 import org.opensha.sha.cybershake.gui.util.ERFSaver;
+import org.opensha.sha.cybershake.openshaAPIs.ERFSnapshot;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
@@ -90,8 +92,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -105,8 +107,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -120,8 +122,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -135,8 +137,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -150,8 +152,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -165,8 +167,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_CCA_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -180,8 +182,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_CCA_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -195,8 +197,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir2457");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir2457", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -216,8 +218,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir2585_1myr");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir2585_1myr", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -237,8 +239,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_BAY_AREA_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.ARCHIVE_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -252,8 +254,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir2740");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir2740", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -273,8 +275,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimRotRupERF("rundir2740");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimRotRupERF("rundir2740", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -300,8 +302,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimRotRupERF("rundir2585_1myr");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimRotRupERF("rundir2585_1myr", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -327,8 +329,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4841");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4841", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -348,8 +350,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4860");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4860", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -369,8 +371,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4860_multi_combine");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4860_multi_combine", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -390,8 +392,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimRotRupERF("rundir4860_multi_combine");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimRotRupERF("rundir4860_multi_combine", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -417,8 +419,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -439,8 +441,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimRotRupERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimRotRupERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -466,8 +468,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -487,8 +489,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -508,8 +510,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -531,8 +533,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir4983_stitched");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir4983_stitched", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -554,8 +556,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return getRSQSimERF("rundir5413");
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return getRSQSimERF("rundir5413", updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -577,8 +579,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -594,8 +596,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -611,8 +613,8 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -628,8 +630,8 @@ public enum CyberShakeStudy {
             new CaliforniaRegions.CYBERSHAKE_BAY_AREA_SMALL_MAP_REGION(),
 			"localhost") {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -645,8 +647,8 @@ public enum CyberShakeStudy {
             new CaliforniaRegions.CYBERSHAKE_BAY_AREA_SMALL_MAP_REGION(),
 			"localhost") {
 		@Override
-		public AbstractERF buildNewERF() {
-			return MeanUCERF2_ToDB.createUCERF2ERF();
+		public AbstractERF buildNewERF(boolean updateForecast) {
+			return MeanUCERF2_ToDB.createUCERF2ERF(true, updateForecast);
 		}
 		@Override
 		public RunIDFetcher runFetcher() {
@@ -662,7 +664,7 @@ public enum CyberShakeStudy {
 			new CaliforniaRegions.CYBERSHAKE_MAP_REGION(),
 			Cybershake_OpenSHA_DBApplication.PRODUCTION_HOST_NAME) {
 		@Override
-		public AbstractERF buildNewERF() {
+		public AbstractERF buildNewERF(boolean updateForecast) {
 			return null;
 		}
 		@Override
@@ -675,7 +677,7 @@ public enum CyberShakeStudy {
 		return null;
 	}
 	
-	private static AbstractERF getRSQSimERF(String catalogDirName) {
+	private static AbstractERF getRSQSimERF(String catalogDirName, boolean updateForecast) {
 		File catDir = RSQSimCatalog.locateCatalog(catalogDirName, "erf_params.xml");
 		Preconditions.checkState(catDir.exists(), "Could not find catalog dir for "+catalogDirName);
 		File xmlFile = new File(catDir, "erf_params.xml");
@@ -685,11 +687,12 @@ public enum CyberShakeStudy {
 		} catch (Exception e) {
 			throw ExceptionUtils.asRuntimeException(e);
 		}
-		erf.updateForecast();
+		if (updateForecast)
+			erf.updateForecast();
 		return erf;
 	}
 	
-	private static AbstractERF getRSQSimRotRupERF(String catalogDirName) {
+	private static AbstractERF getRSQSimRotRupERF(String catalogDirName, boolean updateForecast) {
 		File catDir = RSQSimCatalog.locateCatalog(catalogDirName, "cybershake_rotation_inputs");
 		Preconditions.checkState(catDir.exists(), "Could not find catalog dir for "+catalogDirName);
 		RSQSimCatalog catalog = new RSQSimCatalog(catDir, catalogDirName, FaultModels.FM3_1, DeformationModels.GEOLOGIC);
@@ -701,7 +704,8 @@ public enum CyberShakeStudy {
 			throw ExceptionUtils.asRuntimeException(e);
 		}
 		RSQSimRotatedRuptureFakeERF erf = new RSQSimRotatedRuptureFakeERF(catalog, rotConfigs);
-		erf.updateForecast();
+		if (updateForecast)
+			erf.updateForecast();
 		return erf;
 	}
 	
@@ -717,6 +721,7 @@ public enum CyberShakeStudy {
 	private Integer rvScenID;
 
 	private DBAccess db;
+	private File sqLiteFile;
 	private DBAccess writeDB;
 	private Runs2DB runs2db;
 	
@@ -794,6 +799,7 @@ public enum CyberShakeStudy {
 	
 	public synchronized DBAccess getSQLiteDB(File sqLiteFile) throws IOException {
 		db = Cybershake_OpenSHA_DBApplication.getSQLiteDB(sqLiteFile);
+		this.sqLiteFile = sqLiteFile;
 		return db;
 	}
 	
@@ -1473,7 +1479,19 @@ public enum CyberShakeStudy {
 		MarkdownUtils.writeReadmeAndHTML(lines, dir);
 	}
 	
-	public abstract AbstractERF buildNewERF();
+	/**
+	 * @return new instance of the ERF for this study, with the forecast updated
+	 */
+	public AbstractERF buildNewERF() {
+		return buildNewERF(true);
+	}
+	
+	/**
+	 * @param updateForecast if false, the ERF is returned with all parameters set but without updating the
+	 * forecast, which is much faster and is sufficient to check ERF parameters (e.g. against a snapshot)
+	 * @return new instance of the ERF for this study, or null if not available
+	 */
+	public abstract AbstractERF buildNewERF(boolean updateForecast);
 	
 	private AbstractERF erf;
 	public synchronized AbstractERF getERF() {
@@ -1482,8 +1500,71 @@ public enum CyberShakeStudy {
 		return erf;
 	}
 	
+	/**
+	 * Same as {@link #getERF()}, but loads the ERF from a binary snapshot in the given directory (see
+	 * {@link ERFSnapshot}) if one exists and was written with the same ERF parameters as this study's ERF. Otherwise,
+	 * the ERF is built and a snapshot is written (or replaced) for next time.
+	 * @param snapshotDir
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized AbstractERF getERF(File snapshotDir) throws IOException {
+		if (erf == null) {
+			// parameters are set without updating the forecast, which is enough to check the snapshot
+			AbstractERF newERF = buildNewERF(false);
+			if (newERF == null)
+				return null;
+			long paramsHash = ERFSnapshot.getParamsHash(newERF);
+			File snapshotFile = getERFSnapshotFile(snapshotDir);
+			if (snapshotFile.exists()) {
+				try {
+					erf = ERFSnapshot.load(snapshotFile, paramsHash, false);
+				} catch (IllegalStateException e) {
+					System.err.println("WARNING: ignoring stale or invalid ERF snapshot for "+name+": "+e.getMessage());
+				}
+			}
+			if (erf == null) {
+				newERF.updateForecast();
+				erf = newERF;
+				try {
+					ERFSnapshot.write(erf, snapshotFile, paramsHash);
+				} catch (IllegalStateException e) {
+					// ERF not supported by snapshots, just use it directly
+					System.err.println("WARNING: could not write ERF snapshot for "+name+": "+e.getMessage());
+					snapshotFile.delete();
+				}
+			}
+		}
+		return erf;
+	}
+	
+	public File getERFSnapshotFile(File snapshotDir) {
+		return new File(snapshotDir, dirName+"_erf"+erfID+"_snapshot.bin");
+	}
+	
 	public abstract RunIDFetcher runFetcher();
 	
+	/**
+	 * Resolves all runs for this study into an index for hash lookups by site or run. The index is memoized for the
+	 * process (see {@link RunIDFetcher#fetchIndex()}). If this study is using a SQLite snapshot (see
+	 * {@link #getSQLiteDB(File)}), the index persisted alongside that snapshot is used if available.
+	 * @return
+	 */
+	public RunIndex getRunIndex() {
+		RunIDFetcher fetcher = runFetcher();
+		File indexFile;
+		synchronized (this) {
+			indexFile = sqLiteFile == null ? null : RunIndex.getSnapshotFile(sqLiteFile);
+		}
+		RunIndex index;
+		if (indexFile == null)
+			index = fetcher.fetchIndex();
+		else
+			index = fetcher.fetchIndex(indexFile);
+		Preconditions.checkNotNull(index, "Couldn't fetch runs for %s", name);
+		return index;
+	}
+	
 	public static void main(String[] args) throws IOException {
 //		List<CybershakeRun> runs = BBP_VALIDATION.runFetcher().fetch();
 //		System.out.println("Found "+runs.size()+" runs");
@@ -0,0 +1,189 @@
+package org.opensha.sha.cybershake.db;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes queries for {@link DBAccess#selectDataAsync(String, ResultSetHandler)} on a bounded pool of daemon
+ * threads. Identical queries (same SQL, fetch size and handler instance) that are in flight at the same time are
+ * coalesced into a single database query. Cancelling a returned future only cancels the underlying query (including
+ * the JDBC statement, if it is already executing) once every caller sharing that query has cancelled.
+ *
+ * @author kevin
+ *
+ */
+class AsyncQueryExecutor {
+
+	private DBAccess db;
+	private ExecutorService exec;
+	private int maxConcurrent;
+
+	private ConcurrentMap<List<Object>, AsyncQuery<?>> inFlight = new ConcurrentHashMap<>();
+
+	private AtomicInteger coalesced = new AtomicInteger();
+
+	AsyncQueryExecutor(DBAccess db, int maxConcurrent) {
+		this.db = db;
+		this.maxConcurrent = maxConcurrent;
+		AtomicInteger threadNum = new AtomicInteger();
+		exec = Executors.newFixedThreadPool(maxConcurrent, r -> {
+			Thread t = new Thread(r, "DBAccess async query "+threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return number of requests which have been served by an identical in flight query
+	 */
+	int getNumCoalesced() {
+		return coalesced.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> CompletableFuture<T> submit(String sql, int fetchSize, ResultSetHandler<T> handler) {
+		List<Object> key = Arrays.asList(sql, fetchSize, handler);
+		while (true) {
+			AsyncQuery<?> prev = inFlight.get(key);
+			if (prev != null) {
+				CompletableFuture<T> future = ((AsyncQuery<T>)prev).subscribe();
+				if (future != null) {
+					coalesced.incrementAndGet();
+					return future;
+				}
+				// finished or fully cancelled concurrently
+				inFlight.remove(key, prev);
+				continue;
+			}
+			AsyncQuery<T> query = new AsyncQuery<>(key, sql, fetchSize, handler);
+			if (inFlight.putIfAbsent(key, query) != null)
+				// someone else beat us to it
+				continue;
+			// subscribe before submitting so that we can't miss the result
+			CompletableFuture<T> future = query.subscribe();
+			exec.execute(query);
+			return future;
+		}
+	}
+
+	void shutdown() {
+		exec.shutdownNow();
+		for (AsyncQuery<?> query : inFlight.values())
+			query.cancel();
+		inFlight.clear();
+	}
+
+	private class AsyncQuery<T> implements Runnable {
+
+		private List<Object> key;
+		private String sql;
+		private int fetchSize;
+		private ResultSetHandler<T> handler;
+
+		private CompletableFuture<T> result = new CompletableFuture<>();
+		private int subscribers = 0;
+		// true once no more subscribers can be added
+		private boolean closed = false;
+		private volatile boolean cancelled = false;
+		private volatile Statement statement;
+
+		public AsyncQuery(List<Object> key, String sql, int fetchSize, ResultSetHandler<T> handler) {
+			this.key = key;
+			this.sql = sql;
+			this.fetchSize = fetchSize;
+			this.handler = handler;
+		}
+
+		/**
+		 * @return a new future for this query, or null if this query has finished or been cancelled
+		 */
+		public synchronized CompletableFuture<T> subscribe() {
+			if (closed)
+				return null;
+			subscribers++;
+			CompletableFuture<T> future = new CompletableFuture<T>() {
+
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					boolean ret = super.cancel(mayInterruptIfRunning);
+					if (ret)
+						unsubscribe();
+					return ret;
+				}
+
+			};
+			result.whenComplete((val, ex) -> {
+				if (ex != null)
+					future.completeExceptionally(ex);
+				else
+					future.complete(val);
+			});
+			return future;
+		}
+
+		private void unsubscribe() {
+			synchronized (this) {
+				subscribers--;
+				if (subscribers > 0 || result.isDone())
+					return;
+			}
+			cancel();
+		}
+
+		private void cancel() {
+			synchronized (this) {
+				closed = true;
+			}
+			cancelled = true;
+			inFlight.remove(key, this);
+			Statement stmt = statement;
+			if (stmt != null) {
+				try {
+					stmt.cancel();
+				} catch (SQLException e) {
+					// statement may already be closed
+				}
+			}
+			result.cancel(false);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (cancelled)
+					return;
+				T val = db.selectData(sql, fetchSize, handler, stmt -> {
+					statement = stmt;
+					if (cancelled) {
+						try {
+							stmt.cancel();
+						} catch (SQLException e) {}
+					}
+				});
+				result.complete(val);
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			} finally {
+				statement = null;
+				synchronized (this) {
+					closed = true;
+				}
+				inFlight.remove(key, this);
+			}
+		}
+
+	}
+
+}
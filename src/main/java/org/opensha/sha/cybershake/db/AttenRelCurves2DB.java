@@ -171,6 +171,29 @@ public class AttenRelCurves2DB {
 		return ids;
 	}
 	
+	/**
+	 * Curves are only ever inserted or deleted (never updated in place), so this changes whenever the curves for a
+	 * dataset and IM are recomputed and can be used to detect stale caches.
+	 *
+	 * @param datasetID
+	 * @param imTypeID
+	 * @return array of the number of curves and the maximum curve ID (-1 if none) for the given dataset and IM
+	 * @throws SQLException
+	 */
+	public long[] getCurveCountAndMaxID(int datasetID, int imTypeID) throws SQLException {
+		String sql = "SELECT COUNT(*),MAX(AR_Hazard_Curve_ID) FROM "+ATTEN_REL_CURVES_TABLE_NAME
+					+" WHERE AR_Hazard_Dataset_ID="+datasetID+" AND IM_Type_ID="+imTypeID;
+		return db.selectData(sql, rs -> {
+			if (!rs.next())
+				return new long[] {0l, -1l};
+			long count = rs.getLong(1);
+			long maxID = rs.getLong(2);
+			if (rs.wasNull())
+				maxID = -1l;
+			return new long[] {count, maxID};
+		});
+	}
+
 	public ArbitrarilyDiscretizedFunc getCurve(int curveID) throws SQLException {
 		ArrayList<Integer> ids = new ArrayList<Integer>();
 		ids.add(curveID);
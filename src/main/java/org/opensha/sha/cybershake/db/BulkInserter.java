@@ -0,0 +1,434 @@
+package org.opensha.sha.cybershake.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Bulk insert session which writes rows through parameterized JDBC batches on a dedicated connection (see
+ * {@link DBAccess#openDedicatedConnection()}). Rows can be written to multiple tables in the same session, and
+ * batches are always executed in the order that the tables were registered so that parent rows are written first.
+ * <br>
+ * <br>For MySQL, the connection uses <code>rewriteBatchedStatements</code> and each batch is committed as it is
+ * written. For SQLite, everything is written in a single transaction which is committed when the session is
+ * closed, which is orders of magnitude faster than one transaction per statement.
+ * <br>
+ * <br>If a progress file is set, rows are only committed at the boundaries set by {@link #mark(String)}, and the
+ * most recent marker is written to that file after each commit. After a failure, {@link #readProgress(File)}
+ * returns the last unit of work that is known to be in the database so that ingest can be resumed from there. This
+ * requires intermediate commits, so setting a progress file disables single transaction mode: each batch is
+ * committed as it is written, for SQLite as well.
+ *
+ * @author kevin
+ *
+ */
+public class BulkInserter implements Closeable {
+
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+	public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 30000l;
+
+	private DBAccess db;
+	private int batchSize;
+	private Connection conn;
+	private boolean singleTransaction;
+	private boolean ignoreInserts;
+
+	private List<TableBatch> tables = new ArrayList<>();
+	private int numBuffered = 0;
+
+	private File progressFile;
+	private String pendingMarker;
+
+	private Stopwatch watch;
+	private long reportIntervalMillis = DEFAULT_REPORT_INTERVAL_MILLIS;
+	private long lastReportMillis = 0l;
+	private long rowsWritten = 0l;
+
+	private boolean closed = false;
+
+	public BulkInserter(DBAccess db) throws SQLException {
+		this(db, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param db
+	 * @param batchSize number of rows (across all tables) to buffer before executing a batch
+	 * @throws SQLException
+	 */
+	public BulkInserter(DBAccess db, int batchSize) throws SQLException {
+		this(db, batchSize, new String[0]);
+	}
+
+	/**
+	 * @param db
+	 * @param batchSize number of rows (across all tables) to buffer before executing a batch
+	 * @param connSetupStatements statements which are executed on the dedicated connection before anything is
+	 * written, e.g. SQLite pragmas, which only apply to the connection that sets them
+	 * @throws SQLException
+	 */
+	public BulkInserter(DBAccess db, int batchSize, String... connSetupStatements) throws SQLException {
+		Preconditions.checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+		this.db = db;
+		this.batchSize = batchSize;
+		this.singleTransaction = db.isSQLite();
+		this.ignoreInserts = db.isIgnoreInserts();
+		if (!ignoreInserts) {
+			conn = db.openDedicatedConnection();
+			try {
+				if (connSetupStatements.length > 0) {
+					Statement stmt = conn.createStatement();
+					try {
+						for (String sql : connSetupStatements)
+							stmt.execute(sql);
+					} finally {
+						stmt.close();
+					}
+				}
+				conn.setAutoCommit(false);
+			} catch (SQLException e) {
+				try {
+					conn.close();
+				} catch (SQLException e1) {}
+				throw e;
+			}
+		}
+		watch = Stopwatch.createStarted();
+	}
+
+	/**
+	 * Registers a table with the given columns
+	 * @param table
+	 * @param columns
+	 * @return
+	 * @throws SQLException
+	 */
+	public TableBatch forTable(String table, String... columns) throws SQLException {
+		return forTable(table, false, columns);
+	}
+
+	/**
+	 * Registers a table with the given columns
+	 * @param table
+	 * @param ignoreDuplicates if true, rows which would violate a unique key are skipped
+	 * @param columns
+	 * @return
+	 * @throws SQLException
+	 */
+	public TableBatch forTable(String table, boolean ignoreDuplicates, String... columns) throws SQLException {
+		Preconditions.checkArgument(columns.length > 0, "Must supply at least one column");
+		return buildTable(table, ignoreDuplicates, "("+Joiner.on(",").join(columns)+")", columns.length);
+	}
+
+	/**
+	 * Registers a table where values are supplied for every column, in table order
+	 * @param table
+	 * @param ignoreDuplicates if true, rows which would violate a unique key are skipped
+	 * @param numColumns
+	 * @return
+	 * @throws SQLException
+	 */
+	public TableBatch forTable(String table, boolean ignoreDuplicates, int numColumns) throws SQLException {
+		Preconditions.checkArgument(numColumns > 0, "Must supply at least one column");
+		return buildTable(table, ignoreDuplicates, "", numColumns);
+	}
+
+	private TableBatch buildTable(String table, boolean ignoreDuplicates, String columns, int numColumns)
+			throws SQLException {
+		Preconditions.checkState(!closed, "Already closed");
+		String insert;
+		if (!ignoreDuplicates)
+			insert = "INSERT INTO ";
+		else if (db.isSQLite())
+			insert = "INSERT OR IGNORE INTO ";
+		else
+			insert = "INSERT IGNORE INTO ";
+		StringBuilder sql = new StringBuilder(insert).append(table).append(columns).append(" VALUES (");
+		for (int i=0; i<numColumns; i++) {
+			if (i > 0)
+				sql.append(",");
+			sql.append("?");
+		}
+		sql.append(")");
+		TableBatch batch = new TableBatch(table, sql.toString(), numColumns);
+		tables.add(batch);
+		return batch;
+	}
+
+	/**
+	 * If true (default for SQLite), all rows are committed in a single transaction when this session is closed.
+	 * Otherwise (default for MySQL), each batch is committed as it is written. Ignored if a progress file is set,
+	 * see {@link #setProgressFile(File)}.
+	 * @param singleTransaction
+	 */
+	public void setSingleTransaction(boolean singleTransaction) {
+		Preconditions.checkState(rowsWritten == 0l, "Must be set before any rows are written");
+		this.singleTransaction = singleTransaction;
+	}
+
+	/**
+	 * @return true if all rows will be committed in a single transaction when this session is closed
+	 */
+	public boolean isSingleTransaction() {
+		return singleTransaction && progressFile == null;
+	}
+
+	/**
+	 * Sets the file to which progress markers will be written after each commit. When set, batches are only
+	 * executed at marker boundaries, so each unit of work passed to {@link #mark(String)} is committed atomically.
+	 * Batches are committed as they are written (even in single transaction mode) so that the progress file never
+	 * lags far behind the database.
+	 * @param progressFile
+	 */
+	public void setProgressFile(File progressFile) {
+		Preconditions.checkState(rowsWritten == 0l, "Must be set before any rows are written");
+		this.progressFile = progressFile;
+	}
+
+	/**
+	 * @param reportIntervalMillis minimum time between throughput reports, or zero to disable
+	 */
+	public void setReportInterval(long reportIntervalMillis) {
+		this.reportIntervalMillis = reportIntervalMillis;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return number of rows which have been sent to the database (not necessarily committed)
+	 */
+	public long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	public double getRowsPerSecond() {
+		double secs = watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
+		if (secs == 0d)
+			return 0d;
+		return rowsWritten/secs;
+	}
+
+	/**
+	 * Marks the end of a unit of work. All rows added before this call will be committed together, and the given
+	 * marker will be written to the progress file (if set) once they have been.
+	 * @param marker
+	 * @throws SQLException
+	 */
+	public void mark(String marker) throws SQLException {
+		Preconditions.checkNotNull(marker);
+		pendingMarker = marker;
+		if (numBuffered >= batchSize)
+			flush();
+	}
+
+	private void rowAdded() throws SQLException {
+		numBuffered++;
+		if (numBuffered >= batchSize && progressFile == null)
+			flush();
+	}
+
+	/**
+	 * Executes all buffered batches and commits them unless in single transaction mode (see
+	 * {@link #isSingleTransaction()})
+	 * @throws SQLException
+	 */
+	public void flush() throws SQLException {
+		Preconditions.checkState(!closed, "Already closed");
+		if (ignoreInserts) {
+			numBuffered = 0;
+			return;
+		}
+		if (numBuffered > 0) {
+			for (TableBatch table : tables)
+				table.execute();
+			rowsWritten += numBuffered;
+			numBuffered = 0;
+		}
+		if (!isSingleTransaction())
+			commit();
+		long millis = watch.elapsed(TimeUnit.MILLISECONDS);
+		if (reportIntervalMillis > 0 && millis - lastReportMillis >= reportIntervalMillis) {
+			lastReportMillis = millis;
+			report();
+		}
+	}
+
+	private void commit() throws SQLException {
+		conn.commit();
+		if (progressFile != null && pendingMarker != null) {
+			try {
+				writeProgress(progressFile, pendingMarker);
+			} catch (IOException e) {
+				throw new SQLException("Committed but couldn't write progress marker to "+progressFile, e);
+			}
+		}
+	}
+
+	private void report() {
+		StringBuilder str = new StringBuilder("Bulk insert: ").append(rowsWritten).append(" rows");
+		for (TableBatch table : tables)
+			str.append(", ").append(table.table).append("=").append(table.rows);
+		str.append(" in ").append((float)(watch.elapsed(TimeUnit.MILLISECONDS)/1000d)).append(" s (")
+				.append((float)getRowsPerSecond()).append(" rows/s)");
+		if (pendingMarker != null)
+			str.append(", at ").append(pendingMarker);
+		System.out.println(str);
+	}
+
+	/**
+	 * Rolls back anything which hasn't been committed and releases the connection. Rows which were committed in
+	 * previous batches (when not in single transaction mode) are not affected.
+	 */
+	public void abort() {
+		if (closed)
+			return;
+		closed = true;
+		if (conn != null) {
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			release();
+		}
+	}
+
+	/**
+	 * Writes any remaining rows and commits
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			flush();
+			if (isSingleTransaction() && !ignoreInserts)
+				commit();
+			if (reportIntervalMillis > 0)
+				report();
+		} catch (SQLException e) {
+			abort();
+			throw new IOException(e);
+		}
+		closed = true;
+		release();
+	}
+
+	private void release() {
+		for (TableBatch table : tables) {
+			try {
+				table.stmt.close();
+			} catch (SQLException e) {}
+		}
+		try {
+			if (conn != null)
+				conn.close();
+		} catch (SQLException e) {}
+	}
+
+	/**
+	 * @param progressFile
+	 * @return the last marker which was committed, or null if no progress has been recorded
+	 * @throws IOException
+	 */
+	public static String readProgress(File progressFile) throws IOException {
+		if (progressFile == null || !progressFile.exists())
+			return null;
+		String marker = new String(Files.readAllBytes(progressFile.toPath()), StandardCharsets.UTF_8).trim();
+		if (marker.isEmpty())
+			return null;
+		return marker;
+	}
+
+	private static void writeProgress(File progressFile, String marker) throws IOException {
+		// write then rename so that a crash can't leave a partial marker
+		File tmp = new File(progressFile.getAbsolutePath()+".tmp");
+		Files.write(tmp.toPath(), (marker+"\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Rows for a single table within a {@link BulkInserter}
+	 *
+	 * @author kevin
+	 *
+	 */
+	public class TableBatch {
+
+		private String table;
+		private String sql;
+		private int numColumns;
+		private PreparedStatement stmt;
+		private int numBuffered = 0;
+		private long rows = 0l;
+
+		private TableBatch(String table, String sql, int numColumns) throws SQLException {
+			this.table = table;
+			this.sql = sql;
+			this.numColumns = numColumns;
+			if (!ignoreInserts)
+				stmt = conn.prepareStatement(sql);
+		}
+
+		/**
+		 * Adds a row. Values are bound with {@link PreparedStatement#setObject(int, Object)}, so null values are
+		 * written as NULL.
+		 * @param values
+		 * @throws SQLException
+		 */
+		public void add(Object... values) throws SQLException {
+			Preconditions.checkState(!closed, "Already closed");
+			Preconditions.checkArgument(values.length == numColumns,
+					"Expected %s values for %s, got %s", numColumns, table, values.length);
+			if (!ignoreInserts) {
+				for (int i=0; i<values.length; i++)
+					stmt.setObject(i+1, values[i]);
+				stmt.addBatch();
+			}
+			this.numBuffered++;
+			rowAdded();
+		}
+
+		/**
+		 * @return number of rows which have been sent to the database for this table
+		 */
+		public long getRowsWritten() {
+			return rows;
+		}
+
+		private void execute() throws SQLException {
+			if (numBuffered == 0)
+				return;
+			DBQueryStats stats = db.getQueryStats();
+			long startNanos = System.nanoTime();
+			try {
+				stmt.executeBatch();
+			} catch (BatchUpdateException e) {
+				throw new SQLException("Batch insert into "+table+" failed: "+e.getMessage(), e);
+			}
+			stmt.clearBatch();
+			if (stats != null)
+				stats.recordQuery(stats.getTemplateStats(sql), sql, System.nanoTime()-startNanos, 0l, numBuffered);
+			rows += numBuffered;
+			numBuffered = 0;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.opensha.sha.cybershake.db;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Date;
 
 public class CybershakeHazardDataset {
@@ -33,4 +35,26 @@ public class CybershakeHazardDataset {
 		this.backSeisAttenRelID = backSeisAttenRelID;
 	}
 
+	
+	public static CybershakeHazardDataset fromResultSet(ResultSet rs) throws SQLException {
+		int datasetID = rs.getInt("Hazard_Dataset_ID");
+		int erfID = rs.getInt("ERF_ID");
+		int rvScenID = rs.getInt("Rup_Var_Scenario_ID");
+		int sgtVarID = rs.getInt("SGT_Variation_ID");
+		int velModelID = rs.getInt("Velocity_Model_ID");
+		int probModelID = rs.getInt("Prob_Model_ID");
+		int timeSpanID = rs.getInt("Time_Span_ID");
+		Date timeSpanStart = rs.getDate("Time_Span_Start_Date");
+		double maxFreq = rs.getDouble("Max_Frequency");
+		if (rs.wasNull())
+			maxFreq = Double.NaN;
+		double lowFreqCutoff = rs.getDouble("Low_Frequency_Cutoff");
+		if (rs.wasNull())
+			lowFreqCutoff = Double.NaN;
+		int backSeisAttenRelID = rs.getInt("Background_Seis_AR_ID");
+		
+		return new CybershakeHazardDataset(datasetID, erfID, rvScenID, sgtVarID, velModelID,
+				probModelID, timeSpanID, timeSpanStart, maxFreq, lowFreqCutoff, backSeisAttenRelID);
+	}
+
 }
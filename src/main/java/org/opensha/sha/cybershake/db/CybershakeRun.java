@@ -97,6 +97,22 @@ public class CybershakeRun {
 		this.z25 = z25;
 	}
 
+	/**
+	 * @return a copy of this run, with copies of all timestamps
+	 */
+	public CybershakeRun copy() {
+		CybershakeRun copy = new CybershakeRun(runID, siteID, erfID, sgtVarID, rupVarScenID, velModelID,
+				copy(sgtTime), copy(ppTime), sgtHost, ppHost, status, copy(statusTime), maxFreq, lowFreqCutof,
+				modelVs30, meshVsitop, meshVsitopID, minVs, vs30Source, z10, z25);
+		copy.status = status;
+		copy.statusTime = copy(statusTime);
+		return copy;
+	}
+	
+	private static Timestamp copy(Timestamp timestamp) {
+		return timestamp == null ? null : (Timestamp)timestamp.clone();
+	}
+
 	public int getRunID() {
 		return runID;
 	}
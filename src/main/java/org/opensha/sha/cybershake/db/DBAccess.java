@@ -13,8 +13,12 @@ import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.opensha.commons.gui.UserAuthDialog;
 import org.sqlite.SQLiteConfig;
@@ -58,6 +62,20 @@ public class DBAccess implements Runnable{
 	private SQLWarning currSQLWarning;
 	private String pid;
 
+	// null if disabled
+	private volatile DBQueryStats queryStats;
+
+	// created on first async query
+	private AsyncQueryExecutor asyncExec;
+	private int maxAsyncQueries = -1;
+
+	// created on first use
+	private volatile MetadataRegistry metadataRegistry;
+	/**
+	 * Default maximum number of concurrent asynchronous queries, if less than the connection pool size
+	 */
+	public static final int DEFAULT_MAX_ASYNC_QUERIES = 16;
+
 	private final int DEFAULTMAXCHECKOUTSECONDS=60*5;
 	private final int DEFAULTDEBUGLEVEL=0;
 
@@ -100,6 +118,31 @@ public class DBAccess implements Runnable{
 		this.ignoreInserts = ignoreInserts;
 	}
 
+	/**
+	 * @return query statistics for this connection broker, or null if disabled
+	 */
+	public DBQueryStats getQueryStats() {
+		return queryStats;
+	}
+
+	/**
+	 * Enables query statistics for this connection broker, or disables if null
+	 * @param queryStats
+	 */
+	public void setQueryStats(DBQueryStats queryStats) {
+		this.queryStats = queryStats;
+	}
+
+	/**
+	 * @return in memory registry of the small metadata tables (runs, sites, IMs, etc.) for this connection broker,
+	 * created on first use
+	 */
+	public synchronized MetadataRegistry getMetadataRegistry() {
+		if (metadataRegistry == null)
+			metadataRegistry = new MetadataRegistry(this);
+		return metadataRegistry;
+	}
+
 	public static DBAccess createWithAuthDialog(String host, String dbName) throws IOException {
 		UserAuthDialog auth = new UserAuthDialog(null, true);
 		auth.setVisible(true);
@@ -184,6 +227,7 @@ public class DBAccess implements Runnable{
 		this.logFileString = logFileString;
 		this.maxCheckoutSeconds = maxCheckoutSeconds;
 		this.debugLevel = debugLevel;
+		this.queryStats = DBQueryStats.fromSystemProperties(dbServer);
 		maxConnMSec = (int)(maxConnTime * 86400000.0);  //86400 sec/day
 		if(maxConnMSec < 30000) {  // Recycle no less than 30 seconds.
 			maxConnMSec = 30000;
@@ -494,6 +538,9 @@ public class DBAccess implements Runnable{
 						}
 					}
 
+					DBQueryStats stats = queryStats;
+					if (stats != null)
+						stats.recordPoolBackoff();
 					try { Thread.sleep(2000); }
 					catch(InterruptedException e) {}
 					if(debugLevel > 0) {
@@ -585,22 +632,7 @@ public class DBAccess implements Runnable{
 
 		// no longer need to force load of the driver
 		try {
-			if (dbDriver != null)
-				Class.forName (dbDriver);
-			if (dbLogin != null || dbPassword != null)
-				connPool[i] = DriverManager.getConnection(dbServer, dbLogin, dbPassword);
-			else {
-				if (dbServer.contains("sqlite")) {
-					// this fixes dates with SQLite
-					SQLiteConfig sqLiteConfig = new SQLiteConfig();
-					Properties properties = sqLiteConfig.toProperties();
-					properties.setProperty(Pragma.DATE_STRING_FORMAT.pragmaName,
-							"yyyy-MM-dd HH:mm:ss");
-					connPool[i] = DriverManager.getConnection(dbServer, properties);
-				} else {
-					connPool[i] = DriverManager.getConnection(dbServer);
-				}
-			}
+			connPool[i] = openConnection(dbServer);
 
 			connStatus[i]=0;
 			connID[i]=connPool[i].toString();
@@ -617,6 +649,41 @@ public class DBAccess implements Runnable{
 				" " + connPool[i].toString() + ":");
 	}
 
+	private Connection openConnection(String server) throws SQLException, ClassNotFoundException {
+		if (dbDriver != null)
+			Class.forName (dbDriver);
+		if (dbLogin != null || dbPassword != null)
+			return DriverManager.getConnection(server, dbLogin, dbPassword);
+		if (server.contains("sqlite")) {
+			// this fixes dates with SQLite
+			SQLiteConfig sqLiteConfig = new SQLiteConfig();
+			Properties properties = sqLiteConfig.toProperties();
+			properties.setProperty(Pragma.DATE_STRING_FORMAT.pragmaName,
+					"yyyy-MM-dd HH:mm:ss");
+			return DriverManager.getConnection(server, properties);
+		}
+		return DriverManager.getConnection(server);
+	}
+
+	/**
+	 * Opens a new connection which is not managed by this broker, for long running work such as bulk inserts
+	 * which would otherwise be recycled by the housekeeping thread. The caller is responsible for closing it.
+	 * For MySQL, the connection is opened with <code>rewriteBatchedStatements</code> enabled so that JDBC batches
+	 * are sent as multi-row inserts.
+	 * @return
+	 * @throws SQLException
+	 */
+	Connection openDedicatedConnection() throws SQLException {
+		String server = dbServer;
+		if (server.startsWith("jdbc:mysql") && !server.contains("rewriteBatchedStatements"))
+			server += (server.contains("?") ? "&" : "?")+"rewriteBatchedStatements=true";
+		try {
+			return openConnection(server);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Shuts down the housekeeping thread and closes all connections
 	 * in the pool. Call this method from the destroy() method of the servlet.
@@ -650,6 +717,18 @@ public class DBAccess implements Runnable{
 		// Stop issuing connections
 		available=false;
 
+		DBQueryStats stats = queryStats;
+		if (stats != null) {
+			stats.stopPeriodicDump();
+			stats.unregisterMBean();
+		}
+		synchronized (this) {
+			if (asyncExec != null) {
+				asyncExec.shutdown();
+				asyncExec = null;
+			}
+		}
+
 		// Shut down the background housekeeping thread
 		runner.interrupt();
 
@@ -755,7 +834,10 @@ public class DBAccess implements Runnable{
 	public int insertUpdateOrDeleteData(String query) throws java.sql.SQLException {
 		if (ignoreInserts)
 			return 0;
+		DBQueryStats stats = queryStats;
+		long startNanos = stats == null ? 0l : System.nanoTime();
 		Connection conn = getConnection();
+		long connNanos = stats == null ? 0l : System.nanoTime();
 		Preconditions.checkNotNull(conn);
 		//System.out.println("Query = "+query);
 		SQLException ex = null;
@@ -771,8 +853,14 @@ public class DBAccess implements Runnable{
 			ex = e;
 		}
 		freeConnection(conn);
+		if (stats != null)
+			stats.recordQuery(stats.getTemplateStats(query), query, System.nanoTime()-connNanos,
+					connNanos-startNanos, rows);
 		if (ex != null)
 			throw ex;
+		MetadataRegistry registry = metadataRegistry;
+		if (registry != null)
+			registry.onUpdate(query);
 		return rows;
 	}
 
@@ -789,7 +877,10 @@ public class DBAccess implements Runnable{
 	public static boolean PRINT_ALL_QUERIES = false;
 
 	public ResultSet selectData(String sql, int fetchSize) throws java.sql.SQLException {
+		DBQueryStats stats = queryStats;
+		long startNanos = stats == null ? 0l : System.nanoTime();
 		Connection conn = getConnection();
+		long connNanos = stats == null ? 0l : System.nanoTime();
 		Preconditions.checkNotNull(conn);
 		//gets the resultSet after running the query
 		//System.out.println("Query = "+sql);
@@ -807,6 +898,12 @@ public class DBAccess implements Runnable{
 		}
 
 		freeConnection(conn);
+		if (stats != null) {
+			// rows are counted as the result set is iterated
+			DBQueryStats.TemplateStats templateStats = stats.getTemplateStats(sql);
+			stats.recordQuery(templateStats, sql, System.nanoTime()-connNanos, connNanos-startNanos, -1);
+			result = stats.wrapResultSet(result, templateStats);
+		}
 		if (ex != null)
 			throw ex;
 		return result;
@@ -814,4 +911,125 @@ public class DBAccess implements Runnable{
 
 
 
+	/**
+	 * Runs the select query and passes the result set to the given handler before the connection is released
+	 * @param sql
+	 * @param handler
+	 * @return result of the handler
+	 * @throws SQLException
+	 */
+	public <T> T selectData(String sql, ResultSetHandler<T> handler) throws SQLException {
+		return selectData(sql, -1, handler, null);
+	}
+
+	/**
+	 * Fetch size which makes MySQL Connector/J stream rows one at a time rather than buffering the whole result set.
+	 * Only valid with MySQL, and only with the handler form of selectData which holds the connection until the result
+	 * set is closed.
+	 */
+	static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+	<T> T selectData(String sql, int fetchSize, ResultSetHandler<T> handler,
+			Consumer<Statement> statementListener) throws SQLException {
+		DBQueryStats stats = queryStats;
+		long startNanos = stats == null ? 0l : System.nanoTime();
+		Connection conn = getConnection();
+		long connNanos = stats == null ? 0l : System.nanoTime();
+		Preconditions.checkNotNull(conn, "Couldn't get a connection");
+		DBQueryStats.TemplateStats templateStats = stats == null ? null : stats.getTemplateStats(sql);
+		Statement stat = null;
+		ResultSet rs = null;
+		try {
+			// forward only and read only, which MySQL requires for streaming
+			stat = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			if (fetchSize >= 0 || fetchSize == STREAMING_FETCH_SIZE)
+				stat.setFetchSize(fetchSize);
+			if (statementListener != null)
+				statementListener.accept(stat);
+			if (PRINT_ALL_QUERIES)
+				System.out.println(sql);
+			rs = stat.executeQuery(sql+";");
+			if (stats != null)
+				rs = stats.wrapResultSet(rs, templateStats);
+			return handler.handle(rs);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stat != null)
+					stat.close();
+			} catch (SQLException e) {}
+			freeConnection(conn);
+			if (stats != null)
+				stats.recordQuery(templateStats, sql, System.nanoTime()-connNanos, connNanos-startNanos, -1);
+		}
+	}
+
+	/**
+	 * Handler which materializes every row as an array of column values
+	 */
+	public static final ResultSetHandler<List<Object[]>> ROWS_HANDLER = rs -> {
+		int numCols = rs.getMetaData().getColumnCount();
+		List<Object[]> rows = new ArrayList<>();
+		while (rs.next()) {
+			Object[] row = new Object[numCols];
+			for (int i=0; i<numCols; i++)
+				row[i] = rs.getObject(i+1);
+			rows.add(row);
+		}
+		return rows;
+	};
+
+	/**
+	 * Asynchronously runs the given select query, returning every row materialized as an array of column values.
+	 * @param sql
+	 * @return
+	 * @see #selectDataAsync(String, ResultSetHandler)
+	 */
+	public CompletableFuture<List<Object[]>> selectDataAsync(String sql) {
+		return selectDataAsync(sql, ROWS_HANDLER);
+	}
+
+	/**
+	 * Asynchronously runs the given select query, passing the result set to the given handler on a query thread
+	 * before the connection is released. At most {@link #getMaxAsyncQueries()} queries will run at once, and
+	 * identical queries with the same handler instance that are in flight at the same time share a single database
+	 * query (so handlers should be reused, e.g. as constants, and their results should not be modified). Cancelling
+	 * the returned future cancels the underlying query once all callers sharing it have cancelled.
+	 * @param sql
+	 * @param handler
+	 * @return
+	 */
+	public <T> CompletableFuture<T> selectDataAsync(String sql, ResultSetHandler<T> handler) {
+		return getAsyncExecutor().submit(sql, -1, handler);
+	}
+
+	private synchronized AsyncQueryExecutor getAsyncExecutor() {
+		Preconditions.checkState(available, "DBAccess has been destroyed");
+		if (asyncExec == null)
+			asyncExec = new AsyncQueryExecutor(this, getMaxAsyncQueries());
+		return asyncExec;
+	}
+
+	/**
+	 * @return maximum number of concurrent asynchronous queries. Defaults to the connection pool size, up to
+	 * {@link #DEFAULT_MAX_ASYNC_QUERIES}
+	 */
+	public synchronized int getMaxAsyncQueries() {
+		if (maxAsyncQueries > 0)
+			return maxAsyncQueries;
+		return Math.max(1, Math.min(maxConns, DEFAULT_MAX_ASYNC_QUERIES));
+	}
+
+	/**
+	 * Sets the maximum number of concurrent asynchronous queries, which will be limited to the connection pool size.
+	 * Must be called before the first asynchronous query.
+	 * @param maxAsyncQueries
+	 */
+	public synchronized void setMaxAsyncQueries(int maxAsyncQueries) {
+		Preconditions.checkArgument(maxAsyncQueries > 0);
+		Preconditions.checkState(asyncExec == null, "Asynchronous queries have already started");
+		this.maxAsyncQueries = Math.min(maxAsyncQueries, maxConns);
+	}
+
 } // End class
@@ -0,0 +1,416 @@
+package org.opensha.sha.cybershake.db;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Query level instrumentation for {@link DBAccess}. Queries are grouped by SQL template (the query with literal
+ * values replaced by '?' and IN lists collapsed), and for each template this tracks the number of queries, a latency
+ * histogram (power of 2 millisecond buckets), time spent waiting for a pooled connection, and rows returned. Queries
+ * slower than a configurable threshold are logged along with the calling class.
+ * <br>
+ * Stats are disabled by default, in which case {@link DBAccess} does no extra work beyond a null check. They can be
+ * enabled for a single instance via {@link DBAccess#setQueryStats(DBQueryStats)}, or for all instances by setting the
+ * {@value #ENABLED_PROP} system property to true. In that case, {@value #SLOW_QUERY_MILLIS_PROP} sets the slow query
+ * threshold and {@value #DUMP_SECONDS_PROP} enables a periodic summary dump. Stats are also available through JMX
+ * once {@link #registerMBean()} has been called.
+ *
+ * @author kevin
+ *
+ */
+public class DBQueryStats implements DBQueryStatsMBean {
+
+	public static final String ENABLED_PROP = "cybershake.db.stats";
+	public static final String SLOW_QUERY_MILLIS_PROP = "cybershake.db.slowQueryMillis";
+	public static final String DUMP_SECONDS_PROP = "cybershake.db.statsDumpSeconds";
+
+	public static final long DEFAULT_SLOW_QUERY_MILLIS = 5000;
+
+	// bucket i contains latencies in [2^(i-1), 2^i) ms, bucket 0 is < 1 ms
+	private static final int NUM_BUCKETS = 24;
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+	private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private String name;
+	private volatile long slowQueryMillis;
+
+	private ConcurrentMap<String, TemplateStats> templates = new ConcurrentHashMap<>();
+	private LongAdder poolBackoffs = new LongAdder();
+
+	private ScheduledExecutorService dumpExec;
+	private ObjectName mbeanName;
+
+	public DBQueryStats(String name) {
+		this(name, DEFAULT_SLOW_QUERY_MILLIS);
+	}
+
+	/**
+	 * @param name name used for JMX registration and summaries
+	 * @param slowQueryMillis queries taking at least this long will be logged, or zero to disable
+	 */
+	public DBQueryStats(String name, long slowQueryMillis) {
+		this.name = name;
+		this.slowQueryMillis = slowQueryMillis;
+	}
+
+	/**
+	 * @param name
+	 * @return stats configured from system properties, or null if not enabled via {@value #ENABLED_PROP}
+	 */
+	static DBQueryStats fromSystemProperties(String name) {
+		if (!Boolean.getBoolean(ENABLED_PROP))
+			return null;
+		DBQueryStats stats = new DBQueryStats(name, Long.getLong(SLOW_QUERY_MILLIS_PROP, DEFAULT_SLOW_QUERY_MILLIS));
+		try {
+			stats.registerMBean();
+		} catch (Exception e) {
+			System.err.println("WARNING: couldn't register DB query stats MBean: "+e.getMessage());
+		}
+		long dumpSecs = Long.getLong(DUMP_SECONDS_PROP, 0l);
+		if (dumpSecs > 0)
+			stats.startPeriodicDump(dumpSecs, TimeUnit.SECONDS);
+		return stats;
+	}
+
+	/**
+	 * @param sql
+	 * @return template for the given SQL, with literals replaced by '?', IN lists collapsed, and whitespace normalized
+	 */
+	public static String toTemplate(String sql) {
+		String template = STRING_LITERAL.matcher(sql).replaceAll("?");
+		template = NUMBER_LITERAL.matcher(template).replaceAll("?");
+		template = IN_LIST.matcher(template).replaceAll("(?...)");
+		template = WHITESPACE.matcher(template).replaceAll(" ");
+		return template.trim();
+	}
+
+	TemplateStats getTemplateStats(String sql) {
+		return templates.computeIfAbsent(toTemplate(sql), TemplateStats::new);
+	}
+
+	void recordQuery(TemplateStats stats, String sql, long queryNanos, long poolWaitNanos, long rows) {
+		stats.record(queryNanos, poolWaitNanos);
+		if (rows > 0)
+			stats.rows.add(rows);
+		long slowMillis = slowQueryMillis;
+		long totMillis = (queryNanos + poolWaitNanos)/1000000l;
+		if (slowMillis > 0 && totMillis >= slowMillis) {
+			String logSQL = sql.length() > 1000 ? sql.substring(0, 1000)+"..." : sql;
+			System.out.println("SLOW QUERY ("+queryNanos/1000000l+" ms, waited "+poolWaitNanos/1000000l
+					+" ms for connection) from "+getCaller()+": "+logSQL);
+		}
+	}
+
+	void recordPoolBackoff() {
+		poolBackoffs.increment();
+	}
+
+	/**
+	 * Wraps the given result set such that rows are counted as they are iterated
+	 * @param rs
+	 * @param stats
+	 * @return
+	 */
+	ResultSet wrapResultSet(ResultSet rs, TemplateStats stats) {
+		if (rs == null)
+			return null;
+		return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				new RowCountingHandler(rs, stats));
+	}
+
+	private static class RowCountingHandler implements InvocationHandler {
+
+		private ResultSet rs;
+		private TemplateStats stats;
+
+		public RowCountingHandler(ResultSet rs, TemplateStats stats) {
+			this.rs = rs;
+			this.stats = stats;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object ret;
+			try {
+				ret = method.invoke(rs, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (method.getName().equals("next") && Boolean.TRUE.equals(ret))
+				stats.rows.increment();
+			return ret;
+		}
+
+	}
+
+	private static String getCaller() {
+		for (StackTraceElement elem : new Throwable().getStackTrace()) {
+			String className = elem.getClassName();
+			if (className.equals(DBQueryStats.class.getName()) || className.equals(DBAccess.class.getName())
+					|| className.startsWith("java.") || className.startsWith("sun.") || className.startsWith("jdk.")
+					|| className.startsWith("com.sun.proxy"))
+				continue;
+			return className+"."+elem.getMethodName()+":"+elem.getLineNumber();
+		}
+		return "unknown";
+	}
+
+	public static class TemplateStats {
+
+		private String template;
+		private LongAdder count = new LongAdder();
+		private LongAdder totNanos = new LongAdder();
+		private AtomicLong maxNanos = new AtomicLong();
+		private LongAdder poolWaitNanos = new LongAdder();
+		private LongAdder rows = new LongAdder();
+		private AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+		private TemplateStats(String template) {
+			this.template = template;
+		}
+
+		private void record(long nanos, long waitNanos) {
+			count.increment();
+			totNanos.add(nanos);
+			poolWaitNanos.add(waitNanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+			long millis = nanos/1000000l;
+			int bucket = millis == 0 ? 0 : Math.min(NUM_BUCKETS-1, 64 - Long.numberOfLeadingZeros(millis));
+			buckets.incrementAndGet(bucket);
+		}
+
+		public String getTemplate() {
+			return template;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getTotalMillis() {
+			return totNanos.sum()/1e6;
+		}
+
+		public double getMeanMillis() {
+			long count = getCount();
+			return count == 0 ? 0d : getTotalMillis()/count;
+		}
+
+		public double getMaxMillis() {
+			return maxNanos.get()/1e6;
+		}
+
+		public double getPoolWaitMillis() {
+			return poolWaitNanos.sum()/1e6;
+		}
+
+		public long getRows() {
+			return rows.sum();
+		}
+
+		/**
+		 * @param fract fractile, e.g. 0.9 for the 90th percentile
+		 * @return upper bound in milliseconds of the histogram bucket containing the given fractile
+		 */
+		public double getFractileMillis(double fract) {
+			Preconditions.checkArgument(fract >= 0d && fract <= 1d);
+			long[] counts = new long[NUM_BUCKETS];
+			long tot = 0;
+			for (int i=0; i<NUM_BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				tot += counts[i];
+			}
+			if (tot == 0)
+				return 0d;
+			long target = (long)Math.ceil(fract*tot);
+			long running = 0;
+			for (int i=0; i<NUM_BUCKETS; i++) {
+				running += counts[i];
+				if (running >= target && running > 0)
+					return i == NUM_BUCKETS-1 ? getMaxMillis() : (double)(1l << i);
+			}
+			return getMaxMillis();
+		}
+
+	}
+
+	/**
+	 * @return stats for each template, sorted by total time, decreasing
+	 */
+	public List<TemplateStats> getTemplateStats() {
+		List<TemplateStats> list = new ArrayList<>(templates.values());
+		Collections.sort(list, new Comparator<TemplateStats>() {
+
+			@Override
+			public int compare(TemplateStats o1, TemplateStats o2) {
+				return Double.compare(o2.getTotalMillis() + o2.getPoolWaitMillis(),
+						o1.getTotalMillis() + o1.getPoolWaitMillis());
+			}
+		});
+		return list;
+	}
+
+	@Override
+	public long getTotalQueries() {
+		long tot = 0;
+		for (TemplateStats stats : templates.values())
+			tot += stats.getCount();
+		return tot;
+	}
+
+	@Override
+	public long getTotalQueryMillis() {
+		double tot = 0;
+		for (TemplateStats stats : templates.values())
+			tot += stats.getTotalMillis();
+		return (long)tot;
+	}
+
+	@Override
+	public long getTotalPoolWaitMillis() {
+		double tot = 0;
+		for (TemplateStats stats : templates.values())
+			tot += stats.getPoolWaitMillis();
+		return (long)tot;
+	}
+
+	@Override
+	public long getTotalPoolBackoffs() {
+		return poolBackoffs.sum();
+	}
+
+	@Override
+	public long getTotalRows() {
+		long tot = 0;
+		for (TemplateStats stats : templates.values())
+			tot += stats.getRows();
+		return tot;
+	}
+
+	@Override
+	public int getNumTemplates() {
+		return templates.size();
+	}
+
+	@Override
+	public long getSlowQueryMillis() {
+		return slowQueryMillis;
+	}
+
+	@Override
+	public void setSlowQueryMillis(long slowQueryMillis) {
+		this.slowQueryMillis = slowQueryMillis;
+	}
+
+	@Override
+	public String getSummary() {
+		return getSummary(20);
+	}
+
+	/**
+	 * @param maxTemplates maximum number of templates to include
+	 * @return summary table of the templates with the highest total time
+	 */
+	public String getSummary(int maxTemplates) {
+		StringBuilder str = new StringBuilder();
+		str.append("DB query stats for ").append(name).append(": ").append(getTotalQueries()).append(" queries, ")
+			.append(getTotalQueryMillis()/1000d).append(" s querying, ").append(getTotalPoolWaitMillis()/1000d)
+			.append(" s waiting for connections (").append(getTotalPoolBackoffs()).append(" pool back-offs), ")
+			.append(getTotalRows()).append(" rows, ").append(getNumTemplates()).append(" templates\n");
+		str.append(String.format("%10s %10s %10s %8s %8s %8s %10s %10s %12s  %s\n",
+				"Count", "Total (s)", "Mean (ms)", "p50", "p90", "p99", "Max (ms)", "Wait (s)", "Rows", "Template"));
+		List<TemplateStats> list = getTemplateStats();
+		for (int i=0; i<list.size() && i<maxTemplates; i++) {
+			TemplateStats stats = list.get(i);
+			String template = stats.getTemplate();
+			if (template.length() > 150)
+				template = template.substring(0, 150)+"...";
+			str.append(String.format("%10d %10.2f %10.2f %8.0f %8.0f %8.0f %10.1f %10.2f %12d  %s\n",
+					stats.getCount(), stats.getTotalMillis()/1000d, stats.getMeanMillis(),
+					stats.getFractileMillis(0.5), stats.getFractileMillis(0.9), stats.getFractileMillis(0.99),
+					stats.getMaxMillis(), stats.getPoolWaitMillis()/1000d, stats.getRows(), template));
+		}
+		return str.toString();
+	}
+
+	@Override
+	public void reset() {
+		templates.clear();
+		poolBackoffs.reset();
+	}
+
+	/**
+	 * Registers this as a platform MBean
+	 * @throws Exception
+	 */
+	public synchronized void registerMBean() throws Exception {
+		if (mbeanName != null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objName = new ObjectName(DBQueryStats.class.getPackage().getName()
+				+":type=DBQueryStats,name="+ObjectName.quote(name+"@"+Integer.toHexString(hashCode())));
+		server.registerMBean(this, objName);
+		mbeanName = objName;
+	}
+
+	public synchronized void unregisterMBean() {
+		if (mbeanName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * Starts a daemon thread which prints a summary at the given interval
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void startPeriodicDump(long period, TimeUnit unit) {
+		stopPeriodicDump();
+		dumpExec = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "DBQueryStats dump: "+name);
+			t.setDaemon(true);
+			return t;
+		});
+		dumpExec.scheduleAtFixedRate(() -> System.out.println(getSummary()), period, period, unit);
+	}
+
+	public synchronized void stopPeriodicDump() {
+		if (dumpExec != null) {
+			dumpExec.shutdownNow();
+			dumpExec = null;
+		}
+	}
+
+}
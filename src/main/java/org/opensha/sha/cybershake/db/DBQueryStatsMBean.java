@@ -0,0 +1,34 @@
+package org.opensha.sha.cybershake.db;
+
+/**
+ * JMX view of {@link DBQueryStats}
+ *
+ * @author kevin
+ *
+ */
+public interface DBQueryStatsMBean {
+
+	public long getTotalQueries();
+
+	public long getTotalQueryMillis();
+
+	public long getTotalPoolWaitMillis();
+
+	public long getTotalPoolBackoffs();
+
+	public long getTotalRows();
+
+	public int getNumTemplates();
+
+	public long getSlowQueryMillis();
+
+	public void setSlowQueryMillis(long slowQueryMillis);
+
+	/**
+	 * @return summary table of the most expensive SQL templates
+	 */
+	public String getSummary();
+
+	public void reset();
+
+}
@@ -10,6 +10,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.geo.GriddedRegion;
@@ -34,7 +39,11 @@ import org.opensha.sha.faultSurface.RuptureSurface;
 import org.opensha.sha.simulators.SimulatorElement;
 import org.opensha.sha.faultSurface.PointSurface;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -57,6 +66,14 @@ public  class ERF2DB implements ERF2DBAPI{
 	 * Mapping of ERF ID to <Source ID, Rupture ID, Probability>
 	 */
 	private Map<Integer, Table<Integer, Integer, Double>> erfProbMap = Maps.newHashMap();
+	
+	/**
+	 * Bulk loaded rupture data for each ERF ID. Data with points can be very large, so only the most recently used are
+	 * kept and they can be garbage collected under memory pressure
+	 */
+	private static final int MAX_RUP_DATA_CACHE_SIZE = 2;
+	private Cache<Integer, ERFRuptureData> erfRupDataCache =
+			CacheBuilder.newBuilder().maximumSize(MAX_RUP_DATA_CACHE_SIZE).softValues().build();
 
 	public ERF2DB(DBAccess dbaccess){
 		this.dbaccess = dbaccess;
@@ -78,6 +95,9 @@ public  class ERF2DB implements ERF2DBAPI{
 	 * @return
 	 */
 	public ArrayList<CybershakeERF> getAllERFs() {
+		List<CybershakeERF> cached = dbaccess.getMetadataRegistry().getAllERFs();
+		if (cached != null)
+			return new ArrayList<CybershakeERF>(cached);
 		ArrayList<CybershakeERF> erfs = new ArrayList<CybershakeERF>();
 
 		String sql = "SELECT ERF_ID,ERF_Name,ERF_Description from ERF_IDs order by ERF_ID desc";
@@ -106,44 +126,61 @@ public  class ERF2DB implements ERF2DBAPI{
 	}
 
 	public ArrayList<CyberShakeProbEqkSource> getSources(int erfID) {
+		return getSources(erfID, false);
+	}
+	
+	/**
+	 * Builds all sources for the given ERF from bulk rupture data (see {@link #getRuptureData(int, boolean)}).
+	 * Rupture surfaces are built lazily, from the loaded points if loadPoints is true, otherwise
+	 * from a points query for each rupture.
+	 * @param erfID
+	 * @param loadPoints if true, surface points for all ruptures will be loaded up front in a single query
+	 * @return
+	 */
+	public ArrayList<CyberShakeProbEqkSource> getSources(int erfID, boolean loadPoints) {
+		ERFRuptureData data = getRuptureData(erfID, loadPoints);
+		
 		ArrayList<CyberShakeProbEqkSource> sources = new ArrayList<CyberShakeProbEqkSource>();
-
-		ArrayList<Integer> ids = new ArrayList<Integer>();
-		ArrayList<String> names = new ArrayList<String>();
-
-		this.loadSourceList(erfID, ids, names);
-
-		if (ids.size() != names.size()) {
-			throw new RuntimeException("Source ID list and Names list are different sizes!");
-		}
-
-		int maxID = 0;
-		for (int id : ids) {
-			if (id > maxID)
-				maxID = id;
-		}
-
-		for (int i=0; i< ids.size(); i++) {
-			int sourceID = ids.get(i);
-			String name = names.get(i);
-
-			System.out.println("Loading source " + sourceID + "/" + maxID + " (" + name + ")");
-
-			CyberShakeProbEqkSource source = new CyberShakeProbEqkSource(name);
-
-			ArrayList<Integer> rupIDs = this.getRuptureIDs(erfID, sourceID);
-			for (int rupID : rupIDs) {
-				CyberShakeEqkRupture rup = this.getRupture(erfID, sourceID, rupID);
-				source.addRupture(rup);
-			}
-
+		for (int s=0; s<data.getNumSources(); s++) {
+			CyberShakeProbEqkSource source = new CyberShakeProbEqkSource(data.getSourceName(s));
+			for (int i=data.getSourceStartIndex(s); i<data.getSourceEndIndex(s); i++)
+				source.addRupture(new CyberShakeEqkRupture(data.getMag(i), data.getProb(i), null,
+						data.getSourceID(i), data.getRupID(i), erfID, this));
 			sources.add(source);
 		}
-
+		
 		return sources;
 	}
+	
+	/**
+	 * Loads rupture data for the given ERF in bulk, or returns the cached data if already loaded. Once loaded,
+	 * rupture and surface lookups for this ERF will use this data rather than querying each rupture individually.
+	 * @param erfID
+	 * @param loadPoints if true, surface points for all ruptures will also be loaded
+	 * @return
+	 */
+	public synchronized ERFRuptureData getRuptureData(int erfID, boolean loadPoints) {
+		ERFRuptureData data = erfRupDataCache.getIfPresent(erfID);
+		if (data == null || (loadPoints && !data.hasPoints())) {
+			try {
+				data = ERFRuptureData.load(dbaccess, erfID, loadPoints);
+			} catch (SQLException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			erfRupDataCache.put(erfID, data);
+		}
+		return data;
+	}
+	
+	private synchronized ERFRuptureData getCachedRuptureData(int erfID) {
+		return erfRupDataCache.getIfPresent(erfID);
+	}
 
 	public CyberShakeEqkRupture getRupture(int erfID, int sourceID, int rupID) {
+		ERFRuptureData data = getCachedRuptureData(erfID);
+		int index = data == null ? -1 : data.getIndex(sourceID, rupID);
+		if (index >= 0)
+			return new CyberShakeEqkRupture(data.getMag(index), data.getProb(index), null, sourceID, rupID, erfID, this);
 		double mag = this.getRuptureDouble("Mag", erfID, sourceID, rupID);
 		double prob = this.getRuptureDouble("Prob", erfID, sourceID, rupID);
 		//		CyberShakeEvenlyGriddedSurface surface = getRuptureSurface(erfID, sourceID, rupID);
@@ -152,11 +189,24 @@ public  class ERF2DB implements ERF2DBAPI{
 	}
 
 	public CyberShakeEvenlyGriddedSurface getRuptureSurface(int erfID, int sourceID, int rupID) {
+		ERFRuptureData data = getCachedRuptureData(erfID);
+		int index = data == null ? -1 : data.getIndex(sourceID, rupID);
+		if (index >= 0 && data.hasPoints())
+			return data.buildSurface(index);
+		
 		System.out.print("Loading surface for " + sourceID + " " + rupID + "...");
 
-		int numRows = getRuptureInt("Num_Rows", erfID, sourceID, rupID);
-		int numCols = getRuptureInt("Num_Columns", erfID, sourceID, rupID);
-		double spacing = getRuptureDouble("Grid_Spacing", erfID, sourceID, rupID);
+		int numRows, numCols;
+		double spacing;
+		if (index >= 0) {
+			numRows = data.getNumRows(index);
+			numCols = data.getNumCols(index);
+			spacing = data.getGridSpacing(index);
+		} else {
+			numRows = getRuptureInt("Num_Rows", erfID, sourceID, rupID);
+			numCols = getRuptureInt("Num_Columns", erfID, sourceID, rupID);
+			spacing = getRuptureDouble("Grid_Spacing", erfID, sourceID, rupID);
+		}
 		ArrayList<Location> locs = this.getRuptureSurfacePoints(erfID, sourceID, rupID);
 
 		CyberShakeEvenlyGriddedSurface surface = new CyberShakeEvenlyGriddedSurface(numRows, numCols, spacing);
@@ -248,6 +298,9 @@ public  class ERF2DB implements ERF2DBAPI{
 	 * @return
 	 */
 	public CybershakeERF getERF(int erfID) {
+		CybershakeERF cached = dbaccess.getMetadataRegistry().getERF(erfID);
+		if (cached != null)
+			return cached;
 		String sql = "SELECT ERF_ID,ERF_Name,ERF_Description from ERF_IDs WHERE ERF_ID=" + erfID;
 		ResultSet rs = null;
 		try {
@@ -592,31 +645,29 @@ public  class ERF2DB implements ERF2DBAPI{
 	public void insertRuptureSurface(int erfId, ArrayList<Integer> sourceId, ArrayList<Integer> ruptureId, 
 			ArrayList<Double> lat, ArrayList<Double> lon, ArrayList<Double> depth, ArrayList<Double> rake, 
 			ArrayList<Double> dip, ArrayList<Double> strike) {
-		//		generate the SQL to be inserted in the ERF_Metadata table
-		String sql = null;
+		//		multi-row inserts on the pooled connection, at most maxInsertPoints rows per statement
 		int size = sourceId.size();
 		int maxInsertPoints = 1000;
+		StringBuilder sql = null;
 		try {
 			for (int i=0; i<size; i++) {
-
 				if (i % maxInsertPoints == 0) {
-					if (i > 0) {
-						dbaccess.insertUpdateOrDeleteData(sql);
-					}
-
-					sql = "INSERT into Points"+ 
-					"(ERF_ID,Source_ID,Rupture_ID,Lat,Lon,Depth,Rake,Dip,Strike) VALUES";
-				}
-				sql += "('"+erfId+"','"+sourceId.get(i)+"','"+
-				ruptureId.get(i)+"','"+lat.get(i).floatValue()+"','"+lon.get(i).floatValue()+"','"+depth.get(i).floatValue()+"','"+
-				rake.get(i).floatValue()+"','"+dip.get(i).floatValue()+"','"+strike.get(i).floatValue()+"') ";
-				if ((i + 1) == size || (i + 1) % maxInsertPoints == 0) { // this is the last one, no comma at end
-
+					if (i > 0)
+						dbaccess.insertUpdateOrDeleteData(sql.toString());
+					sql = new StringBuilder("INSERT into Points(").append(Joiner.on(",").join(POINT_COLUMNS))
+							.append(") VALUES");
 				} else {
-					sql += ",";
+					sql.append(",");
 				}
+				Float pointStrike = nullIfNaN(strike.get(i));
+				sql.append("('").append(erfId).append("','").append(sourceId.get(i)).append("','")
+					.append(ruptureId.get(i)).append("','").append(lat.get(i).floatValue()).append("','")
+					.append(lon.get(i).floatValue()).append("','").append(depth.get(i).floatValue()).append("','")
+					.append(rake.get(i).floatValue()).append("','").append(dip.get(i).floatValue()).append("',")
+					.append(pointStrike == null ? "NULL" : "'"+pointStrike+"'").append(")");
 			}
-			dbaccess.insertUpdateOrDeleteData(sql);
+			if (sql != null)
+				dbaccess.insertUpdateOrDeleteData(sql.toString());
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			int num = sql.length() - 1;
@@ -629,7 +680,9 @@ public  class ERF2DB implements ERF2DBAPI{
 	}
 
 	/**
-	 * Inserts surface locations information for each rupture in table "Points"
+	 * Inserts surface locations information for each rupture in table "Points". Identical to
+	 * {@link #insertRuptureSurface(int, ArrayList, ArrayList, ArrayList, ArrayList, ArrayList, ArrayList, ArrayList, ArrayList)},
+	 * which now uses multi-row inserts.
 	 * @param erfName
 	 * @param sourceId
 	 * @param ruptureId
@@ -643,29 +696,13 @@ public  class ERF2DB implements ERF2DBAPI{
 	public void insertBatchRuptureSurface(int erfId, ArrayList<Integer> sourceId, ArrayList<Integer> ruptureId, 
 			ArrayList<Double> lat, ArrayList<Double> lon, ArrayList<Double> depth, ArrayList<Double> rake, 
 			ArrayList<Double> dip, ArrayList<Double> strike) {
+		insertRuptureSurface(erfId, sourceId, ruptureId, lat, lon, depth, rake, dip, strike);
+	}
 
-		ArrayList<Integer> sourceIds = new ArrayList<Integer>();
-		ArrayList<Integer> ruptureIds = new ArrayList<Integer>(); 
-		ArrayList<Double> lats = new ArrayList<Double>();
-		ArrayList<Double> lons = new ArrayList<Double>();
-		ArrayList<Double> depths = new ArrayList<Double>();
-		ArrayList<Double> rakes = new ArrayList<Double>(); 
-		ArrayList<Double> dips = new ArrayList<Double>();
-		ArrayList<Double> strikes = new ArrayList<Double>();
-
-		for (int i=0; i<sourceIds.size(); i++) {
-			if (i % 1000 == 0) {
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-				sourceIds.clear();
-			}
-		}
+	private static Float nullIfNaN(double val) {
+		if (Double.isNaN(val))
+			return null;
+		return (float)val;
 	}
 
 	/**
@@ -764,7 +801,7 @@ public  class ERF2DB implements ERF2DBAPI{
 		this.insertSrcRupInDB(getInserted_ERF_ID(eqkRupForecast.getName()), null, 0, 0);
 	}
 
-	private boolean isInsideCutoffForRegion(GriddedRegion region, ProbEqkRupture rupture) {
+	private static boolean isInsideCutoffForRegion(GriddedRegion region, ProbEqkRupture rupture) {
 
 		long startTime = System.currentTimeMillis();
 
@@ -793,33 +830,21 @@ public  class ERF2DB implements ERF2DBAPI{
 		return false;
 	}
 
+	/**
+	 * Inserts ruptures from this ERF, starting at the given source and rupture, through
+	 * {@link #bulkInsertSrcRupInDB(ERF, int, GriddedRegion, int, int, boolean, int, File)}. If this is file based,
+	 * rupture files are also written.
+	 * @param erfId
+	 * @param region if non null, only ruptures within the site cutoff distance of the region will be inserted
+	 * @param startSource
+	 * @param startRup first rupture to insert for the start source
+	 */
 	public void insertSrcRupInDB(int erfId, GriddedRegion region, int startSource, int startRup){
-		int numSources = eqkRupForecast.getNumSources();
-
-		boolean forRegion = (region != null);
-		for(int sourceId = 0;sourceId<numSources;++sourceId){
-			if (sourceId < startSource)
-				continue;
-			//			 get the ith source
-			ProbEqkSource source  = (ProbEqkSource)eqkRupForecast.getSource(sourceId);
-			int numRuptures = source.getNumRuptures();
-			System.out.println("Insert source "+(sourceId+1)+" of "+numSources + " (" + numRuptures + " rups)");
-			for(int ruptureId=0;ruptureId<numRuptures;++ruptureId){
-				if (ruptureId < startRup)
-					continue;
-				else
-					startRup = 0;
-				System.out.println("Inserting rupture " + (ruptureId+1) + " of " + numRuptures);
-				//getting the rupture on the source and its gridCentered Surface
-				ProbEqkRupture rupture = source.getRupture(ruptureId);
-
-				if (forRegion) {
-					if (!this.isInsideCutoffForRegion(region, rupture))
-						continue;
-				}
-
-				this.insertSrcRupInDB(eqkRupForecast, erfId, sourceId, ruptureId);
-			}
+		try {
+			bulkInsertSrcRupInDB(eqkRupForecast, erfId, region, startSource, startRup, fileBased,
+					BulkInserter.DEFAULT_BATCH_SIZE, null);
+		} catch (SQLException | IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
 		}
 	}
 
@@ -836,7 +861,7 @@ public  class ERF2DB implements ERF2DBAPI{
 					continue;
 				}
 			}
-			if (this.isInsideCutoffForRegion(region, source.getRupture(ruptureId))) {
+			if (isInsideCutoffForRegion(region, source.getRupture(ruptureId))) {
 				System.out.println("Found one that's not in there!");
 				this.insertSrcRupInDB(forecast, erfID, sourceID, ruptureId);
 			}
@@ -857,65 +882,14 @@ public  class ERF2DB implements ERF2DBAPI{
 		String sourceName = source.getName();
 		// getting the rupture on the source and its gridCentered Surface
 		ProbEqkRupture rupture = source.getRupture(rupID);
-		double mag = rupture.getMag();
-		double prob = rupture.getProbability();
-		double aveRake = rupture.getAveRake();
 		RuptureSurface rupSurface = rupture.getRuptureSurface();
-		double dip = rupSurface.getAveDip();
-		int numRows, numCols, numPoints;
-		double gridSpacing;
-		Location surfaceStartLocation, surfaceEndLocation;
-		if (rupture instanceof RSQSimProbEqkRup) {
-			numRows = -1;
-			numCols = -1;
-			RSQSimProbEqkRup rsRup = (RSQSimProbEqkRup)rupture;
-			numPoints = rsRup.getElements().size();
-			double aveArea = 0d;
-			for (SimulatorElement elem : rsRup.getElements())
-				aveArea += elem.getArea();
-			aveArea *= 1e-6;
-			aveArea /= numPoints;
-			gridSpacing = Math.sqrt(aveArea); // approx
-			Range<Double> latRange = rsRup.getElemLatRange();
-			Range<Double> lonRange = rsRup.getElemLonRange();
-			Range<Double> depthRange = rsRup.getElemDepthRange();
-			surfaceStartLocation = new Location(latRange.lowerEndpoint(), lonRange.lowerEndpoint(), depthRange.lowerEndpoint());
-			surfaceEndLocation = new Location(latRange.upperEndpoint(), lonRange.upperEndpoint(), depthRange.upperEndpoint());
-		} else if (rupSurface instanceof PointSurface) {
-			Location loc = ((PointSurface)rupSurface).getLocation();
-			numRows = 1;
-			numCols = 1;
-			numPoints = numRows * numCols;
-			gridSpacing = 1;
-			surfaceStartLocation = loc;
-			surfaceEndLocation = loc;
-		} else {
-			Preconditions.checkState(rupSurface instanceof EvenlyGriddedSurface);
-			AbstractEvenlyGriddedSurface gridSurface = new EvenlyGridCenteredSurface(
-					(EvenlyGriddedSurface)rupture.getRuptureSurface());
-			// Local Strike for each grid centered location on the rupture
-			double[] localStrikeList = getLocalStrikeList(gridSurface);
-			numRows = gridSurface.getNumRows();
-			numCols = gridSurface.getNumCols();
-			numPoints = numRows * numCols;
-			gridSpacing = gridSurface.getGridSpacingAlongStrike();
-			if(!gridSurface.isGridSpacingSame()) throw new RuntimeException(
-					"this may not work now that grid spacing can differ along strike and down dip");
-			surfaceStartLocation = (Location) gridSurface.get(0, 0);
-			surfaceEndLocation = (Location) gridSurface.get(0, numCols - 1);
-		}
+		RuptureRecord record = new RuptureRecord(rupture, false);
 		
-		double surfaceStartLat = surfaceStartLocation.getLatitude();
-		double surfaceStartLon = surfaceStartLocation.getLongitude();
-		double surfaceStartDepth = surfaceStartLocation.getDepth();
-		double surfaceEndLat = surfaceEndLocation.getLatitude();
-		double surfaceEndLon = surfaceEndLocation.getLongitude();
-		double surfaceEndDepth = surfaceEndLocation.getDepth();
 		System.out.println("Inserting rupture into database...");
-		insertERFRuptureInfo(erfID, sourceID, rupID, sourceName, null, mag,
-				prob, gridSpacing, surfaceStartLat, surfaceStartLon,
-				surfaceStartDepth, surfaceEndLat, surfaceEndLon,
-				surfaceEndDepth, numRows, numCols, numPoints);
+		insertERFRuptureInfo(erfID, sourceID, rupID, sourceName, null, record.mag,
+				record.prob, record.gridSpacing, record.start.getLatitude(), record.start.getLongitude(),
+				record.start.getDepth(), record.end.getLatitude(), record.end.getLongitude(),
+				record.end.getDepth(), record.numRows, record.numCols, record.numPoints);
 		System.out.println("Inserting rupture surface points into database...");
 		//		for (int k = 0; k < numRows; ++k) {
 		//			for (int j = 0; j < numCols; ++j) {
@@ -961,6 +935,256 @@ public  class ERF2DB implements ERF2DBAPI{
 		}
 	}
 
+	static final String[] RUPTURE_COLUMNS = { "ERF_ID", "Source_ID", "Rupture_ID", "Source_Name", "Source_Type",
+			"Mag", "Prob", "Grid_Spacing", "Num_Rows", "Num_Columns", "Num_Points", "Start_Lat", "Start_Lon",
+			"Start_Depth", "End_Lat", "End_Lon", "End_Depth" };
+	static final String[] POINT_COLUMNS = { "ERF_ID", "Source_ID", "Rupture_ID", "Lat", "Lon", "Depth", "Rake",
+			"Dip", "Strike" };
+
+	/**
+	 * Number of discretized sources which can be queued up waiting to be written in
+	 * {@link #bulkInsertSrcRupInDB(ERF, int, boolean, int, File)}
+	 */
+	public static final int BULK_INSERT_QUEUE_SIZE = 32;
+
+	/**
+	 * Bulk inserts every rupture (and optionally every surface point) for the given forecast using JDBC batches.
+	 * Ruptures are discretized on a separate thread while previously discretized sources are written, and
+	 * each source is committed atomically along with a progress marker so that an interrupted ingest can be
+	 * resumed by calling this again with the same progress file. If this is file based, surface points are written
+	 * to rupture files instead of the Points table.
+	 * @param forecast
+	 * @param erfID
+	 * @param includePoints if true, surface points will be inserted for each rupture
+	 * @param batchSize number of rows per JDBC batch
+	 * @param progressFile file where the last committed source ID is stored, or null to start from scratch
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public void bulkInsertSrcRupInDB(ERF forecast, int erfID, boolean includePoints, int batchSize,
+			File progressFile) throws SQLException, IOException {
+		bulkInsertSrcRupInDB(forecast, erfID, null, 0, 0, includePoints, batchSize, progressFile);
+	}
+
+	/**
+	 * Same as {@link #bulkInsertSrcRupInDB(ERF, int, boolean, int, File)}, but with an optional region filter and
+	 * starting point
+	 * @param forecast
+	 * @param erfID
+	 * @param region if non null, only ruptures within the site cutoff distance of the region will be inserted
+	 * @param startSource first source to insert, ignored if the progress file has a marker
+	 * @param startRup first rupture to insert for the start source, ignored if the progress file has a marker
+	 * @param includePoints if true, surface points will be inserted for each rupture
+	 * @param batchSize number of rows per JDBC batch
+	 * @param progressFile file where the last committed source ID is stored, or null to start from scratch
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public void bulkInsertSrcRupInDB(ERF forecast, int erfID, GriddedRegion region, int startSource, int startRup,
+			boolean includePoints, int batchSize, File progressFile) throws SQLException, IOException {
+		int numSources = forecast.getNumSources();
+		String progress = BulkInserter.readProgress(progressFile);
+		if (progress != null) {
+			startSource = Integer.parseInt(progress)+1;
+			startRup = 0;
+			System.out.println("Resuming bulk insert for ERF "+erfID+" after source "+progress);
+		}
+		boolean pointsToFiles = includePoints && fileBased;
+		if (pointsToFiles && !erfDir.exists())
+			Preconditions.checkState(erfDir.mkdir(), "couldn't create: "+erfDir.getPath());
+
+		BlockingQueue<SourceRecords> queue = new ArrayBlockingQueue<>(BULK_INSERT_QUEUE_SIZE);
+		AtomicReference<Throwable> producerException = new AtomicReference<>();
+		int firstSource = startSource;
+		int firstRup = startRup;
+		Thread producer = new Thread(() -> {
+			try {
+				for (int sourceID=firstSource; sourceID<numSources; sourceID++)
+					queue.put(new SourceRecords(forecast, sourceID, sourceID == firstSource ? firstRup : 0, region,
+							includePoints && !fileBased, pointsToFiles ? erfDir : null, gZipFiles));
+			} catch (Throwable t) {
+				producerException.set(t);
+			}
+		}, "ERF2DB rupture discretization");
+		producer.setDaemon(true);
+
+		Stopwatch watch = Stopwatch.createStarted();
+		BulkInserter inserter = new BulkInserter(dbaccess, batchSize);
+		try {
+			inserter.setProgressFile(progressFile);
+			BulkInserter.TableBatch rupBatch = inserter.forTable("Ruptures", RUPTURE_COLUMNS);
+			BulkInserter.TableBatch pointBatch = null;
+			if (includePoints && !fileBased)
+				pointBatch = inserter.forTable("Points", POINT_COLUMNS);
+			producer.start();
+			int numRups = 0;
+			for (int sourceID=startSource; sourceID<numSources;) {
+				SourceRecords records = queue.poll(1, TimeUnit.SECONDS);
+				if (records == null) {
+					if (producerException.get() != null)
+						throw ExceptionUtils.asRuntimeException(producerException.get());
+					Preconditions.checkState(producer.isAlive() || !queue.isEmpty(),
+							"Discretization thread exited early at source %s", sourceID);
+					continue;
+				}
+				Preconditions.checkState(records.sourceID == sourceID);
+				records.write(erfID, rupBatch, pointBatch);
+				numRups += records.ruptures.size();
+				inserter.mark(sourceID+"");
+				sourceID++;
+			}
+			inserter.close();
+			System.out.println("Bulk inserted "+numRups+" ruptures ("+inserter.getRowsWritten()+" rows) for "
+					+(numSources-startSource)+" sources in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+		} catch (SQLException | IOException | RuntimeException e) {
+			inserter.abort();
+			throw e;
+		} catch (InterruptedException e) {
+			inserter.abort();
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			producer.interrupt();
+		}
+	}
+
+	/**
+	 * Discretized rows for all ruptures in a source
+	 */
+	private static class SourceRecords {
+		private int sourceID;
+		private String sourceName;
+		private List<Integer> rupIDs;
+		private List<RuptureRecord> ruptures;
+
+		public SourceRecords(ERF forecast, int sourceID, int startRup, GriddedRegion region, boolean includePoints,
+				File erfDir, boolean gZipFiles) throws IOException {
+			ProbEqkSource source = forecast.getSource(sourceID);
+			this.sourceID = sourceID;
+			this.sourceName = source.getName();
+			if (sourceName.length() > 100)
+				sourceName = sourceName.substring(0, 100);
+			int numRups = source.getNumRuptures();
+			rupIDs = new ArrayList<>(numRups);
+			ruptures = new ArrayList<>(numRups);
+			for (int rupID=startRup; rupID<numRups; rupID++) {
+				ProbEqkRupture rupture = source.getRupture(rupID);
+				if (region != null && !isInsideCutoffForRegion(region, rupture))
+					continue;
+				rupIDs.add(rupID);
+				ruptures.add(new RuptureRecord(rupture, includePoints));
+				if (erfDir != null && rupture.getRuptureSurface() instanceof EvenlyGriddedSurface)
+					ERF_Rupture_File_Writer.writeRuptureFile(rupture, sourceID, rupID, erfDir, gZipFiles);
+			}
+		}
+
+		public void write(int erfID, BulkInserter.TableBatch rupBatch, BulkInserter.TableBatch pointBatch)
+				throws SQLException {
+			for (int i=0; i<ruptures.size(); i++) {
+				RuptureRecord rup = ruptures.get(i);
+				int rupID = rupIDs.get(i);
+				rupBatch.add(erfID, sourceID, rupID, sourceName, null, (float)rup.mag, (float)rup.prob,
+						(float)rup.gridSpacing, rup.numRows, rup.numCols, rup.numPoints,
+						(float)rup.start.getLatitude(), (float)rup.start.getLongitude(), (float)rup.start.getDepth(),
+						(float)rup.end.getLatitude(), (float)rup.end.getLongitude(), (float)rup.end.getDepth());
+			}
+			if (pointBatch == null)
+				return;
+			for (int i=0; i<ruptures.size(); i++) {
+				RuptureRecord rup = ruptures.get(i);
+				int rupID = rupIDs.get(i);
+				if (rup.points == null)
+					continue;
+				float rake = (float)rup.rake;
+				float dip = (float)rup.dip;
+				for (int p=0; p<rup.points.length; p+=4)
+					pointBatch.add(erfID, sourceID, rupID, rup.points[p], rup.points[p+1], rup.points[p+2],
+							rake, dip, Float.isNaN(rup.points[p+3]) ? null : rup.points[p+3]);
+			}
+		}
+	}
+
+	/**
+	 * Values for the Ruptures table (and optionally the Points table) for a single rupture
+	 */
+	private static class RuptureRecord {
+		private double mag;
+		private double prob;
+		private double rake;
+		private double dip;
+		private int numRows, numCols, numPoints;
+		private double gridSpacing;
+		private Location start, end;
+		// packed lat, lon, depth, local strike for each point on the grid centered surface, or null
+		private float[] points;
+
+		public RuptureRecord(ProbEqkRupture rupture, boolean includePoints) {
+			mag = rupture.getMag();
+			prob = rupture.getProbability();
+			rake = rupture.getAveRake();
+			RuptureSurface rupSurface = rupture.getRuptureSurface();
+			dip = rupSurface.getAveDip();
+			if (rupture instanceof RSQSimProbEqkRup) {
+				numRows = -1;
+				numCols = -1;
+				RSQSimProbEqkRup rsRup = (RSQSimProbEqkRup)rupture;
+				numPoints = rsRup.getElements().size();
+				double aveArea = 0d;
+				for (SimulatorElement elem : rsRup.getElements())
+					aveArea += elem.getArea();
+				aveArea *= 1e-6;
+				aveArea /= numPoints;
+				gridSpacing = Math.sqrt(aveArea); // approx
+				Range<Double> latRange = rsRup.getElemLatRange();
+				Range<Double> lonRange = rsRup.getElemLonRange();
+				Range<Double> depthRange = rsRup.getElemDepthRange();
+				start = new Location(latRange.lowerEndpoint(), lonRange.lowerEndpoint(), depthRange.lowerEndpoint());
+				end = new Location(latRange.upperEndpoint(), lonRange.upperEndpoint(), depthRange.upperEndpoint());
+			} else if (rupSurface instanceof PointSurface) {
+				Location loc = ((PointSurface)rupSurface).getLocation();
+				numRows = 1;
+				numCols = 1;
+				numPoints = numRows * numCols;
+				gridSpacing = 1;
+				start = loc;
+				end = loc;
+				if (includePoints)
+					points = new float[] { (float)loc.getLatitude(), (float)loc.getLongitude(),
+							(float)loc.getDepth(), (float)rupSurface.getAveStrike() };
+			} else {
+				Preconditions.checkState(rupSurface instanceof EvenlyGriddedSurface);
+				AbstractEvenlyGriddedSurface gridSurface = new EvenlyGridCenteredSurface(
+						(EvenlyGriddedSurface)rupSurface);
+				numRows = gridSurface.getNumRows();
+				numCols = gridSurface.getNumCols();
+				numPoints = numRows * numCols;
+				gridSpacing = gridSurface.getGridSpacingAlongStrike();
+				if(!gridSurface.isGridSpacingSame()) throw new RuntimeException(
+						"this may not work now that grid spacing can differ along strike and down dip");
+				start = (Location) gridSurface.get(0, 0);
+				end = (Location) gridSurface.get(0, numCols - 1);
+				if (includePoints) {
+					// Local Strike for each grid centered location on the rupture, one fewer than the number of
+					// columns so the last column uses the strike of the previous one
+					double[] localStrikeList = getLocalStrikeList(gridSurface);
+					points = new float[numPoints*4];
+					int p = 0;
+					for (int k=0; k<numRows; k++) {
+						for (int j=0; j<numCols; j++) {
+							Location loc = (Location) gridSurface.get(k, j);
+							points[p++] = (float)loc.getLatitude();
+							points[p++] = (float)loc.getLongitude();
+							points[p++] = (float)loc.getDepth();
+							if (localStrikeList.length == 0)
+								points[p++] = (float)gridSurface.getAveStrike();
+							else
+								points[p++] = (float)localStrikeList[Integer.min(j, localStrikeList.length-1)];
+						}
+					}
+				}
+			}
+		}
+	}
+
 
 	/**
 	 * Returns the local strike list for a given rupture
@@ -1152,7 +1376,19 @@ public  class ERF2DB implements ERF2DBAPI{
 		}
 	}
 	
+	/**
+	 * Hypocenters for each rupture variation of the given rupture. If the {@link RVHypocenterStore} for this ERF ID
+	 * and RV scenario ID has already been loaded, it will be used instead of querying the database.
+	 * @param erfID
+	 * @param sourceID
+	 * @param rupID
+	 * @param rupVarScenID
+	 * @return map from RV ID to hypocenter
+	 */
 	public HashMap<Integer, Location> getHypocenters(int erfID, int sourceID, int rupID, int rupVarScenID) {
+		RVHypocenterStore store = RVHypocenterStore.getIfLoaded(dbaccess, erfID, rupVarScenID);
+		if (store != null)
+			return store.getHypocenterMap(sourceID, rupID);
 		HashMap<Integer, Location> locs = new HashMap<Integer, Location>();
 		
 		String sql = "SELECT Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth FROM Rupture_Variations " +
@@ -1183,6 +1419,44 @@ public  class ERF2DB implements ERF2DBAPI{
 		return locs;
 	}
 	
+	private static final ResultSetHandler<HashMap<Integer, Location>> HYPOCENTERS_HANDLER = rs -> {
+		HashMap<Integer, Location> locs = new HashMap<Integer, Location>();
+		while (rs.next()) {
+			int rvID = rs.getInt("Rup_Var_ID");
+			double lat = rs.getDouble("Hypocenter_Lat");
+			double lon = rs.getDouble("Hypocenter_Lon");
+			double depth = rs.getDouble("Hypocenter_Depth");
+			locs.put(rvID, new Location(lat, lon, depth));
+		}
+		return locs;
+	};
+	
+	/**
+	 * Asynchronous version of {@link #getHypocenters(int, int, int, int)}. The future completes exceptionally if the
+	 * query fails.
+	 */
+	public CompletableFuture<HashMap<Integer, Location>> getHypocentersAsync(int erfID, int sourceID, int rupID,
+			int rupVarScenID) {
+		String sql = "SELECT Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth FROM Rupture_Variations " +
+		"WHERE ERF_ID=" + erfID + " AND Rup_Var_Scenario_ID=" + rupVarScenID + " " +
+		"AND Source_ID=" + sourceID + " AND Rupture_ID=" + rupID;
+		// coalesced queries share results, so return a copy (locations are immutable)
+		return dbaccess.selectDataAsync(sql, HYPOCENTERS_HANDLER).thenApply(locs -> new HashMap<>(locs));
+	}
+	
+	/**
+	 * Loads (or returns the already loaded) hypocenter store for every rupture variation for the given ERF ID and
+	 * RV scenario ID. Subsequent calls to {@link #getHypocenters(int, int, int, int)} will use the store.
+	 * @param erfID
+	 * @param rupVarScenID
+	 * @param cacheDir directory where the store will be cached on disk, or null
+	 * @return
+	 * @throws IOException
+	 */
+	public RVHypocenterStore getHypocenterStore(int erfID, int rupVarScenID, File cacheDir) throws IOException {
+		return RVHypocenterStore.get(dbaccess, erfID, rupVarScenID, cacheDir);
+	}
+	
 	/**
 	 * This will check source/rup counts and such for 2 erfs that should be identical
 	 * @param id1
@@ -0,0 +1,328 @@
+package org.opensha.sha.cybershake.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.cybershake.openshaAPIs.CyberShakeEvenlyGriddedSurface;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+/**
+ * Rupture metadata for an entire CyberShake ERF stored in flat arrays, loaded from the Ruptures table in a single
+ * ordered query. Surface points can optionally be loaded for every rupture from the Points table in a second ordered
+ * query, in which case they are stored in flat lat/lon/depth arrays and surfaces are built from those on demand.
+ * Ruptures are stored in (Source_ID, Rupture_ID) order.
+ *
+ * @author kevin
+ *
+ */
+public class ERFRuptureData {
+
+	private static final int FETCH_SIZE = 10000;
+	
+	/**
+	 * MySQL Connector/J ignores positive fetch sizes (and buffers the whole result set) unless cursor fetch is enabled,
+	 * so rows are streamed with its Integer.MIN_VALUE fetch size instead. This requires a forward only, read only
+	 * statement (the default) and holds the connection until the result set is closed.
+	 */
+	private static int getFetchSize(DBAccess db) {
+		return db.isSQLite() ? FETCH_SIZE : DBAccess.STREAMING_FETCH_SIZE;
+	}
+
+	private int erfID;
+
+	private int[] sourceIDs;
+	private int[] rupIDs;
+	private double[] mags;
+	private double[] probs;
+	private int[] numRows;
+	private int[] numCols;
+	private double[] gridSpacings;
+
+	// source names and index of the first rupture for each source
+	private List<String> sourceNames;
+	private int[] sourceStartIndexes;
+
+	private Table<Integer, Integer, Integer> indexTable;
+
+	// null if points not loaded. offsets has one more value than the number of ruptures
+	private int[] pointOffsets;
+	private double[] lats;
+	private double[] lons;
+	private double[] depths;
+
+	ERFRuptureData(int erfID, int[] sourceIDs, int[] rupIDs, double[] mags, double[] probs, int[] numRows,
+			int[] numCols, double[] gridSpacings, List<String> sourceNames, int[] sourceStartIndexes) {
+		int numRups = sourceIDs.length;
+		Preconditions.checkArgument(rupIDs.length == numRups && mags.length == numRups && probs.length == numRups
+				&& numRows.length == numRups && numCols.length == numRups && gridSpacings.length == numRups,
+				"Rupture array lengths are inconsistent");
+		Preconditions.checkArgument(sourceNames.size() == sourceStartIndexes.length);
+		this.erfID = erfID;
+		this.sourceIDs = sourceIDs;
+		this.rupIDs = rupIDs;
+		this.mags = mags;
+		this.probs = probs;
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.gridSpacings = gridSpacings;
+		this.sourceNames = sourceNames;
+		this.sourceStartIndexes = sourceStartIndexes;
+
+		indexTable = HashBasedTable.create();
+		for (int i=0; i<numRups; i++)
+			indexTable.put(sourceIDs[i], rupIDs[i], i);
+	}
+
+	void setPoints(int[] pointOffsets, double[] lats, double[] lons, double[] depths) {
+		Preconditions.checkArgument(pointOffsets.length == getNumRuptures()+1);
+		int numPoints = pointOffsets[pointOffsets.length-1];
+		Preconditions.checkArgument(lats.length >= numPoints && lons.length >= numPoints && depths.length >= numPoints);
+		this.pointOffsets = pointOffsets;
+		this.lats = lats;
+		this.lons = lons;
+		this.depths = depths;
+	}
+
+	/**
+	 * Loads rupture metadata for the given ERF in a single query, and optionally all rupture surface points
+	 * in a second query.
+	 *
+	 * @param db
+	 * @param erfID
+	 * @param loadPoints if true, all surface points will be loaded
+	 * @return
+	 * @throws SQLException
+	 */
+	public static ERFRuptureData load(DBAccess db, int erfID, boolean loadPoints) throws SQLException {
+		Stopwatch watch = Stopwatch.createStarted();
+		String sql = "SELECT Source_ID,Rupture_ID,Source_Name,Mag,Prob,Num_Rows,Num_Columns,Grid_Spacing"
+				+ " FROM Ruptures WHERE ERF_ID="+erfID+" ORDER BY Source_ID,Rupture_ID";
+
+		ERFRuptureData data = db.selectData(sql, getFetchSize(db), rs -> readRuptures(erfID, rs), null);
+		System.out.println("Loaded "+data.getNumRuptures()+" ruptures for "+data.sourceNames.size()
+				+" sources from ERF "+erfID+" in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+
+		if (loadPoints)
+			data.loadPoints(db);
+
+		return data;
+	}
+
+	private static ERFRuptureData readRuptures(int erfID, ResultSet rs) throws SQLException {
+		int size = 1000;
+		int[] sourceIDs = new int[size];
+		int[] rupIDs = new int[size];
+		double[] mags = new double[size];
+		double[] probs = new double[size];
+		int[] numRows = new int[size];
+		int[] numCols = new int[size];
+		double[] gridSpacings = new double[size];
+		List<String> sourceNames = new ArrayList<String>();
+		List<Integer> sourceStarts = new ArrayList<Integer>();
+
+		int count = 0;
+		while (rs.next()) {
+			if (count == size) {
+				size *= 2;
+				sourceIDs = Arrays.copyOf(sourceIDs, size);
+				rupIDs = Arrays.copyOf(rupIDs, size);
+				mags = Arrays.copyOf(mags, size);
+				probs = Arrays.copyOf(probs, size);
+				numRows = Arrays.copyOf(numRows, size);
+				numCols = Arrays.copyOf(numCols, size);
+				gridSpacings = Arrays.copyOf(gridSpacings, size);
+			}
+			sourceIDs[count] = rs.getInt(1);
+			rupIDs[count] = rs.getInt(2);
+			if (count == 0 || sourceIDs[count] != sourceIDs[count-1]) {
+				sourceNames.add(rs.getString(3));
+				sourceStarts.add(count);
+			}
+			mags[count] = rs.getDouble(4);
+			probs[count] = rs.getDouble(5);
+			numRows[count] = rs.getInt(6);
+			numCols[count] = rs.getInt(7);
+			gridSpacings[count] = rs.getDouble(8);
+			count++;
+		}
+
+		int[] sourceStartIndexes = new int[sourceStarts.size()];
+		for (int i=0; i<sourceStartIndexes.length; i++)
+			sourceStartIndexes[i] = sourceStarts.get(i);
+
+		return new ERFRuptureData(erfID, Arrays.copyOf(sourceIDs, count), Arrays.copyOf(rupIDs, count),
+				Arrays.copyOf(mags, count), Arrays.copyOf(probs, count), Arrays.copyOf(numRows, count),
+				Arrays.copyOf(numCols, count), Arrays.copyOf(gridSpacings, count), sourceNames, sourceStartIndexes);
+	}
+
+	private void loadPoints(DBAccess db) throws SQLException {
+		Stopwatch watch = Stopwatch.createStarted();
+		int numRups = getNumRuptures();
+
+		// we know how many points each rupture should have, so we can size the arrays up front
+		int[] offsets = new int[numRups+1];
+		for (int i=0; i<numRups; i++)
+			offsets[i+1] = offsets[i] + numRows[i]*numCols[i];
+		int numPoints = offsets[numRups];
+		double[] lats = new double[numPoints];
+		double[] lons = new double[numPoints];
+		double[] depths = new double[numPoints];
+
+		String sql = "SELECT Source_ID,Rupture_ID,Lat,Lon,Depth FROM Points WHERE ERF_ID="+erfID
+				+" ORDER BY Source_ID,Rupture_ID,Point_ID";
+
+		db.selectData(sql, getFetchSize(db), rs -> {
+			readPoints(rs, offsets, lats, lons, depths);
+			return null;
+		}, null);
+
+		setPoints(offsets, lats, lons, depths);
+		System.out.println("Loaded "+numPoints+" surface points for ERF "+erfID
+				+" in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+	}
+
+	private void readPoints(ResultSet rs, int[] offsets, double[] lats, double[] lons, double[] depths)
+			throws SQLException {
+		int index = -1;
+		int prevSourceID = -1;
+		int prevRupID = -1;
+		int pointIndex = 0;
+		while (rs.next()) {
+			int sourceID = rs.getInt(1);
+			int rupID = rs.getInt(2);
+			if (sourceID != prevSourceID || rupID != prevRupID) {
+				if (index >= 0)
+					checkNumPoints(offsets, index, pointIndex);
+				Integer newIndex = indexTable.get(sourceID, rupID);
+				Preconditions.checkState(newIndex != null,
+						"Points found for source %s rupture %s which is not in the Ruptures table", sourceID, rupID);
+				index = newIndex;
+				pointIndex = offsets[index];
+				prevSourceID = sourceID;
+				prevRupID = rupID;
+			}
+			Preconditions.checkState(pointIndex < offsets[index+1],
+					"Too many points for source %s rupture %s", sourceID, rupID);
+			lats[pointIndex] = rs.getDouble(3);
+			lons[pointIndex] = rs.getDouble(4);
+			depths[pointIndex] = rs.getDouble(5);
+			pointIndex++;
+		}
+		if (index >= 0)
+			checkNumPoints(offsets, index, pointIndex);
+	}
+
+	private void checkNumPoints(int[] offsets, int index, int endPointIndex) {
+		// ruptures with no points at all will throw an exception when their surface is built
+		Preconditions.checkState(endPointIndex == offsets[index+1],
+				"Wrong number of points for source %s rupture %s", sourceIDs[index], rupIDs[index]);
+	}
+
+	public int getERFID() {
+		return erfID;
+	}
+
+	public int getNumRuptures() {
+		return sourceIDs.length;
+	}
+
+	public int getNumSources() {
+		return sourceStartIndexes.length;
+	}
+
+	public String getSourceName(int sourceIndex) {
+		return sourceNames.get(sourceIndex);
+	}
+
+	/**
+	 * @param sourceIndex
+	 * @return index of the first rupture for the given source (index in source list, not Source_ID)
+	 */
+	public int getSourceStartIndex(int sourceIndex) {
+		return sourceStartIndexes[sourceIndex];
+	}
+
+	/**
+	 * @param sourceIndex
+	 * @return index after the last rupture for the given source (index in source list, not Source_ID)
+	 */
+	public int getSourceEndIndex(int sourceIndex) {
+		if (sourceIndex == sourceStartIndexes.length-1)
+			return sourceIDs.length;
+		return sourceStartIndexes[sourceIndex+1];
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return rupture index for the given Source_ID and Rupture_ID, or -1 if not present
+	 */
+	public int getIndex(int sourceID, int rupID) {
+		Integer index = indexTable.get(sourceID, rupID);
+		if (index == null)
+			return -1;
+		return index;
+	}
+
+	public int getSourceID(int index) {
+		return sourceIDs[index];
+	}
+
+	public int getRupID(int index) {
+		return rupIDs[index];
+	}
+
+	public double getMag(int index) {
+		return mags[index];
+	}
+
+	public double getProb(int index) {
+		return probs[index];
+	}
+
+	public int getNumRows(int index) {
+		return numRows[index];
+	}
+
+	public int getNumCols(int index) {
+		return numCols[index];
+	}
+
+	public double getGridSpacing(int index) {
+		return gridSpacings[index];
+	}
+
+	/**
+	 * @return true if surface points have been loaded for all ruptures
+	 */
+	public boolean hasPoints() {
+		return pointOffsets != null;
+	}
+
+	/**
+	 * Builds the rupture surface at the given index from the loaded points
+	 * @param index
+	 * @return
+	 */
+	public CyberShakeEvenlyGriddedSurface buildSurface(int index) {
+		Preconditions.checkState(hasPoints(), "Points not loaded");
+		int rows = numRows[index];
+		int cols = numCols[index];
+		CyberShakeEvenlyGriddedSurface surface = new CyberShakeEvenlyGriddedSurface(rows, cols, gridSpacings[index]);
+		int p = pointOffsets[index];
+		for (int i=0; i<rows; i++)
+			for (int j=0; j<cols; j++, p++)
+				surface.set(i, j, new Location(lats[p], lons[p], depths[p]));
+		return surface;
+	}
+
+}
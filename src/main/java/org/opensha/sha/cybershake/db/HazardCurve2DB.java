@@ -7,15 +7,24 @@ import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.cybershake.gui.BatchSiteAddGUI.CybershakeCutoffSite;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Table;
 
 public class HazardCurve2DB {
 	
@@ -342,6 +351,9 @@ public class HazardCurve2DB {
 	}
 	
 	public int getSiteIDFromCurveID(int hcID) {
+		MetadataRegistry.CurveInfo info = dbaccess.getMetadataRegistry().getCurveInfo(hcID);
+		if (info != null)
+			return runs2db.getSiteID(info.runID);
 		String sql = "SELECT Run_ID FROM " + TABLE_NAME + " WHERE Hazard_Curve_ID=" + hcID;
 
 //		System.out.println(sql);
@@ -408,11 +420,25 @@ public class HazardCurve2DB {
 	}
 	private static final SimpleDateFormat curveDF = new SimpleDateFormat("yyyy-MM-dd");
 	
-	public DiscretizedFunc getHazardCurve(int id) {
-		DiscretizedFunc hazardFunc = null;
-		
-		String sql = "SELECT X_Value, Y_Value FROM Hazard_Curve_Points WHERE Hazard_Curve_ID=" + id + 
+	private static String getHazardCurveSQL(int id) {
+		return "SELECT X_Value, Y_Value FROM Hazard_Curve_Points WHERE Hazard_Curve_ID=" + id + 
 						" ORDER BY X_Value";
+	}
+	
+	private static final ResultSetHandler<DiscretizedFunc> CURVE_HANDLER = rs -> {
+		DiscretizedFunc hazardFunc = null;
+		while (rs.next()) {
+			if (hazardFunc == null)
+				hazardFunc = new ArbitrarilyDiscretizedFunc();
+			double x = rs.getDouble(1);
+			double y = rs.getDouble(2);
+			hazardFunc.set(x, y);
+		}
+		return hazardFunc;
+	};
+	
+	public DiscretizedFunc getHazardCurve(int id) {
+		String sql = getHazardCurveSQL(id);
 //		System.out.println(sql);
 
 		ResultSet rs = null;
@@ -424,13 +450,7 @@ public class HazardCurve2DB {
 		}
 
 		try {
-			while (rs.next()) {
-				if (hazardFunc == null)
-					hazardFunc = new ArbitrarilyDiscretizedFunc();
-				double x = rs.getDouble(1);
-				double y = rs.getDouble(2);
-				hazardFunc.set(x, y);
-			}
+			DiscretizedFunc hazardFunc = CURVE_HANDLER.handle(rs);
 			rs.close();
 			return hazardFunc;
 		} catch (SQLException e) {
@@ -439,6 +459,184 @@ public class HazardCurve2DB {
 		}
 	}
 	
+	/**
+	 * Asynchronous version of {@link #getHazardCurve(int)}. The future completes exceptionally if the query fails.
+	 * @param id
+	 * @return future for the hazard curve, which will be null if the curve has no points
+	 */
+	public CompletableFuture<DiscretizedFunc> getHazardCurveAsync(int id) {
+		// coalesced queries share results, so return a copy
+		return dbaccess.selectDataAsync(getHazardCurveSQL(id), CURVE_HANDLER)
+				.thenApply(curve -> curve == null ? null : curve.deepClone());
+	}
+
+	/**
+	 * Maximum number of IDs in a single IN (...) clause for bulk queries
+	 */
+	private static final int MAX_BULK_IDS = 1000;
+	
+	private static String getHazardCurvesSQL(List<Integer> batch) {
+		return "SELECT Hazard_Curve_ID, X_Value, Y_Value FROM Hazard_Curve_Points WHERE Hazard_Curve_ID IN ("
+				+ Joiner.on(",").join(batch) + ") ORDER BY Hazard_Curve_ID, X_Value";
+	}
+	
+	private static final ResultSetHandler<Map<Integer, DiscretizedFunc>> CURVES_HANDLER = rs -> {
+		Map<Integer, DiscretizedFunc> curves = new HashMap<>();
+		int prevID = -1;
+		DiscretizedFunc hazardFunc = null;
+		while (rs.next()) {
+			int id = rs.getInt(1);
+			if (hazardFunc == null || id != prevID) {
+				hazardFunc = new ArbitrarilyDiscretizedFunc();
+				curves.put(id, hazardFunc);
+				prevID = id;
+			}
+			double x = rs.getDouble(2);
+			double y = rs.getDouble(3);
+			hazardFunc.set(x, y);
+		}
+		return curves;
+	};
+
+	/**
+	 * Fetches the hazard curves for all of the given IDs with one query per {@link #MAX_BULK_IDS} curves.
+	 *
+	 * @param curveIDs
+	 * @return map from curve ID to hazard curve. Curves with no points will not be present.
+	 */
+	public Map<Integer, DiscretizedFunc> getHazardCurves(Collection<Integer> curveIDs) {
+		Map<Integer, DiscretizedFunc> curves = new HashMap<>();
+
+		for (List<Integer> batch : Iterables.partition(curveIDs, MAX_BULK_IDS)) {
+			String sql = getHazardCurvesSQL(batch);
+//			System.out.println(sql);
+
+			ResultSet rs = null;
+			try {
+				rs = dbaccess.selectData(sql);
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+				return null;
+			}
+
+			try {
+				curves.putAll(CURVES_HANDLER.handle(rs));
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		return curves;
+	}
+	
+	/**
+	 * Asynchronous version of {@link #getHazardCurves(Collection)}. Batches of {@link #MAX_BULK_IDS} curves are
+	 * fetched concurrently. The future completes exceptionally if any query fails.
+	 *
+	 * @param curveIDs
+	 * @return future for the map from curve ID to hazard curve. Curves with no points will not be present.
+	 */
+	public CompletableFuture<Map<Integer, DiscretizedFunc>> getHazardCurvesAsync(Collection<Integer> curveIDs) {
+		List<CompletableFuture<Map<Integer, DiscretizedFunc>>> futures = new ArrayList<>();
+		for (List<Integer> batch : Iterables.partition(curveIDs, MAX_BULK_IDS))
+			futures.add(dbaccess.selectDataAsync(getHazardCurvesSQL(batch), CURVES_HANDLER));
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+			Map<Integer, DiscretizedFunc> curves = new HashMap<>();
+			for (CompletableFuture<Map<Integer, DiscretizedFunc>> future : futures)
+				// coalesced queries share results, so copy
+				for (Map.Entry<Integer, DiscretizedFunc> entry : future.join().entrySet())
+					curves.put(entry.getKey(), entry.getValue().deepClone());
+			return curves;
+		});
+	}
+
+	/**
+	 * Resolves the time independent poisson (Prob_Model_ID=1) hazard curves without background seismicity for each
+	 * of the given runs, along with their IMs, in a single joined query per {@link #MAX_BULK_IDS} runs. If multiple such
+	 * curves exist for a run and IM, the oldest is returned.
+	 *
+	 * @param runIDs
+	 * @return table of curve IDs, with run ID row keys and IM column keys. Runs with no curves will not be present.
+	 */
+	public Table<Integer, CybershakeIM, Integer> getPoissonCurveIDsForRuns(Collection<Integer> runIDs) {
+		Table<Integer, CybershakeIM, Integer> table = HashBasedTable.create();
+
+		for (List<Integer> batch : Iterables.partition(runIDs, MAX_BULK_IDS)) {
+			String sql = "SELECT C.Hazard_Curve_ID,C.Run_ID,I.IM_Type_ID,I.IM_Type_Measure,I.IM_Type_Value,I.Units,"
+					+ "I.IM_Type_Component FROM " + TABLE_NAME + " C"
+					+ " JOIN Hazard_Datasets D ON C.Hazard_Dataset_ID=D.Hazard_Dataset_ID"
+					+ " JOIN IM_Types I ON C.IM_Type_ID=I.IM_Type_ID"
+					+ " WHERE C.Run_ID IN (" + Joiner.on(",").join(batch) + ")"
+					// 1 is time independent poisson
+					+ " AND D.Prob_Model_ID=1"
+					// skip anything with background seismicity
+					+ " AND (D.Background_Seis_AR_ID IS NULL OR D.Background_Seis_AR_ID<=0)"
+					+ " ORDER BY C.Curve_Date desc";
+//			System.out.println(sql);
+
+			ResultSet rs = null;
+			try {
+				rs = dbaccess.selectData(sql);
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+				return null;
+			}
+
+			try {
+				while (rs.next()) {
+					int curveID = rs.getInt("Hazard_Curve_ID");
+					int runID = rs.getInt("Run_ID");
+					CybershakeIM im = CybershakeIM.fromResultSet(rs);
+					// sorted newest first, later (older) curves replace newer ones
+					table.put(runID, im, curveID);
+				}
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+
+		return table;
+	}
+
+	/**
+	 * Resolves the site and run for every curve in the given dataset and IM in a single joined query. If a site has
+	 * multiple curves, the run for the most recent is used (consistent with
+	 * {@link org.opensha.sha.cybershake.HazardCurveFetcher}).
+	 *
+	 * @param datasetID
+	 * @param imTypeID
+	 * @return map from site to run ID, in the order of most recent curve date
+	 */
+	public LinkedHashMap<CybershakeSite, Integer> getSiteRunsForDataset(int datasetID, int imTypeID) {
+		String sql = "SELECT C.Run_ID,S.CS_Site_ID,S.CS_Site_Lat,S.CS_Site_Lon,S.CS_Site_Name,S.CS_Short_Name,"
+				+ "S.CS_Site_Type_ID FROM " + TABLE_NAME + " C"
+				+ " JOIN CyberShake_Runs R ON C.Run_ID=R.Run_ID"
+				+ " JOIN CyberShake_Sites S ON R.Site_ID=S.CS_Site_ID"
+				+ " WHERE C.Hazard_Dataset_ID=" + datasetID + " AND C.IM_Type_ID=" + imTypeID
+				+ " ORDER BY C.Curve_Date desc";
+//		System.out.println(sql);
+		
+		try {
+			return dbaccess.selectData(sql, rs -> {
+				LinkedHashMap<CybershakeSite, Integer> siteRuns = new LinkedHashMap<>();
+				while (rs.next()) {
+					CybershakeSite site = CybershakeSite.fromResultSet(rs);
+					// sorted newest first, keep the first
+					if (!siteRuns.containsKey(site))
+						siteRuns.put(site, rs.getInt("Run_ID"));
+				}
+				return siteRuns;
+			});
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public int insertHazardCurve(CybershakeRun run, int imTypeID, DiscretizedFunc hazardFunc) {
 		int datasetID = hd2db.getDefaultDatasetID(run);
 		if (datasetID < 0)
@@ -460,6 +658,7 @@ public class HazardCurve2DB {
 	public boolean deleteHazardCurve(int curveID) {
 		int ptRows = deleteHazardCurvePoints(curveID);
 		int idRows = deleteHazardCurveID(curveID);
+		dbaccess.getMetadataRegistry().invalidateCurve(curveID);
 		
 		return ptRows > 0 || idRows > 0;
 	}
@@ -601,6 +800,9 @@ public class HazardCurve2DB {
 	}
 	
 	public int getIMTypeIDForCurve(int curveID) {
+		MetadataRegistry.CurveInfo info = dbaccess.getMetadataRegistry().getCurveInfo(curveID);
+		if (info != null)
+			return info.imTypeID;
 		String sql = "SELECT IM_Type_ID FROM " + TABLE_NAME + " WHERE Hazard_Curve_ID=" + curveID;
 
 //		System.out.println(sql);
@@ -629,6 +831,9 @@ public class HazardCurve2DB {
 	}
 	
 	public int getDatasetIDForCurve(int curveID) {
+		MetadataRegistry.CurveInfo info = dbaccess.getMetadataRegistry().getCurveInfo(curveID);
+		if (info != null)
+			return info.datasetID;
 		String sql = "SELECT Hazard_Dataset_ID FROM " + TABLE_NAME + " WHERE Hazard_Curve_ID=" + curveID;
 
 //		System.out.println(sql);
@@ -657,6 +862,9 @@ public class HazardCurve2DB {
 	}
 	
 	public int getRunIDForCurve(int curveID) {
+		MetadataRegistry.CurveInfo info = dbaccess.getMetadataRegistry().getCurveInfo(curveID);
+		if (info != null)
+			return info.runID;
 		String sql = "SELECT Run_ID FROM " + TABLE_NAME + " WHERE Hazard_Curve_ID=" + curveID;
 
 //		System.out.println(sql);
@@ -691,6 +899,9 @@ public class HazardCurve2DB {
 	}
 	
 	public CybershakeIM getIMFromID(int imTypeID) {
+		CybershakeIM cached = dbaccess.getMetadataRegistry().getIM(imTypeID);
+		if (cached != null)
+			return cached;
 		String sql = "SELECT * FROM IM_Types WHERE IM_Type_ID=" + imTypeID;
 
 //		System.out.println(sql);
@@ -19,10 +19,16 @@ public class HazardDataset2DB {
 	}
 	
 	public int getDefaultProbModelID(int erfID) {
+		int id = db.getMetadataRegistry().getDefaultProbModelID(erfID);
+		if (id >= 0)
+			return id;
 		return getERF_Field("Default_Prob_Model_ID", erfID);
 	}
 	
 	public int getDefaultTimeSpanID(int erfID) {
+		int id = db.getMetadataRegistry().getDefaultTimeSpanID(erfID);
+		if (id >= 0)
+			return id;
 		return getERF_Field("Default_Time_Span_ID", erfID);
 	}
 	
@@ -144,18 +150,26 @@ public class HazardDataset2DB {
 			e.printStackTrace();
 			return -1;
 		}
+		db.getMetadataRegistry().invalidateDatasets();
 		
 		return getDatasetID(erfID, rvScenID, sgtVarID, velModelID, probModelID, timeSpanID,
 				timeSpanStart, maxFreq, lowCutoffFreq, backSeisAttenRelID);
 	}
 	
 	public int getProbModelID(int datasetID) {
+		CybershakeHazardDataset dataset = db.getMetadataRegistry().getDataset(datasetID);
+		if (dataset != null)
+			return dataset.probModelID;
 		String sql = "SELECT Prob_Model_ID FROM Hazard_Datasets WHERE Hazard_Dataset_ID="+datasetID;
 		
 		return DB_Utils.getSingleInt(db, sql);
 	}
 	
 	public int getBackSeisAttenRelID(int datasetID) {
+		CybershakeHazardDataset dataset = db.getMetadataRegistry().getDataset(datasetID);
+		if (dataset != null)
+			// 0 means null
+			return dataset.backSeisAttenRelID == 0 ? -1 : dataset.backSeisAttenRelID;
 		String sql = "SELECT Background_Seis_AR_ID FROM Hazard_Datasets WHERE Hazard_Dataset_ID="+datasetID;
 		
 		int ret = DB_Utils.getSingleInt(db, sql);
@@ -166,6 +180,9 @@ public class HazardDataset2DB {
 	}
 	
 	public CybershakeHazardDataset getDataset(int datasetID) throws SQLException {
+		CybershakeHazardDataset cached = db.getMetadataRegistry().getDataset(datasetID);
+		if (cached != null)
+			return cached;
 		List<CybershakeHazardDataset> datasets = getDatasets("WHERE Hazard_Dataset_ID="+datasetID);
 		Preconditions.checkState(datasets != null && datasets.size() == 1, "Dataset %s not found", datasetID);
 		CybershakeHazardDataset ret = datasets.get(0);
@@ -186,27 +203,8 @@ public class HazardDataset2DB {
 		
 //		System.out.println(sql);
 		
-		while (rs.next()) {
-			int datasetID = rs.getInt("Hazard_Dataset_ID");
-//			System.out.println(datasetID);
-			int erfID = rs.getInt("ERF_ID");
-			int rvScenID = rs.getInt("Rup_Var_Scenario_ID");
-			int sgtVarID = rs.getInt("SGT_Variation_ID");
-			int velModelID = rs.getInt("Velocity_Model_ID");
-			int probModelID = rs.getInt("Prob_Model_ID");
-			int timeSpanID = rs.getInt("Time_Span_ID");
-			Date timeSpanStart = rs.getDate("Time_Span_Start_Date");
-			double maxFreq = rs.getDouble("Max_Frequency");
-			if (rs.wasNull())
-				maxFreq = Double.NaN;
-			double lowFreqCutoff = rs.getDouble("Low_Frequency_Cutoff");
-			if (rs.wasNull())
-				lowFreqCutoff = Double.NaN;
-			int backSeisAttenRelID = rs.getInt("Background_Seis_AR_ID");
-			
-			ret.add(new CybershakeHazardDataset(datasetID, erfID, rvScenID, sgtVarID, velModelID,
-					probModelID, timeSpanID, timeSpanStart, maxFreq, lowFreqCutoff, backSeisAttenRelID));
-		}
+		while (rs.next())
+			ret.add(CybershakeHazardDataset.fromResultSet(rs));
 		rs.close();
 		
 		return ret;
@@ -59,11 +59,15 @@ public class MeanUCERF2_ToDB extends ERF2DB {
 	}
 	
 	public static AbstractERF createUCERF2ERF(boolean ddwAdjust) {
+		return createUCERF2ERF(ddwAdjust, true);
+	}
+	
+	public static AbstractERF createUCERF2ERF(boolean ddwAdjust, boolean updateForecast) {
 
 
 		AbstractERF eqkRupForecast = new MeanUCERF2();
 
-		eqkRupForecast = setMeanUCERF_CyberShake_Settings(eqkRupForecast, ddwAdjust);
+		eqkRupForecast = setMeanUCERF_CyberShake_Settings(eqkRupForecast, ddwAdjust, updateForecast);
 
 		return eqkRupForecast;
 	}
@@ -73,6 +77,11 @@ public class MeanUCERF2_ToDB extends ERF2DB {
 	}
 
 	public static AbstractERF setMeanUCERF_CyberShake_Settings(AbstractERF eqkRupForecast, boolean ddwAdjust) {
+		return setMeanUCERF_CyberShake_Settings(eqkRupForecast, ddwAdjust, true);
+	}
+
+	public static AbstractERF setMeanUCERF_CyberShake_Settings(AbstractERF eqkRupForecast, boolean ddwAdjust,
+			boolean updateForecast) {
 		// exclude Background seismicity
 		eqkRupForecast.getAdjustableParameterList().getParameter(
 				UCERF2.BACK_SEIS_NAME).setValue(UCERF2.BACK_SEIS_EXCLUDE);
@@ -95,8 +104,10 @@ public class MeanUCERF2_ToDB extends ERF2DB {
 		// duration
 		eqkRupForecast.getTimeSpan().setDuration(1.0);
 
-		System.out.println("Updating Forecast...");
-		eqkRupForecast.updateForecast();
+		if (updateForecast) {
+			System.out.println("Updating Forecast...");
+			eqkRupForecast.updateForecast();
+		}
 
 		return eqkRupForecast;
 	}
@@ -0,0 +1,526 @@
+package org.opensha.sha.cybershake.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Thread safe, in memory registry of the small metadata tables (runs, sites, IM types, hazard datasets, ERFs,
+ * velocity models, SGT variations and rupture variation scenarios) for a single {@link DBAccess}, see
+ * {@link DBAccess#getMetadataRegistry()}. Each table is loaded in full with a single query the first time it is
+ * needed, and lookups are then answered from hash maps. The DAO classes check here first and fall back to a direct
+ * query on a miss (e.g. for a run inserted after the table was loaded).
+ * <br>
+ * <br>Tables are reloaded on the next access once they are older than the maximum age (default
+ * {@value #DEFAULT_MAX_AGE_SECS} seconds, or set with the {@value #MAX_AGE_SECS_PROP} system property), which keeps
+ * long lived processes from serving stale metadata indefinitely. {@link #refresh()} forces a reload, and the cache
+ * can be disabled entirely with the {@value #DISABLED_PROP} system property.
+ * <br>
+ * <br>Run status is updated by the workflow tools while runs are in progress, so the runs table has a much shorter
+ * maximum age (default {@value #DEFAULT_RUNS_MAX_AGE_SECS} seconds, or set with the {@value #RUNS_MAX_AGE_SECS_PROP}
+ * system property), and is invalidated whenever the runs table is modified through the owning {@link DBAccess}.
+ * Runs and sites are returned as copies, so callers can't modify the cached instances.
+ * <br>
+ * <br>Hazard curve to run/IM/dataset mappings are also cached here as they are looked up, since curves are never
+ * modified once inserted.
+ *
+ * @author kevin
+ *
+ */
+public class MetadataRegistry {
+
+	public static final String DISABLED_PROP = "cybershake.db.metadata.disabled";
+	public static final String MAX_AGE_SECS_PROP = "cybershake.db.metadata.maxAgeSecs";
+	public static final long DEFAULT_MAX_AGE_SECS = 60*60;
+	public static final String RUNS_MAX_AGE_SECS_PROP = "cybershake.db.metadata.runsMaxAgeSecs";
+	public static final long DEFAULT_RUNS_MAX_AGE_SECS = 60;
+
+	private DBAccess db;
+
+	private volatile boolean enabled;
+	private volatile long maxAgeMillis;
+
+	private Table<CybershakeRun> runs;
+	private Table<CybershakeSite> sites;
+	private Table<CybershakeIM> ims;
+	private Table<CybershakeHazardDataset> datasets;
+	private Table<ERFRecord> erfs;
+	private Table<CybershakeVelocityModel> velModels;
+	private Table<CybershakeSGTVariation> sgtVars;
+	private Table<CybershakeRuptureVariation> rupVars;
+	private List<Table<?>> tables = new ArrayList<>();
+
+	private volatile Map<String, CybershakeSite> sitesByName;
+	private volatile Map<Integer, CybershakeSite> sitesByNameSource;
+
+	private ConcurrentMap<Integer, CurveInfo> curves = new ConcurrentHashMap<>();
+	private volatile long curvesClearTime = System.currentTimeMillis();
+
+	MetadataRegistry(DBAccess db) {
+		this.db = db;
+		this.enabled = !Boolean.getBoolean(DISABLED_PROP);
+		this.maxAgeMillis = Long.getLong(MAX_AGE_SECS_PROP, DEFAULT_MAX_AGE_SECS)*1000l;
+
+		runs = register(new Table<>("SELECT * FROM CyberShake_Runs", rs -> {
+			Map<Integer, CybershakeRun> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeRun run = CybershakeRun.fromResultSet(rs);
+				map.put(run.getRunID(), run);
+			}
+			return map;
+		}));
+		runs.maxAgeMillis = Long.getLong(RUNS_MAX_AGE_SECS_PROP, DEFAULT_RUNS_MAX_AGE_SECS)*1000l;
+		sites = register(new Table<>("SELECT CS_Site_ID,CS_Site_Name,CS_Short_Name,CS_Site_Lat,CS_Site_Lon,"
+				+ "CS_Site_Type_ID FROM CyberShake_Sites", rs -> {
+			Map<Integer, CybershakeSite> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeSite site = CybershakeSite.fromResultSet(rs);
+				map.put(site.id, site);
+			}
+			return map;
+		}));
+		ims = register(new Table<>("SELECT * FROM IM_Types", rs -> {
+			Map<Integer, CybershakeIM> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeIM im = CybershakeIM.fromResultSet(rs);
+				map.put(im.getID(), im);
+			}
+			return map;
+		}));
+		datasets = register(new Table<>("SELECT * FROM Hazard_Datasets", rs -> {
+			Map<Integer, CybershakeHazardDataset> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeHazardDataset dataset = CybershakeHazardDataset.fromResultSet(rs);
+				map.put(dataset.datasetID, dataset);
+			}
+			return map;
+		}));
+		erfs = register(new Table<>("SELECT * FROM ERF_IDs", rs -> {
+			Map<Integer, ERFRecord> map = new HashMap<>();
+			while (rs.next()) {
+				int id = rs.getInt("ERF_ID");
+				CybershakeERF erf = new CybershakeERF(id, rs.getString("ERF_Name"), rs.getString("ERF_Description"));
+				map.put(id, new ERFRecord(erf, rs.getInt("Default_Prob_Model_ID"), rs.getInt("Default_Time_Span_ID")));
+			}
+			return map;
+		}));
+		velModels = register(new Table<>("SELECT * FROM Velocity_Models", rs -> {
+			Map<Integer, CybershakeVelocityModel> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeVelocityModel model = CybershakeVelocityModel.fromResultSet(rs);
+				map.put(model.getID(), model);
+			}
+			return map;
+		}));
+		sgtVars = register(new Table<>("SELECT * FROM SGT_Variation_IDs", rs -> {
+			Map<Integer, CybershakeSGTVariation> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeSGTVariation var = CybershakeSGTVariation.fromResultSet(rs);
+				map.put(var.getID(), var);
+			}
+			return map;
+		}));
+		rupVars = register(new Table<>("SELECT * FROM Rupture_Variation_Scenario_IDs", rs -> {
+			Map<Integer, CybershakeRuptureVariation> map = new HashMap<>();
+			while (rs.next()) {
+				CybershakeRuptureVariation var = CybershakeRuptureVariation.fromResultSet(rs);
+				map.put(var.getID(), var);
+			}
+			return map;
+		}));
+	}
+
+	private <E> Table<E> register(Table<E> table) {
+		tables.add(table);
+		return table;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables this registry. When disabled, all lookups return null and the DAOs query the database
+	 * directly.
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			invalidate();
+	}
+
+	/**
+	 * @param maxAge maximum age of a loaded table before it is reloaded on the next access, or zero to never expire
+	 * @param unit
+	 */
+	public void setMaxAge(long maxAge, TimeUnit unit) {
+		this.maxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	public long getMaxAge(TimeUnit unit) {
+		return unit.convert(maxAgeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxAge maximum age of the loaded runs table before it is reloaded on the next access, or zero to never
+	 * expire
+	 * @param unit
+	 */
+	public void setRunsMaxAge(long maxAge, TimeUnit unit) {
+		runs.maxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	public long getRunsMaxAge(TimeUnit unit) {
+		return unit.convert(runs.maxAgeMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Discards all cached metadata, which will be reloaded lazily on the next lookup
+	 */
+	public void invalidate() {
+		for (Table<?> table : tables)
+			table.invalidate();
+		clearCurves();
+	}
+
+	/**
+	 * Immediately reloads all metadata tables
+	 */
+	public void refresh() {
+		Stopwatch watch = Stopwatch.createStarted();
+		for (Table<?> table : tables)
+			table.load();
+		clearCurves();
+		System.out.println("Refreshed metadata registry in "+watch.elapsed(TimeUnit.MILLISECONDS)+" ms");
+	}
+
+	/**
+	 * Discards cached runs, e.g. after a run is inserted or its status is updated
+	 */
+	public void invalidateRuns() {
+		runs.invalidate();
+	}
+
+	/**
+	 * Called by {@link DBAccess} after each insert, update or delete statement, invalidates the runs table if it
+	 * was modified
+	 * @param sql
+	 */
+	void onUpdate(String sql) {
+		if (sql.toLowerCase().contains("cybershake_runs"))
+			invalidateRuns();
+	}
+
+	/**
+	 * Discards cached sites, e.g. after a site is inserted or modified
+	 */
+	public void invalidateSites() {
+		sites.invalidate();
+	}
+
+	/**
+	 * Discards cached hazard datasets, e.g. after a dataset is inserted
+	 */
+	public void invalidateDatasets() {
+		datasets.invalidate();
+	}
+
+	/**
+	 * Discards the cached mapping for the given hazard curve, e.g. after it is deleted
+	 * @param curveID
+	 */
+	public void invalidateCurve(int curveID) {
+		curves.remove(curveID);
+	}
+
+	private void clearCurves() {
+		curves.clear();
+		curvesClearTime = System.currentTimeMillis();
+	}
+
+	private boolean isExpired(long loadTime) {
+		return maxAgeMillis > 0 && System.currentTimeMillis() - loadTime > maxAgeMillis;
+	}
+
+	/*
+	 * Lookups. All return null if disabled, if the table could not be loaded, or if the ID isn't present
+	 */
+
+	/**
+	 * @param runID
+	 * @return a copy of the given run (so that callers can't modify the cached instance), or null
+	 */
+	public CybershakeRun getRun(int runID) {
+		CybershakeRun run = runs.get(runID);
+		return run == null ? null : run.copy();
+	}
+
+	/**
+	 * @param siteID
+	 * @return a copy of the given site (as site fields are mutable), or null
+	 */
+	public CybershakeSite getSite(int siteID) {
+		return copy(sites.get(siteID));
+	}
+
+	/**
+	 * @param shortName
+	 * @return a copy of the site with the given short name (as site fields are mutable), or null
+	 */
+	public CybershakeSite getSite(String shortName) {
+		Map<Integer, CybershakeSite> siteMap = sites.getAll();
+		if (siteMap == null)
+			return null;
+		Map<String, CybershakeSite> byName = sitesByName;
+		if (byName == null || sitesByNameSource != siteMap) {
+			byName = new HashMap<>();
+			for (CybershakeSite site : siteMap.values())
+				byName.put(site.short_name, site);
+			sitesByName = byName;
+			sitesByNameSource = siteMap;
+		}
+		return copy(byName.get(shortName));
+	}
+
+	/**
+	 * @return copies of all sites sorted by ID, or null
+	 */
+	public List<CybershakeSite> getAllSites() {
+		Map<Integer, CybershakeSite> siteMap = sites.getAll();
+		if (siteMap == null)
+			return null;
+		List<CybershakeSite> ret = new ArrayList<>();
+		for (CybershakeSite site : siteMap.values())
+			ret.add(copy(site));
+		ret.sort((s1, s2) -> Integer.compare(s1.id, s2.id));
+		return ret;
+	}
+
+	private static CybershakeSite copy(CybershakeSite site) {
+		if (site == null)
+			return null;
+		return new CybershakeSite(site.id, site.lat, site.lon, site.name, site.short_name, site.type_id);
+	}
+
+	private static CybershakeERF copy(CybershakeERF erf) {
+		return new CybershakeERF(erf.id, erf.name, erf.description);
+	}
+
+	public CybershakeIM getIM(int imTypeID) {
+		return ims.get(imTypeID);
+	}
+
+	public CybershakeHazardDataset getDataset(int datasetID) {
+		return datasets.get(datasetID);
+	}
+
+	/**
+	 * @param erfID
+	 * @return a copy of the given ERF (as ERF fields are mutable), or null
+	 */
+	public CybershakeERF getERF(int erfID) {
+		ERFRecord record = erfs.get(erfID);
+		return record == null ? null : copy(record.erf);
+	}
+
+	/**
+	 * @return copies of all ERFs sorted by ID, descending (consistent with {@link ERF2DB#getAllERFs()}), or null
+	 */
+	public List<CybershakeERF> getAllERFs() {
+		Map<Integer, ERFRecord> erfMap = erfs.getAll();
+		if (erfMap == null)
+			return null;
+		List<CybershakeERF> ret = new ArrayList<>();
+		for (ERFRecord record : erfMap.values())
+			ret.add(copy(record.erf));
+		ret.sort((e1, e2) -> Integer.compare(e2.id, e1.id));
+		return ret;
+	}
+
+	/**
+	 * @param erfID
+	 * @return default probability model ID for the given ERF, or -1
+	 */
+	public int getDefaultProbModelID(int erfID) {
+		ERFRecord record = erfs.get(erfID);
+		return record == null ? -1 : record.defaultProbModelID;
+	}
+
+	/**
+	 * @param erfID
+	 * @return default time span ID for the given ERF, or -1
+	 */
+	public int getDefaultTimeSpanID(int erfID) {
+		ERFRecord record = erfs.get(erfID);
+		return record == null ? -1 : record.defaultTimeSpanID;
+	}
+
+	public CybershakeVelocityModel getVelocityModel(int velModelID) {
+		return velModels.get(velModelID);
+	}
+
+	/**
+	 * @return unmodifiable map of all velocity models, or null
+	 */
+	public Map<Integer, CybershakeVelocityModel> getVelocityModels() {
+		return velModels.getAll();
+	}
+
+	public CybershakeSGTVariation getSGTVariation(int sgtVarID) {
+		return sgtVars.get(sgtVarID);
+	}
+
+	/**
+	 * @return unmodifiable map of all SGT variations, or null
+	 */
+	public Map<Integer, CybershakeSGTVariation> getSGTVariations() {
+		return sgtVars.getAll();
+	}
+
+	public CybershakeRuptureVariation getRuptureVariation(int rvScenID) {
+		return rupVars.get(rvScenID);
+	}
+
+	/**
+	 * @return unmodifiable map of all rupture variation scenarios, or null
+	 */
+	public Map<Integer, CybershakeRuptureVariation> getRuptureVariations() {
+		return rupVars.getAll();
+	}
+
+	/**
+	 * @param curveID
+	 * @return run ID, IM type ID and dataset ID for the given curve, loaded with a single query on the first lookup,
+	 * or null if disabled or not found
+	 */
+	CurveInfo getCurveInfo(int curveID) {
+		if (!enabled)
+			return null;
+		if (isExpired(curvesClearTime))
+			clearCurves();
+		CurveInfo info = curves.get(curveID);
+		if (info != null)
+			return info;
+		String sql = "SELECT Run_ID,IM_Type_ID,Hazard_Dataset_ID FROM " + HazardCurve2DB.TABLE_NAME
+				+ " WHERE Hazard_Curve_ID=" + curveID;
+		try {
+			info = db.selectData(sql, rs -> {
+				if (!rs.next())
+					return null;
+				return new CurveInfo(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+			});
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+		if (info != null)
+			curves.putIfAbsent(curveID, info);
+		return info;
+	}
+
+	static class CurveInfo {
+		final int runID;
+		final int imTypeID;
+		final int datasetID;
+
+		private CurveInfo(int runID, int imTypeID, int datasetID) {
+			this.runID = runID;
+			this.imTypeID = imTypeID;
+			this.datasetID = datasetID;
+		}
+	}
+
+	private static class ERFRecord {
+		private final CybershakeERF erf;
+		private final int defaultProbModelID;
+		private final int defaultTimeSpanID;
+
+		private ERFRecord(CybershakeERF erf, int defaultProbModelID, int defaultTimeSpanID) {
+			this.erf = erf;
+			this.defaultProbModelID = defaultProbModelID;
+			this.defaultTimeSpanID = defaultTimeSpanID;
+		}
+	}
+
+	/**
+	 * A single metadata table, loaded in full and swapped atomically on reload
+	 *
+	 * @param <E>
+	 */
+	private class Table<E> {
+
+		private String sql;
+		private ResultSetHandler<Map<Integer, E>> handler;
+
+		private volatile Map<Integer, E> map;
+		private volatile long loadTime;
+		// table specific maximum age, or -1 to use the registry maximum age
+		private volatile long maxAgeMillis = -1l;
+		// don't hammer the database if a table can't be loaded (e.g. missing from an old SQLite file)
+		private volatile long failTime = -1l;
+
+		private Table(String sql, ResultSetHandler<Map<Integer, E>> handler) {
+			this.sql = sql;
+			this.handler = handler;
+		}
+
+		public E get(int id) {
+			Map<Integer, E> map = getAll();
+			return map == null ? null : map.get(id);
+		}
+
+		public Map<Integer, E> getAll() {
+			if (!enabled)
+				return null;
+			Map<Integer, E> map = this.map;
+			if (map == null || isTableExpired(loadTime)) {
+				synchronized (this) {
+					map = this.map;
+					if (map == null || isTableExpired(loadTime)) {
+						if (failTime >= 0l && !isTableExpired(failTime))
+							return null;
+						map = load();
+					}
+				}
+			}
+			return map;
+		}
+
+		private boolean isTableExpired(long time) {
+			long maxAge = maxAgeMillis;
+			if (maxAge < 0l)
+				return isExpired(time);
+			return maxAge > 0 && System.currentTimeMillis() - time > maxAge;
+		}
+
+		public synchronized Map<Integer, E> load() {
+			try {
+				Map<Integer, E> map = Collections.unmodifiableMap(db.selectData(sql, handler));
+				this.map = map;
+				this.loadTime = System.currentTimeMillis();
+				this.failTime = -1l;
+				return map;
+			} catch (SQLException e) {
+				System.err.println("WARNING: couldn't load metadata with '"+sql+"': "+e.getMessage());
+				this.map = null;
+				this.failTime = System.currentTimeMillis();
+				return null;
+			}
+		}
+
+		public synchronized void invalidate() {
+			map = null;
+			failTime = -1l;
+		}
+	}
+
+}
@@ -3,14 +3,22 @@ package org.opensha.sha.cybershake.db;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.opensha.commons.util.DataUtils;
 import org.opensha.commons.util.ListUtils;
 import org.opensha.sha.cybershake.db.CybershakeIM.CyberShakeComponent;
 import org.opensha.sha.cybershake.db.CybershakeIM.IMType;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 public class PeakAmplitudesFromDB implements PeakAmplitudesFromDBAPI {
@@ -409,6 +417,102 @@ public class PeakAmplitudesFromDB implements PeakAmplitudesFromDBAPI {
 		return vals;
 	}
 	
+	private static final ResultSetHandler<List<Double>> IM_VALUES_HANDLER = rs -> {
+		List<Double> vals = new ArrayList<Double>();
+		while (rs.next())
+			vals.add(rs.getDouble("IM_Value"));
+		return vals;
+	};
+	
+	/**
+	 * Asynchronous version of {@link #getIM_Values(int, int, int, CybershakeIM)}. The future completes exceptionally
+	 * if the query fails.
+	 * @param runID
+	 * @param srcId
+	 * @param rupId
+	 * @param im
+	 * @return future for the list of IM values, ordered by rupture variation ID
+	 */
+	public CompletableFuture<List<Double>> getIM_ValuesAsync(int runID, int srcId, int rupId, CybershakeIM im) {
+		String sql = "SELECT IM_Value from " + TABLE_NAME + " where Run_ID=" + runID + " and Source_ID = '"+srcId+"' "+
+		        "and Rupture_ID = '"+rupId+"' and IM_Type_ID = '"+im.getID()+"' ORDER BY Rup_Var_ID";
+		// coalesced queries share results, so return a copy
+		return dbaccess.selectDataAsync(sql, IM_VALUES_HANDLER).thenApply(vals -> new ArrayList<Double>(vals));
+	}
+	
+	/**
+	 * Maximum number of run IDs in a single IN (...) clause for bulk queries
+	 */
+	private static final int MAX_BULK_RUNS = 500;
+	
+	private static final ResultSetHandler<Map<Integer, double[]>> RUN_IM_VALUES_HANDLER = rs -> {
+		Map<Integer, double[]> valsMap = new HashMap<>();
+		int curRunID = -1;
+		int[] rvIDs = new int[64];
+		double[] vals = new double[64];
+		int num = 0;
+		while (true) {
+			boolean more = rs.next();
+			int runID = more ? rs.getInt(1) : -1;
+			if (num > 0 && (!more || runID != curRunID)) {
+				// sorted by RV ID, so the last one is the largest
+				double[] runVals = new double[rvIDs[num-1]+1];
+				Arrays.fill(runVals, Double.NaN);
+				for (int i=0; i<num; i++)
+					runVals[rvIDs[i]] = vals[i];
+				valsMap.put(curRunID, runVals);
+				num = 0;
+			}
+			if (!more)
+				break;
+			curRunID = runID;
+			if (num == rvIDs.length) {
+				rvIDs = Arrays.copyOf(rvIDs, num*2);
+				vals = Arrays.copyOf(vals, num*2);
+			}
+			rvIDs[num] = rs.getInt(2);
+			vals[num] = rs.getDouble(3);
+			num++;
+		}
+		return valsMap;
+	};
+	
+	/**
+	 * Fetches IM values for a single rupture from many runs at once. Batches of {@link #MAX_BULK_RUNS} runs are
+	 * fetched concurrently through {@link DBAccess#selectDataAsync(String, ResultSetHandler)}.
+	 * @param runIDs
+	 * @param srcId
+	 * @param rupId
+	 * @param im
+	 * @return map from run ID to IM values indexed by rupture variation ID, with NaN for any missing variations.
+	 * Runs without amplitudes for this rupture will not be present.
+	 * @throws SQLException
+	 */
+	public Map<Integer, double[]> getIM_Values(Collection<Integer> runIDs, int srcId, int rupId, CybershakeIM im)
+			throws SQLException {
+		List<CompletableFuture<Map<Integer, double[]>>> futures = new ArrayList<>();
+		for (List<Integer> batch : Iterables.partition(runIDs, MAX_BULK_RUNS)) {
+			String sql = "SELECT Run_ID,Rup_Var_ID,IM_Value FROM " + TABLE_NAME
+					+ " WHERE Run_ID IN (" + Joiner.on(",").join(batch) + ") AND Source_ID=" + srcId
+					+ " AND Rupture_ID=" + rupId + " AND IM_Type_ID=" + im.getID() + " ORDER BY Run_ID,Rup_Var_ID";
+			futures.add(dbaccess.selectDataAsync(sql, RUN_IM_VALUES_HANDLER));
+		}
+		Map<Integer, double[]> valsMap = new HashMap<>();
+		try {
+			for (CompletableFuture<Map<Integer, double[]>> future : futures)
+				// coalesced queries share results, so copy
+				for (Map.Entry<Integer, double[]> entry : future.join().entrySet())
+					valsMap.put(entry.getKey(), entry.getValue().clone());
+		} catch (CompletionException e) {
+			for (CompletableFuture<Map<Integer, double[]>> future : futures)
+				future.cancel(true);
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException)e.getCause();
+			throw e;
+		}
+		return valsMap;
+	}
+	
 	 /**
 	  * @return all possible SGT Variation IDs
 	  */
@@ -0,0 +1,515 @@
+package org.opensha.sha.cybershake.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Immutable, columnar store of every rupture variation hypocenter for a single ERF ID and rupture variation scenario
+ * ID. Ruptures are stored in (Source_ID, Rupture_ID) order with offsets into flat RV ID and float lat/lon/depth
+ * columns, and are located by binary search, so lookups don't touch the database or create any boxed maps.
+ * <br>
+ * <br>Stores are loaded from the Rupture_Variations table in a single ordered query, and can be persisted to a
+ * binary file which is memory mapped when reloaded. Use {@link #get(DBAccess, int, int, File)} to share a single
+ * instance per (database, ERF ID, RV scenario ID) across all callers in this JVM.
+ *
+ * @author kevin
+ *
+ */
+public class RVHypocenterStore {
+
+	private static final int MAGIC = 0x43535248; // "CSRH"
+	private static final int VERSION = 1;
+	// magic, version, ERF ID, RV scenario ID, num ruptures, num RVs, body CRC
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 4 + 4 + 8;
+
+	private static final int FETCH_SIZE = 10000;
+
+	/**
+	 * System property which sets the default cache directory for stores, see {@link #getDefaultCacheDir()}
+	 */
+	public static final String CACHE_DIR_PROP = "cybershake.rvHypoCacheDir";
+
+	// weak (identity) keys so that stores don't keep destroyed databases reachable
+	private static final LoadingCache<DBAccess, ConcurrentMap<Long, FutureTask<RVHypocenterStore>>> instances =
+			CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(
+					(DBAccess db) -> new ConcurrentHashMap<Long, FutureTask<RVHypocenterStore>>()));
+
+	private int erfID;
+	private int rvScenID;
+
+	// (Source_ID << 32 | Rupture_ID) for each rupture, sorted
+	private long[] rupKeys;
+	// one more than the number of ruptures
+	private IntBuffer rvOffsets;
+	private IntBuffer rvIDs;
+	private FloatBuffer lats;
+	private FloatBuffer lons;
+	private FloatBuffer depths;
+
+	private RVHypocenterStore(int erfID, int rvScenID, long[] rupKeys, IntBuffer rvOffsets, IntBuffer rvIDs,
+			FloatBuffer lats, FloatBuffer lons, FloatBuffer depths) {
+		int numRVs = rvIDs.capacity();
+		Preconditions.checkArgument(rvOffsets.capacity() == rupKeys.length+1
+				&& rvOffsets.get(rupKeys.length) == numRVs, "Bad RV offsets");
+		Preconditions.checkArgument(lats.capacity() == numRVs && lons.capacity() == numRVs
+				&& depths.capacity() == numRVs, "Hypocenter array lengths are inconsistent");
+		this.erfID = erfID;
+		this.rvScenID = rvScenID;
+		this.rupKeys = rupKeys;
+		this.rvOffsets = rvOffsets;
+		this.rvIDs = rvIDs;
+		this.lats = lats;
+		this.lons = lons;
+		this.depths = depths;
+	}
+
+	private static long key(int sourceID, int rupID) {
+		return ((long)sourceID << 32) | (rupID & 0xffffffffl);
+	}
+
+	/**
+	 * Returns the shared store for the given database, ERF ID and RV scenario ID, loading it if necessary. If a cache
+	 * directory is supplied, the store will be memory mapped from a file in that directory if it exists, otherwise
+	 * loaded from the database and then written there for next time.
+	 * <br>
+	 * <br>Concurrent requests for the same store wait for a single load, but loads of different stores don't block
+	 * each other.
+	 * @param db
+	 * @param erfID
+	 * @param rvScenID
+	 * @param cacheDir cache directory, or null to always load from the database
+	 * @return
+	 * @throws IOException
+	 */
+	public static RVHypocenterStore get(DBAccess db, int erfID, int rvScenID, File cacheDir)
+			throws IOException {
+		Preconditions.checkNotNull(db, "DB must be supplied");
+		ConcurrentMap<Long, FutureTask<RVHypocenterStore>> dbInstances = instances.getUnchecked(db);
+		Long key = key(erfID, rvScenID);
+		FutureTask<RVHypocenterStore> future = dbInstances.get(key);
+		if (future == null) {
+			FutureTask<RVHypocenterStore> newFuture = new FutureTask<>(() -> doGet(db, erfID, rvScenID, cacheDir));
+			future = dbInstances.putIfAbsent(key, newFuture);
+			if (future == null) {
+				future = newFuture;
+				future.run();
+			}
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// don't cache failures
+			dbInstances.remove(key, future);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+
+	private static RVHypocenterStore doGet(DBAccess db, int erfID, int rvScenID, File cacheDir)
+			throws IOException {
+		File cacheFile = cacheDir == null ? null : getCacheFile(cacheDir, erfID, rvScenID);
+		if (cacheFile != null && cacheFile.exists()) {
+			RVHypocenterStore store = load(cacheFile);
+			Preconditions.checkState(store.erfID == erfID && store.rvScenID == rvScenID,
+					"Cache file %s is for ERF %s RV scenario %s", cacheFile.getName(), store.erfID, store.rvScenID);
+			return store;
+		}
+		RVHypocenterStore store;
+		try {
+			store = load(db, erfID, rvScenID);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		if (cacheFile != null) {
+			if (!cacheDir.exists())
+				Preconditions.checkState(cacheDir.mkdirs() || cacheDir.exists(),
+						"couldn't create: %s", cacheDir.getPath());
+			store.write(cacheFile);
+		}
+		return store;
+	}
+
+	/**
+	 * Returns the shared store for the given database, ERF ID and RV scenario ID, loading it if necessary. The
+	 * default cache directory will be used if set (see {@link #getDefaultCacheDir()}).
+	 * @param db
+	 * @param erfID
+	 * @param rvScenID
+	 * @return
+	 */
+	public static RVHypocenterStore get(DBAccess db, int erfID, int rvScenID) {
+		try {
+			return get(db, erfID, rvScenID, getDefaultCacheDir());
+		} catch (IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param erfID
+	 * @param rvScenID
+	 * @return the shared store for the given database, ERF ID and RV scenario ID, or null if it hasn't been loaded
+	 * yet (or is still loading)
+	 */
+	public static RVHypocenterStore getIfLoaded(DBAccess db, int erfID, int rvScenID) {
+		ConcurrentMap<Long, FutureTask<RVHypocenterStore>> dbInstances = instances.getIfPresent(db);
+		if (dbInstances == null)
+			return null;
+		FutureTask<RVHypocenterStore> future = dbInstances.get(key(erfID, rvScenID));
+		if (future == null || !future.isDone())
+			return null;
+		try {
+			return future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return default cache directory from the {@value #CACHE_DIR_PROP} system property, or null if not set
+	 */
+	public static File getDefaultCacheDir() {
+		String dir = System.getProperty(CACHE_DIR_PROP);
+		if (dir == null || dir.trim().isEmpty())
+			return null;
+		return new File(dir);
+	}
+
+	public static File getCacheFile(File cacheDir, int erfID, int rvScenID) {
+		return new File(cacheDir, "rv_hypos_erf"+erfID+"_rvscen"+rvScenID+".bin");
+	}
+
+	/**
+	 * Loads all hypocenters for the given ERF ID and RV scenario ID in a single query
+	 * @param db
+	 * @param erfID
+	 * @param rvScenID
+	 * @return
+	 * @throws SQLException
+	 */
+	public static RVHypocenterStore load(DBAccess db, int erfID, int rvScenID) throws SQLException {
+		Stopwatch watch = Stopwatch.createStarted();
+		String sql = "SELECT Source_ID,Rupture_ID,Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth"
+				+ " FROM Rupture_Variations WHERE ERF_ID="+erfID+" AND Rup_Var_Scenario_ID="+rvScenID
+				+ " ORDER BY Source_ID,Rupture_ID,Rup_Var_ID";
+		RVHypocenterStore store = db.selectData(sql, FETCH_SIZE, rs -> {
+			int rupSize = 1000;
+			long[] rupKeys = new long[rupSize];
+			int[] offsets = new int[rupSize+1];
+			int size = 10000;
+			int[] rvIDs = new int[size];
+			float[] lats = new float[size];
+			float[] lons = new float[size];
+			float[] depths = new float[size];
+			int numRups = 0;
+			int numRVs = 0;
+			while (rs.next()) {
+				long key = key(rs.getInt(1), rs.getInt(2));
+				if (numRups == 0 || key != rupKeys[numRups-1]) {
+					Preconditions.checkState(numRups == 0 || key > rupKeys[numRups-1], "Ruptures not sorted");
+					if (numRups == rupSize) {
+						rupSize *= 2;
+						rupKeys = Arrays.copyOf(rupKeys, rupSize);
+						offsets = Arrays.copyOf(offsets, rupSize+1);
+					}
+					rupKeys[numRups] = key;
+					offsets[numRups] = numRVs;
+					numRups++;
+				}
+				if (numRVs == size) {
+					size *= 2;
+					rvIDs = Arrays.copyOf(rvIDs, size);
+					lats = Arrays.copyOf(lats, size);
+					lons = Arrays.copyOf(lons, size);
+					depths = Arrays.copyOf(depths, size);
+				}
+				rvIDs[numRVs] = rs.getInt(3);
+				lats[numRVs] = rs.getFloat(4);
+				lons[numRVs] = rs.getFloat(5);
+				depths[numRVs] = rs.getFloat(6);
+				numRVs++;
+			}
+			offsets[numRups] = numRVs;
+			return new RVHypocenterStore(erfID, rvScenID, Arrays.copyOf(rupKeys, numRups),
+					IntBuffer.wrap(Arrays.copyOf(offsets, numRups+1)), IntBuffer.wrap(Arrays.copyOf(rvIDs, numRVs)),
+					FloatBuffer.wrap(Arrays.copyOf(lats, numRVs)), FloatBuffer.wrap(Arrays.copyOf(lons, numRVs)),
+					FloatBuffer.wrap(Arrays.copyOf(depths, numRVs)));
+		}, null);
+		System.out.println("Loaded "+store.getNumRVs()+" hypocenters for "+store.getNumRuptures()+" ruptures (ERF "
+				+erfID+", RV scenario "+rvScenID+") in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+		return store;
+	}
+
+	/**
+	 * Writes this store to the given file, which can be reloaded with {@link #load(File)}
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		int numRups = getNumRuptures();
+		int numRVs = getNumRVs();
+		// write to a temporary file first so that a partially written file is never loaded
+		File tmp = new File(file.getAbsolutePath()+".tmp");
+		CRC32 crc = new CRC32();
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0l);
+			// header is filled in once the body has been written
+			raf.write(new byte[HEADER_SIZE]);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(new FileOutputStream(raf.getFD())), crc));
+			for (int i=0; i<numRups; i++)
+				out.writeLong(rupKeys[i]);
+			for (int i=0; i<=numRups; i++)
+				out.writeInt(rvOffsets.get(i));
+			for (int i=0; i<numRVs; i++)
+				out.writeInt(rvIDs.get(i));
+			for (int i=0; i<numRVs; i++)
+				out.writeFloat(lats.get(i));
+			for (int i=0; i<numRVs; i++)
+				out.writeFloat(lons.get(i));
+			for (int i=0; i<numRVs; i++)
+				out.writeFloat(depths.get(i));
+			out.flush();
+			raf.seek(0l);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(erfID);
+			raf.writeInt(rvScenID);
+			raf.writeInt(numRups);
+			raf.writeInt(numRVs);
+			raf.writeLong(crc.getValue());
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Memory maps a store written with {@link #write(File)}, without verifying the checksum
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static RVHypocenterStore load(File file) throws IOException {
+		return load(file, false);
+	}
+
+	/**
+	 * Memory maps a store written with {@link #write(File)}
+	 * @param file
+	 * @param verify if true, the checksum of the whole file will be verified (which reads every page)
+	 * @return
+	 * @throws IOException
+	 */
+	public static RVHypocenterStore load(File file, boolean verify) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0l, channel.size());
+			Preconditions.checkState(buf.capacity() >= HEADER_SIZE, "File too small: %s", file.getName());
+			Preconditions.checkState(buf.getInt(0) == MAGIC, "Not a hypocenter store: %s", file.getName());
+			int version = buf.getInt(4);
+			Preconditions.checkState(version == VERSION, "Unsupported hypocenter store version: %s", version);
+			int erfID = buf.getInt(8);
+			int rvScenID = buf.getInt(12);
+			int numRups = buf.getInt(16);
+			int numRVs = buf.getInt(20);
+			long crcVal = buf.getLong(24);
+			long expectedSize = HEADER_SIZE + 8l*numRups + 4l*(numRups+1) + 16l*numRVs;
+			Preconditions.checkState(buf.capacity() == expectedSize,
+					"Hypocenter store %s has size %s, expected %s", file.getName(), buf.capacity(), expectedSize);
+			if (verify) {
+				CRC32 crc = new CRC32();
+				ByteBuffer body = buf.duplicate();
+				body.position(HEADER_SIZE);
+				crc.update(body);
+				Preconditions.checkState(crc.getValue() == crcVal, "Checksum mismatch for %s", file.getName());
+			}
+
+			int pos = HEADER_SIZE;
+			// keys are binary searched constantly, so copy them to the heap
+			long[] rupKeys = new long[numRups];
+			slice(buf, pos, 8*numRups).asLongBuffer().get(rupKeys);
+			pos += 8*numRups;
+			IntBuffer offsets = slice(buf, pos, 4*(numRups+1)).asIntBuffer();
+			pos += 4*(numRups+1);
+			IntBuffer rvIDs = slice(buf, pos, 4*numRVs).asIntBuffer();
+			pos += 4*numRVs;
+			FloatBuffer lats = slice(buf, pos, 4*numRVs).asFloatBuffer();
+			pos += 4*numRVs;
+			FloatBuffer lons = slice(buf, pos, 4*numRVs).asFloatBuffer();
+			pos += 4*numRVs;
+			FloatBuffer depths = slice(buf, pos, 4*numRVs).asFloatBuffer();
+
+			return new RVHypocenterStore(erfID, rvScenID, rupKeys, offsets, rvIDs, lats, lons, depths);
+		} finally {
+			// the mapping remains valid after the file is closed
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int position, int length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position(position);
+		dup.limit(position+length);
+		return dup.slice();
+	}
+
+	public int getERFID() {
+		return erfID;
+	}
+
+	public int getRVScenarioID() {
+		return rvScenID;
+	}
+
+	public int getNumRuptures() {
+		return rupKeys.length;
+	}
+
+	public int getNumRVs() {
+		return rvIDs.capacity();
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return index of the given rupture in this store, or -1 if it has no rupture variations
+	 */
+	public int getRuptureIndex(int sourceID, int rupID) {
+		int index = Arrays.binarySearch(rupKeys, key(sourceID, rupID));
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return number of rupture variations for the given rupture (zero if not present)
+	 */
+	public int getNumRVs(int sourceID, int rupID) {
+		int index = getRuptureIndex(sourceID, rupID);
+		if (index < 0)
+			return 0;
+		return rvOffsets.get(index+1) - rvOffsets.get(index);
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return sorted rupture variation IDs for the given rupture (empty if not present)
+	 */
+	public int[] getRVIDs(int sourceID, int rupID) {
+		int index = getRuptureIndex(sourceID, rupID);
+		if (index < 0)
+			return new int[0];
+		int start = rvOffsets.get(index);
+		int[] ret = new int[rvOffsets.get(index+1)-start];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = rvIDs.get(start+i);
+		return ret;
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @param rvID
+	 * @return hypocenter for the given rupture variation, or null if not present
+	 */
+	public Location getHypocenter(int sourceID, int rupID, int rvID) {
+		int index = getRuptureIndex(sourceID, rupID);
+		if (index < 0)
+			return null;
+		int start = rvOffsets.get(index);
+		int end = rvOffsets.get(index+1);
+		int i = start + rvID;
+		// RV IDs are almost always 0...N-1, fall back to a search otherwise
+		if (i >= end || rvIDs.get(i) != rvID) {
+			i = -1;
+			for (int j=start; j<end; j++) {
+				if (rvIDs.get(j) == rvID) {
+					i = j;
+					break;
+				}
+			}
+			if (i < 0)
+				return null;
+		}
+		return new Location(lats.get(i), lons.get(i), depths.get(i));
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return list of hypocenters for the given rupture where the list index is the RV ID. Will contain null values if
+	 * RV IDs are not contiguous, and will be empty if the rupture isn't present
+	 */
+	public List<Location> getHypocenterList(int sourceID, int rupID) {
+		int index = getRuptureIndex(sourceID, rupID);
+		if (index < 0)
+			return new ArrayList<>();
+		int start = rvOffsets.get(index);
+		int end = rvOffsets.get(index+1);
+		List<Location> locs = new ArrayList<>(end-start);
+		for (int i=start; i<end; i++) {
+			int rvID = rvIDs.get(i);
+			while (locs.size() <= rvID)
+				locs.add(null);
+			locs.set(rvID, new Location(lats.get(i), lons.get(i), depths.get(i)));
+		}
+		return locs;
+	}
+
+	/**
+	 * @param sourceID
+	 * @param rupID
+	 * @return map from RV ID to hypocenter for the given rupture, empty if not present
+	 */
+	public HashMap<Integer, Location> getHypocenterMap(int sourceID, int rupID) {
+		HashMap<Integer, Location> locs = new HashMap<Integer, Location>();
+		int index = getRuptureIndex(sourceID, rupID);
+		if (index < 0)
+			return locs;
+		for (int i=rvOffsets.get(index); i<rvOffsets.get(index+1); i++)
+			locs.put(rvIDs.get(i), new Location(lats.get(i), lons.get(i), depths.get(i)));
+		return locs;
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.opensha.sha.cybershake.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Converts a {@link ResultSet} into a fully materialized result, used for asynchronous queries where the result
+ * set must be consumed before the connection is returned to the pool.
+ *
+ * @author kevin
+ *
+ * @param <T>
+ */
+@FunctionalInterface
+public interface ResultSetHandler<T> {
+
+	/**
+	 * @param rs result set, positioned before the first row. Will be closed by the caller
+	 * @return
+	 * @throws SQLException
+	 */
+	public T handle(ResultSet rs) throws SQLException;
+
+}
@@ -1,5 +1,7 @@
 package org.opensha.sha.cybershake.db;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -10,12 +12,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.opensha.sha.cybershake.constants.CyberShakeStudy;
 import org.opensha.sha.cybershake.db.CybershakeRun.Status;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.primitives.Ints;
 
 public class RunIDFetcher {
@@ -46,6 +54,12 @@ public class RunIDFetcher {
 	
 	private DBAccess db;
 	
+	// memoized indexes, keyed by database and filter. weak (identity) database keys so that destroyed databases
+	// aren't kept reachable
+	private static final LoadingCache<DBAccess, ConcurrentMap<String, RunIndex>> indexCache =
+			CacheBuilder.newBuilder().weakKeys().build(CacheLoader.from(
+					(DBAccess db) -> new ConcurrentHashMap<String, RunIndex>()));
+	
 	public RunIDFetcher(DBAccess db) {
 		this.db = db;
 	}
@@ -195,7 +209,116 @@ public class RunIDFetcher {
 		return this;
 	}
 	
+	/**
+	 * Resolves all matching runs with a new query. Use {@link #fetchIndex()} instead for memoized lookups.
+	 * @return modifiable list of runs, or null if the query failed
+	 */
 	public List<CybershakeRun> fetch() {
+		return queryRuns();
+	}
+	
+	/**
+	 * @return key which uniquely identifies the filter applied by this fetcher, independent of the database
+	 */
+	public String getCacheKey() {
+		String key = buildSelectSQL().replaceAll("\\s+", " ");
+		if (unique)
+			key += " [unique, "+(uniqueUseFirst ? "first" : "last")+"]";
+		return key;
+	}
+	
+	/**
+	 * Clears all memoized run indexes, see {@link #fetchIndex()}
+	 */
+	public static void clearCache() {
+		indexCache.invalidateAll();
+	}
+	
+	private RunIndex getCachedIndex(String key) {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		if (!registry.isEnabled())
+			return null;
+		ConcurrentMap<String, RunIndex> dbIndexes = indexCache.getIfPresent(db);
+		if (dbIndexes == null)
+			return null;
+		RunIndex index = dbIndexes.get(key);
+		if (index == null)
+			return null;
+		long maxAge = registry.getRunsMaxAge(TimeUnit.MILLISECONDS);
+		if (maxAge > 0l && System.currentTimeMillis() - index.getCreateTime() > maxAge) {
+			dbIndexes.remove(key, index);
+			return null;
+		}
+		return index;
+	}
+	
+	private void cacheIndex(String key, RunIndex index) {
+		if (db.getMetadataRegistry().isEnabled())
+			indexCache.getUnchecked(db).put(key, index);
+	}
+	
+	/**
+	 * Resolves all matching runs with a single query into an immutable index keyed by run ID, site ID and site short
+	 * name. Indexes are memoized per database and filter (see {@link #getCacheKey()}) for the process, and expire
+	 * along with the runs table of the {@link MetadataRegistry} for the database (and are not memoized if it is
+	 * disabled).
+	 * @return run index, or null if the query failed
+	 */
+	public RunIndex fetchIndex() {
+		String key = getCacheKey();
+		RunIndex index = getCachedIndex(key);
+		if (index != null)
+			return index;
+		List<CybershakeRun> runs = queryRuns();
+		if (runs == null)
+			return null;
+		Map<Integer, String> siteNames = new HashMap<>();
+		for (CybershakeSite site : new SiteInfo2DB(db).getAllSitesFromDB())
+			siteNames.put(site.id, site.short_name);
+		index = new RunIndex(key, runs, siteNames);
+		cacheIndex(key, index);
+		return index;
+	}
+	
+	/**
+	 * Same as {@link #fetchIndex()}, but first tries to load a persisted index from the given file (see
+	 * {@link RunIndex#getSnapshotFile(File)}). If the file doesn't exist, can't be read, or was written for a
+	 * different filter, the index is fetched from the database and written to the file. Persisting is best effort:
+	 * if the file can't be written (e.g. a read-only snapshot directory), the fetched index is still returned.
+	 * @param indexFile
+	 * @return run index, or null if the query failed
+	 */
+	public RunIndex fetchIndex(File indexFile) {
+		String key = getCacheKey();
+		RunIndex index = getCachedIndex(key);
+		if (index != null)
+			return index;
+		if (indexFile.exists()) {
+			try {
+				index = RunIndex.load(indexFile, key, db);
+				if (index != null) {
+					cacheIndex(key, index);
+					return index;
+				}
+				System.out.println("Run index in "+indexFile.getName()+" was written for a different filter, refetching");
+			} catch (IOException | RuntimeException e) {
+				System.err.println("WARNING: couldn't load run index from "+indexFile.getAbsolutePath()
+						+", refetching: "+e.getMessage());
+			}
+		}
+		index = fetchIndex();
+		if (index != null) {
+			try {
+				index.write(indexFile);
+			} catch (IOException e) {
+				System.err.println("WARNING: couldn't write run index to "+indexFile.getAbsolutePath()+": "
+						+e.getMessage());
+			}
+		}
+		return index;
+	}
+	
+	private List<CybershakeRun> queryRuns() {
 		String sql = buildSelectSQL();
 		
 		System.out.println(sql);
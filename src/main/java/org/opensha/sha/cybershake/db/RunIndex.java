@@ -0,0 +1,223 @@
+package org.opensha.sha.cybershake.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable index of the runs resolved by a {@link RunIDFetcher}, keyed by run ID, site ID and site short name so
+ * that per site run lookups don't require any database queries. See {@link RunIDFetcher#fetchIndex()}.
+ * <br>
+ * <br>Indexes can be written to a small text file alongside a study snapshot (see {@link #getSnapshotFile(File)})
+ * and loaded later without running the fetcher query. The file stores the run and site IDs along with the fetcher
+ * key, and run metadata is resolved from the given database (typically the snapshot itself) when loaded.
+ * <br>
+ * <br>Indexes are shared between callers (see {@link RunIDFetcher#fetchIndex()}), so all lookups return copies of
+ * the indexed runs.
+ *
+ * @author kevin
+ *
+ */
+public class RunIndex {
+
+	private static final String HEADER = "Run_ID,Site_ID,CS_Short_Name";
+
+	private final String key;
+	private final long createTime;
+	private final ImmutableList<CybershakeRun> runs;
+	private final ImmutableMap<Integer, CybershakeRun> runsByID;
+	private final ImmutableListMultimap<Integer, CybershakeRun> runsBySiteID;
+	private final ImmutableListMultimap<String, CybershakeRun> runsBySiteName;
+	private final ImmutableMap<Integer, String> siteNames;
+
+	/**
+	 * @param key single line fetcher key (see {@link RunIDFetcher#getCacheKey()}), used to validate persisted indexes
+	 * @param runs runs in fetcher order
+	 * @param siteNames map from site ID to site short name
+	 */
+	RunIndex(String key, List<CybershakeRun> runs, Map<Integer, String> siteNames) {
+		this.key = key;
+		this.createTime = System.currentTimeMillis();
+		this.runs = ImmutableList.copyOf(runs);
+		ImmutableMap.Builder<Integer, CybershakeRun> byID = ImmutableMap.builder();
+		ImmutableListMultimap.Builder<Integer, CybershakeRun> bySiteID = ImmutableListMultimap.builder();
+		ImmutableListMultimap.Builder<String, CybershakeRun> bySiteName = ImmutableListMultimap.builder();
+		for (CybershakeRun run : runs) {
+			byID.put(run.getRunID(), run);
+			bySiteID.put(run.getSiteID(), run);
+			String name = siteNames.get(run.getSiteID());
+			if (name != null)
+				bySiteName.put(name, run);
+		}
+		this.runsByID = byID.build();
+		this.runsBySiteID = bySiteID.build();
+		this.runsBySiteName = bySiteName.build();
+		this.siteNames = ImmutableMap.copyOf(siteNames);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return time (epoch millis) at which this index was created
+	 */
+	public long getCreateTime() {
+		return createTime;
+	}
+
+	/**
+	 * @return copies of all runs, in fetcher order
+	 */
+	public List<CybershakeRun> getRuns() {
+		return copies(runs);
+	}
+
+	private static List<CybershakeRun> copies(List<CybershakeRun> runs) {
+		List<CybershakeRun> ret = new ArrayList<>(runs.size());
+		for (CybershakeRun run : runs)
+			ret.add(run.copy());
+		return ret;
+	}
+
+	private static CybershakeRun copy(CybershakeRun run) {
+		return run == null ? null : run.copy();
+	}
+
+	public int size() {
+		return runs.size();
+	}
+
+	/**
+	 * @param runID
+	 * @return copy of the given run, or null if not in this index
+	 */
+	public CybershakeRun getRun(int runID) {
+		return copy(runsByID.get(runID));
+	}
+
+	/**
+	 * @param siteID
+	 * @return copies of all runs for the given site (empty if none)
+	 */
+	public List<CybershakeRun> getRunsForSite(int siteID) {
+		return copies(runsBySiteID.get(siteID));
+	}
+
+	/**
+	 * @param siteShortName
+	 * @return copies of all runs for the given site (empty if none)
+	 */
+	public List<CybershakeRun> getRunsForSite(String siteShortName) {
+		return copies(runsBySiteName.get(siteShortName));
+	}
+
+	/**
+	 * @param siteID
+	 * @return copy of the first run for the given site (the only one if the fetcher was unique), or null if none
+	 */
+	public CybershakeRun getRunForSite(int siteID) {
+		ImmutableList<CybershakeRun> siteRuns = runsBySiteID.get(siteID);
+		return siteRuns.isEmpty() ? null : siteRuns.get(0).copy();
+	}
+
+	/**
+	 * @param siteShortName
+	 * @return copy of the first run for the given site (the only one if the fetcher was unique), or null if none
+	 */
+	public CybershakeRun getRunForSite(String siteShortName) {
+		ImmutableList<CybershakeRun> siteRuns = runsBySiteName.get(siteShortName);
+		return siteRuns.isEmpty() ? null : siteRuns.get(0).copy();
+	}
+
+	public boolean hasSite(int siteID) {
+		return runsBySiteID.containsKey(siteID);
+	}
+
+	/**
+	 * @param sqLiteFile study snapshot file
+	 * @return file where the run index for the given snapshot is stored
+	 */
+	public static File getSnapshotFile(File sqLiteFile) {
+		return new File(sqLiteFile.getAbsolutePath()+".runs.csv");
+	}
+
+	/**
+	 * Writes this index to the given file
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getAbsolutePath()+".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			out.write("# "+key+"\n");
+			out.write(HEADER+"\n");
+			for (CybershakeRun run : runs) {
+				String name = siteNames.get(run.getSiteID());
+				out.write(run.getRunID()+","+run.getSiteID()+","+(name == null ? "" : name)+"\n");
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Loads a persisted index, resolving runs from the given database
+	 * @param file
+	 * @param key expected fetcher key, or null to skip validation
+	 * @param db
+	 * @return the index, or null if the file was written for a different key
+	 * @throws IOException if the file can't be read or a run is missing from the database
+	 */
+	public static RunIndex load(File file, String key, DBAccess db) throws IOException {
+		List<Integer> runIDs = new ArrayList<>();
+		Map<Integer, String> siteNames = new HashMap<>();
+		String fileKey;
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+			Preconditions.checkState(line != null && line.startsWith("# "), "Bad run index file: %s", file);
+			fileKey = line.substring(2);
+			if (key != null && !fileKey.equals(key))
+				return null;
+			line = in.readLine();
+			Preconditions.checkState(HEADER.equals(line), "Bad run index header in %s: %s", file, line);
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				String[] fields = line.split(",", -1);
+				Preconditions.checkState(fields.length == 3, "Bad run index line in %s: %s", file, line);
+				int runID = Integer.parseInt(fields[0]);
+				int siteID = Integer.parseInt(fields[1]);
+				runIDs.add(runID);
+				if (!fields[2].isEmpty())
+					siteNames.put(siteID, fields[2]);
+			}
+		}
+		// resolve them all at once rather than one query per run
+		Map<Integer, CybershakeRun> runsByID = new Runs2DB(db).getRunsByID(runIDs);
+		if (runsByID == null)
+			throw new IOException("Couldn't fetch runs from "+file.getName()+" from the database");
+		List<CybershakeRun> runs = new ArrayList<>(runIDs.size());
+		for (int runID : runIDs) {
+			CybershakeRun run = runsByID.get(runID);
+			if (run == null)
+				throw new IOException("Run "+runID+" from "+file.getName()+" not found in the database");
+			runs.add(run);
+		}
+		return new RunIndex(key == null ? fileKey : key, runs, siteNames);
+	}
+
+}
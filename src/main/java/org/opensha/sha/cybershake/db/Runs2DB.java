@@ -11,6 +11,11 @@ import com.google.common.collect.Maps;
 
 public class Runs2DB {
 	
+	/**
+	 * Maximum number of run IDs in a single IN clause, see {@link #getRunsByID(List)}
+	 */
+	public static final int RUN_ID_QUERY_BATCH_SIZE = 1000;
+	
 	private DBAccess db;
 	
 	public Runs2DB(DBAccess db) {
@@ -18,6 +23,9 @@ public class Runs2DB {
 	}
 	
 	public int getSiteID(int runID) {
+		CybershakeRun run = db.getMetadataRegistry().getRun(runID);
+		if (run != null)
+			return run.getSiteID();
 		String sql = "SELECT Site_ID FROM CyberShake_Runs WHERE Run_ID=" + runID;
 		
 		try {
@@ -84,6 +92,9 @@ public class Runs2DB {
 	}
 	
 	public CybershakeRun getRun(int runID) {
+		CybershakeRun cached = db.getMetadataRegistry().getRun(runID);
+		if (cached != null)
+			return cached;
 		String sql = "SELECT * FROM CyberShake_Runs WHERE Run_ID=" + runID;
 		
 		CybershakeRun run = null;
@@ -109,6 +120,49 @@ public class Runs2DB {
 		return run;
 	}
 	
+	/**
+	 * Fetches the given runs, using the metadata registry where possible and a single query (per
+	 * {@link #RUN_ID_QUERY_BATCH_SIZE} runs) for any others
+	 * @param runIDs
+	 * @return map from run ID to run, which will be missing any runs that aren't in the database, or null if the
+	 * query failed
+	 */
+	public Map<Integer, CybershakeRun> getRunsByID(List<Integer> runIDs) {
+		Map<Integer, CybershakeRun> runs = Maps.newHashMap();
+		ArrayList<Integer> toFetch = new ArrayList<>();
+		MetadataRegistry registry = db.getMetadataRegistry();
+		for (int runID : runIDs) {
+			CybershakeRun cached = registry.getRun(runID);
+			if (cached == null)
+				toFetch.add(runID);
+			else
+				runs.put(runID, cached);
+		}
+		for (int i=0; i<toFetch.size(); i+=RUN_ID_QUERY_BATCH_SIZE) {
+			int end = Integer.min(toFetch.size(), i+RUN_ID_QUERY_BATCH_SIZE);
+			ArrayList<Integer> batch = new ArrayList<>(toFetch.subList(i, end));
+			String sql = "SELECT * FROM CyberShake_Runs WHERE "+getRunsWhereStatement(batch);
+			ResultSet rs = null;
+			try {
+				rs = db.selectData(sql);
+				while (rs.next()) {
+					CybershakeRun run = CybershakeRun.fromResultSet(rs);
+					runs.put(run.getRunID(), run);
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
+				return null;
+			} finally {
+				if (rs != null) {
+					try {
+						rs.close();
+					} catch (SQLException e) {}
+				}
+			}
+		}
+		return runs;
+	}
+	
 	public CybershakeRun getLatestRun(int siteID, int erfID, int sgtVarID, int rupVarScenID, int velModelID,
 			Timestamp sgtTime, Timestamp ppTime, String sgtHost, String ppHost) {
 		ArrayList<CybershakeRun> ids = getRuns(siteID, erfID, sgtVarID, rupVarScenID, velModelID, sgtTime, ppTime, sgtHost, ppHost);
@@ -248,6 +302,9 @@ public class Runs2DB {
 	}
 	
 	public Map<Integer, CybershakeVelocityModel> getVelocityModelMap() {
+		Map<Integer, CybershakeVelocityModel> cached = db.getMetadataRegistry().getVelocityModels();
+		if (cached != null)
+			return Maps.newHashMap(cached);
 		Map<Integer, CybershakeVelocityModel> map = Maps.newHashMap();
 		ArrayList<CybershakeVelocityModel> models = getVelocityModels(null);
 		for (CybershakeVelocityModel model : models)
@@ -256,6 +313,9 @@ public class Runs2DB {
 	}
 	
 	public CybershakeVelocityModel getVelocityModel(int id) {
+		CybershakeVelocityModel cached = db.getMetadataRegistry().getVelocityModel(id);
+		if (cached != null)
+			return cached;
 		String whereClause = "Velocity_Model_ID="+id;
 		ArrayList<CybershakeVelocityModel> models = getVelocityModels(whereClause);
 		if (models == null)
@@ -299,6 +359,9 @@ public class Runs2DB {
 	}
 	
 	public Map<Integer, CybershakeRuptureVariation> getRuptureVariationsMap() {
+		Map<Integer, CybershakeRuptureVariation> cached = db.getMetadataRegistry().getRuptureVariations();
+		if (cached != null)
+			return Maps.newHashMap(cached);
 		Map<Integer, CybershakeRuptureVariation> map = Maps.newHashMap();
 		ArrayList<CybershakeRuptureVariation> models = getRuptureVariations(null);
 		for (CybershakeRuptureVariation model : models)
@@ -307,6 +370,9 @@ public class Runs2DB {
 	}
 	
 	public CybershakeRuptureVariation getRuptureVariation(int id) {
+		CybershakeRuptureVariation cached = db.getMetadataRegistry().getRuptureVariation(id);
+		if (cached != null)
+			return cached;
 		String whereClause = "Velocity_Model_ID="+id;
 		ArrayList<CybershakeRuptureVariation> models = getRuptureVariations(whereClause);
 		if (models == null)
@@ -350,6 +416,9 @@ public class Runs2DB {
 	}
 	
 	public Map<Integer, CybershakeSGTVariation> getSGTVarsMap() {
+		Map<Integer, CybershakeSGTVariation> cached = db.getMetadataRegistry().getSGTVariations();
+		if (cached != null)
+			return Maps.newHashMap(cached);
 		Map<Integer, CybershakeSGTVariation> map = Maps.newHashMap();
 		ArrayList<CybershakeSGTVariation> models = getSGTVars(null);
 		for (CybershakeSGTVariation model : models)
@@ -358,6 +427,9 @@ public class Runs2DB {
 	}
 	
 	public CybershakeSGTVariation getSGTVar(int id) {
+		CybershakeSGTVariation cached = db.getMetadataRegistry().getSGTVariation(id);
+		if (cached != null)
+			return cached;
 		String whereClause = "SGT_Variation_ID="+id;
 		ArrayList<CybershakeSGTVariation> models = getSGTVars(whereClause);
 		if (models == null)
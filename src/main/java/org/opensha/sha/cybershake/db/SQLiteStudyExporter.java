@@ -0,0 +1,502 @@
+package org.opensha.sha.cybershake.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.sha.cybershake.constants.CyberShakeStudy;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Ints;
+
+/**
+ * Exports the slice of the CyberShake database needed for a study (or an arbitrary list of runs) to a self contained
+ * SQLite file which can be opened with {@link Cybershake_OpenSHA_DBApplication#getSQLiteDB(File)}.
+ * <br>
+ * <br>Rows are streamed from the source database and written with {@link BulkInserter}, one transaction per table
+ * (and per run for PeakAmplitudes) in WAL mode with a large page size. Indexes matching the query shapes used by
+ * {@link CachedPeakAmplitudesFromDB}, {@link PeakAmplitudesFromDB}, {@link HazardCurve2DB}, {@link Runs2DB},
+ * {@link ERF2DB} and {@link SiteInfo2DB} are built once all data is loaded, and the row count of every table is
+ * verified against the source database at the end.
+ * <br>
+ * <br>Unless {@link #setKeepWAL(boolean)} is set, the file is switched back to a rollback journal once complete so
+ * that it can be read from read-only file systems.
+ *
+ * @author kevin
+ *
+ */
+public class SQLiteStudyExporter {
+
+	public static final int DEFAULT_PAGE_SIZE = 65536;
+
+	/**
+	 * Pragmas for fast bulk writes. These are per connection, so are applied to every connection which writes
+	 */
+	private static final String[] INSERT_PRAGMAS = { "PRAGMA journal_mode=WAL", "PRAGMA synchronous=OFF" };
+
+	/**
+	 * Small tables which are copied in full if they exist
+	 */
+	private static final String[] REFERENCE_TABLES = { "IM_Types", "Hazard_Datasets", "ERF_IDs", "Velocity_Models",
+			"Rupture_Variation_Scenario_IDs", "SGT_Variation_IDs" };
+
+	/**
+	 * Indexes built after all data has been copied. An index is skipped if the table wasn't exported or doesn't have
+	 * all of the columns.
+	 */
+	private static final IndexDef[] INDEXES = {
+			// CachedPeakAmplitudesFromDB: Run_ID, IM_Type_ID (optionally Source_ID range), ordered by source, rupture
+			// and rupture variation. Also covers PeakAmplitudesFromDB per rupture lookups (ordered by Rup_Var_ID)
+			new IndexDef("PeakAmplitudes", "idx_amps_run_im_rup", false,
+					"Run_ID", "IM_Type_ID", "Source_ID", "Rupture_ID", "Rup_Var_ID", "IM_Value"),
+			new IndexDef("Hazard_Curve_Points", "idx_curve_points", false, "Hazard_Curve_ID", "X_Value", "Y_Value"),
+			new IndexDef("Hazard_Curves", "idx_curves_id", true, "Hazard_Curve_ID"),
+			new IndexDef("Hazard_Curves", "idx_curves_run_im", false,
+					"Run_ID", "IM_Type_ID", "Hazard_Dataset_ID", "Curve_Date", "Hazard_Curve_ID"),
+			new IndexDef("Hazard_Curves", "idx_curves_dataset_im", false,
+					"Hazard_Dataset_ID", "IM_Type_ID", "Curve_Date", "Hazard_Curve_ID"),
+			new IndexDef("CyberShake_Runs", "idx_runs_id", true, "Run_ID"),
+			new IndexDef("CyberShake_Runs", "idx_runs_site", false, "Site_ID", "ERF_ID", "Run_ID"),
+			new IndexDef("CyberShake_Sites", "idx_sites_id", true, "CS_Site_ID"),
+			new IndexDef("Ruptures", "idx_rups", true, "ERF_ID", "Source_ID", "Rupture_ID"),
+			new IndexDef("Rupture_Variations", "idx_rvs", false,
+					"ERF_ID", "Rup_Var_Scenario_ID", "Source_ID", "Rupture_ID", "Rup_Var_ID"),
+			new IndexDef("CyberShake_Site_Ruptures", "idx_site_rups", false,
+					"CS_Site_ID", "ERF_ID", "Source_ID", "Rupture_ID"),
+			new IndexDef("IM_Types", "idx_im_types_id", true, "IM_Type_ID"),
+	};
+
+	private DBAccess db;
+	private List<Integer> runIDs;
+	// if exporting a study, written alongside the snapshot
+	private RunIndex runIndex;
+	private int[] datasetIDs;
+	private int[] imTypeIDs;
+
+	private int batchSize = BulkInserter.DEFAULT_BATCH_SIZE;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private boolean keepWAL = false;
+
+	/**
+	 * Exports all runs and hazard datasets for the given study. The study run index (see
+	 * {@link CyberShakeStudy#getRunIndex()}) is also written alongside the snapshot.
+	 * @param study
+	 */
+	public SQLiteStudyExporter(CyberShakeStudy study) {
+		this(study.getDB(), study.getRunIndex(), study.getDatasetIDs());
+	}
+	
+	private SQLiteStudyExporter(DBAccess db, RunIndex runIndex, int[] datasetIDs) {
+		this(db, getRunIDs(runIndex.getRuns()), datasetIDs);
+		this.runIndex = runIndex;
+	}
+
+	/**
+	 * @param db source database
+	 * @param runIDs runs to export
+	 * @param datasetIDs hazard dataset IDs for which curves should be exported, or null for all curves for these runs
+	 */
+	public SQLiteStudyExporter(DBAccess db, List<Integer> runIDs, int[] datasetIDs) {
+		Preconditions.checkArgument(runIDs != null && !runIDs.isEmpty(), "Must supply at least one run");
+		this.db = db;
+		this.runIDs = runIDs;
+		this.datasetIDs = datasetIDs;
+	}
+
+	private static List<Integer> getRunIDs(List<CybershakeRun> runs) {
+		List<Integer> ids = new ArrayList<>();
+		for (CybershakeRun run : runs)
+			ids.add(run.getRunID());
+		return ids;
+	}
+
+	/**
+	 * @param imTypeIDs if non null, only amplitudes and hazard curves for these IM types will be exported
+	 */
+	public void setIMTypeIDs(int[] imTypeIDs) {
+		this.imTypeIDs = imTypeIDs;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param pageSize SQLite page size in bytes, must be a power of 2 between 512 and 65536
+	 */
+	public void setPageSize(int pageSize) {
+		Preconditions.checkArgument(pageSize >= 512 && pageSize <= 65536 && Integer.bitCount(pageSize) == 1,
+				"Bad SQLite page size: %s", pageSize);
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param keepWAL if true, the exported file will be left in WAL mode
+	 */
+	public void setKeepWAL(boolean keepWAL) {
+		this.keepWAL = keepWAL;
+	}
+
+	/**
+	 * Exports to the given file, which must not already exist
+	 * @param sqliteFile
+	 * @return number of rows exported for each table
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public Map<String, Long> export(File sqliteFile) throws IOException, SQLException {
+		Preconditions.checkState(!sqliteFile.exists(), "SQLite file already exists: %s", sqliteFile.getAbsolutePath());
+		Stopwatch watch = Stopwatch.createStarted();
+
+		List<TableSlice> slices = buildSlices();
+
+		DBAccess dest = Cybershake_OpenSHA_DBApplication.getSQLiteDB(sqliteFile);
+		Connection conn = dest.openDedicatedConnection();
+		try {
+			Statement stmt = conn.createStatement();
+			// page size must be set before anything is written, and can't be changed once in WAL mode
+			stmt.execute("PRAGMA page_size="+pageSize);
+			for (String pragma : INSERT_PRAGMAS)
+				stmt.execute(pragma);
+			stmt.close();
+
+			Map<String, Long> counts = new LinkedHashMap<>();
+			Map<String, Set<String>> tableColumns = new LinkedHashMap<>();
+			for (TableSlice slice : slices) {
+				List<String> columns = createTable(conn, slice.table);
+				if (columns == null) {
+					Preconditions.checkState(!slice.required, "Required table %s not found in source database",
+							slice.table);
+					System.out.println("Skipping "+slice.table+", not found in source database");
+					continue;
+				}
+				Set<String> colSet = new HashSet<>();
+				for (String col : columns)
+					colSet.add(col.toLowerCase());
+				tableColumns.put(slice.table, colSet);
+				counts.put(slice.table, copy(dest, slice, columns));
+			}
+
+			buildIndexes(conn, tableColumns);
+			verify(conn, slices, counts);
+
+			stmt = conn.createStatement();
+			if (!keepWAL)
+				// this also checkpoints the WAL into the main file
+				stmt.execute("PRAGMA journal_mode=DELETE");
+			else
+				stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+			stmt.close();
+			
+			if (runIndex != null)
+				runIndex.write(RunIndex.getSnapshotFile(sqliteFile));
+
+			System.out.println("Exported "+runIDs.size()+" runs to "+sqliteFile.getAbsolutePath()+" ("
+					+(float)(sqliteFile.length()/(1024d*1024d))+" MB) in "
+					+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+			return counts;
+		} finally {
+			try {
+				conn.close();
+			} catch (SQLException e) {}
+			dest.destroy();
+		}
+	}
+
+	private List<TableSlice> buildSlices() throws SQLException {
+		String runsIn = Joiner.on(",").join(runIDs);
+		Set<Integer> siteIDs = new TreeSet<>();
+		Set<Integer> erfIDs = new TreeSet<>();
+		Set<Integer> rvScenIDs = new TreeSet<>();
+		int numRuns = db.selectData("SELECT DISTINCT Run_ID,Site_ID,ERF_ID,Rup_Var_Scenario_ID FROM CyberShake_Runs"
+				+" WHERE Run_ID IN ("+runsIn+")", rs -> {
+			int count = 0;
+			while (rs.next()) {
+				count++;
+				siteIDs.add(rs.getInt(2));
+				erfIDs.add(rs.getInt(3));
+				rvScenIDs.add(rs.getInt(4));
+			}
+			return count;
+		});
+		Preconditions.checkState(numRuns == new HashSet<>(runIDs).size(),
+				"Only found %s of %s runs in CyberShake_Runs", numRuns, runIDs.size());
+		String sitesIn = Joiner.on(",").join(siteIDs);
+		String erfsIn = Joiner.on(",").join(erfIDs);
+		String rvScensIn = Joiner.on(",").join(rvScenIDs);
+
+		String imWhere = imTypeIDs == null ? "" : " AND IM_Type_ID IN ("+Joiner.on(",").join(Ints.asList(imTypeIDs))+")";
+		String curveWhere = "Run_ID IN ("+runsIn+")"+imWhere;
+		if (datasetIDs != null)
+			curveWhere += " AND Hazard_Dataset_ID IN ("+Joiner.on(",").join(Ints.asList(datasetIDs))+")";
+
+		List<TableSlice> slices = new ArrayList<>();
+		slices.add(new TableSlice("CyberShake_Runs", true, "Run_ID IN ("+runsIn+")"));
+		slices.add(new TableSlice("CyberShake_Sites", true, "CS_Site_ID IN ("+sitesIn+")"));
+		for (String table : REFERENCE_TABLES)
+			slices.add(new TableSlice(table, false, (String)null));
+		slices.add(new TableSlice("Ruptures", true, "ERF_ID IN ("+erfsIn+")"));
+		slices.add(new TableSlice("Rupture_Variations", true,
+				"ERF_ID IN ("+erfsIn+") AND Rup_Var_Scenario_ID IN ("+rvScensIn+")"));
+		slices.add(new TableSlice("CyberShake_Site_Ruptures", true,
+				"CS_Site_ID IN ("+sitesIn+") AND ERF_ID IN ("+erfsIn+")"));
+		slices.add(new TableSlice("Hazard_Curves", true, curveWhere));
+		slices.add(new TableSlice("Hazard_Curve_Points", true,
+				"Hazard_Curve_ID IN (SELECT Hazard_Curve_ID FROM Hazard_Curves WHERE "+curveWhere+")"));
+		// one run at a time for amplitudes so that each query (and transaction) is a manageable size
+		List<String> ampWheres = new ArrayList<>();
+		for (int runID : runIDs)
+			ampWheres.add("Run_ID="+runID+imWhere);
+		slices.add(new TableSlice("PeakAmplitudes", true, ampWheres));
+		return slices;
+	}
+
+	/**
+	 * Creates the given table in the destination database with columns (and SQLite type affinities) matching the
+	 * source table
+	 * @param conn
+	 * @param table
+	 * @return column names, or null if the table doesn't exist in the source database
+	 * @throws SQLException
+	 */
+	private List<String> createTable(Connection conn, String table) throws SQLException {
+		List<String> columns = new ArrayList<>();
+		List<String> types = new ArrayList<>();
+		try {
+			db.selectData("SELECT * FROM "+table+" LIMIT 0", rs -> {
+				ResultSetMetaData meta = rs.getMetaData();
+				for (int i=1; i<=meta.getColumnCount(); i++) {
+					columns.add(meta.getColumnName(i));
+					types.add(getSQLiteType(meta.getColumnType(i)));
+				}
+				return null;
+			});
+		} catch (SQLException e) {
+			if (db.isSQLite() ? e.getMessage().contains("no such table") : e.getMessage().contains("doesn't exist"))
+				return null;
+			throw e;
+		}
+		StringBuilder sql = new StringBuilder("CREATE TABLE ").append(table).append(" (");
+		for (int i=0; i<columns.size(); i++) {
+			if (i > 0)
+				sql.append(", ");
+			sql.append(columns.get(i)).append(" ").append(types.get(i));
+		}
+		sql.append(")");
+		Statement stmt = conn.createStatement();
+		stmt.execute(sql.toString());
+		stmt.close();
+		return columns;
+	}
+
+	private static String getSQLiteType(int sqlType) {
+		switch (sqlType) {
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+			return "INTEGER";
+		case Types.FLOAT:
+		case Types.REAL:
+		case Types.DOUBLE:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return "REAL";
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			// stored as text, see Cybershake_OpenSHA_DBApplication.getSQLiteDB(File)
+			return "DATETIME";
+		case Types.BLOB:
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+			return "BLOB";
+		default:
+			return "TEXT";
+		}
+	}
+
+	private long copy(DBAccess dest, TableSlice slice, List<String> columns) throws SQLException, IOException {
+		Stopwatch watch = Stopwatch.createStarted();
+		int numCols = columns.size();
+		// matches the date format used when reading from SQLite in DBAccess
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		long rows = 0;
+		for (String where : slice.wheres) {
+			String sql = "SELECT "+Joiner.on(",").join(columns)+" FROM "+slice.table;
+			if (where != null)
+				sql += " WHERE "+where;
+			// pragmas only apply to the connection that sets them, and the inserter has its own
+			BulkInserter inserter = new BulkInserter(dest, batchSize, INSERT_PRAGMAS);
+			try {
+				inserter.setReportInterval(slice.wheres.size() > 1 ? 0l : BulkInserter.DEFAULT_REPORT_INTERVAL_MILLIS);
+				BulkInserter.TableBatch batch = inserter.forTable(slice.table, columns.toArray(new String[0]));
+				rows += db.selectData(sql, batchSize, rs -> {
+					Object[] vals = new Object[numCols];
+					long count = 0;
+					while (rs.next()) {
+						for (int i=0; i<numCols; i++) {
+							Object val = rs.getObject(i+1);
+							if (val instanceof java.util.Date)
+								val = dateFormat.format((java.util.Date)val);
+							else if (val instanceof BigDecimal)
+								val = ((BigDecimal)val).doubleValue();
+							else if (val instanceof Boolean)
+								val = ((Boolean)val) ? 1 : 0;
+							vals[i] = val;
+						}
+						batch.add(vals);
+						count++;
+					}
+					return count;
+				}, null);
+				inserter.close();
+			} catch (SQLException | IOException | RuntimeException e) {
+				inserter.abort();
+				throw e;
+			}
+		}
+		System.out.println("Exported "+rows+" rows from "+slice.table+" in "
+				+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+		return rows;
+	}
+
+	private void buildIndexes(Connection conn, Map<String, Set<String>> tableColumns) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			for (IndexDef index : INDEXES) {
+				Set<String> columns = tableColumns.get(index.table);
+				if (columns == null || !index.isApplicable(columns))
+					continue;
+				Stopwatch watch = Stopwatch.createStarted();
+				stmt.execute(index.getCreateSQL());
+				System.out.println("Built index "+index.name+" in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+			}
+			// gather statistics for the query planner
+			stmt.execute("ANALYZE");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void verify(Connection conn, List<TableSlice> slices, Map<String, Long> counts) throws SQLException {
+		List<String> problems = new ArrayList<>();
+		for (TableSlice slice : slices) {
+			Long copied = counts.get(slice.table);
+			if (copied == null)
+				continue;
+			long sourceCount = 0;
+			for (String where : slice.wheres) {
+				String sql = "SELECT COUNT(*) FROM "+slice.table;
+				if (where != null)
+					sql += " WHERE "+where;
+				sourceCount += db.selectData(sql, rs -> {
+					Preconditions.checkState(rs.next());
+					return rs.getLong(1);
+				});
+			}
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM "+slice.table);
+			Preconditions.checkState(rs.next());
+			long destCount = rs.getLong(1);
+			rs.close();
+			stmt.close();
+			if (sourceCount != copied || destCount != copied)
+				problems.add(slice.table+": source="+sourceCount+", copied="+copied+", exported="+destCount);
+		}
+		Preconditions.checkState(problems.isEmpty(), "Row count verification failed:\n\t%s",
+				Joiner.on("\n\t").join(problems));
+		System.out.println("Verified row counts for "+counts.size()+" tables");
+	}
+
+	private static class TableSlice {
+		private String table;
+		private boolean required;
+		// one query per where clause, null for the whole table
+		private List<String> wheres;
+
+		public TableSlice(String table, boolean required, String where) {
+			this(table, required, new ArrayList<String>());
+			wheres.add(where);
+		}
+
+		public TableSlice(String table, boolean required, List<String> wheres) {
+			this.table = table;
+			this.required = required;
+			this.wheres = wheres;
+		}
+	}
+
+	private static class IndexDef {
+		private String table;
+		private String name;
+		private boolean unique;
+		private String[] columns;
+
+		public IndexDef(String table, String name, boolean unique, String... columns) {
+			this.table = table;
+			this.name = name;
+			this.unique = unique;
+			this.columns = columns;
+		}
+
+		public boolean isApplicable(Collection<String> tableColumns) {
+			for (String col : columns)
+				if (!tableColumns.contains(col.toLowerCase()))
+					return false;
+			return true;
+		}
+
+		public String getCreateSQL() {
+			return "CREATE "+(unique ? "UNIQUE " : "")+"INDEX "+name+" ON "+table+" ("+Joiner.on(",").join(columns)+")";
+		}
+	}
+
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length < 2) {
+			System.err.println("USAGE: <study> <output SQLite file> [<IM Type IDs, comma separated>]");
+			System.exit(2);
+		}
+		CyberShakeStudy study = CyberShakeStudy.valueOf(args[0]);
+		File outputFile = new File(args[1]);
+
+		SQLiteStudyExporter exporter = new SQLiteStudyExporter(study);
+		if (args.length > 2) {
+			String[] imStrs = args[2].split(",");
+			int[] imTypeIDs = new int[imStrs.length];
+			for (int i=0; i<imStrs.length; i++)
+				imTypeIDs[i] = Integer.parseInt(imStrs[i].trim());
+			exporter.setIMTypeIDs(imTypeIDs);
+		}
+		try {
+			Map<String, Long> counts = exporter.export(outputFile);
+			for (String table : counts.keySet())
+				System.out.println("\t"+table+": "+counts.get(table));
+		} finally {
+			Cybershake_OpenSHA_DBApplication.destroyAllDBs();
+		}
+		System.exit(0);
+	}
+
+}
@@ -5,6 +5,7 @@ import java.sql.SQLException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationList;
@@ -61,6 +62,7 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 				e.printStackTrace();
 			}
 		}
+		dbaccess.getMetadataRegistry().invalidateSites();
 		return getSiteId(site.short_name);
 		
 	}
@@ -72,7 +74,8 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 			dbaccess.insertUpdateOrDeleteData(sql);
 		} catch (SQLException e) {
 			e.printStackTrace();
-		}		
+		}
+		dbaccess.getMetadataRegistry().invalidateSites();
 	}
 	
 	public void setSiteLongName(int siteID, String longName) {
@@ -82,7 +85,8 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 			dbaccess.insertUpdateOrDeleteData(sql);
 		} catch (SQLException e) {
 			e.printStackTrace();
-		}		
+		}
+		dbaccess.getMetadataRegistry().invalidateSites();
 	}
 
 	/**
@@ -91,6 +95,9 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	 * @return
 	 */
 	public int getSiteId(String cybershakeShortSiteName){
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(cybershakeShortSiteName);
+		if (cached != null)
+			return cached.id;
 //		 gets the last auto increment id from Sites table
 		 String sql = "SELECT CS_Site_ID from CyberShake_Sites where CS_Short_Name = "+"'"+cybershakeShortSiteName+"'";
 		 ResultSet rs = null;
@@ -307,25 +314,24 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	
 	public void insertSite_RuptureInfoList(int siteId, int erfId, int sourceId, List<Integer> ruptureId,
 			List<Double> rupDists, double cutOffDistance) {
-//		generate the SQL to be inserted in the Sites table
-		String sql = "INSERT into CyberShake_Site_Ruptures VALUES";
-		
+//		generate the SQL to be inserted in the Sites table, all ruptures in a single multi-row INSERT on the
+//		pooled connection
 		int size = ruptureId.size();
+		if (size == 0)
+			return;
+		StringBuilder sql = new StringBuilder("INSERT into CyberShake_Site_Ruptures VALUES");
 		for (int i=0; i<size; i++) {
+			if (i > 0)
+				sql.append(",");
+			sql.append("('").append(siteId).append("','").append(erfId).append("','").append(sourceId)
+				.append("','").append(ruptureId.get(i)).append("','").append(cutOffDistance).append("',");
 			if (rupDists != null && !Double.isNaN(rupDists.get(i)))
-				sql += "('"+siteId+"','"+erfId+"','"+sourceId+"','"+ruptureId.get(i)+"','"+cutOffDistance+"','"+rupDists.get(i)+"')";
+				sql.append("'").append(rupDists.get(i)).append("')");
 			else
-				sql += "('"+siteId+"','"+erfId+"','"+sourceId+"','"+ruptureId.get(i)+"','"+cutOffDistance+"',NULL)";
-			
-			if ((i + 1) == size) { // this is the last one, no comma at end
-				
-			} else {
-				sql += ",";
-			}
+				sql.append("NULL)");
 		}
-		System.out.println(sql);
 		try {
-			dbaccess.insertUpdateOrDeleteData(sql);
+			dbaccess.insertUpdateOrDeleteData(sql.toString());
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			if (e.getMessage().contains("Duplicate")) {
@@ -660,6 +666,9 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	 * @return the Location for the given cybershake site location
 	 */
 	public Location getLocationForSite(String site){
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(site);
+		if (cached != null)
+			return cached.createLocation();
 		 String sql = "SELECT CS_Site_Lat,CS_Site_Lon from CyberShake_Sites WHERE CS_Short_Name = '"+site+"'";
 		 Location loc = null;
 		 ResultSet rs = null;
@@ -687,6 +696,9 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	 * @return the Location for the given cybershake site location
 	 */
 	public Location getLocationForSiteID(int siteID){
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(siteID);
+		if (cached != null)
+			return cached.createLocation();
 		 String sql = "SELECT CS_Site_Lat,CS_Site_Lon from CyberShake_Sites WHERE CS_Site_ID = '"+siteID+"'";
 		 Location loc = null;
 		 ResultSet rs = null;
@@ -714,6 +726,9 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	 * @return
 	 */
 	public CybershakeSite getSiteFromDB(String shortName) {
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(shortName);
+		if (cached != null)
+			return cached;
 		String sql = "SELECT CS_Site_ID,CS_Site_Name,CS_Site_Lat,CS_Site_Lon,CS_Site_Type_ID from CyberShake_Sites WHERE CS_Short_Name = '"+shortName+"'";
 		ResultSet rs = null;
 		try {
@@ -746,6 +761,9 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 	 * @return
 	 */
 	public CybershakeSite getSiteFromDB(int siteID) {
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(siteID);
+		if (cached != null)
+			return cached;
 		String sql = "SELECT CS_Site_Name,CS_Short_Name,CS_Site_Lat,CS_Site_Lon,CS_Site_Type_ID from CyberShake_Sites WHERE CS_Site_ID = "+siteID+"";
 		ResultSet rs = null;
 		try {
@@ -772,11 +790,42 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 		}
 	}
 	
+	// constant so that concurrent requests for the same site share a single query (see DBAccess.selectDataAsync)
+	private static final ResultSetHandler<CybershakeSite> SITE_HANDLER = rs -> {
+		if (!rs.next())
+			return null;
+		int siteID = rs.getInt("CS_Site_ID");
+		double lat = rs.getDouble("CS_Site_Lat");
+		double lon = rs.getDouble("CS_Site_Lon");
+		String longName = rs.getString("CS_Site_Name");
+		String shortName = rs.getString("CS_Short_Name");
+		int typeID = rs.getInt("CS_Site_Type_ID");
+		return new CybershakeSite(siteID, lat, lon, longName, shortName, typeID);
+	};
+	
+	/**
+	 * Asynchronous version of {@link #getSiteFromDB(int)}. The future completes exceptionally if the query fails.
+	 * Concurrent requests for the same site share a single query, and therefore the same site instance, which should
+	 * not be modified.
+	 * @param siteID
+	 * @return future for the site, which will be null if no such site exists
+	 */
+	public CompletableFuture<CybershakeSite> getSiteFromDBAsync(int siteID) {
+		CybershakeSite cached = dbaccess.getMetadataRegistry().getSite(siteID);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		String sql = "SELECT CS_Site_ID,CS_Site_Name,CS_Short_Name,CS_Site_Lat,CS_Site_Lon,CS_Site_Type_ID from CyberShake_Sites WHERE CS_Site_ID = "+siteID;
+		return dbaccess.selectDataAsync(sql, SITE_HANDLER);
+	}
+	
 	/**
 	 * Gets all CybershakeSite's from the Database
 	 * @return
 	 */
 	public List<CybershakeSite> getAllSitesFromDB() {
+		List<CybershakeSite> cached = dbaccess.getMetadataRegistry().getAllSites();
+		if (cached != null)
+			return cached;
 		String sql = "SELECT CS_Site_ID,CS_Site_Name,CS_Short_Name,CS_Site_Lat,CS_Site_Lon,CS_Site_Type_ID from CyberShake_Sites";
 		ResultSet rs = null;
 		List<CybershakeSite> sites = Lists.newArrayList();
@@ -904,6 +953,8 @@ public class SiteInfo2DB implements SiteInfo2DBAPI {
 //			TODO Auto-generated catch block
 			e.printStackTrace();
 			return -1;
+		} finally {
+			dbaccess.getMetadataRegistry().invalidateSites();
 		}
 	}
 	
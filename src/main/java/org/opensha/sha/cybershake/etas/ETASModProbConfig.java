@@ -4,8 +4,6 @@ import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -41,6 +39,7 @@ import org.opensha.sha.cybershake.calc.RuptureVariationProbabilityModifier;
 import org.opensha.sha.cybershake.db.CybershakeIM;
 import org.opensha.sha.cybershake.db.CybershakeRun;
 import org.opensha.sha.cybershake.db.MeanUCERF2_ToDB;
+import org.opensha.sha.cybershake.db.RVHypocenterStore;
 import org.opensha.sha.cybershake.eew.ZeroProbMod;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ERF;
@@ -171,6 +170,7 @@ public class ETASModProbConfig extends AbstractModProbConfig {
 	
 	private int erfID;
 	private int rupVarScenID;
+	private File hypoCacheDir = RVHypocenterStore.getDefaultCacheDir();
 
 	public ETASModProbConfig(ETAS_Config scenario, int probModelID, ETAS_Cybershake_TimeSpans timeSpan,
 			File mappingsCSVFile, int erfID, int rupVarScenID) throws IOException {
@@ -500,6 +500,14 @@ public class ETASModProbConfig extends AbstractModProbConfig {
 		}
 	}
 	
+	/**
+	 * @param hypoCacheDir directory where rupture variation hypocenter stores are cached, or null to always load them
+	 * from the database
+	 */
+	public void setHypocenterCacheDir(File hypoCacheDir) {
+		this.hypoCacheDir = hypoCacheDir;
+	}
+	
 	public FaultSystemSolution getSol() {
 		return sol;
 	}
@@ -507,38 +515,25 @@ public class ETASModProbConfig extends AbstractModProbConfig {
 	public synchronized Map<Integer, Location> getRVHypocenters(IDPairing pair) {
 		Map<Integer, Location> hyposByRV = hypoLocationsByRV.get(pair);
 		if (hyposByRV == null) {
-			String sql = "SELECT Rup_Var_ID,Hypocenter_Lat,Hypocenter_Lon,Hypocenter_Depth FROM Rupture_Variations " +
-					"WHERE ERF_ID=" + erfID + " AND Rup_Var_Scenario_ID=" + rupVarScenID + " " +
-					"AND Source_ID=" + pair.getID1() + " AND Rupture_ID=" + pair.getID2();
-			
 			Map<Location, List<Integer>> locsMap = new HashMap<>();
 			for (int fssIndex : rupMappingReverseTable.get(pair))
 				rvHypoLocations.put(fssIndex, locsMap);
-			hyposByRV = new HashMap<>();
+			try {
+				hyposByRV = RVHypocenterStore.get(db, erfID, rupVarScenID, hypoCacheDir)
+						.getHypocenterMap(pair.getID1(), pair.getID2());
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
 			hypoLocationsByRV.put(pair, hyposByRV);
 			
-			try {
-				ResultSet rs = db.selectData(sql);
-				boolean success = rs.next();
-				while (success) {
-					int rvID = rs.getInt("Rup_Var_ID");
-					double lat = rs.getDouble("Hypocenter_Lat");
-					double lon = rs.getDouble("Hypocenter_Lon");
-					double depth = rs.getDouble("Hypocenter_Depth");
-					Location loc = new Location(lat, lon, depth);
-					
-					List<Integer> ids = locsMap.get(loc);
-					if (ids == null) {
-						ids = Lists.newArrayList();
-						locsMap.put(loc, ids);
-					}
-					ids.add(rvID);
-					hyposByRV.put(rvID, loc);
-
-					success = rs.next();
+			for (int rvID : hyposByRV.keySet()) {
+				Location loc = hyposByRV.get(rvID);
+				List<Integer> ids = locsMap.get(loc);
+				if (ids == null) {
+					ids = Lists.newArrayList();
+					locsMap.put(loc, ids);
 				}
-			} catch (SQLException e) {
-				ExceptionUtils.throwAsRuntimeException(e);
+				ids.add(rvID);
 			}
 			Preconditions.checkState(!locsMap.isEmpty());
 		}
@@ -0,0 +1,499 @@
+package org.opensha.sha.cybershake.maps;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.Region;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.calc.hazardMap.HazardDataSetLoader;
+import org.opensha.sha.cybershake.db.AttenRelCurves2DB;
+import org.opensha.sha.cybershake.db.AttenRelDataSets2DB;
+import org.opensha.sha.cybershake.db.AttenRels2DB;
+import org.opensha.sha.cybershake.db.DBAccess;
+import org.opensha.sha.imr.ScalarIMR;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Binary, memory mapped store of GMPE basemap hazard curves. Full curves are stored for every basemap node, so maps at
+ * any probability level or IML can be derived from a single store without going back to the database.
+ * <br>
+ * <br>Each basemap is stored in its own directory named by a hash of the GMPE (AR ID and short name), AR dataset, ERF,
+ * velocity model (which determines the site data used), IM type and region bounding box, as well as the number
+ * of curves and maximum curve ID for that dataset and IM. Curves are only ever inserted or deleted, so recalculated
+ * curves change the hash and stale stores are never read. The basemap is split into tiles of {@link #TILE_DEGREES}
+ * which are fetched in parallel if missing. Tiles are written to temporary files and atomically moved into place, and
+ * include the key hash and a CRC32 checksum in their header, so multiple processes can read and write the same store
+ * concurrently. Invalid or partially written tiles are simply fetched again.
+ *
+ * @author kevin
+ *
+ */
+public class BasemapCurveStore {
+
+	private static final int MAGIC = 0x43534243; // "CSBC"
+	private static final int VERSION = 1;
+	// magic, version, key hash, num nodes, body CRC
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+	/**
+	 * Size of each tile in degrees
+	 */
+	public static double TILE_DEGREES = 1d;
+	/**
+	 * Maximum number of tiles which will be fetched from the database at once
+	 */
+	public static int fetchThreads = 4;
+
+	// tiles currently being fetched in this JVM, so that concurrent requests for the same basemap only fetch once
+	private static final ConcurrentMap<File, FutureTask<File>> tilesInFlight = new ConcurrentHashMap<>();
+
+	private final DBAccess db;
+	private final File storeDir;
+
+	public BasemapCurveStore(DBAccess db, File storeDir) {
+		this.db = db;
+		this.storeDir = storeDir;
+	}
+
+	/**
+	 * Loads the basemap for the given GMPE, fetching any missing tiles from the database
+	 * @param imr GMPE, which must match (including parameters) a GMPE in the database
+	 * @param erfID
+	 * @param velModelID
+	 * @param imTypeID
+	 * @param reg region, or null for the entire dataset
+	 * @return
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public Basemap getBasemap(ScalarIMR imr, int erfID, int velModelID, int imTypeID, Region reg)
+			throws SQLException, IOException {
+		int attenRelID = new AttenRels2DB(db).getAttenRelID(imr);
+		Preconditions.checkState(attenRelID >= 0, "No AR ID found for %s", imr.getShortName());
+		int datasetID = new AttenRelDataSets2DB(db).getDataSetID(attenRelID, erfID, velModelID, 1, 1, null);
+		Preconditions.checkState(datasetID >= 0, "No AR dataset found for AR ID %s, ERF %s, Vel Model %s",
+				attenRelID, erfID, velModelID);
+		return getBasemap(imr.getShortName(), attenRelID, datasetID, erfID, velModelID, imTypeID, reg);
+	}
+
+	/**
+	 * Loads the basemap for the given AR dataset, fetching any missing tiles from the database
+	 * @param gmpeName GMPE short name
+	 * @param attenRelID
+	 * @param datasetID
+	 * @param erfID
+	 * @param velModelID
+	 * @param imTypeID
+	 * @param reg region, or null for the entire dataset
+	 * @return
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public Basemap getBasemap(String gmpeName, int attenRelID, int datasetID, int erfID, int velModelID,
+			int imTypeID, Region reg) throws SQLException, IOException {
+		Stopwatch watch = Stopwatch.createStarted();
+		AttenRelCurves2DB curves2db = new AttenRelCurves2DB(db);
+		long[] countAndMax = curves2db.getCurveCountAndMaxID(datasetID, imTypeID);
+		Preconditions.checkState(countAndMax[0] > 0, "No curves found for AR dataset %s, IM %s", datasetID, imTypeID);
+
+		double[] bounds = reg == null ? null :
+			new double[] { reg.getMinLat(), reg.getMaxLat(), reg.getMinLon(), reg.getMaxLon() };
+		String hash = new MapInputsHash().add(VERSION, gmpeName, attenRelID, datasetID, erfID, velModelID, imTypeID,
+				bounds, countAndMax[0], countAndMax[1]).getHash();
+		long key = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+		File dir = new File(storeDir, hash);
+		Preconditions.checkState(dir.exists() || dir.mkdirs() || dir.exists(),
+				"Couldn't create basemap store directory: %s", dir.getAbsolutePath());
+
+		List<Tile> tiles = getTiles(reg, TILE_DEGREES);
+		List<Tile> missing = new ArrayList<>();
+		for (Tile tile : tiles)
+			if (mapTile(tile.getFile(dir), key) == null)
+				missing.add(tile);
+
+		if (!missing.isEmpty()) {
+			System.out.println("Fetching "+missing.size()+"/"+tiles.size()+" basemap tiles for AR dataset "
+					+datasetID+", IM "+imTypeID+" into "+dir.getAbsolutePath());
+			ExecutorService exec = Executors.newFixedThreadPool(Integer.max(1, Integer.min(fetchThreads, missing.size())));
+			try {
+				List<Future<File>> futures = new ArrayList<>();
+				for (Tile tile : missing)
+					futures.add(exec.submit(() -> fetchTile(curves2db, datasetID, imTypeID, tile, tile.getFile(dir), key)));
+				waitOnFutures(futures);
+			} finally {
+				exec.shutdownNow();
+			}
+		}
+
+		List<MappedTile> mapped = new ArrayList<>();
+		for (Tile tile : tiles) {
+			File file = tile.getFile(dir);
+			MappedTile tileData = mapTile(file, key);
+			Preconditions.checkState(tileData != null, "Basemap tile is invalid after fetch: %s", file.getAbsolutePath());
+			mapped.add(tileData);
+		}
+		Basemap basemap = new Basemap(mapped);
+		System.out.println("Loaded basemap with "+basemap.size()+" curves from "+tiles.size()+" tiles in "
+				+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+		return basemap;
+	}
+
+	private static File fetchTile(AttenRelCurves2DB curves2db, int datasetID, int imTypeID, Tile tile,
+			File file, long key) throws Exception {
+		FutureTask<File> task = new FutureTask<>(() -> {
+			// another process may have written it while we were waiting
+			if (mapTile(file, key) != null)
+				return file;
+			Map<Location, ArbitrarilyDiscretizedFunc> curves =
+					curves2db.fetchCurves(datasetID, imTypeID, tile.getFetchRegion());
+			Map<Location, DiscretizedFunc> tileCurves = new HashMap<>();
+			for (Location loc : curves.keySet())
+				if (tile.contains(loc))
+					tileCurves.put(loc, curves.get(loc));
+			writeTile(file, key, tileCurves);
+			return file;
+		});
+		FutureTask<File> prev = tilesInFlight.putIfAbsent(file, task);
+		if (prev != null)
+			return prev.get();
+		try {
+			task.run();
+			return task.get();
+		} finally {
+			tilesInFlight.remove(file, task);
+		}
+	}
+
+	private static void waitOnFutures(List<? extends Future<?>> futures) throws IOException, SQLException {
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// unwrap nested in-flight task failures
+			while (cause instanceof ExecutionException && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof SQLException)
+				throw (SQLException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Partitions the given region into tiles aligned with its minimum latitude and longitude. Tiles are half open,
+	 * except for those on the maximum latitude/longitude edges, so that every location in the region bounding box is
+	 * in exactly one tile.
+	 * @param reg region, or null for a single tile containing everything
+	 * @param tileDegrees
+	 * @return
+	 */
+	static List<Tile> getTiles(Region reg, double tileDegrees) {
+		List<Tile> tiles = new ArrayList<>();
+		if (reg == null) {
+			tiles.add(new Tile(0, 0, null, null, null, null, true, true));
+			return tiles;
+		}
+		Preconditions.checkArgument(tileDegrees > 0, "Tile size must be positive: %s", tileDegrees);
+		double minLat = reg.getMinLat();
+		double maxLat = reg.getMaxLat();
+		double minLon = reg.getMinLon();
+		double maxLon = reg.getMaxLon();
+		int rows = Integer.max(1, (int)Math.ceil((maxLat - minLat)/tileDegrees - 1e-6));
+		int cols = Integer.max(1, (int)Math.ceil((maxLon - minLon)/tileDegrees - 1e-6));
+		for (int row=0; row<rows; row++) {
+			boolean lastRow = row == rows-1;
+			double lat0 = minLat + row*tileDegrees;
+			double lat1 = lastRow ? maxLat : minLat + (row+1)*tileDegrees;
+			for (int col=0; col<cols; col++) {
+				boolean lastCol = col == cols-1;
+				double lon0 = minLon + col*tileDegrees;
+				double lon1 = lastCol ? maxLon : minLon + (col+1)*tileDegrees;
+				tiles.add(new Tile(row, col, lat0, lat1, lon0, lon1, lastRow, lastCol));
+			}
+		}
+		return tiles;
+	}
+
+	static class Tile {
+
+		final int row, col;
+		private final Double lat0, lat1, lon0, lon1;
+		private final boolean lastRow, lastCol;
+
+		private Tile(int row, int col, Double lat0, Double lat1, Double lon0, Double lon1,
+				boolean lastRow, boolean lastCol) {
+			this.row = row;
+			this.col = col;
+			this.lat0 = lat0;
+			this.lat1 = lat1;
+			this.lon0 = lon0;
+			this.lon1 = lon1;
+			this.lastRow = lastRow;
+			this.lastCol = lastCol;
+		}
+
+		File getFile(File dir) {
+			return new File(dir, "tile_"+row+"_"+col+".bin");
+		}
+
+		/**
+		 * @return bounding region for the database query, which is inclusive on all edges, or null if unbounded
+		 */
+		Region getFetchRegion() {
+			if (lat0 == null)
+				return null;
+			return new Region(new Location(lat0, lon0), new Location(lat1, lon1));
+		}
+
+		boolean contains(Location loc) {
+			if (lat0 == null)
+				return true;
+			double lat = loc.getLatitude();
+			double lon = loc.getLongitude();
+			return lat >= lat0 && (lastRow ? lat <= lat1 : lat < lat1)
+					&& lon >= lon0 && (lastCol ? lon <= lon1 : lon < lon1);
+		}
+	}
+
+	/**
+	 * Writes a tile to a temporary file in the same directory which is then atomically moved into place
+	 * @param file
+	 * @param key
+	 * @param curves
+	 * @throws IOException
+	 */
+	static void writeTile(File file, long key, Map<Location, ? extends DiscretizedFunc> curves) throws IOException {
+		File tmpFile = File.createTempFile(file.getName()+".", ".tmp", file.getParentFile());
+		try {
+			CRC32 bodyCRC = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			// header will be filled in once we're done
+			out.write(new byte[HEADER_SIZE]);
+			out.flush();
+			DataOutputStream bodyOut = new DataOutputStream(new CheckedOutputStream(out, bodyCRC));
+			for (Location loc : curves.keySet()) {
+				DiscretizedFunc curve = curves.get(loc);
+				bodyOut.writeDouble(loc.getLatitude());
+				bodyOut.writeDouble(loc.getLongitude());
+				bodyOut.writeInt(curve.size());
+				for (int i=0; i<curve.size(); i++)
+					bodyOut.writeDouble(curve.getX(i));
+				for (int i=0; i<curve.size(); i++)
+					bodyOut.writeDouble(curve.getY(i));
+			}
+			bodyOut.close();
+
+			RandomAccessFile raFile = new RandomAccessFile(tmpFile, "rw");
+			try {
+				raFile.writeInt(MAGIC);
+				raFile.writeInt(VERSION);
+				raFile.writeLong(key);
+				raFile.writeInt(curves.size());
+				raFile.writeLong(bodyCRC.getValue());
+			} finally {
+				raFile.close();
+			}
+
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmpFile.exists())
+				tmpFile.delete();
+		}
+	}
+
+
+	/**
+	 * Memory maps the given tile, verifying the header and body checksum
+	 * @param file
+	 * @param key
+	 * @return mapped tile, or null if the tile doesn't exist or is invalid for the given key
+	 * @throws IOException
+	 */
+	static MappedTile mapTile(File file, long key) throws IOException {
+		if (!file.exists() || file.length() < HEADER_SIZE)
+			return null;
+		RandomAccessFile raFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raFile.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != key) {
+				System.out.println("Basemap tile has wrong format or key, will refetch: "+file.getAbsolutePath());
+				return null;
+			}
+			int numNodes = header.getInt();
+			long crcVal = header.getLong();
+			ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, channel.size()-HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(body.duplicate());
+			if (crc.getValue() != crcVal) {
+				System.out.println("Basemap tile checksum mismatch, will refetch: "+file.getAbsolutePath());
+				return null;
+			}
+			return new MappedTile(numNodes, body);
+		} finally {
+			// mapped buffers remain valid after the channel is closed
+			raFile.close();
+		}
+	}
+
+	static class MappedTile {
+
+		final int numNodes;
+		private final ByteBuffer body;
+
+		private MappedTile(int numNodes, ByteBuffer body) {
+			this.numNodes = numNodes;
+			this.body = body;
+		}
+
+		/**
+		 * Decodes every node in this tile
+		 * @param consumer
+		 */
+		void forEach(CurveConsumer consumer) {
+			// duplicate so that tiles can be read concurrently
+			ByteBuffer buf = body.duplicate();
+			for (int n=0; n<numNodes; n++) {
+				Location loc = new Location(buf.getDouble(), buf.getDouble());
+				int num = buf.getInt();
+				double[] xVals = new double[num];
+				for (int i=0; i<num; i++)
+					xVals[i] = buf.getDouble();
+				ArbitrarilyDiscretizedFunc curve = new ArbitrarilyDiscretizedFunc();
+				for (int i=0; i<num; i++)
+					curve.set(xVals[i], buf.getDouble());
+				consumer.accept(loc, curve);
+			}
+		}
+	}
+
+	interface CurveConsumer {
+		void accept(Location loc, DiscretizedFunc curve);
+	}
+
+	/**
+	 * Basemap curves loaded from a store. Maps are derived from the memory mapped curves on demand, with tiles decoded
+	 * in parallel.
+	 */
+	public static class Basemap {
+
+		private final List<MappedTile> tiles;
+		private final int size;
+
+		Basemap(List<MappedTile> tiles) {
+			this.tiles = tiles;
+			int size = 0;
+			for (MappedTile tile : tiles)
+				size += tile.numNodes;
+			this.size = size;
+		}
+
+		/**
+		 * @return number of basemap nodes
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return all basemap curves
+		 */
+		public Map<Location, DiscretizedFunc> getCurves() {
+			Map<Location, DiscretizedFunc> curves = new LinkedHashMap<>();
+			for (MappedTile tile : tiles)
+				tile.forEach((loc, curve) -> curves.put(loc, curve));
+			return curves;
+		}
+
+		/**
+		 * @param isProbAt_IML
+		 * @param level
+		 * @return basemap at the given level, with latitude as X
+		 */
+		public GeoDataSet getMap(boolean isProbAt_IML, double level) {
+			return getMaps(isProbAt_IML, List.of(level)).get(0);
+		}
+
+		/**
+		 * Computes maps for multiple levels while decoding each curve only once
+		 * @param isProbAt_IML
+		 * @param levels
+		 * @return basemaps at each level, in order, with latitude as X
+		 */
+		public List<GeoDataSet> getMaps(boolean isProbAt_IML, List<Double> levels) {
+			int numLevels = levels.size();
+			// decode tiles in parallel, then combine in tile order so that the output is deterministic
+			List<double[][]> tileVals = new ArrayList<>();
+			List<Location[]> tileLocs = new ArrayList<>();
+			for (MappedTile tile : tiles) {
+				tileVals.add(new double[numLevels][tile.numNodes]);
+				tileLocs.add(new Location[tile.numNodes]);
+			}
+			IntStream.range(0, tiles.size()).parallel().forEach(t -> {
+				double[][] vals = tileVals.get(t);
+				Location[] locs = tileLocs.get(t);
+				int[] index = { 0 };
+				tiles.get(t).forEach((loc, curve) -> {
+					int n = index[0]++;
+					locs[n] = loc;
+					for (int l=0; l<numLevels; l++) {
+						double value = HazardDataSetLoader.getCurveVal(curve, isProbAt_IML, levels.get(l));
+						if (isProbAt_IML && !Double.isFinite(value))
+							value = 0d;
+						vals[l][n] = value;
+					}
+				});
+			});
+			List<GeoDataSet> maps = new ArrayList<>();
+			for (int l=0; l<numLevels; l++) {
+				GeoDataSet xyz = new ArbDiscrGeoDataSet(true);
+				for (int t=0; t<tiles.size(); t++) {
+					Location[] locs = tileLocs.get(t);
+					double[] vals = tileVals.get(t)[l];
+					for (int n=0; n<locs.length; n++)
+						xyz.set(locs[n], vals[n]);
+				}
+				maps.add(xyz);
+			}
+			return maps;
+		}
+	}
+
+}
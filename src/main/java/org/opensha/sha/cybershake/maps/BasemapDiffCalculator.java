@@ -0,0 +1,297 @@
+package org.opensha.sha.cybershake.maps;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Computes differences or ratios between scatter data (e.g. CyberShake site values) and a basemap. Basemap values
+ * at each scatter location are found with index arithmetic if the basemap is a {@link GriddedGeoDataSet}, or with a
+ * k-d tree otherwise, and are looked up once for all requested layers. Lookups are done in parallel for large
+ * scatter data sets.
+ * <br>
+ * <br>By default the closest basemap value is used, as with {@link org.opensha.commons.util.XYZClosestPointFinder}.
+ * Bilinear interpolation between basemap nodes can be enabled for gridded basemaps with {@link #setBilinear(boolean)}.
+ *
+ * @author kevin
+ *
+ */
+public class BasemapDiffCalculator {
+
+	public enum DiffType {
+		/**
+		 * scatter - basemap
+		 */
+		DIFFERENCE {
+			@Override
+			public double calc(double scatterVal, double baseVal) {
+				return scatterVal - baseVal;
+			}
+		},
+		/**
+		 * scatter / basemap
+		 */
+		RATIO {
+			@Override
+			public double calc(double scatterVal, double baseVal) {
+				return scatterVal / baseVal;
+			}
+		},
+		/**
+		 * log10(scatter / basemap)
+		 */
+		LOG_RATIO {
+			@Override
+			public double calc(double scatterVal, double baseVal) {
+				return Math.log10(scatterVal / baseVal);
+			}
+		};
+
+		public abstract double calc(double scatterVal, double baseVal);
+	}
+
+	// scatter data smaller than this are always looked up serially
+	private static final int MIN_PARALLEL_SITES = 500;
+
+	private final GeoDataSet baseMap;
+	private final GriddedRegion gridReg;
+	private volatile LocationTree tree;
+	private boolean bilinear = false;
+
+	public BasemapDiffCalculator(GeoDataSet baseMap) {
+		Preconditions.checkArgument(baseMap.size() > 0, "Basemap is empty");
+		this.baseMap = baseMap;
+		if (baseMap instanceof GriddedGeoDataSet)
+			gridReg = ((GriddedGeoDataSet)baseMap).getRegion();
+		else
+			gridReg = null;
+	}
+
+	/**
+	 * @param bilinear if true, basemap values are bilinearly interpolated between the 4 surrounding nodes for gridded
+	 * basemaps (falling back to the closest value if any of them are missing). Has no effect on non gridded basemaps.
+	 */
+	public void setBilinear(boolean bilinear) {
+		this.bilinear = bilinear;
+	}
+
+	public boolean isBilinear() {
+		return bilinear;
+	}
+
+	/**
+	 * @param loc
+	 * @return basemap value at the given location
+	 */
+	public double getBaseValue(Location loc) {
+		if (gridReg != null) {
+			int index = gridReg.indexForLocation(loc);
+			if (index >= 0) {
+				if (bilinear) {
+					double val = getBilinear(loc, index);
+					if (!Double.isNaN(val))
+						return val;
+				}
+				return baseMap.get(index);
+			}
+		}
+		return baseMap.get(getTree().closest(loc));
+	}
+
+	private double getBilinear(Location loc, int index) {
+		Location node = gridReg.getLocation(index);
+		double latSpacing = gridReg.getLatSpacing();
+		double lonSpacing = gridReg.getLonSpacing();
+		double lat0 = node.getLatitude();
+		double lon0 = node.getLongitude();
+		// move to the lower left node of the cell containing this location
+		if (loc.getLatitude() < lat0)
+			lat0 -= latSpacing;
+		if (loc.getLongitude() < lon0)
+			lon0 -= lonSpacing;
+		double ty = (loc.getLatitude() - lat0)/latSpacing;
+		double tx = (loc.getLongitude() - lon0)/lonSpacing;
+		double z00 = getNodeValue(lat0, lon0);
+		double z10 = getNodeValue(lat0, lon0 + lonSpacing);
+		double z01 = getNodeValue(lat0 + latSpacing, lon0);
+		double z11 = getNodeValue(lat0 + latSpacing, lon0 + lonSpacing);
+		return (1d-ty)*((1d-tx)*z00 + tx*z10) + ty*((1d-tx)*z01 + tx*z11);
+	}
+
+	private double getNodeValue(double lat, double lon) {
+		int index = gridReg.indexForLocation(new Location(lat, lon));
+		if (index < 0)
+			return Double.NaN;
+		return baseMap.get(index);
+	}
+
+	private LocationTree getTree() {
+		LocationTree tree = this.tree;
+		if (tree == null) {
+			synchronized (this) {
+				tree = this.tree;
+				if (tree == null) {
+					tree = new LocationTree(baseMap);
+					this.tree = tree;
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * @param scatter
+	 * @return basemap values at each scatter location, in scatter order
+	 */
+	public double[] getBaseValues(GeoDataSet scatter) {
+		double[] ret = new double[scatter.size()];
+		IntStream indexes = IntStream.range(0, ret.length);
+		if (ret.length >= MIN_PARALLEL_SITES)
+			indexes = indexes.parallel();
+		indexes.forEach(i -> ret[i] = getBaseValue(scatter.getLocation(i)));
+		return ret;
+	}
+
+	/**
+	 * @param scatter
+	 * @param type
+	 * @return the given layer computed at each scatter location
+	 */
+	public GeoDataSet calc(GeoDataSet scatter, DiffType type) {
+		return calc(scatter, new DiffType[] { type }).get(type);
+	}
+
+	/**
+	 * Computes multiple layers at once, looking up basemap values only once
+	 * @param scatter
+	 * @param types
+	 * @return map from type to the layer computed at each scatter location
+	 */
+	public Map<DiffType, GeoDataSet> calc(GeoDataSet scatter, DiffType... types) {
+		Preconditions.checkArgument(types.length > 0, "Must supply at least one type");
+		double[] baseVals = getBaseValues(scatter);
+		Map<DiffType, GeoDataSet> ret = new EnumMap<>(DiffType.class);
+		for (DiffType type : types) {
+			if (ret.containsKey(type))
+				continue;
+			GeoDataSet layer = new ArbDiscrGeoDataSet(baseMap.isLatitudeX());
+			for (int i=0; i<baseVals.length; i++)
+				layer.set(scatter.getLocation(i), type.calc(scatter.get(i), baseVals[i]));
+			ret.put(type, layer);
+		}
+		return ret;
+	}
+
+	/**
+	 * 3-d tree of locations as unit vectors, so that the closest point by euclidean (chord) distance is also the
+	 * closest by great circle distance
+	 */
+	private static class LocationTree {
+
+		private final double[][] coords;
+		// indexes into coords, ordered such that the median of each range is the node splitting that range
+		private final int[] nodes;
+
+		private LocationTree(GeoDataSet data) {
+			int num = data.size();
+			coords = new double[num][];
+			nodes = new int[num];
+			for (int i=0; i<num; i++) {
+				coords[i] = toCartesian(data.getLocation(i));
+				nodes[i] = i;
+			}
+			build(0, num, 0);
+		}
+
+		private static double[] toCartesian(Location loc) {
+			double lat = Math.toRadians(loc.getLatitude());
+			double lon = Math.toRadians(loc.getLongitude());
+			double cosLat = Math.cos(lat);
+			return new double[] { cosLat*Math.cos(lon), cosLat*Math.sin(lon), Math.sin(lat) };
+		}
+
+		private void build(int from, int to, int axis) {
+			if (to - from <= 1)
+				return;
+			int mid = (from + to) >>> 1;
+			select(from, to-1, mid, axis);
+			int next = (axis + 1) % 3;
+			build(from, mid, next);
+			build(mid+1, to, next);
+		}
+
+		/**
+		 * Quickselect so that nodes[k] has the k-th smallest coordinate along the given axis within [left, right]
+		 */
+		private void select(int left, int right, int k, int axis) {
+			while (right > left) {
+				double pivot = coords[nodes[(left + right) >>> 1]][axis];
+				int i = left, j = right;
+				while (i <= j) {
+					while (coords[nodes[i]][axis] < pivot)
+						i++;
+					while (coords[nodes[j]][axis] > pivot)
+						j--;
+					if (i <= j) {
+						int tmp = nodes[i];
+						nodes[i] = nodes[j];
+						nodes[j] = tmp;
+						i++;
+						j--;
+					}
+				}
+				if (k <= j)
+					right = j;
+				else if (k >= i)
+					left = i;
+				else
+					return;
+			}
+		}
+
+		private int closest(Location loc) {
+			double[] pt = toCartesian(loc);
+			Search search = new Search();
+			search(pt, 0, nodes.length, 0, search);
+			return search.index;
+		}
+
+		private void search(double[] pt, int from, int to, int axis, Search search) {
+			if (from >= to)
+				return;
+			int mid = (from + to) >>> 1;
+			double[] node = coords[nodes[mid]];
+			double dx = pt[0] - node[0], dy = pt[1] - node[1], dz = pt[2] - node[2];
+			double dist = dx*dx + dy*dy + dz*dz;
+			if (dist < search.dist) {
+				search.dist = dist;
+				search.index = nodes[mid];
+			}
+			double diff = pt[axis] - node[axis];
+			int next = (axis + 1) % 3;
+			if (diff < 0) {
+				search(pt, from, mid, next, search);
+				if (diff*diff < search.dist)
+					search(pt, mid+1, to, next, search);
+			} else {
+				search(pt, mid+1, to, next, search);
+				if (diff*diff < search.dist)
+					search(pt, from, mid, next, search);
+			}
+		}
+
+		private static class Search {
+			private int index = -1;
+			private double dist = Double.POSITIVE_INFINITY;
+		}
+	}
+
+}
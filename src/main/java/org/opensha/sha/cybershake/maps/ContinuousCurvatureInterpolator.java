@@ -0,0 +1,723 @@
+package org.opensha.sha.cybershake.maps;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.Region;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Pure Java implementation of the continuous curvature splines in tension gridding algorithm (Smith and Wessel, 1990)
+ * performed by GMT <code>surface</code>, along with the bilinear and bicubic resampling performed by GMT
+ * <code>grdsample</code>. This allows interpolated CyberShake maps to be computed in memory without writing
+ * intermediate files or calling external GMT binaries.
+ * <br>
+ * <br>As in GMT, a least squares trend plane is removed from the data, the residuals are gridded on successively
+ * finer grids by over-relaxed Gauss-Seidel iteration of <code>(1-T)*del4(z) - T*del2(z) = 0</code>, and the plane is
+ * then restored. Longitude spacing is scaled by the cosine of the mid latitude, as with GMT's <code>-fg</code>. The
+ * convergence limit, search radius and tension are taken from {@link GMT_InterpolationSettings}. Iterations at each
+ * grid level are run in parallel (nodes are split into 9 independent sets so that parallel updates are identical to
+ * serial updates).
+ * <br>
+ * <br>Results are not bit-for-bit identical to GMT, differences are as follows:
+ * <ul>
+ * <li>Data which don't fall exactly on a node are honored by offsetting the closest node along the local surface
+ * gradient, rather than with the full Briggs coefficients. Surfaces pass through the data to within the convergence
+ * limit plus the curvature of the surface within half a grid cell.</li>
+ * <li>Natural boundary conditions are approximated by linearly extrapolated ghost nodes, and the same tension is used
+ * at the boundary and interior.</li>
+ * <li>Grid levels are powers of two rather than common factors of the grid dimensions.</li>
+ * </ul>
+ * These differences have not been measured against GMT <code>surface</code> output, so the following is an
+ * unverified estimate based on the algorithm differences above, not a tested tolerance: near the data, differences
+ * from GMT should be on the order of the convergence limit; far from any data, where the surface is only constrained
+ * by the boundary conditions, differences of a few percent of the data range may occur. Compare against GMT before
+ * relying on these grids where agreement with GMT maps matters. As with GMT, values far from the data are
+ * extrapolations and shouldn't be trusted in either case.
+ *
+ * @author kevin
+ *
+ */
+public class ContinuousCurvatureInterpolator {
+
+	/**
+	 * Default maximum number of iterations for each grid level (scaled by the grid stride), same as GMT
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 500;
+
+	/**
+	 * Default convergence limit relative to the RMS of the detrended data, same as GMT
+	 */
+	public static final double DEFAULT_RELATIVE_CONVERGENCE = 1e-4;
+
+	private static final double OVER_RELAXATION = 1.4;
+	// grid levels smaller than this are always iterated serially
+	private static final int MIN_PARALLEL_NODES = 10000;
+
+	private double convergence;
+	private boolean relativeConvergence;
+	private double searchRadius;
+	private double tension;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private boolean parallel = true;
+
+	/**
+	 * Creates an interpolator which honors the convergence, search radius and tension arguments of the given settings
+	 * @param settings
+	 */
+	public ContinuousCurvatureInterpolator(GMT_InterpolationSettings settings) {
+		this(Double.NaN, parseSearchRadius(settings.getSearchArg()), parseTension(settings.getTensionArg()));
+		setConvergence(settings.getConvergenceArg());
+	}
+
+	/**
+	 * @param convergence absolute convergence limit, or NaN for the GMT default of
+	 * {@link #DEFAULT_RELATIVE_CONVERGENCE} times the RMS of the detrended data
+	 * @param searchRadius search radius (degrees) used to initialize the coarsest grid, or zero to initialize it to
+	 * the trend plane
+	 * @param tension tension factor in the range [0, 1], where 0 gives a minimum curvature surface and 1 a harmonic
+	 * surface
+	 */
+	public ContinuousCurvatureInterpolator(double convergence, double searchRadius, double tension) {
+		Preconditions.checkArgument(Double.isNaN(convergence) || convergence > 0d,
+				"Convergence limit must be positive: %s", convergence);
+		Preconditions.checkArgument(searchRadius >= 0d, "Search radius must be >= 0: %s", searchRadius);
+		Preconditions.checkArgument(tension >= 0d && tension <= 1d, "Tension must be in [0, 1]: %s", tension);
+		if (Double.isNaN(convergence)) {
+			this.convergence = DEFAULT_RELATIVE_CONVERGENCE;
+			this.relativeConvergence = true;
+		} else {
+			this.convergence = convergence;
+		}
+		this.searchRadius = searchRadius;
+		this.tension = tension;
+	}
+
+	private void setConvergence(String convergenceArg) {
+		String val = stripArg(convergenceArg, 'C');
+		if (val.isEmpty())
+			return;
+		if (val.endsWith("%")) {
+			relativeConvergence = true;
+			convergence = Double.parseDouble(val.substring(0, val.length()-1))/100d;
+		} else {
+			relativeConvergence = false;
+			convergence = Double.parseDouble(val);
+		}
+		Preconditions.checkArgument(convergence > 0d, "Convergence limit must be positive: %s", convergenceArg);
+	}
+
+	private static String stripArg(String arg, char flag) {
+		if (arg == null)
+			return "";
+		arg = arg.trim();
+		if (arg.isEmpty())
+			return arg;
+		Preconditions.checkArgument(arg.length() > 1 && arg.charAt(0) == '-' && arg.charAt(1) == flag,
+				"Expected GMT -%s argument: %s", flag, arg);
+		return arg.substring(2).trim();
+	}
+
+	/**
+	 * @param searchArg GMT surface search argument, e.g. "-S0.1" (degrees), "-S6m" (arc minutes) or "-S360s"
+	 * (arc seconds)
+	 * @return search radius in degrees
+	 */
+	static double parseSearchRadius(String searchArg) {
+		String val = stripArg(searchArg, 'S');
+		if (val.isEmpty())
+			return 0d;
+		char unit = val.charAt(val.length()-1);
+		if (unit == 'm')
+			return Double.parseDouble(val.substring(0, val.length()-1))/60d;
+		if (unit == 's')
+			return Double.parseDouble(val.substring(0, val.length()-1))/3600d;
+		if (unit == 'd')
+			return Double.parseDouble(val.substring(0, val.length()-1));
+		return Double.parseDouble(val);
+	}
+
+	/**
+	 * @param tensionArg GMT surface tension argument, e.g. "-T0.25" or "-Ti0.25"
+	 * @return tension factor
+	 */
+	static double parseTension(String tensionArg) {
+		String val = stripArg(tensionArg, 'T');
+		if (val.isEmpty())
+			return 0d;
+		// GMT allows separate interior (i) and boundary (b) tension, we use the same value for both
+		if (val.charAt(0) == 'i' || val.charAt(0) == 'b')
+			val = val.substring(1);
+		return Double.parseDouble(val);
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		Preconditions.checkArgument(maxIterations > 0);
+		this.maxIterations = maxIterations;
+	}
+
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public double getSearchRadius() {
+		return searchRadius;
+	}
+
+	public double getTension() {
+		return tension;
+	}
+
+	/**
+	 * Counterpart of GMT <code>surface</code> followed by <code>grdsample</code>: grids the given scatter data at the
+	 * given spacing over the bounding box of the output region, then resamples it onto the output region (which will
+	 * be masked if it isn't rectangular).
+	 * @param scatter
+	 * @param outputRegion
+	 * @param interpSpacing
+	 * @param bicubic if true, resample with bicubic interpolation, otherwise bilinear
+	 * @return
+	 */
+	public GriddedGeoDataSet interpolate(GeoDataSet scatter, GriddedRegion outputRegion, double interpSpacing,
+			boolean bicubic) {
+		Surface surface = interpolate(scatter, outputRegion, interpSpacing);
+		return surface.resample(outputRegion, bicubic);
+	}
+
+	/**
+	 * Counterpart of GMT <code>surface</code>: grids the given scatter data at the given spacing over the bounding box
+	 * of the given region. Non finite data and data outside of the bounding box are skipped.
+	 * @param scatter
+	 * @param region
+	 * @param spacing
+	 * @return
+	 */
+	public Surface interpolate(GeoDataSet scatter, Region region, double spacing) {
+		double minLon = region.getMinLon();
+		double minLat = region.getMinLat();
+		int nx = (int)Math.round((region.getMaxLon() - minLon)/spacing)+1;
+		int ny = (int)Math.round((region.getMaxLat() - minLat)/spacing)+1;
+
+		int num = scatter.size();
+		double[] lons = new double[num];
+		double[] lats = new double[num];
+		double[] vals = new double[num];
+		for (int i=0; i<num; i++) {
+			Location loc = scatter.getLocation(i);
+			lons[i] = loc.getLongitude();
+			lats[i] = loc.getLatitude();
+			vals[i] = scatter.get(i);
+		}
+		return interpolate(lons, lats, vals, minLon, minLat, spacing, nx, ny);
+	}
+
+	/**
+	 * Grids the given data on a grid with the given lower left corner, spacing and dimensions. Non finite data and
+	 * data outside of the grid are skipped.
+	 * @param lons
+	 * @param lats
+	 * @param vals
+	 * @param minLon
+	 * @param minLat
+	 * @param spacing
+	 * @param nx number of longitude nodes
+	 * @param ny number of latitude nodes
+	 * @return
+	 */
+	public Surface interpolate(double[] lons, double[] lats, double[] vals, double minLon, double minLat,
+			double spacing, int nx, int ny) {
+		Preconditions.checkArgument(lons.length == lats.length && lons.length == vals.length);
+		Preconditions.checkArgument(spacing > 0d, "Spacing must be positive: %s", spacing);
+		Preconditions.checkArgument(nx >= 2 && ny >= 2, "Grid must have at least 2 nodes in each direction: %sx%s",
+				nx, ny);
+
+		// data locations in grid index units, keeping only those which are on the grid
+		double maxX = nx-1;
+		double maxY = ny-1;
+		int num = 0;
+		double[] xs = new double[vals.length];
+		double[] ys = new double[vals.length];
+		double[] zs = new double[vals.length];
+		for (int i=0; i<vals.length; i++) {
+			if (!Double.isFinite(vals[i]))
+				continue;
+			double x = (lons[i] - minLon)/spacing;
+			double y = (lats[i] - minLat)/spacing;
+			if (x < -0.5 || y < -0.5 || x > maxX+0.5 || y > maxY+0.5)
+				continue;
+			xs[num] = x;
+			ys[num] = y;
+			zs[num] = vals[i];
+			num++;
+		}
+		Preconditions.checkState(num > 0, "No finite data within the grid");
+		xs = Arrays.copyOf(xs, num);
+		ys = Arrays.copyOf(ys, num);
+		zs = Arrays.copyOf(zs, num);
+
+		// remove the trend
+		double[] plane = fitPlane(xs, ys, zs);
+		double sumSq = 0d;
+		for (int i=0; i<num; i++) {
+			zs[i] -= plane[0] + plane[1]*xs[i] + plane[2]*ys[i];
+			sumSq += zs[i]*zs[i];
+		}
+		double rms = Math.sqrt(sumSq/num);
+		double limit = relativeConvergence ? convergence*rms : convergence;
+
+		double[] residuals;
+		if (rms == 0d) {
+			// data are exactly planar
+			residuals = new double[nx*ny];
+		} else {
+			double midLat = minLat + 0.5*spacing*(ny-1);
+			double xScale = Math.cos(Math.toRadians(midLat));
+
+			int stride = 1;
+			while ((nx-1)/(2*stride) >= 3 && (ny-1)/(2*stride) >= 3)
+				stride *= 2;
+
+			Level prev = null;
+			for (; stride>=1; stride /= 2) {
+				Level level = new Level(nx, ny, stride, xScale);
+				if (prev == null)
+					level.initSearch(xs, ys, zs, searchRadius/spacing);
+				else
+					level.initFrom(prev);
+				level.setConstraints(xs, ys, zs);
+				level.iterate(limit, maxIterations*stride);
+				prev = level;
+			}
+			residuals = prev.getValues();
+		}
+
+		// restore the trend
+		for (int j=0; j<ny; j++)
+			for (int i=0; i<nx; i++)
+				residuals[j*nx + i] += plane[0] + plane[1]*i + plane[2]*j;
+		return new Surface(minLon, minLat, spacing, nx, ny, residuals);
+	}
+
+	/**
+	 * Least squares plane fit
+	 * @return [a, b, c] where z = a + b*x + c*y. Falls back to the mean if the data are degenerate.
+	 */
+	private static double[] fitPlane(double[] xs, double[] ys, double[] zs) {
+		int n = xs.length;
+		double mx = 0d, my = 0d, mz = 0d;
+		for (int i=0; i<n; i++) {
+			mx += xs[i];
+			my += ys[i];
+			mz += zs[i];
+		}
+		mx /= n;
+		my /= n;
+		mz /= n;
+		double sxx = 0d, syy = 0d, sxy = 0d, sxz = 0d, syz = 0d;
+		for (int i=0; i<n; i++) {
+			double dx = xs[i] - mx;
+			double dy = ys[i] - my;
+			double dz = zs[i] - mz;
+			sxx += dx*dx;
+			syy += dy*dy;
+			sxy += dx*dy;
+			sxz += dx*dz;
+			syz += dy*dz;
+		}
+		double det = sxx*syy - sxy*sxy;
+		if (n < 3 || Math.abs(det) <= 1e-10*Math.max(1d, sxx*syy))
+			return new double[] { mz, 0d, 0d };
+		double b = (sxz*syy - syz*sxy)/det;
+		double c = (syz*sxx - sxz*sxy)/det;
+		return new double[] { mz - b*mx - c*my, b, c };
+	}
+
+	/**
+	 * Grid at a single multigrid level, with nodes every <code>stride</code> nodes of the final grid. Values are
+	 * stored with 2 ghost nodes on each side for the boundary conditions.
+	 */
+	private class Level {
+		private final int nx, ny, stride;
+		// padded width
+		private final int pw;
+		private final double[] z;
+		private final boolean[] fixed;
+
+		// data constraints: padded node index, value, and offset from the node in level index units
+		private int[] conIndexes;
+		private double[] conVals;
+		private double[] conDX;
+		private double[] conDY;
+
+		// finite difference coefficients
+		private final double a1, b1, c1, ax, ay, c0;
+
+		private Level(int finalNX, int finalNY, int stride, double xScale) {
+			this.stride = stride;
+			this.nx = (finalNX-1)/stride + 1;
+			this.ny = (finalNY-1)/stride + 1;
+			this.pw = nx + 4;
+			this.z = new double[pw*(ny+4)];
+			this.fixed = new boolean[z.length];
+
+			// tension is dimensionless, so spacing is normalized to 1 in latitude at every level
+			double hx2 = xScale*xScale;
+			a1 = 1d/(hx2*hx2);
+			b1 = 1d;
+			c1 = 2d/hx2;
+			ax = 1d/hx2;
+			ay = 1d;
+			c0 = (1d-tension)*(6d*a1 + 6d*b1 + 4d*c1) + tension*(2d*ax + 2d*ay);
+		}
+
+		private int index(int i, int j) {
+			return (j+2)*pw + i + 2;
+		}
+
+		private void initSearch(double[] xs, double[] ys, double[] zs, double radius) {
+			if (radius <= 0d)
+				return;
+			// radius in level index units
+			double r = radius/stride;
+			double r2 = r*r;
+			for (int j=0; j<ny; j++) {
+				for (int i=0; i<nx; i++) {
+					double sum = 0d;
+					int count = 0;
+					for (int k=0; k<xs.length; k++) {
+						double dx = xs[k]/stride - i;
+						double dy = ys[k]/stride - j;
+						if (dx*dx + dy*dy <= r2) {
+							sum += zs[k];
+							count++;
+						}
+					}
+					if (count > 0)
+						z[index(i, j)] = sum/count;
+				}
+			}
+		}
+
+		private void initFrom(Level coarse) {
+			coarse.updateGhosts();
+			// bilinear interpolation of the coarser level, using its ghost nodes past the last coarse node
+			double ratio = (double)stride/(double)coarse.stride;
+			for (int j=0; j<ny; j++) {
+				double y = j*ratio;
+				int j0 = Math.min((int)y, coarse.ny-1);
+				double ty = y - j0;
+				for (int i=0; i<nx; i++) {
+					double x = i*ratio;
+					int i0 = Math.min((int)x, coarse.nx-1);
+					double tx = x - i0;
+					double z00 = coarse.z[coarse.index(i0, j0)];
+					double z10 = coarse.z[coarse.index(i0+1, j0)];
+					double z01 = coarse.z[coarse.index(i0, j0+1)];
+					double z11 = coarse.z[coarse.index(i0+1, j0+1)];
+					z[index(i, j)] = (1d-ty)*((1d-tx)*z00 + tx*z10) + ty*((1d-tx)*z01 + tx*z11);
+				}
+			}
+		}
+
+		private void setConstraints(double[] xs, double[] ys, double[] zs) {
+			// keep the closest datum to each node, as GMT does
+			int[] closest = new int[nx*ny];
+			double[] closestDist = new double[nx*ny];
+			Arrays.fill(closest, -1);
+			for (int k=0; k<xs.length; k++) {
+				double x = xs[k]/stride;
+				double y = ys[k]/stride;
+				int i = Math.max(0, Math.min(nx-1, (int)Math.round(x)));
+				int j = Math.max(0, Math.min(ny-1, (int)Math.round(y)));
+				double dx = x - i;
+				double dy = y - j;
+				double dist = dx*dx + dy*dy;
+				int n = j*nx + i;
+				if (closest[n] < 0 || dist < closestDist[n]) {
+					closest[n] = k;
+					closestDist[n] = dist;
+				}
+			}
+			int num = 0;
+			for (int n=0; n<closest.length; n++)
+				if (closest[n] >= 0)
+					num++;
+			conIndexes = new int[num];
+			conVals = new double[num];
+			conDX = new double[num];
+			conDY = new double[num];
+			int c = 0;
+			for (int n=0; n<closest.length; n++) {
+				int k = closest[n];
+				if (k < 0)
+					continue;
+				int i = n % nx;
+				int j = n / nx;
+				conIndexes[c] = index(i, j);
+				conVals[c] = zs[k];
+				conDX[c] = xs[k]/stride - i;
+				conDY[c] = ys[k]/stride - j;
+				fixed[conIndexes[c]] = true;
+				z[conIndexes[c]] = zs[k];
+				c++;
+			}
+		}
+
+		/**
+		 * Sets ghost nodes by linear extrapolation, which gives zero curvature normal to the boundaries
+		 */
+		private void updateGhosts() {
+			for (int j=0; j<ny; j++) {
+				int i0 = index(0, j);
+				double z0 = z[i0], z1 = z[i0+1];
+				z[i0-1] = 2d*z0 - z1;
+				z[i0-2] = 3d*z0 - 2d*z1;
+				int iN = index(nx-1, j);
+				double zN = z[iN], zN1 = z[iN-1];
+				z[iN+1] = 2d*zN - zN1;
+				z[iN+2] = 3d*zN - 2d*zN1;
+			}
+			for (int i=-2; i<nx+2; i++) {
+				int j0 = index(i, 0);
+				double z0 = z[j0], z1 = z[j0+pw];
+				z[j0-pw] = 2d*z0 - z1;
+				z[j0-2*pw] = 3d*z0 - 2d*z1;
+				int jN = index(i, ny-1);
+				double zN = z[jN], zN1 = z[jN-pw];
+				z[jN+pw] = 2d*zN - zN1;
+				z[jN+2*pw] = 3d*zN - 2d*zN1;
+			}
+		}
+
+		private double sweepRow(int j, int ci) {
+			double maxChange = 0d;
+			double t1 = 1d - tension;
+			for (int i=ci; i<nx; i+=3) {
+				int n = index(i, j);
+				if (fixed[n])
+					continue;
+				double zE = z[n+1], zW = z[n-1], zN = z[n+pw], zS = z[n-pw];
+				double rest4 = (z[n+2] + z[n-2])*a1 + (z[n+2*pw] + z[n-2*pw])*b1
+						- 4d*(zE + zW)*a1 - 4d*(zN + zS)*b1
+						+ (z[n+pw+1] + z[n+pw-1] + z[n-pw+1] + z[n-pw-1])*c1
+						- 2d*(zE + zW + zN + zS)*c1;
+				double restL = (zE + zW)*ax + (zN + zS)*ay;
+				double target = (tension*restL - t1*rest4)/c0;
+				double change = OVER_RELAXATION*(target - z[n]);
+				z[n] += change;
+				maxChange = Math.max(maxChange, Math.abs(change));
+			}
+			return maxChange;
+		}
+
+		private double updateConstraints() {
+			double maxChange = 0d;
+			for (int c=0; c<conIndexes.length; c++) {
+				int n = conIndexes[c];
+				double gx = 0.5*(z[n+1] - z[n-1]);
+				double gy = 0.5*(z[n+pw] - z[n-pw]);
+				double val = conVals[c] - gx*conDX[c] - gy*conDY[c];
+				maxChange = Math.max(maxChange, Math.abs(val - z[n]));
+				z[n] = val;
+			}
+			return maxChange;
+		}
+
+		private void iterate(double limit, int maxIters) {
+			boolean useParallel = parallel && nx*ny >= MIN_PARALLEL_NODES;
+			for (int iter=0; iter<maxIters; iter++) {
+				double maxChange = 0d;
+				updateGhosts();
+				// nodes with the same (i % 3, j % 3) are never within each other's stencil, so each set can be
+				// updated in parallel with results identical to a serial sweep
+				for (int cj=0; cj<3; cj++) {
+					final int rowOffset = cj;
+					for (int ci=0; ci<3; ci++) {
+						final int colOffset = ci;
+						IntStream rows = IntStream.range(0, (ny - cj + 2)/3).map(r -> rowOffset + 3*r);
+						if (useParallel)
+							rows = rows.parallel();
+						maxChange = Math.max(maxChange,
+								rows.mapToDouble(j -> sweepRow(j, colOffset)).max().orElse(0d));
+						updateGhosts();
+					}
+				}
+				maxChange = Math.max(maxChange, updateConstraints());
+				if (maxChange < limit)
+					break;
+			}
+		}
+
+		private double[] getValues() {
+			double[] ret = new double[nx*ny];
+			for (int j=0; j<ny; j++)
+				System.arraycopy(z, index(0, j), ret, j*nx, nx);
+			return ret;
+		}
+	}
+
+	/**
+	 * Interpolated surface on a regular longitude/latitude grid
+	 */
+	public static class Surface {
+
+		// tolerance (in grid index units) for locations just outside of the grid
+		private static final double EDGE_TOLERANCE = 1e-6;
+
+		private final double minLon;
+		private final double minLat;
+		private final double spacing;
+		private final int nx;
+		private final int ny;
+		// organized as [lat][lon], see get(i, j)
+		private final double[] values;
+
+		Surface(double minLon, double minLat, double spacing, int nx, int ny, double[] values) {
+			Preconditions.checkArgument(values.length == nx*ny);
+			this.minLon = minLon;
+			this.minLat = minLat;
+			this.spacing = spacing;
+			this.nx = nx;
+			this.ny = ny;
+			this.values = values;
+		}
+
+		public double getMinLon() {
+			return minLon;
+		}
+
+		public double getMinLat() {
+			return minLat;
+		}
+
+		public double getMaxLon() {
+			return minLon + spacing*(nx-1);
+		}
+
+		public double getMaxLat() {
+			return minLat + spacing*(ny-1);
+		}
+
+		public double getSpacing() {
+			return spacing;
+		}
+
+		public int getNumLon() {
+			return nx;
+		}
+
+		public int getNumLat() {
+			return ny;
+		}
+
+		/**
+		 * @param i longitude index
+		 * @param j latitude index
+		 * @return value at the given node
+		 */
+		public double get(int i, int j) {
+			return values[j*nx + i];
+		}
+
+		/**
+		 * @param loc
+		 * @param bicubic if true, use bicubic interpolation, otherwise bilinear
+		 * @return interpolated value at the given location, or NaN if outside of the grid
+		 */
+		public double getValue(Location loc, boolean bicubic) {
+			double x = (loc.getLongitude() - minLon)/spacing;
+			double y = (loc.getLatitude() - minLat)/spacing;
+			if (x < -EDGE_TOLERANCE || y < -EDGE_TOLERANCE || x > nx-1+EDGE_TOLERANCE || y > ny-1+EDGE_TOLERANCE)
+				return Double.NaN;
+			x = Math.max(0d, Math.min(nx-1, x));
+			y = Math.max(0d, Math.min(ny-1, y));
+			if (bicubic)
+				return bicubic(x, y);
+			return bilinear(x, y);
+		}
+
+		private double bilinear(double x, double y) {
+			int i0 = Math.min((int)x, nx-2);
+			int j0 = Math.min((int)y, ny-2);
+			double tx = x - i0;
+			double ty = y - j0;
+			double z00 = get(i0, j0);
+			double z10 = get(i0+1, j0);
+			double z01 = get(i0, j0+1);
+			double z11 = get(i0+1, j0+1);
+			return (1d-ty)*((1d-tx)*z00 + tx*z10) + ty*((1d-tx)*z01 + tx*z11);
+		}
+
+		private double bicubic(double x, double y) {
+			int i0 = Math.min((int)x, nx-2);
+			int j0 = Math.min((int)y, ny-2);
+			double[] wx = cubicWeights(x - i0);
+			double[] wy = cubicWeights(y - j0);
+			double ret = 0d;
+			for (int dj=-1; dj<=2; dj++) {
+				int j = Math.max(0, Math.min(ny-1, j0+dj));
+				double rowVal = 0d;
+				for (int di=-1; di<=2; di++) {
+					int i = Math.max(0, Math.min(nx-1, i0+di));
+					rowVal += wx[di+1]*get(i, j);
+				}
+				ret += wy[dj+1]*rowVal;
+			}
+			return ret;
+		}
+
+		/**
+		 * Keys cubic convolution weights (a=-0.5) for the 4 nodes surrounding fractional position t in [0, 1]
+		 */
+		private static double[] cubicWeights(double t) {
+			double t2 = t*t;
+			double t3 = t2*t;
+			return new double[] {
+					-0.5*t3 + t2 - 0.5*t,
+					1.5*t3 - 2.5*t2 + 1d,
+					-1.5*t3 + 2d*t2 + 0.5*t,
+					0.5*t3 - 0.5*t2
+			};
+		}
+
+		/**
+		 * Counterpart of GMT <code>grdsample</code>, resamples this surface onto the given gridded region
+		 * @param gridReg
+		 * @param bicubic if true, use bicubic interpolation, otherwise bilinear
+		 * @return resampled data, NaN for any nodes outside of this surface
+		 */
+		public GriddedGeoDataSet resample(GriddedRegion gridReg, boolean bicubic) {
+			GriddedGeoDataSet ret = new GriddedGeoDataSet(gridReg, true);
+			for (int i=0; i<ret.size(); i++)
+				ret.set(i, getValue(ret.getLocation(i), bicubic));
+			return ret;
+		}
+
+		/**
+		 * @return this surface as a gridded data set on its native rectangular grid
+		 */
+		public GriddedGeoDataSet toGeoDataSet() {
+			return resample(getRectangularGriddedRegion(new Region(new Location(minLat, minLon),
+					new Location(getMaxLat(), getMaxLon())), spacing), false);
+		}
+	}
+
+	/**
+	 * @param region
+	 * @param spacing
+	 * @return gridded region covering the bounding box of the given region, anchored at its lower left corner (GMT
+	 * grid registration)
+	 */
+	public static GriddedRegion getRectangularGriddedRegion(Region region, double spacing) {
+		Location lowerLeft = new Location(region.getMinLat(), region.getMinLon());
+		Region rect = region.isRectangular() ? region
+				: new Region(lowerLeft, new Location(region.getMaxLat(), region.getMaxLon()));
+		return new GriddedRegion(rect, spacing, lowerLeft);
+	}
+
+}
@@ -7,11 +7,15 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
 import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
 import org.opensha.commons.exceptions.GMT_MapException;
+import org.opensha.commons.geo.GriddedRegion;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.Region;
 import org.opensha.commons.mapping.gmt.GMT_Map;
@@ -21,48 +25,112 @@ import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.mapping.gmt.elements.PSXYSymbol;
 import org.opensha.commons.mapping.gmt.elements.TopographicSlopeFile;
 import org.opensha.commons.util.RunScript;
-import org.opensha.commons.util.XYZClosestPointFinder;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.commons.util.cpt.CPTVal;
+import org.opensha.sha.cybershake.maps.BasemapDiffCalculator.DiffType;
 import org.opensha.sha.cybershake.maps.InterpDiffMap.InterpDiffMapType;
 import org.opensha.sha.cybershake.maps.servlet.CS_InterpDiffMapServletAccessor;
 import org.opensha.sha.cybershake.plot.ScatterSymbol;
 
 import com.google.common.io.Files;
 
-import gov.usgs.earthquake.nshmp.geo.GriddedRegion;
-
 public class CyberShake_GMT_MapGenerator implements SecureMapGenerator {
 	
 	public static int[] dpis = {72, 150, 300};
 	
 	public static GeoDataSet getDiffs(GeoDataSet baseMap, GeoDataSet scatterData, boolean ratio, boolean isLog) {
 		System.out.println("Generating diffs for interpolation...");
-		GeoDataSet diffs = new ArbDiscrGeoDataSet(baseMap.isLatitudeX());
+		GeoDataSet diffs = new BasemapDiffCalculator(baseMap).calc(scatterData,
+				ratio ? DiffType.RATIO : DiffType.DIFFERENCE);
+		System.out.println("DONE");
 		
-		XYZClosestPointFinder xyz = new XYZClosestPointFinder(baseMap);
+		return diffs;
+	}
+	
+	/**
+	 * In process counterpart of GMT <code>surface</code> followed by a bilinear <code>grdsample</code>, see
+	 * {@link ContinuousCurvatureInterpolator}. Results are not verified against GMT, and differences from GMT output
+	 * are only an unverified estimate (see {@link ContinuousCurvatureInterpolator} for details).
+	 * @param scatter
+	 * @param region
+	 * @param interpSettings
+	 * @param gridSpacing spacing of the returned grid
+	 * @return interpolated data on a rectangular grid covering the bounding box of the region
+	 */
+	public static GriddedGeoDataSet interpolate(GeoDataSet scatter, Region region,
+			GMT_InterpolationSettings interpSettings, double gridSpacing) {
+		ContinuousCurvatureInterpolator interp = new ContinuousCurvatureInterpolator(interpSettings);
+		double interpGridSpacing = interpSettings.getInterpSpacing();
+		ContinuousCurvatureInterpolator.Surface surface = interp.interpolate(scatter, region, interpGridSpacing);
+		if (interpGridSpacing == gridSpacing)
+			return surface.toGeoDataSet();
+		return surface.resample(ContinuousCurvatureInterpolator.getRectangularGriddedRegion(region, gridSpacing), false);
+	}
+	
+	/**
+	 * Computes the gridded data for each map type of the given map in memory, without GMT. Data are on the map
+	 * region gridded at the basemap spacing, so nodes outside of a non rectangular region are excluded.
+	 * @param map
+	 * @return gridded data for each map type, excluding any which require a basemap if the map doesn't have one
+	 */
+	public static Map<InterpDiffMapType, GriddedGeoDataSet> calcGriddedMaps(InterpDiffMap map) {
+		InterpDiffMapType[] mapTypes = map.getMapTypes();
+		if (mapTypes == null)
+			mapTypes = InterpDiffMapType.values();
 		
-		for (int i=0; i<scatterData.size(); i++) {
-			Location loc = scatterData.getLocation(i);
-			
-			double scatterVal = scatterData.get(i);
-			double closestVal = xyz.getClosestVal(loc);
-//			System.out.println("scatterVal: " + scatterVal);
-//			System.out.println("closestVal: " + closestVal);
-			
-			double diff;
-			if (ratio)
-				diff = scatterVal / closestVal;
-			else
-				diff = scatterVal - closestVal;
-//			if (isLog && (diff == 0d || !Double.isFinite(diff)))
-//				diff = 1e-16;
-			diffs.set(loc, diff);
+		Region region = map.getRegion();
+		double spacing = map.getGriddedDataInc();
+		GriddedRegion gridReg = new GriddedRegion(region, spacing,
+				new Location(region.getMinLat(), region.getMinLon()));
+		GeoDataSet griddedData = map.getGriddedData();
+		GeoDataSet scatterData = map.getScatter();
+		GMT_InterpolationSettings interpSettings = map.getInterpSettings();
+		
+		GriddedGeoDataSet base = null;
+		Map<DiffType, GeoDataSet> diffs = null;
+		if (griddedData != null) {
+			base = new GriddedGeoDataSet(gridReg, true);
+			BasemapDiffCalculator diffCalc = new BasemapDiffCalculator(griddedData);
+			double[] baseVals = diffCalc.getBaseValues(base);
+			for (int i=0; i<baseVals.length; i++)
+				base.set(i, baseVals[i]);
+			diffs = diffCalc.calc(scatterData, DiffType.DIFFERENCE, DiffType.RATIO);
 		}
-		System.out.println("DONE");
 		
-		return diffs;
+		Map<InterpDiffMapType, GriddedGeoDataSet> ret = new EnumMap<>(InterpDiffMapType.class);
+		ContinuousCurvatureInterpolator interp = new ContinuousCurvatureInterpolator(interpSettings);
+		double interpSpacing = interpSettings.getInterpSpacing();
+		GriddedGeoDataSet interpolated = null;
+		for (InterpDiffMapType type : mapTypes) {
+			if (type == InterpDiffMapType.BASEMAP) {
+				if (base != null)
+					ret.put(type, base);
+				continue;
+			}
+			if (base == null && (type == InterpDiffMapType.DIFF || type == InterpDiffMapType.RATIO))
+				continue;
+			if (type == InterpDiffMapType.RATIO) {
+				ret.put(type, interp.interpolate(diffs.get(DiffType.RATIO), gridReg, interpSpacing, false));
+				continue;
+			}
+			if (interpolated == null) {
+				// interpolate the scatter data directly, or the differences from the basemap if we have one
+				GeoDataSet toInterp = base == null ? scatterData : diffs.get(DiffType.DIFFERENCE);
+				interpolated = interp.interpolate(toInterp, gridReg, interpSpacing, false);
+			}
+			if (type == InterpDiffMapType.DIFF) {
+				ret.put(type, interpolated);
+			} else if (base == null) {
+				ret.put(type, interpolated);
+			} else {
+				GriddedGeoDataSet sum = new GriddedGeoDataSet(gridReg, true);
+				for (int i=0; i<sum.size(); i++)
+					sum.set(i, base.get(i) + interpolated.get(i));
+				ret.put(type, sum);
+			}
+		}
+		return ret;
 	}
 	
 	public ArrayList<String> getGMT_ScriptLines(GMT_Map map, String dir) throws GMT_MapException {
@@ -215,6 +283,17 @@ public class CyberShake_GMT_MapGenerator implements SecureMapGenerator {
 		String interpSampledGRD = "interp_resampled.grd";
 		String interpRatioUnsampledGRD = "interpolated_ratio.grd";
 		String interpRatioSampledGRD = "interp_ratio_resampled.grd";
+		Map<DiffType, GeoDataSet> diffs = null;
+		if (shouldInterp && griddedData != null) {
+			// compute all needed differences from the basemap in one pass
+			System.out.println("Generating diffs for interpolation...");
+			BasemapDiffCalculator diffCalc = new BasemapDiffCalculator(griddedData);
+			if (shouldMakeRatio)
+				diffs = diffCalc.calc(scatterData, DiffType.DIFFERENCE, DiffType.RATIO);
+			else
+				diffs = diffCalc.calc(scatterData, DiffType.DIFFERENCE);
+			System.out.println("DONE");
+		}
 		if (shouldInterp) {
 			// do the interpolation
 			String interpXYZName;
@@ -224,48 +303,57 @@ public class CyberShake_GMT_MapGenerator implements SecureMapGenerator {
 				toBeWritten = scatterData;
 			} else {
 				interpXYZName = "scatter_diffs.xyz";
-				toBeWritten = getDiffs(griddedData, scatterData, false, map.isLogPlot());
+				toBeWritten = diffs.get(DiffType.DIFFERENCE);
 //				System.out.println("Diffs:");
 //				for (int i=0; i<toBeWritten.size(); i++)
 //					System.out.println(toBeWritten.getLocation(i)+":\t"+toBeWritten.get(i));
 			}
-			try {
-				ArbDiscrGeoDataSet.writeXYZFile(toBeWritten, dir + interpXYZName);
-			} catch (IOException e) {
-				throw new GMT_MapException("Could not write XYZ data to a file", e);
-			}
+			rmFiles.add(interpSampledGRD);
+			if (map.isInterpInProcess()) {
+				writeInterpolatedGRD(gmtCommandLines, toBeWritten, map, "interp_resampled.xyz", interpSampledGRD, dir,
+						region);
+			} else {
+				try {
+					ArbDiscrGeoDataSet.writeXYZFile(toBeWritten, dir + interpXYZName);
+				} catch (IOException e) {
+					throw new GMT_MapException("Could not write XYZ data to a file", e);
+				}
 			
-			rmFiles.add(interpUnsampledGRD);
-			gmtCommandLines.add("# do GMT interpolation on the scatter data");
-			commandLine = "${GMT_PATH}surface -fg "+ interpXYZName +" -G"+ interpUnsampledGRD+ " -I"+interpGridSpacing
-							+region+interpSettings.getConvergenceArg()+" "+interpSettings.getSearchArg()
-							+" "+interpSettings.getTensionArg()+" -: -h0 2>/dev/null";
-			gmtCommandLines.add(commandLine);
-			if (interpSettings.isSaveInterpSurface()) {
-				gmtCommandLines.add("# write interpolated XYZ file");
-				commandLine = "${GMT_PATH}grd2xyz -fg "+ interpUnsampledGRD+ " > "+GMT_InterpolationSettings.INTERP_XYZ_FILE_NAME;
+				rmFiles.add(interpUnsampledGRD);
+				gmtCommandLines.add("# do GMT interpolation on the scatter data");
+				commandLine = "${GMT_PATH}surface -fg "+ interpXYZName +" -G"+ interpUnsampledGRD+ " -I"+interpGridSpacing
+								+region+interpSettings.getConvergenceArg()+" "+interpSettings.getSearchArg()
+								+" "+interpSettings.getTensionArg()+" -: -h0 2>/dev/null";
 				gmtCommandLines.add(commandLine);
-			}
-			// resample the interpolation
+				if (interpSettings.isSaveInterpSurface()) {
+					gmtCommandLines.add("# write interpolated XYZ file");
+					commandLine = "${GMT_PATH}grd2xyz -fg "+ interpUnsampledGRD+ " > "+GMT_InterpolationSettings.INTERP_XYZ_FILE_NAME;
+					gmtCommandLines.add(commandLine);
+				}
+				// resample the interpolation
 			
-			rmFiles.add(interpSampledGRD);
-			if (interpGridSpacing == mapGridSpacing) {
-				gmtCommandLines.add("# the grid spacings are equal, we can just copy");
-				gmtCommandLines.add("cp " + interpUnsampledGRD + " " + interpSampledGRD);
-			} else {
-				gmtCommandLines.add("# resample the interpolated file");
-				boolean bicubic = false;
-				commandLine = "${GMT_PATH}grdsample -fg "+interpUnsampledGRD+" -G"+interpSampledGRD
-								+" -I"+mapGridSpacing+region;
-				if (!bicubic)
-					commandLine += "-nl";
-				gmtCommandLines.add(commandLine+"\n");
+				if (interpGridSpacing == mapGridSpacing) {
+					gmtCommandLines.add("# the grid spacings are equal, we can just copy");
+					gmtCommandLines.add("cp " + interpUnsampledGRD + " " + interpSampledGRD);
+				} else {
+					gmtCommandLines.add("# resample the interpolated file");
+					boolean bicubic = false;
+					commandLine = "${GMT_PATH}grdsample -fg "+interpUnsampledGRD+" -G"+interpSampledGRD
+									+" -I"+mapGridSpacing+region;
+					if (!bicubic)
+						commandLine += "-nl";
+					gmtCommandLines.add(commandLine+"\n");
+				}
 			}
 			
 			String interpRatioXYZName = "ratios.xyz";
-			if (shouldMakeRatio) {
+			if (shouldMakeRatio && map.isInterpInProcess()) {
+				rmFiles.add(interpRatioSampledGRD);
+				writeInterpolatedGRD(gmtCommandLines, diffs.get(DiffType.RATIO), map,
+						"interp_ratio_resampled.xyz", interpRatioSampledGRD, dir, region);
+			} else if (shouldMakeRatio) {
 				try {
-					ArbDiscrGeoDataSet.writeXYZFile(getDiffs(griddedData, scatterData, true, map.isLogPlot()), dir + interpRatioXYZName);
+					ArbDiscrGeoDataSet.writeXYZFile(diffs.get(DiffType.RATIO), dir + interpRatioXYZName);
 				} catch (IOException e) {
 					throw new GMT_MapException("Could not write XYZ data to a file", e);
 				}
@@ -642,6 +730,20 @@ public class CyberShake_GMT_MapGenerator implements SecureMapGenerator {
 		return gmtCommandLines;
 	}
 	
+	private static void writeInterpolatedGRD(List<String> gmtCommandLines, GeoDataSet scatter, InterpDiffMap map,
+			String xyzName, String grdName, String dir, String region) throws GMT_MapException {
+		GriddedGeoDataSet interp = interpolate(scatter, map.getRegion(), map.getInterpSettings(),
+				map.getGriddedDataInc());
+		try {
+			ArbDiscrGeoDataSet.writeXYZFile(interp, dir + xyzName);
+		} catch (IOException e) {
+			throw new GMT_MapException("Could not write XYZ data to a file", e);
+		}
+		gmtCommandLines.add("# convert in process interpolation xyz file to grd file");
+		gmtCommandLines.add("${GMT_PATH}xyz2grd -fg "+xyzName+" -G"+grdName+" -I"+map.getGriddedDataInc()
+				+region+" -:\n");
+	}
+	
 	public File plotLocally(InterpDiffMap map, File gmtDataDir) throws GMT_MapException, IOException {
 		if (gmtDataDir != null)
 			GMT_MapGenerator.GMT_DATA_PATH = gmtDataDir.getAbsolutePath()+File.separator;
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -83,12 +84,35 @@ public class HardCodedInterpDiffMapCreator {
 	
 	public static ArbDiscrGeoDataSet getMainScatter(boolean isProbAt_IML, double val,
 			HazardCurveFetcher fetcher, int imTypeID, Collection<Integer> siteTypes) {
-		
-		ArbDiscrGeoDataSet scatterData = new ArbDiscrGeoDataSet(true);
+		return getMainScatters(isProbAt_IML, Lists.newArrayList(val), fetcher, imTypeID, siteTypes).get(0);
+	}
+	
+	/**
+	 * Extracts scatter data for multiple levels (probabilities or IMLs) from already fetched curves with a single pass
+	 * over the sites.
+	 * 
+	 * @param isProbAt_IML
+	 * @param vals levels, negative for RTGM
+	 * @param fetcher
+	 * @param imTypeID
+	 * @param siteTypes
+	 * @return scatter data for each level, in the same order as vals
+	 */
+	public static List<ArbDiscrGeoDataSet> getMainScatters(boolean isProbAt_IML, List<Double> vals,
+			HazardCurveFetcher fetcher, int imTypeID, Collection<Integer> siteTypes) {
+		Preconditions.checkArgument(!vals.isEmpty(), "Must supply at least one level");
+		List<ArbDiscrGeoDataSet> scatters = new ArrayList<>();
+		List<Double> rtgmVals = null;
+		for (double val : vals) {
+			scatters.add(new ArbDiscrGeoDataSet(true));
+			if (val < 0 && rtgmVals == null)
+				rtgmVals = fetcher.calcRTGM();
+		}
 		List<CybershakeSite> sites = fetcher.getCurveSites();
-		List<Double> vals = fetcher.getSiteValues(isProbAt_IML, val);
+		List<DiscretizedFunc> funcs = fetcher.getFuncs();
 		
 		int duplicates = 0;
+		HashSet<Location> locs = new HashSet<>();
 		
 		for (int i=0; i<sites.size(); i++) {
 			CybershakeSite site = sites.get(i);
@@ -102,17 +126,26 @@ public class HardCodedInterpDiffMapCreator {
 				}
 			}
 			Location loc = site.createLocation();
-			if (scatterData.contains(loc)) {
+			if (!locs.add(loc)) {
 				duplicates++;
 				continue;
 			}
-			double siteVal = vals.get(i);
-			if (isProbAt_IML && !Double.isFinite(siteVal))
-				siteVal = 0d;
-			scatterData.set(loc, siteVal);
+			DiscretizedFunc func = funcs.get(i);
+			for (int v=0; v<vals.size(); v++) {
+				double val = vals.get(v);
+				double siteVal;
+				if (val < 0)
+					// RTGM
+					siteVal = rtgmVals.get(i);
+				else
+					siteVal = HazardDataSetLoader.getCurveVal(func, isProbAt_IML, val);
+				if (isProbAt_IML && !Double.isFinite(siteVal))
+					siteVal = 0d;
+				scatters.get(v).set(loc, siteVal);
+			}
 		}
-		System.out.println("Kept "+scatterData.size()+"/"+sites.size()+" sites ("+duplicates+" duplicates)");
-		return scatterData;
+		System.out.println("Kept "+locs.size()+"/"+sites.size()+" sites ("+duplicates+" duplicates)");
+		return scatters;
 	}
 	
 	private static ArbDiscrGeoDataSet getCustomScatter(ModProbConfig config, int imTypeID,
@@ -229,42 +262,28 @@ public class HardCodedInterpDiffMapCreator {
 			int velModelID,
 			int imTypeID,
 			Region reg) throws SQLException {
-		
+
+		BasemapCurveStore store = new BasemapCurveStore(gmpe_db, new File(getCacheDir(), "basemap_curves"));
+		try {
+			GeoDataSet xyz = store.getBasemap(imr, erfID, velModelID, imTypeID, reg).getMap(isProbAt_IML, level);
+			System.out.println("Got "+xyz.size()+" basemap values!");
+			return xyz;
+		} catch (IOException e) {
+			// don't fail on cache problem
+			e.printStackTrace();
+		}
+		System.out.println("Basemap store failed, fetching basemap directly");
+
 		AttenRels2DB ar2db = new AttenRels2DB(gmpe_db);
 		int attenRelID = ar2db.getAttenRelID(imr);
-		
+
 		AttenRelDataSets2DB ds2db = new AttenRelDataSets2DB(gmpe_db);
 		int datasetID = ds2db.getDataSetID(attenRelID, erfID, velModelID, 1, 1, null);
-		
-		String cacheName = "ar_curves_"+attenRelID+"_"+datasetID+"_"
-				+isProbAt_IML+"_"+(float)level+"_"+imTypeID;
-		if (reg != null)
-			cacheName += "_region_"+(float)reg.getMinLat()+"_"+(float)reg.getMaxLat()
-					+"_"+(float)reg.getMinLon()+"_"+(float)reg.getMaxLon();
-		
-		File cacheFile = new File(getCacheDir(), cacheName+".txt");
-		if (cacheFile.exists()) {
-			try {
-				System.out.println("Loading from "+cacheFile.getAbsolutePath());
-				return ArbDiscrGeoDataSet.loadXYZFile(cacheFile.getAbsolutePath(), true);
-			} catch (Exception e) {
-				// don't fail on cache problem
-				e.printStackTrace();
-			}
-		}
-		System.out.println("Loading basemap, will save cache to: "+cacheFile.getAbsolutePath());
-		
+
 		AttenRelCurves2DB curves2db = new AttenRelCurves2DB(gmpe_db);
 		GeoDataSet xyz = curves2db.fetchMap(datasetID, imTypeID, isProbAt_IML, level, true, reg);
 		System.out.println("Got "+xyz.size()+" basemap values!");
-		
-		try {
-			ArbDiscrGeoDataSet.writeXYZFile(xyz, cacheFile.getAbsolutePath());
-		} catch (IOException e) {
-			// don't fail on cache problem
-			e.printStackTrace();
-		}
-		
+
 		return xyz;
 	}
 	
@@ -51,6 +51,7 @@ public class InterpDiffMap extends GMT_Map {
 	
 	private boolean useCPTForScatterColor = false;
 	private boolean autoLabel = false;
+	private boolean interpInProcess = false;
 	
 	public InterpDiffMap(Region region, GeoDataSet baseMap, double basemapInc, CPT cpt,
 			GeoDataSet scatter, GMT_InterpolationSettings interpSettings,
@@ -98,4 +99,18 @@ public class InterpDiffMap extends GMT_Map {
 		this.autoLabel = autoLabel;
 	}
 
+	public boolean isInterpInProcess() {
+		return interpInProcess;
+	}
+
+	/**
+	 * If true, interpolated grids are computed in Java with {@link ContinuousCurvatureInterpolator} rather than
+	 * with GMT surface and grdsample. Results have not been verified against GMT output, see the
+	 * {@link ContinuousCurvatureInterpolator} documentation for the expected differences.
+	 * @param interpInProcess
+	 */
+	public void setInterpInProcess(boolean interpInProcess) {
+		this.interpInProcess = interpInProcess;
+	}
+
 }
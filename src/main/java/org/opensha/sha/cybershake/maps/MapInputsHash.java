@@ -0,0 +1,144 @@
+package org.opensha.sha.cybershake.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.geo.Region;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Content hash of everything which goes into a rendered map: scatter data and any settings or descriptors
+ * which affect the output. The hash is stored next to the rendered files so that incremental page generators can skip
+ * maps whose inputs haven't changed since they were last rendered.
+ * <br>
+ * <br>Only add inputs with stable representations across JVMs (e.g. not anything relying on the default
+ * {@link Object#toString()}). Large inputs which are deterministic functions of a few parameters (e.g. GMPE
+ * basemaps) should be added via those parameters rather than by value, so that checking a map doesn't require
+ * loading them.
+ *
+ * @author kevin
+ *
+ */
+class MapInputsHash {
+
+	private Hasher hasher = Hashing.sha256().newHasher();
+	private String hash;
+
+	/**
+	 * Adds each of the given inputs. Data sets are added by location and value, regions by their border,
+	 * interpolation settings by the arguments which affect the interpolated surface, arrays element by element,
+	 * and anything else by its string representation.
+	 * @param inputs
+	 * @return this
+	 */
+	public MapInputsHash add(Object... inputs) {
+		if (hash != null)
+			throw new IllegalStateException("Can't add to a hash which has already been computed");
+		for (Object input : inputs)
+			addInput(input);
+		return this;
+	}
+
+	private void addInput(Object input) {
+		if (input == null) {
+			hasher.putInt(-1);
+		} else if (input instanceof GeoDataSet) {
+			GeoDataSet data = (GeoDataSet)input;
+			hasher.putInt(data.size());
+			for (int i=0; i<data.size(); i++) {
+				addLocation(data.getLocation(i));
+				hasher.putDouble(data.get(i));
+			}
+		} else if (input instanceof Region) {
+			LocationList border = ((Region)input).getBorder();
+			hasher.putInt(border.size());
+			for (Location loc : border)
+				addLocation(loc);
+		} else if (input instanceof GMT_InterpolationSettings) {
+			GMT_InterpolationSettings settings = (GMT_InterpolationSettings)input;
+			addString(settings.getInterpSpacing()+" "+settings.getConvergenceArg()
+					+" "+settings.getSearchArg()+" "+settings.getTensionArg());
+		} else if (input instanceof Object[]) {
+			Object[] array = (Object[])input;
+			hasher.putInt(array.length);
+			for (Object element : array)
+				addInput(element);
+		} else if (input instanceof double[]) {
+			double[] array = (double[])input;
+			hasher.putInt(array.length);
+			for (double val : array)
+				hasher.putDouble(val);
+		} else {
+			// enums and primitive wrappers have stable string representations
+			addString(input.toString());
+		}
+	}
+
+	private void addLocation(Location loc) {
+		hasher.putDouble(loc.getLatitude());
+		hasher.putDouble(loc.getLongitude());
+	}
+
+	private void addString(String str) {
+		hasher.putInt(str.length());
+		hasher.putString(str, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return hex string of the hash of everything added so far. Nothing can be added after this is called.
+	 */
+	public String getHash() {
+		if (hash == null) {
+			hash = hasher.hash().toString();
+			hasher = null;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param dir
+	 * @param prefix
+	 * @return file in which the hash for the map with the given prefix is stored
+	 */
+	public static File getHashFile(File dir, String prefix) {
+		return new File(dir, prefix+".hash");
+	}
+
+	/**
+	 * @param hashFile
+	 * @param outputs
+	 * @return true if the stored hash matches this hash and all of the given outputs exist
+	 */
+	public boolean isCurrent(File hashFile, File... outputs) {
+		for (File output : outputs)
+			if (!output.exists())
+				return false;
+		if (!hashFile.exists())
+			return false;
+		try {
+			String stored = Files.asCharSource(hashFile, StandardCharsets.UTF_8).read().trim();
+			return stored.equals(getHash());
+		} catch (IOException e) {
+			// treat an unreadable hash as stale
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Stores this hash, should be called only after all outputs have been successfully written
+	 * @param hashFile
+	 * @throws IOException
+	 */
+	public void write(File hashFile) throws IOException {
+		Files.asCharSink(hashFile, StandardCharsets.UTF_8).write(getHash()+"\n");
+	}
+
+}
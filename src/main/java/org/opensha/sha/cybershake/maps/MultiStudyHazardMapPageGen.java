@@ -9,6 +9,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -154,117 +157,211 @@ public class MultiStudyHazardMapPageGen {
 		for (CyberShakeStudy study : studies)
 			studyRuns.add(study.runFetcher().fetch());
 		
-		for (double period : periods) {
-			for (CyberShakeComponent component : components) {
-				CybershakeIM im = CybershakeIM.getSA(component, period);
-				int imTypeID = im.getID();
-				String imtLabel = (int)im.getVal()+"sec "+component.getShortName()+" SA";
-				System.out.println("Doing "+imtLabel);
-				Double customMax = 1d;
-				if (period >= 5)
-					customMax = 0.6;
-				if (period >= 10)
-					customMax = 0.4;
-				
-				String imtPrefix = imtLabel.replaceAll(" ", "_");
-				
-				ArbDiscrGeoDataSet[] scatters = new ArbDiscrGeoDataSet[studies.length];
-				HashSet<Location> allLocs = new HashSet<Location>();
-				for (int i=0; i<studies.length; i++) {
-					System.out.println("Fetching curves for "+studies[i].getName());
-					HazardCurveFetcher fetch = new HazardCurveFetcher(
-							studies[i].getDB(), studyRuns.get(i), studies[i].getDatasetIDs(), imTypeID);
-					scatters[i] = HardCodedInterpDiffMapCreator.getMainScatter(
-							isProbAt_IML, val, fetch, imTypeID, null);
-					allLocs.addAll(scatters[i].getLocationList());
+		final Region mapRegion = combinedRegion;
+		HardCodedInterpDiffMapCreator.cs_db = gmpeDB;
+		
+		ExecutorService exec = Executors.newFixedThreadPool(Integer.max(1, StudyHazardMapPageGen.renderThreads));
+		
+		try {
+			// fetch curves for every study and IM concurrently. these are submitted first so that they're at the head
+			// of the queue, ahead of any renders
+			Map<Integer, List<Future<ArbDiscrGeoDataSet>>> scatterFutures = new HashMap<>();
+			for (double period : periods) {
+				for (CyberShakeComponent component : components) {
+					int imTypeID = CybershakeIM.getSA(component, period).getID();
+					List<Future<ArbDiscrGeoDataSet>> imFutures = new ArrayList<>();
+					for (int i=0; i<studies.length; i++) {
+						CyberShakeStudy study = studies[i];
+						List<CybershakeRun> runs = studyRuns.get(i);
+						imFutures.add(exec.submit(() -> {
+							System.out.println("Fetching curves for "+study.getName()+", imTypeID="+imTypeID);
+							HazardCurveFetcher fetch = new HazardCurveFetcher(
+									study.getDB(), runs, study.getDatasetIDs(), imTypeID);
+							return HardCodedInterpDiffMapCreator.getMainScatter(
+									isProbAt_IML, val, fetch, imTypeID, null);
+						}));
+					}
+					scatterFutures.put(imTypeID, imFutures);
 				}
-				
-				for (int i=studies.length; --i>0;) {
-					CyberShakeStudy study1 = studies[i];
-					ArbDiscrGeoDataSet scatter1 = scatters[i];
-					String name1 = study1.getName();
+			}
+			
+			List<Future<?>> futures = new ArrayList<>();
+			int numSkipped = 0;
+			
+			for (double period : periods) {
+				for (CyberShakeComponent component : components) {
+					CybershakeIM im = CybershakeIM.getSA(component, period);
+					int imTypeID = im.getID();
+					String imtLabel = (int)im.getVal()+"sec "+component.getShortName()+" SA";
+					System.out.println("Doing "+imtLabel);
+					Double customMax = 1d;
+					if (period >= 5)
+						customMax = 0.6;
+					if (period >= 10)
+						customMax = 0.4;
+					Double mapCustomMax = customMax;
+					
+					String imtPrefix = imtLabel.replaceAll(" ", "_");
+					
+					ArbDiscrGeoDataSet[] scatters = new ArbDiscrGeoDataSet[studies.length];
+					HashSet<Location> allLocs = new HashSet<Location>();
+					for (int i=0; i<studies.length; i++) {
+						scatters[i] = scatterFutures.get(imTypeID).get(i).get();
+						allLocs.addAll(scatters[i].getLocationList());
+					}
 					
-					for (int j=i; --j>=0;) {
-						CyberShakeStudy study2 = studies[j];
-						ArbDiscrGeoDataSet scatter2 = scatters[j];
-						String name2 = study2.getName();
+					for (int i=studies.length; --i>0;) {
+						CyberShakeStudy study1 = studies[i];
+						ArbDiscrGeoDataSet scatter1 = scatters[i];
+						String name1 = study1.getName();
 						
-						Region intersection = Region.intersect(study1.getRegion(), study2.getRegion());
-						if (intersection != null) {
-							int num1not2 = 0;
-							int num2not1 = 0;
-							for (Location loc : scatter1.getLocationList())
-								if (intersection.contains(loc) && !scatter2.contains(loc))
-									num1not2++;
-							for (Location loc : scatter2.getLocationList())
-								if (intersection.contains(loc) && !scatter1.contains(loc))
-									num2not1++;
-							// TODO remove?
-							System.out.println("Intersection region has "+num1not2+" points in "+name1+" but not in "+name2);
-							System.out.println("Intersection region has "+num2not1+" points in "+name2+" but not in "+name1);
-
-							System.out.println("Plotting ratio");
-							String prefix = study1.getDirName()+"_"+study2.getDirName()+"_"+imtPrefix;
-							plotIntersectionRatio(scatter1, scatter2, intersection, resourcesDir, name1, name2, imtLabel, prefix, interpSettings);
+						for (int j=i; --j>=0;) {
+							CyberShakeStudy study2 = studies[j];
+							ArbDiscrGeoDataSet scatter2 = scatters[j];
+							String name2 = study2.getName();
+							
+							Region intersection = Region.intersect(study1.getRegion(), study2.getRegion());
+							if (intersection != null) {
+								int num1not2 = 0;
+								int num2not1 = 0;
+								for (Location loc : scatter1.getLocationList())
+									if (intersection.contains(loc) && !scatter2.contains(loc))
+										num1not2++;
+								for (Location loc : scatter2.getLocationList())
+									if (intersection.contains(loc) && !scatter1.contains(loc))
+										num2not1++;
+								// TODO remove?
+								System.out.println("Intersection region has "+num1not2+" points in "+name1+" but not in "+name2);
+								System.out.println("Intersection region has "+num2not1+" points in "+name2+" but not in "+name1);
+								
+								String prefix = study1.getDirName()+"_"+study2.getDirName()+"_"+imtPrefix;
+								MapInputsHash hash = new MapInputsHash().add(scatter1, scatter2, intersection,
+										name1, name2, imtLabel, interpSettings);
+								File hashFile = MapInputsHash.getHashFile(resourcesDir, "intersection_"+prefix);
+								if (hash.isCurrent(hashFile, getIntersectionRatioFiles(resourcesDir, prefix))) {
+									numSkipped++;
+								} else {
+									futures.add(exec.submit(() -> {
+										System.out.println("Plotting ratio");
+										plotIntersectionRatio(scatter1, scatter2, intersection, resourcesDir, name1, name2,
+												imtLabel, prefix, interpSettings);
+										hash.write(hashFile);
+										return null;
+									}));
+								}
+							}
 						}
 					}
-				}
-				
-				ArbDiscrGeoDataSet combScatter = new ArbDiscrGeoDataSet(scatters[0].isLatitudeX());
-				int overlaps = 0;
-				for (Location loc : allLocs) {
-					List<Double> vals = new ArrayList<>();
-					for (ArbDiscrGeoDataSet scatter : scatters)
-						if (scatter.contains(loc))
-							vals.add(scatter.get(loc));
-					Preconditions.checkState(!vals.isEmpty());
 					
-					double mapVal;
-					if (vals.size() == 1) {
-						mapVal = vals.get(0);
-					} else {
-						mapVal = StatUtils.mean(Doubles.toArray(vals));
-						overlaps++;
+					ArbDiscrGeoDataSet combScatter = new ArbDiscrGeoDataSet(scatters[0].isLatitudeX());
+					int overlaps = 0;
+					for (Location loc : allLocs) {
+						List<Double> vals = new ArrayList<>();
+						for (ArbDiscrGeoDataSet scatter : scatters)
+							if (scatter.contains(loc))
+								vals.add(scatter.get(loc));
+						Preconditions.checkState(!vals.isEmpty());
+						
+						double mapVal;
+						if (vals.size() == 1) {
+							mapVal = vals.get(0);
+						} else {
+							mapVal = StatUtils.mean(Doubles.toArray(vals));
+							overlaps++;
+						}
+						combScatter.set(loc, mapVal);
 					}
-					combScatter.set(loc, mapVal);
-				}
-				System.out.println("Averaged at "+overlaps+" overlap sites");
-
-				System.out.println("Getting GMPE curves");
-				HardCodedInterpDiffMapCreator.cs_db = gmpeDB;
-				GeoDataSet basemap = null;
-				File baseMapFile = baseMapFiles.get(period);
-				if (baseMapFile != null) {
-					System.out.println("Loading basemap from "+baseMapFile.getAbsolutePath());
-					BinaryHazardCurveReader reader = new BinaryHazardCurveReader(baseMapFile.getAbsolutePath());
-					Map<Location, ArbitrarilyDiscretizedFunc> curves = reader.getCurveMap();
-					basemap = new GriddedGeoDataSet(basemapReg, scatters[0].isLatitudeX());
-					for (Location loc : curves.keySet())
-						basemap.set(loc, HazardDataSetLoader.getCurveVal(curves.get(loc), isProbAt_IML, val));
-				} else if (baseMapIMR != null) {
-					basemap = HardCodedInterpDiffMapCreator.loadBaseMap(
-							baseMapIMR, isProbAt_IML, val, studies[0].getERF_ID(), velModelIDforGMPE, imTypeID, basemapReg);
-					GriddedGeoDataSet gridData = new GriddedGeoDataSet(basemapReg, scatters[0].isLatitudeX());
-					for (int i=0; i<basemap.size(); i++)
-						gridData.set(basemap.getLocation(i), basemap.get(i));
-					basemap = gridData;
+					System.out.println("Averaged at "+overlaps+" overlap sites");
+					
+					File baseMapFile = baseMapFiles.get(period);
+					boolean hasBasemap = baseMapFile != null || baseMapIMR != null;
 					
-					for (int i=0; i<basemap.size(); i++) {
-						Location loc = basemap.getLocation(i);
-						// mask outside of region
-						if (!combinedRegion.contains(loc))
-							basemap.set(i, Double.NaN);
+					// basemaps are deterministic given these, so we hash the descriptors rather than loading them
+					MapInputsHash hash = new MapInputsHash().add(combScatter, mapRegion, basemapSpacing, durationLabel,
+							imtLabel, mapCustomMax, saveDPI);
+					if (baseMapFile != null)
+						hash.add(baseMapFile.getAbsolutePath(), baseMapFile.lastModified(), isProbAt_IML, val);
+					else if (baseMapIMR != null)
+						hash.add(baseMapIMR.getShortName(), studies[0].getERF_ID(), velModelIDforGMPE, basemapReg,
+								isProbAt_IML, val);
+					File hashFile = MapInputsHash.getHashFile(resourcesDir, "combined_"+imtPrefix);
+					if (hash.isCurrent(hashFile, getCombinedMapFiles(resourcesDir, imtPrefix, hasBasemap))) {
+						numSkipped++;
+					} else {
+						boolean latX = scatters[0].isLatitudeX();
+						int erfID = studies[0].getERF_ID();
+						futures.add(exec.submit(() -> {
+							System.out.println("Getting GMPE curves");
+							GeoDataSet basemap = loadBasemap(baseMapFile, baseMapIMR, isProbAt_IML, val, erfID,
+									velModelIDforGMPE, imTypeID, basemapReg, mapRegion, latX);
+							plotCombinedMap(mapRegion, basemapSpacing, combScatter, basemap, resourcesDir, durationLabel,
+									imtLabel, imtPrefix, mapCustomMax, saveDPI);
+							hash.write(hashFile);
+							return null;
+						}));
 					}
 				}
-				
-				plotCombinedMap(combinedRegion, basemapSpacing, combScatter, basemap, resourcesDir, durationLabel, imtLabel, imtPrefix, customMax, saveDPI);
 			}
+			
+			System.out.println("Waiting on "+futures.size()+" renders ("+numSkipped+" skipped, inputs unchanged)");
+			StudyHazardMapPageGen.waitOnFutures(futures);
+		} finally {
+			exec.shutdownNow();
 		}
 		
 		for (CyberShakeStudy study : studies)
 			study.getDB().destroy();
 	}
 	
+	private static GeoDataSet loadBasemap(File baseMapFile, ScalarIMR baseMapIMR, boolean isProbAt_IML, double val,
+			int erfID, int velModelID, int imTypeID, GriddedRegion basemapReg, Region combinedRegion, boolean latX)
+					throws IOException, SQLException {
+		GeoDataSet basemap = null;
+		if (baseMapFile != null) {
+			System.out.println("Loading basemap from "+baseMapFile.getAbsolutePath());
+			BinaryHazardCurveReader reader = new BinaryHazardCurveReader(baseMapFile.getAbsolutePath());
+			Map<Location, ArbitrarilyDiscretizedFunc> curves = reader.getCurveMap();
+			basemap = new GriddedGeoDataSet(basemapReg, latX);
+			for (Location loc : curves.keySet())
+				basemap.set(loc, HazardDataSetLoader.getCurveVal(curves.get(loc), isProbAt_IML, val));
+		} else if (baseMapIMR != null) {
+			basemap = HardCodedInterpDiffMapCreator.loadBaseMap(
+					baseMapIMR, isProbAt_IML, val, erfID, velModelID, imTypeID, basemapReg);
+			GriddedGeoDataSet gridData = new GriddedGeoDataSet(basemapReg, latX);
+			for (int i=0; i<basemap.size(); i++)
+				gridData.set(basemap.getLocation(i), basemap.get(i));
+			basemap = gridData;
+			
+			for (int i=0; i<basemap.size(); i++) {
+				Location loc = basemap.getLocation(i);
+				// mask outside of region
+				if (!combinedRegion.contains(loc))
+					basemap.set(i, Double.NaN);
+			}
+		}
+		return basemap;
+	}
+	
+	private static File[] getIntersectionRatioFiles(File outputDir, String imtPrefix) {
+		return new File[] {
+				new File(outputDir, "diff_"+imtPrefix+".png"),
+				new File(outputDir, "diff_"+imtPrefix+".ps"),
+				new File(outputDir, "ratio_"+imtPrefix+".png"),
+				new File(outputDir, "ratio_"+imtPrefix+".ps")
+		};
+	}
+	
+	private static File[] getCombinedMapFiles(File outputDir, String imtPrefix, boolean basemap) {
+		String prefix = "combined_"+imtPrefix;
+		List<File> files = Lists.newArrayList(
+				new File(outputDir, prefix+"_marks.png"),
+				new File(outputDir, prefix+".png"),
+				new File(outputDir, prefix+".ps"));
+		if (basemap)
+			files.add(new File(outputDir, "basemap_"+imtPrefix+".png"));
+		return files.toArray(new File[0]);
+	}
+	
 	static void plotIntersectionRatio(GeoDataSet scatter1, GeoDataSet scatter2, Region intersection,
 			File outputDir, String name1, String name2, String imtLabel, String imtPrefix, GMT_InterpolationSettings interpSettings)
 					throws FileNotFoundException, ClassNotFoundException, IOException, GMT_MapException, SQLException {
@@ -7,12 +7,19 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.lang3.SerializationUtils;
 import org.jfree.chart.plot.DatasetRenderingOrder;
 import org.jfree.data.Range;
 import org.opensha.commons.data.CSVFile;
@@ -33,6 +40,7 @@ import org.opensha.commons.data.xyz.AbstractGeoDataSet;
 import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
 import org.opensha.commons.data.xyz.GeoDataSet;
 import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.exceptions.GMT_MapException;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.Region;
 import org.opensha.commons.gui.plot.HeadlessGraphPanel;
@@ -41,6 +49,7 @@ import org.opensha.commons.gui.plot.PlotLineType;
 import org.opensha.commons.gui.plot.PlotSpec;
 import org.opensha.commons.mapping.gmt.elements.PSXYSymbol;
 import org.opensha.commons.mapping.gmt.elements.TopographicSlopeFile;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.commons.util.MarkdownUtils;
 import org.opensha.commons.util.MarkdownUtils.TableBuilder;
@@ -66,6 +75,8 @@ import org.opensha.sha.imr.AttenRelRef;
 import org.opensha.sha.imr.ScalarIMR;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.Files;
 import com.google.common.primitives.Ints;
 
@@ -204,7 +215,9 @@ public class StudyHazardMapPageGen {
 //		SiteData<?>[] siteDatas = null;
 //		Region zoomRegion = null;
 		
-		boolean replot = true;
+		// if false, maps are only rendered if any of their inputs (curves or map settings) have changed since they were
+		// last rendered
+		boolean replot = false;
 		
 		List<Double> probLevels = new ArrayList<>();
 		List<String> probLabels = new ArrayList<>();
@@ -322,6 +335,15 @@ public class StudyHazardMapPageGen {
 		HardCodedInterpDiffMapCreator.cs_db = study.getDB();
 //		HardCodedInterpDiffMapCreator.gmpe_db = study.getDB();
 		
+		// fixed here for use by the concurrent tasks below, as some of these are reassigned above for certain studies
+		final int baseMapVM = vmOverride > 0 ? vmOverride : study.getVelocityModelID();
+		final int baseMapERF = erfOverride > 0 ? erfOverride : study.getERF_ID();
+		final Region baseMapReg = basemapRegion == null ? region : basemapRegion;
+		final double mapRes = baseMapRes;
+		final CyberShakeStudy comparisonStudy = compStudy;
+		
+		ExecutorService exec = Executors.newFixedThreadPool(Integer.max(1, renderThreads));
+		
 		int exitCode = 0;
 		try {
 			int[] origIDs;
@@ -359,10 +381,30 @@ public class StudyHazardMapPageGen {
 			CybershakeSiteInfo2DB sites2db = new CybershakeSiteInfo2DB(study.getDB());
 			
 			List<CybershakeRun> compRuns = null;
-			if (compStudy != null) {
-				compRuns = compStudy.runFetcher().fetch();
+			if (comparisonStudy != null) {
+				compRuns = comparisonStudy.runFetcher().fetch();
+			}
+			
+			// fetch curves for each IM once, extracting all probability levels in a single pass. these are submitted
+			// first so that they're at the head of the queue, ahead of any renders
+			Map<Integer, Future<StudyCurves>> curveFutures = new HashMap<>();
+			for (double period : periods) {
+				for (CyberShakeComponent component : components) {
+					CybershakeIM im = CybershakeIM.getSA(component, period);
+					int[] bgOrigIDs = backgroundGMPE == null ? null : origIDs;
+					List<CybershakeRun> myCompRuns = compRuns;
+					curveFutures.put(im.getID(), exec.submit(() -> fetchCurves(study, runs, dsIDs, bgOrigIDs,
+							comparisonStudy, myCompRuns, im, isProbAt_IML, probLevels)));
+				}
 			}
 			
+			// basemaps are shared by the maps for each region, and loaded by whichever render task needs them first
+			Cache<String, GeoDataSet> baseMaps = CacheBuilder.newBuilder().softValues().build();
+			
+			List<Future<?>> futures = new ArrayList<>();
+			List<File> expectedOutputs = new ArrayList<>();
+			int numSkipped = 0;
+			
 			List<Region> mapRegions = new ArrayList<>();
 			mapRegions.add(region);
 			if (zoomRegion != null)
@@ -386,8 +428,17 @@ public class StudyHazardMapPageGen {
 						
 						System.out.println("Doing "+periodLabel);
 						
-						HazardCurveFetcher fetch = null;
-						HazardCurveFetcher origFetch = null;
+						StudyCurves curves = curveFutures.get(im.getID()).get();
+						
+						double cptMax;
+						if (period >= 10d)
+							cptMax = 0.2d;
+						else if (period >= 5d)
+							cptMax = 0.4d;
+						else if (period >= 2d)
+							cptMax = 1d;
+						else
+							cptMax = 2d;
 						
 						for (int i=0; i<probLevels.size(); i++) {
 							double probLevel = probLevels.get(i);
@@ -400,106 +451,72 @@ public class StudyHazardMapPageGen {
 							if (mapRegion != region)
 								prefix += "_zoomed";
 							
-							List<InterpDiffMapType> typesToPlot = new ArrayList<>();
+							File interpDiffsFile = new File(resourcesDir, prefix+"_interpolated_differences.txt");
+							File interpMapFile = new File(resourcesDir, prefix+"_interpolated.txt");
+							
+							ArbDiscrGeoDataSet scatterData = curves.scatters.get(i);
+							
+							List<File> outputs = new ArrayList<>();
 							for (InterpDiffMapType type : mapTypes) {
-								File pngFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".png");
-								if (replot || !pngFile.exists())
-									typesToPlot.add(type);
+								outputs.add(new File(resourcesDir, prefix+"_"+type.getPrefix()+".png"));
+								if (psSaveTypes.contains(type))
+									outputs.add(new File(resourcesDir, prefix+"_"+type.getPrefix()+".ps"));
 							}
+							boolean hasInterp = Arrays.asList(mapTypes).contains(InterpDiffMapType.INTERP_NOMARKS);
+							if (hasInterp)
+								outputs.add(interpMapFile);
+							expectedOutputs.addAll(outputs);
 							
-							File interpDiffsFile = new File(resourcesDir, prefix+"_interpolated_differences.txt");
-							File interpMapFile = new File(resourcesDir, prefix+"_interpolated.txt");
+							// basemaps are deterministic given these, so we hash the descriptors rather than loading them
+							MapInputsHash hash = new MapInputsHash().add(scatterData);
+							hash.add(title, mapRegion, mapTypes, cptMax, logPlot, isProbAt_IML, probLevel, im.getID());
+							if (baseMapGMPE != null)
+								hash.add(baseMapGMPE.getShortName(), baseMapERF, baseMapVM, baseMapReg, mapRes);
+							hash.add(interpSettings);
+							File hashFile = MapInputsHash.getHashFile(resourcesDir, prefix);
 							
-							GeoDataSet scatterData = null;
-							boolean saveInterp = typesToPlot.contains(InterpDiffMapType.INTERP_NOMARKS);
-							GeoDataSet baseMap = null;
-							if (!typesToPlot.isEmpty()) {
-								System.out.println("Plotting "+typesToPlot.size()+" maps");
-								
-								if (baseMapGMPE != null) {
-									// load the basemap
-									System.out.println("Loading basemap");
-									int vmID = vmOverride > 0 ? vmOverride : study.getVelocityModelID();
-									int erfID = erfOverride > 0 ? erfOverride : study.getERF_ID();
-									Region reg = basemapRegion == null ? region : basemapRegion;
-									baseMap = HardCodedInterpDiffMapCreator.loadBaseMap(
-											baseMapGMPE, isProbAt_IML, probLevel, erfID,
-											vmID, im.getID(), reg);
-								}
-								if (fetch == null) {
-									fetch = new HazardCurveFetcher(study.getDB(), runs, dsIDs, im.getID());
-									if (backgroundGMPE != null)
-										origFetch = new HazardCurveFetcher(study.getDB(), runs, origIDs, im.getID());
-								}
-								scatterData = HardCodedInterpDiffMapCreator.getMainScatter(
-										isProbAt_IML, probLevel, fetch, im.getID(), null);
-								
-								System.out.println("Creating map instance...");
-								
-								double cptMax;
-								if (period >= 10d)
-									cptMax = 0.2d;
-								else if (period >= 5d)
-									cptMax = 0.4d;
-								else if (period >= 2d)
-									cptMax = 1d;
-								else
-									cptMax = 2d;
-								
-								CPT cpt = hazardCPT.rescale(0d, cptMax);
-								
-								InterpDiffMap map = new InterpDiffMap(mapRegion, baseMap, baseMapRes, cpt, scatterData,
-										interpSettings, typesToPlot.toArray(new InterpDiffMapType[0]));
-								map.setCustomLabel(title);
-								map.setTopoResolution(TopographicSlopeFile.CA_THREE);
-								map.setLogPlot(logPlot);
-								map.setDpi(300);
-								map.setXyzFileName("base_map.xyz");
-								map.setCustomScaleMin(0d);
-								map.setCustomScaleMax(cptMax);
-								map.getInterpSettings().setSaveInterpSurface(saveInterp);
-								
-								String metadata = "isProbAt_IML: " + isProbAt_IML + "\n" +
-												"val: " + probLevel + "\n" +
-												"imTypeID: " + im.getID() + "\n";
-								
-								System.out.println("Making map...");
-								String addr;
-								if (LOCAL_MAPGEN)
-									addr = HardCodedInterpDiffMapCreator.plotLocally(map);
-								else
-									addr = CS_InterpDiffMapServletAccessor.makeMap(null, map, metadata);
-								
-								System.out.println("Done, downloading");
-								
-								for (InterpDiffMapType type : typesToPlot) {
-									File pngFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".png");
-									File psFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".ps");
-									File interpOutFile = baseMapGMPE == null ? interpMapFile : interpDiffsFile;
-									if (LOCAL_MAPGEN) {
-										File inFile = new File(addr, type.getPrefix()+".150.png");
-										Preconditions.checkState(inFile.exists(), "In file doesn't exist: %s", inFile.getAbsolutePath());
-										Files.copy(inFile, pngFile);
-										if (psSaveTypes.contains(type)) {
-											inFile = new File(addr, type.getPrefix()+".ps");
-											Preconditions.checkState(inFile.exists(), "In file doesn't exist: %s", inFile.getAbsolutePath());
-											Files.copy(inFile, psFile);
-										}
-										if (saveInterp && type == InterpDiffMapType.INTERP_NOMARKS) {
-											inFile = new File(addr, "map_data_interpolated.txt");
-											Preconditions.checkState(inFile.exists(), "Interpolated file doesn't exist: %s", inFile.getAbsolutePath());
-											Files.copy(inFile, interpOutFile);
-										}
-									} else {
-										if (!addr.endsWith("/"))
-											addr += "/";
-										FileUtils.downloadURL(addr+type.getPrefix()+".150.png", pngFile);
-										if (psSaveTypes.contains(type))
-											FileUtils.downloadURL(addr+type.getPrefix()+".ps", psFile);
-										if (saveInterp && type == InterpDiffMapType.INTERP_NOMARKS)
-											FileUtils.downloadURL(addr+"map_data_interpolated.txt", interpOutFile);
+							if (replot || !hash.isCurrent(hashFile, outputs.toArray(new File[0]))) {
+								String baseMapKey = im.getID()+"_"+probLevel;
+								String mapPrefix = prefix;
+								futures.add(exec.submit(() -> {
+									GeoDataSet baseMap = null;
+									if (baseMapGMPE != null) {
+										// load the basemap
+										baseMap = baseMaps.get(baseMapKey, () -> {
+											System.out.println("Loading basemap");
+											return HardCodedInterpDiffMapCreator.loadBaseMap(
+													baseMapGMPE, isProbAt_IML, probLevel, baseMapERF,
+													baseMapVM, im.getID(), baseMapReg);
+										});
 									}
-								}
+									
+									System.out.println("Creating map instance...");
+									
+									CPT cpt = hazardCPT.rescale(0d, cptMax);
+									
+									// copy settings so that per map changes don't leak into concurrent renders
+									InterpDiffMap map = new InterpDiffMap(mapRegion, baseMap, mapRes, cpt, scatterData,
+											SerializationUtils.clone(interpSettings), mapTypes);
+									map.setCustomLabel(title);
+									map.setTopoResolution(TopographicSlopeFile.CA_THREE);
+									map.setLogPlot(logPlot);
+									map.setDpi(300);
+									map.setXyzFileName("base_map.xyz");
+									map.setCustomScaleMin(0d);
+									map.setCustomScaleMax(cptMax);
+									map.getInterpSettings().setSaveInterpSurface(true);
+									
+									String metadata = "isProbAt_IML: " + isProbAt_IML + "\n" +
+													"val: " + probLevel + "\n" +
+													"imTypeID: " + im.getID() + "\n";
+									
+									renderHazardMap(map, metadata, resourcesDir, mapPrefix, psSaveTypes, baseMap,
+											interpDiffsFile, interpMapFile);
+									hash.write(hashFile);
+									return null;
+								}));
+							} else {
+								numSkipped++;
 							}
 							
 							String myHeading = heading;
@@ -512,29 +529,7 @@ public class StudyHazardMapPageGen {
 								lines.add(myHeading+" Zoomed "+title);
 							lines.add(topLink); lines.add("");
 							
-							if (saveInterp) {
-								if (baseMapGMPE == null) {
-									// don't need to add to basemap
-									Preconditions.checkState(interpMapFile.exists());
-								} else {
-									// need to add to basemap
-									Preconditions.checkState(interpDiffsFile.exists());
-									System.out.println("Loading interpolated difference data from "+interpDiffsFile.getAbsolutePath());
-									GriddedGeoDataSet interpDiff = GriddedGeoDataSet.loadXYZFile(interpDiffsFile, false);
-									System.out.println("Loaded "+interpDiff.size()+" interpolated points");
-									Preconditions.checkNotNull(baseMap);
-									GeoDataSet interpXYZ = baseMap.copy();
-									System.out.println("Interpolating differences on top of base map with "+interpXYZ.size()+" points");
-									for (int j=0; j<interpXYZ.size(); j++) {
-										Location loc = interpXYZ.getLocation(j);
-										double diff = interpDiff.bilinearInterpolation(loc);
-										if (!Double.isFinite(diff))
-											diff = interpDiff.get(loc);
-										interpXYZ.set(j, Math.max(0d, interpXYZ.get(j)+diff));
-									}
-									System.out.println("Writing final interpolated differences map to "+interpMapFile.getAbsolutePath());
-									ArbDiscrGeoDataSet.writeXYZFile(interpXYZ, interpMapFile);
-								}
+							if (hasInterp) {
 								lines.add("[Download Interpolated Map](resources/"+interpMapFile.getName()+")");
 								lines.add("");
 							}
@@ -548,7 +543,6 @@ public class StudyHazardMapPageGen {
 								table.initNewLine();
 								for (InterpDiffMapType type : row) {
 									File pngFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".png");
-									Preconditions.checkState(pngFile.exists(), "Map doesn't exist: %s", pngFile.getAbsolutePath());
 									table.addColumn("!["+type.getName()+"](resources/"+pngFile.getName()+")");
 								}
 								table.finalizeLine();
@@ -563,43 +557,43 @@ public class StudyHazardMapPageGen {
 								File diffPS = new File(resourcesDir, diffPrefix+".ps");
 								File ratioPNG = new File(resourcesDir, ratioPrefix+".png");
 								File ratioPS = new File(resourcesDir, ratioPrefix+".ps");
+								expectedOutputs.add(diffPNG);
+								expectedOutputs.add(ratioPNG);
+								
+								GeoDataSet origScatterData = curves.origScatters.get(i);
 								
-								if (!diffPNG.exists() || !diffPS.exists() || !ratioPNG.exists() || !ratioPS.exists()) {
-									if (scatterData == null) {
-										// need to grab it
-										if (fetch == null) {
-											fetch = new HazardCurveFetcher(study.getDB(), runs, dsIDs, im.getID());
-											if (backgroundGMPE != null)
-												origFetch = new HazardCurveFetcher(study.getDB(), runs, origIDs, im.getID());
+								MapInputsHash bgHash = new MapInputsHash().add(scatterData).add(origScatterData).add(mapRegion);
+								File bgHashFile = MapInputsHash.getHashFile(resourcesDir, prefix+"_bg");
+								
+								if (replot || !bgHash.isCurrent(bgHashFile, diffPNG, diffPS, ratioPNG, ratioPS)) {
+									futures.add(exec.submit(() -> {
+										boolean tightCPTs = true;
+										String customLabel = "Background vs Without Background";
+										String[] addrs = HardCodedInterpDiffMapCreator.getCompareMap(false, scatterData,
+												origScatterData, customLabel, tightCPTs, mapRegion);
+										
+										String diff = addrs[0];
+										String ratio = addrs[1];
+										
+										System.out.println("Comp map address:\n\tdiff: "+diff+"\n\tratio: "+ratio);
+										
+										HardCodedInterpDiffMapCreator.fetchPlot(diff, "interpolated_marks.150.png",
+												diffPNG);
+										HardCodedInterpDiffMapCreator.fetchPlot(diff, "interpolated_marks.ps",
+												diffPS);
+										HardCodedInterpDiffMapCreator.fetchPlot(ratio, "interpolated_marks.150.png",
+												ratioPNG);
+										HardCodedInterpDiffMapCreator.fetchPlot(ratio, "interpolated_marks.ps",
+												ratioPS);
+										if (HardCodedInterpDiffMapCreator.LOCAL_MAPGEN) {
+											FileUtils.deleteRecursive(new File(diff));
+											FileUtils.deleteRecursive(new File(ratio));
 										}
-										scatterData = HardCodedInterpDiffMapCreator.getMainScatter(
-												isProbAt_IML, probLevel, fetch, im.getID(), null);
-									}
-									
-									GeoDataSet origScatterData = HardCodedInterpDiffMapCreator.getMainScatter(
-											isProbAt_IML, probLevel, origFetch, im.getID(), null);
-									boolean tightCPTs = true;
-									String customLabel = "Background vs Without Background";
-									String[] addrs = HardCodedInterpDiffMapCreator.getCompareMap(false, scatterData,
-											origScatterData, customLabel, tightCPTs, mapRegion);
-									
-									String diff = addrs[0];
-									String ratio = addrs[1];
-									
-									System.out.println("Comp map address:\n\tdiff: "+diff+"\n\tratio: "+ratio);
-									
-									HardCodedInterpDiffMapCreator.fetchPlot(diff, "interpolated_marks.150.png",
-											diffPNG);
-									HardCodedInterpDiffMapCreator.fetchPlot(diff, "interpolated_marks.ps",
-											diffPS);
-									HardCodedInterpDiffMapCreator.fetchPlot(ratio, "interpolated_marks.150.png",
-											ratioPNG);
-									HardCodedInterpDiffMapCreator.fetchPlot(ratio, "interpolated_marks.ps",
-											ratioPS);
-									if (HardCodedInterpDiffMapCreator.LOCAL_MAPGEN) {
-										FileUtils.deleteRecursive(new File(diff));
-										FileUtils.deleteRecursive(new File(ratio));
-									}
+										bgHash.write(bgHashFile);
+										return null;
+									}));
+								} else {
+									numSkipped++;
 								}
 								
 								table.initNewLine();
@@ -622,12 +616,13 @@ public class StudyHazardMapPageGen {
 								File medianCurvePNG = new File(resourcesDir, prefix+"_median_curve.png");
 								File maxCurvePNG = new File(resourcesDir, prefix+"_max_curve.png");
 								
-								if (!medianCurvePNG.exists() || !maxCurvePNG.exists()) {
-									if (fetch == null) {
-										fetch = new HazardCurveFetcher(study.getDB(), runs, dsIDs, im.getID());
-										if (backgroundGMPE != null)
-											origFetch = new HazardCurveFetcher(study.getDB(), runs, origIDs, im.getID());
-									}
+								MapInputsHash curvesHash = new MapInputsHash().add(scatterData)
+										.add(curves.origScatters.get(i)).add(mapRegion, probLabel);
+								File curvesHashFile = MapInputsHash.getHashFile(resourcesDir, prefix+"_bg_curves");
+								
+								if (replot || !curvesHash.isCurrent(curvesHashFile, medianCurvePNG, maxCurvePNG)) {
+									HazardCurveFetcher fetch = curves.fetch;
+									HazardCurveFetcher origFetch = curves.origFetch;
 									List<Double> ratioVals = new ArrayList<>();
 									List<DiscretizedFunc> origCurves = new ArrayList<>();
 									List<DiscretizedFunc> bgCurves = new ArrayList<>();
@@ -685,6 +680,7 @@ public class StudyHazardMapPageGen {
 									plotBGCurves(maxCurvePNG, bgCurves.get(maxIndex),
 											origCurves.get(maxIndex), curveTitle, periodLabel,
 											probLevel, isProbAt_IML);
+									curvesHash.write(curvesHashFile);
 								}
 								
 								table.initNewLine();
@@ -700,22 +696,18 @@ public class StudyHazardMapPageGen {
 							lines.add("");
 							
 							if (compRuns != null && !compRuns.isEmpty()) {
-								lines.add(myHeading+"# "+compStudy.getName()+" Comparisons, "+title);
+								lines.add(myHeading+"# "+comparisonStudy.getName()+" Comparisons, "+title);
 								lines.add(topLink); lines.add("");
 								
 								table = MarkdownUtils.tableBuilder();
 								
-								table.addLine("Difference: "+study.getName()+" - "+compStudy.getName(),
-										"Ratio: "+study.getName()+" / "+compStudy.getName());
-								
-								HazardCurveFetcher compFetch = new HazardCurveFetcher(compStudy.getDB(), compRuns,
-										compStudy.getDatasetIDs(), im.getID());
+								table.addLine("Difference: "+study.getName()+" - "+comparisonStudy.getName(),
+										"Ratio: "+study.getName()+" / "+comparisonStudy.getName());
 								
-								ArbDiscrGeoDataSet compScatterData = HardCodedInterpDiffMapCreator.getMainScatter(
-										isProbAt_IML, probLevel, compFetch, im.getID(), null);
+								ArbDiscrGeoDataSet compScatterData = curves.compScatters.get(i);
 								
 								CSVFile<String> csv = new CSVFile<>(true);
-								csv.addLine("Latitude", "Longitude", study.getName(), compStudy.getName(),
+								csv.addLine("Latitude", "Longitude", study.getName(), comparisonStudy.getName(),
 										"Difference", "Ratio", "% Difference");
 								for (int j=0; j<scatterData.size(); j++) {
 									Location loc = scatterData.getLocation(j);
@@ -740,11 +732,30 @@ public class StudyHazardMapPageGen {
 								lines.add("Download CSV: ["+csvFile.getName()+"]("+resourcesDir.getName()+"/"+csvFile.getName()+")");
 								lines.add("");
 								
-								MultiStudyHazardMapPageGen.plotIntersectionRatio(scatterData, compScatterData, region,
-										resourcesDir, study.getName(), compStudy.getName(), title, "comp_"+prefix, interpSettings);
+								String compPrefix = "comp_"+prefix;
+								File diffPNG = new File(resourcesDir, "diff_"+compPrefix+".png");
+								File ratioPNG = new File(resourcesDir, "ratio_"+compPrefix+".png");
+								expectedOutputs.add(diffPNG);
+								expectedOutputs.add(ratioPNG);
+								
+								MapInputsHash compHash = new MapInputsHash().add(scatterData).add(compScatterData)
+										.add(region, study.getName(), comparisonStudy.getName(), title).add(interpSettings);
+								File compHashFile = MapInputsHash.getHashFile(resourcesDir, compPrefix);
+								
+								if (replot || !compHash.isCurrent(compHashFile, diffPNG, ratioPNG)) {
+									futures.add(exec.submit(() -> {
+										MultiStudyHazardMapPageGen.plotIntersectionRatio(scatterData, compScatterData, region,
+												resourcesDir, study.getName(), comparisonStudy.getName(), title, compPrefix,
+												interpSettings);
+										compHash.write(compHashFile);
+										return null;
+									}));
+								} else {
+									numSkipped++;
+								}
 								
-								table.addLine("![Difference]("+resourcesDir.getName()+"/diff_comp_"+prefix+".png)",
-										"![Ratio]("+resourcesDir.getName()+"/ratio_comp_"+prefix+".png)");
+								table.addLine("![Difference]("+resourcesDir.getName()+"/"+diffPNG.getName()+")",
+										"![Ratio]("+resourcesDir.getName()+"/"+ratioPNG.getName()+")");
 								
 								lines.addAll(table.build());
 								lines.add("");
@@ -784,6 +795,11 @@ public class StudyHazardMapPageGen {
 				}
 			}
 			
+			System.out.println("Waiting on "+futures.size()+" renders ("+numSkipped+" skipped, inputs unchanged)");
+			waitOnFutures(futures);
+			for (File output : expectedOutputs)
+				Preconditions.checkState(output.exists(), "Map doesn't exist: %s", output.getAbsolutePath());
+			
 			// add TOC
 			lines.addAll(tocIndex, MarkdownUtils.buildTOC(lines, 2, 4));
 			lines.add(tocIndex, "## Table Of Contents");
@@ -799,6 +815,7 @@ public class StudyHazardMapPageGen {
 			e.printStackTrace();
 			exitCode = 1;
 		} finally {
+			exec.shutdownNow();
 			study.getDB().destroy();
 			if (study.getDB() != HardCodedInterpDiffMapCreator.gmpe_db)
 				HardCodedInterpDiffMapCreator.gmpe_db.destroy();
@@ -806,6 +823,126 @@ public class StudyHazardMapPageGen {
 		}
 	}
 	
+	/**
+	 * Number of threads used for basemap loads and map renders, which are otherwise mostly spent waiting on the
+	 * database or map server.
+	 */
+	public static int renderThreads = 4;
+	
+	private static class StudyCurves {
+		private HazardCurveFetcher fetch;
+		// without background seismicity, only populated if background seismicity is included
+		private HazardCurveFetcher origFetch;
+		// scatter data for each probability level, in order
+		private List<ArbDiscrGeoDataSet> scatters;
+		private List<ArbDiscrGeoDataSet> origScatters;
+		private List<ArbDiscrGeoDataSet> compScatters;
+	}
+	
+	private static StudyCurves fetchCurves(CyberShakeStudy study, List<CybershakeRun> runs, int[] dsIDs, int[] origIDs,
+			CyberShakeStudy compStudy, List<CybershakeRun> compRuns, CybershakeIM im, boolean isProbAt_IML,
+			List<Double> probLevels) {
+		System.out.println("Fetching curves for "+im);
+		StudyCurves curves = new StudyCurves();
+		curves.fetch = new HazardCurveFetcher(study.getDB(), runs, dsIDs, im.getID());
+		curves.scatters = HardCodedInterpDiffMapCreator.getMainScatters(
+				isProbAt_IML, probLevels, curves.fetch, im.getID(), null);
+		if (origIDs != null) {
+			curves.origFetch = new HazardCurveFetcher(study.getDB(), runs, origIDs, im.getID());
+			curves.origScatters = HardCodedInterpDiffMapCreator.getMainScatters(
+					isProbAt_IML, probLevels, curves.origFetch, im.getID(), null);
+		}
+		if (compRuns != null && !compRuns.isEmpty()) {
+			HazardCurveFetcher compFetch = new HazardCurveFetcher(compStudy.getDB(), compRuns,
+					compStudy.getDatasetIDs(), im.getID());
+			curves.compScatters = HardCodedInterpDiffMapCreator.getMainScatters(
+					isProbAt_IML, probLevels, compFetch, im.getID(), null);
+		}
+		return curves;
+	}
+	
+	private static void renderHazardMap(InterpDiffMap map, String metadata, File resourcesDir, String prefix,
+			Set<InterpDiffMapType> psSaveTypes, GeoDataSet baseMap, File interpDiffsFile, File interpMapFile)
+					throws IOException, ClassNotFoundException, GMT_MapException {
+		System.out.println("Making map...");
+		String addr;
+		if (LOCAL_MAPGEN)
+			addr = HardCodedInterpDiffMapCreator.plotLocally(map);
+		else
+			addr = CS_InterpDiffMapServletAccessor.makeMap(null, map, metadata);
+		
+		System.out.println("Done, downloading");
+		
+		File interpOutFile = baseMap == null ? interpMapFile : interpDiffsFile;
+		// interpolated data are only downloaded along with the INTERP_NOMARKS map
+		boolean hasInterp = false;
+		for (InterpDiffMapType type : map.getMapTypes()) {
+			if (type == InterpDiffMapType.INTERP_NOMARKS)
+				hasInterp = true;
+			File pngFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".png");
+			File psFile = new File(resourcesDir, prefix+"_"+type.getPrefix()+".ps");
+			if (LOCAL_MAPGEN) {
+				File inFile = new File(addr, type.getPrefix()+".150.png");
+				Preconditions.checkState(inFile.exists(), "In file doesn't exist: %s", inFile.getAbsolutePath());
+				Files.copy(inFile, pngFile);
+				if (psSaveTypes.contains(type)) {
+					inFile = new File(addr, type.getPrefix()+".ps");
+					Preconditions.checkState(inFile.exists(), "In file doesn't exist: %s", inFile.getAbsolutePath());
+					Files.copy(inFile, psFile);
+				}
+				if (type == InterpDiffMapType.INTERP_NOMARKS) {
+					inFile = new File(addr, "map_data_interpolated.txt");
+					Preconditions.checkState(inFile.exists(), "Interpolated file doesn't exist: %s", inFile.getAbsolutePath());
+					Files.copy(inFile, interpOutFile);
+				}
+			} else {
+				if (!addr.endsWith("/"))
+					addr += "/";
+				FileUtils.downloadURL(addr+type.getPrefix()+".150.png", pngFile);
+				if (psSaveTypes.contains(type))
+					FileUtils.downloadURL(addr+type.getPrefix()+".ps", psFile);
+				if (type == InterpDiffMapType.INTERP_NOMARKS)
+					FileUtils.downloadURL(addr+"map_data_interpolated.txt", interpOutFile);
+			}
+		}
+		
+		if (baseMap != null && hasInterp) {
+			// need to add to basemap
+			Preconditions.checkState(interpDiffsFile.exists(), "Interpolated differences file doesn't exist: %s",
+					interpDiffsFile.getAbsolutePath());
+			System.out.println("Loading interpolated difference data from "+interpDiffsFile.getAbsolutePath());
+			GriddedGeoDataSet interpDiff = GriddedGeoDataSet.loadXYZFile(interpDiffsFile, false);
+			System.out.println("Loaded "+interpDiff.size()+" interpolated points");
+			GeoDataSet interpXYZ = baseMap.copy();
+			System.out.println("Interpolating differences on top of base map with "+interpXYZ.size()+" points");
+			for (int j=0; j<interpXYZ.size(); j++) {
+				Location loc = interpXYZ.getLocation(j);
+				double diff = interpDiff.bilinearInterpolation(loc);
+				if (!Double.isFinite(diff))
+					diff = interpDiff.get(loc);
+				interpXYZ.set(j, Math.max(0d, interpXYZ.get(j)+diff));
+			}
+			System.out.println("Writing final interpolated differences map to "+interpMapFile.getAbsolutePath());
+			ArbDiscrGeoDataSet.writeXYZFile(interpXYZ, interpMapFile);
+		}
+	}
+	
+	static void waitOnFutures(List<? extends Future<?>> futures) throws IOException, GMT_MapException {
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof GMT_MapException)
+				throw (GMT_MapException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		}
+	}
+	
 	static final DecimalFormat optionalDigitDF = new DecimalFormat("0.##");
 	
 	private static void plotBGCurves(File outputFile, DiscretizedFunc bgCurve,
@@ -1,14 +1,11 @@
 package org.opensha.sha.cybershake.openshaAPIs;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.ListIterator;
 
 import org.opensha.commons.param.ParameterList;
 import org.opensha.commons.param.event.ParameterChangeEvent;
 import org.opensha.commons.param.impl.StringParameter;
-import org.opensha.commons.util.FileUtils;
 import org.opensha.sha.cybershake.db.CybershakeERF;
 import org.opensha.sha.cybershake.db.Cybershake_OpenSHA_DBApplication;
 import org.opensha.sha.cybershake.db.DBAccess;
@@ -19,7 +16,8 @@ import org.opensha.sha.earthquake.ProbEqkSource;
 
 public class CyberShakeERF extends AbstractERF {
 	
-	private static final boolean SAVE_OBJECTS = false;
+	// if true, surface points for all ruptures will be loaded up front in bulk rather than lazily per rupture
+	private boolean loadAllPoints = false;
 
 	ArrayList<ProbEqkSource> sources = new ArrayList<ProbEqkSource>();
 
@@ -75,6 +73,17 @@ public class CyberShakeERF extends AbstractERF {
 		adjustableParams.addParameter(erfParam);
 	}
 
+	/**
+	 * Sets whether surface points for every rupture should be loaded in bulk when the forecast is updated. This is
+	 * much faster if most surfaces will be used, but uses more memory.
+	 * @param loadAllPoints
+	 */
+	public void setLoadAllPoints(boolean loadAllPoints) {
+		if (loadAllPoints != this.loadAllPoints)
+			updated = false;
+		this.loadAllPoints = loadAllPoints;
+	}
+
 	private void initParams() {
 		// no other params right now
 	}
@@ -126,29 +135,14 @@ public class CyberShakeERF extends AbstractERF {
 				loadERFIDs();
 			}
 			
-			String fileName = "cyberShakeERFSources_" + this.selectedERF.id + ".obj";
-			File objFile = new File(fileName);
-			if (objFile.exists() && SAVE_OBJECTS) {
-				sources = (ArrayList<ProbEqkSource>)FileUtils.loadObject(fileName);
-				updated = true;
-			} else {
-				long start = System.currentTimeMillis();
-				ArrayList<CyberShakeProbEqkSource> csSources = this.erf2db.getSources(this.selectedERF.id);
-				sources = new ArrayList<ProbEqkSource>();
-				for (CyberShakeProbEqkSource csSource : csSources)
-					sources.add(csSource);
-				double secs = (double)(System.currentTimeMillis() - start) / 1000d;
-				System.out.println("Took " + secs + " seconds to update forecast!");
-				updated = true;
-				if (SAVE_OBJECTS) {
-					try {
-						FileUtils.saveObjectInFile(fileName, sources);
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-			}
+			long start = System.currentTimeMillis();
+			ArrayList<CyberShakeProbEqkSource> csSources = this.erf2db.getSources(this.selectedERF.id, loadAllPoints);
+			sources = new ArrayList<ProbEqkSource>();
+			for (CyberShakeProbEqkSource csSource : csSources)
+				sources.add(csSource);
+			double secs = (double)(System.currentTimeMillis() - start) / 1000d;
+			System.out.println("Took " + secs + " seconds to update forecast!");
+			updated = true;
 		}
 	}
 
@@ -0,0 +1,626 @@
+package org.opensha.sha.cybershake.openshaAPIs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.TimeSpan;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.faultSurface.EvenlyGriddedSurface;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.RuptureSurface;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Compact, memory mapped binary snapshot of a fully initialized ERF. Rupture magnitudes, probabilities, rakes and
+ * surface properties are stored as flat arrays, and surface grids are stored as interleaved lat/lon/depth doubles
+ * which are materialized into surfaces lazily the first time each rupture surface is requested. Snapshots are
+ * written once with {@link #write(ERF, File)} and then reopened very quickly with {@link #load(File)}.
+ * <br>
+ * The header contains a hash of the ERF name, adjustable parameters and duration which can be checked against an ERF
+ * instance with {@link #load(File, ERF)}, as well as CRC32 checksums of the metadata and points sections.
+ * <br>
+ * Only ERFs where every rupture surface is an {@link EvenlyGriddedSurface} (e.g., UCERF2 fault sources) are supported.
+ * Loaded surfaces have identical grid locations and average dip, dip direction, strike and top depth, but are
+ * instances of {@link CyberShakeEvenlyGriddedSurface} rather than the original surface class. Hypocenters are not
+ * stored.
+ *
+ * @author kevin
+ *
+ */
+public class ERFSnapshot {
+
+	private static final int MAGIC = 0x43534553; // "CSES"
+	private static final int VERSION = 1;
+	// magic, version, params hash, num sources, num ruptures, num points, meta offset, meta CRC, points CRC
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 8 + 8 + 8 + 8;
+	private static final int BYTES_PER_POINT = 3*8;
+	// points are mapped in chunks as a single mapped buffer is limited to 2 GB
+	private static final int POINTS_PER_CHUNK = (1 << 30) / BYTES_PER_POINT;
+
+	/**
+	 * Hash of the ERF name, adjustable parameters, and time span duration, used to check that a snapshot
+	 * matches a given ERF configuration.
+	 * @param erf
+	 * @return
+	 */
+	public static long getParamsHash(ERF erf) {
+		String metadata = erf.getName()+"; "+erf.getAdjustableParameterList().getParameterListMetadataString();
+		TimeSpan timeSpan = erf.getTimeSpan();
+		if (timeSpan != null)
+			metadata += "; Duration = "+timeSpan.getDuration()+" "+timeSpan.getDurationUnits();
+		byte[] bytes = metadata.getBytes(StandardCharsets.UTF_8);
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Writes a snapshot of the given ERF, which must already be updated
+	 * @param erf
+	 * @param file
+	 * @throws IOException
+	 * @throws IllegalStateException if any rupture surface is not an {@link EvenlyGriddedSurface}
+	 */
+	public static void write(ERF erf, File file) throws IOException {
+		write(erf, file, getParamsHash(erf));
+	}
+
+	/**
+	 * Writes a snapshot of the given ERF, which must already be updated. The snapshot is written to a temporary
+	 * file which is moved into place once complete, so a partially written snapshot is never loaded.
+	 * @param erf
+	 * @param file
+	 * @param paramsHash parameters hash to store, e.g. from {@link #getParamsHash(ERF)} before the forecast was updated
+	 * @throws IOException
+	 * @throws IllegalStateException if any rupture surface is not an {@link EvenlyGriddedSurface}
+	 */
+	public static void write(ERF erf, File file, long paramsHash) throws IOException {
+		File tmp = new File(file.getAbsolutePath()+".tmp");
+		try {
+			doWrite(erf, tmp, paramsHash);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists())
+				tmp.delete();
+		}
+	}
+
+	private static void doWrite(ERF erf, File file, long paramsHash) throws IOException {
+		Stopwatch watch = Stopwatch.createStarted();
+		int numSources = erf.getNumSources();
+
+		List<String> sourceNames = new ArrayList<String>();
+		boolean[] poissonian = new boolean[numSources];
+		int[] sourceRupStarts = new int[numSources];
+		List<Double> mags = new ArrayList<Double>();
+		List<Double> probs = new ArrayList<Double>();
+		List<Double> rakes = new ArrayList<Double>();
+		List<Integer> numRows = new ArrayList<Integer>();
+		List<Integer> numCols = new ArrayList<Integer>();
+		List<Double> spacings = new ArrayList<Double>();
+		List<Double> dips = new ArrayList<Double>();
+		List<Double> dipDirs = new ArrayList<Double>();
+		List<Double> strikes = new ArrayList<Double>();
+		List<Double> topDepths = new ArrayList<Double>();
+		long numPoints = 0;
+		long metaOffset;
+
+		CRC32 pointsCRC = new CRC32();
+		CRC32 metaCRC = new CRC32();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			// header will be filled in once we're done
+			out.write(new byte[HEADER_SIZE]);
+			out.flush();
+			DataOutputStream pointsOut = new DataOutputStream(new CheckedOutputStream(out, pointsCRC));
+			for (int sourceID=0; sourceID<numSources; sourceID++) {
+				ProbEqkSource source = erf.getSource(sourceID);
+				sourceNames.add(source.getName());
+				poissonian[sourceID] = source.isPoissonianSource();
+				sourceRupStarts[sourceID] = mags.size();
+				for (int rupID=0; rupID<source.getNumRuptures(); rupID++) {
+					ProbEqkRupture rup = source.getRupture(rupID);
+					RuptureSurface surf = rup.getRuptureSurface();
+					Preconditions.checkState(surf instanceof EvenlyGriddedSurface,
+							"Snapshots only support evenly gridded surfaces. Source %s has surface of type %s",
+							sourceID, surf == null ? null : surf.getClass().getName());
+					EvenlyGriddedSurface gridSurf = (EvenlyGriddedSurface)surf;
+					mags.add(rup.getMag());
+					probs.add(rup.getProbability());
+					rakes.add(rup.getAveRake());
+					numRows.add(gridSurf.getNumRows());
+					numCols.add(gridSurf.getNumCols());
+					spacings.add(gridSurf.getGridSpacingAlongStrike());
+					dips.add(gridSurf.getAveDip());
+					dipDirs.add(gridSurf.getAveDipDirection());
+					strikes.add(gridSurf.getAveStrike());
+					topDepths.add(gridSurf.getAveRupTopDepth());
+					for (int row=0; row<gridSurf.getNumRows(); row++) {
+						for (int col=0; col<gridSurf.getNumCols(); col++) {
+							Location loc = gridSurf.get(row, col);
+							pointsOut.writeDouble(loc.getLatitude());
+							pointsOut.writeDouble(loc.getLongitude());
+							pointsOut.writeDouble(loc.getDepth());
+							numPoints++;
+						}
+					}
+				}
+			}
+			pointsOut.flush();
+			metaOffset = HEADER_SIZE + numPoints*BYTES_PER_POINT;
+
+			DataOutputStream metaOut = new DataOutputStream(new CheckedOutputStream(out, metaCRC));
+			for (int sourceID=0; sourceID<numSources; sourceID++) {
+				byte[] nameBytes = sourceNames.get(sourceID).getBytes(StandardCharsets.UTF_8);
+				metaOut.writeInt(nameBytes.length);
+				metaOut.write(nameBytes);
+				metaOut.writeBoolean(poissonian[sourceID]);
+				metaOut.writeInt(sourceRupStarts[sourceID]);
+			}
+			TimeSpan timeSpan = erf.getTimeSpan();
+			metaOut.writeDouble(timeSpan == null ? Double.NaN : timeSpan.getDuration());
+			byte[] nameBytes = erf.getName().getBytes(StandardCharsets.UTF_8);
+			metaOut.writeInt(nameBytes.length);
+			metaOut.write(nameBytes);
+			writeDoubles(metaOut, mags);
+			writeDoubles(metaOut, probs);
+			writeDoubles(metaOut, rakes);
+			writeInts(metaOut, numRows);
+			writeInts(metaOut, numCols);
+			writeDoubles(metaOut, spacings);
+			writeDoubles(metaOut, dips);
+			writeDoubles(metaOut, dipDirs);
+			writeDoubles(metaOut, strikes);
+			writeDoubles(metaOut, topDepths);
+			metaOut.close();
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile raFile = new RandomAccessFile(file, "rw");
+		try {
+			raFile.writeInt(MAGIC);
+			raFile.writeInt(VERSION);
+			raFile.writeLong(paramsHash);
+			raFile.writeInt(numSources);
+			raFile.writeInt(mags.size());
+			raFile.writeLong(numPoints);
+			raFile.writeLong(metaOffset);
+			raFile.writeLong(metaCRC.getValue());
+			raFile.writeLong(pointsCRC.getValue());
+		} finally {
+			raFile.close();
+		}
+
+		System.out.println("Wrote ERF snapshot with "+numSources+" sources, "+mags.size()+" ruptures and "+numPoints
+				+" points to "+file.getAbsolutePath()+" in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+	}
+
+	private static void writeDoubles(DataOutputStream out, List<Double> vals) throws IOException {
+		for (double val : vals)
+			out.writeDouble(val);
+	}
+
+	private static void writeInts(DataOutputStream out, List<Integer> vals) throws IOException {
+		for (int val : vals)
+			out.writeInt(val);
+	}
+
+	/**
+	 * Loads a snapshot without checking it against an ERF configuration. The points section checksum is not verified.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static AbstractERF load(File file) throws IOException {
+		return load(file, null, false);
+	}
+
+	/**
+	 * Loads a snapshot, verifying that it was written from an ERF with the same name, parameters, and duration as the
+	 * given ERF (which need not be updated). The points section checksum is not verified.
+	 * @param file
+	 * @param erf
+	 * @return
+	 * @throws IOException
+	 */
+	public static AbstractERF load(File file, ERF erf) throws IOException {
+		return load(file, getParamsHash(erf), false);
+	}
+
+	/**
+	 * Loads a snapshot
+	 * @param file
+	 * @param expectedParamsHash if non null, loading will fail if the snapshot parameters hash doesn't match
+	 * @param verifyPoints if true, the points section checksum will be verified. This reads the entire file
+	 * @return
+	 * @throws IOException
+	 */
+	public static AbstractERF load(File file, Long expectedParamsHash, boolean verifyPoints) throws IOException {
+		Stopwatch watch = Stopwatch.createStarted();
+		RandomAccessFile raFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raFile.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			Preconditions.checkState(header.getInt() == MAGIC, "Not an ERF snapshot file: %s", file.getAbsolutePath());
+			int version = header.getInt();
+			Preconditions.checkState(version == VERSION, "Unsupported ERF snapshot version: %s", version);
+			long paramsHash = header.getLong();
+			if (expectedParamsHash != null)
+				Preconditions.checkState(paramsHash == expectedParamsHash,
+						"ERF snapshot parameters don't match the given ERF: %s", file.getAbsolutePath());
+			int numSources = header.getInt();
+			int numRups = header.getInt();
+			long numPoints = header.getLong();
+			long metaOffset = header.getLong();
+			long metaCRCVal = header.getLong();
+			long pointsCRCVal = header.getLong();
+
+			MappedByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, metaOffset, channel.size()-metaOffset);
+			CRC32 metaCRC = new CRC32();
+			metaCRC.update(meta.duplicate());
+			Preconditions.checkState(metaCRC.getValue() == metaCRCVal, "ERF snapshot metadata checksum mismatch: %s",
+					file.getAbsolutePath());
+
+			int numChunks = (int)((numPoints + POINTS_PER_CHUNK - 1) / POINTS_PER_CHUNK);
+			ByteBuffer[] pointChunks = new ByteBuffer[numChunks];
+			CRC32 pointsCRC = verifyPoints ? new CRC32() : null;
+			for (int i=0; i<numChunks; i++) {
+				long chunkStart = (long)i*POINTS_PER_CHUNK;
+				long chunkPoints = Math.min(POINTS_PER_CHUNK, numPoints - chunkStart);
+				pointChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_SIZE + chunkStart*BYTES_PER_POINT, chunkPoints*BYTES_PER_POINT);
+				if (verifyPoints)
+					pointsCRC.update(pointChunks[i].duplicate());
+			}
+			if (verifyPoints)
+				Preconditions.checkState(pointsCRC.getValue() == pointsCRCVal, "ERF snapshot points checksum mismatch: %s",
+						file.getAbsolutePath());
+
+			SnapshotERF erf = new SnapshotERF(meta, numSources, numRups, pointChunks);
+			Preconditions.checkState(erf.numPoints == numPoints, "Point count mismatch: %s != %s",
+					erf.numPoints, numPoints);
+			System.out.println("Loaded ERF snapshot with "+numSources+" sources and "+numRups+" ruptures from "
+					+file.getAbsolutePath()+" in "+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s");
+			return erf;
+		} finally {
+			// mapped buffers remain valid after the channel is closed
+			raFile.close();
+		}
+	}
+
+	private static class SnapshotERF extends AbstractERF {
+
+		private String name;
+
+		private String[] sourceNames;
+		private boolean[] poissonian;
+		private int[] sourceRupStarts;
+
+		private double[] mags;
+		private double[] probs;
+		private double[] rakes;
+		private int[] numRows;
+		private int[] numCols;
+		private double[] spacings;
+		private double[] dips;
+		private double[] dipDirs;
+		private double[] strikes;
+		private double[] topDepths;
+		private long[] pointOffsets;
+		private long numPoints;
+
+		private ByteBuffer[] pointChunks;
+
+		private SnapshotSource[] sources;
+		private SnapshotRupture[] ruptures;
+
+		public SnapshotERF(ByteBuffer meta, int numSources, int numRups, ByteBuffer[] pointChunks) {
+			this.pointChunks = pointChunks;
+
+			sourceNames = new String[numSources];
+			poissonian = new boolean[numSources];
+			sourceRupStarts = new int[numSources];
+			for (int s=0; s<numSources; s++) {
+				sourceNames[s] = readString(meta);
+				poissonian[s] = meta.get() != 0;
+				sourceRupStarts[s] = meta.getInt();
+			}
+			double duration = meta.getDouble();
+			if (!Double.isNaN(duration)) {
+				timeSpan = new TimeSpan(TimeSpan.NONE, TimeSpan.YEARS);
+				timeSpan.setDuration(duration);
+			}
+			name = readString(meta);
+
+			mags = readDoubles(meta, numRups);
+			probs = readDoubles(meta, numRups);
+			rakes = readDoubles(meta, numRups);
+			numRows = readInts(meta, numRups);
+			numCols = readInts(meta, numRups);
+			spacings = readDoubles(meta, numRups);
+			dips = readDoubles(meta, numRups);
+			dipDirs = readDoubles(meta, numRups);
+			strikes = readDoubles(meta, numRups);
+			topDepths = readDoubles(meta, numRups);
+
+			pointOffsets = new long[numRups+1];
+			for (int r=0; r<numRups; r++)
+				pointOffsets[r+1] = pointOffsets[r] + (long)numRows[r]*numCols[r];
+			numPoints = pointOffsets[numRups];
+
+			sources = new SnapshotSource[numSources];
+			ruptures = new SnapshotRupture[numRups];
+		}
+
+		private static String readString(ByteBuffer buf) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private static double[] readDoubles(ByteBuffer buf, int num) {
+			double[] ret = new double[num];
+			buf.asDoubleBuffer().get(ret);
+			buf.position(buf.position() + num*8);
+			return ret;
+		}
+
+		private static int[] readInts(ByteBuffer buf, int num) {
+			int[] ret = new int[num];
+			buf.asIntBuffer().get(ret);
+			buf.position(buf.position() + num*4);
+			return ret;
+		}
+
+		private int getSourceRupEnd(int sourceID) {
+			if (sourceID == sourceRupStarts.length-1)
+				return mags.length;
+			return sourceRupStarts[sourceID+1];
+		}
+
+		private double getPointVal(long pointIndex, int component) {
+			int chunk = (int)(pointIndex / POINTS_PER_CHUNK);
+			int offset = (int)(pointIndex % POINTS_PER_CHUNK)*BYTES_PER_POINT + component*8;
+			return pointChunks[chunk].getDouble(offset);
+		}
+
+		private Location getPoint(long pointIndex) {
+			return new Location(getPointVal(pointIndex, 0), getPointVal(pointIndex, 1), getPointVal(pointIndex, 2));
+		}
+
+		private SnapshotRupture getRupture(int rupIndex) {
+			SnapshotRupture rup = ruptures[rupIndex];
+			if (rup == null) {
+				// benign race, ruptures are lightweight until their surface is materialized
+				rup = new SnapshotRupture(this, rupIndex);
+				ruptures[rupIndex] = rup;
+			}
+			return rup;
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.length;
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			SnapshotSource source = sources[idx];
+			if (source == null) {
+				// benign race
+				source = new SnapshotSource(this, idx);
+				sources[idx] = source;
+			}
+			return source;
+		}
+
+		@Override
+		public void updateForecast() {
+			// do nothing, snapshot is already updated
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+	}
+
+	private static class SnapshotSource extends ProbEqkSource {
+
+		private SnapshotERF erf;
+		private int sourceID;
+		private int rupStart;
+		private int rupEnd;
+
+		public SnapshotSource(SnapshotERF erf, int sourceID) {
+			this.erf = erf;
+			this.sourceID = sourceID;
+			this.name = erf.sourceNames[sourceID];
+			this.rupStart = erf.sourceRupStarts[sourceID];
+			this.rupEnd = erf.getSourceRupEnd(sourceID);
+		}
+
+		/**
+		 * Minimum horizontal distance from the site to any surface point of the largest magnitude rupture (see
+		 * {@link #getSourceSurface()}), calculated directly from the mapped points without materializing the surface
+		 */
+		@Override
+		public double getMinDistance(Site site) {
+			if (rupEnd == rupStart)
+				return Double.POSITIVE_INFINITY;
+			Location siteLoc = site.getLocation();
+			int maxIndex = getMaxMagRupIndex();
+			double minDist = Double.POSITIVE_INFINITY;
+			for (long p=erf.pointOffsets[maxIndex]; p<erf.pointOffsets[maxIndex+1]; p++) {
+				Location loc = new Location(erf.getPointVal(p, 0), erf.getPointVal(p, 1));
+				double dist = LocationUtils.horzDistanceFast(siteLoc, loc);
+				if (dist < minDist)
+					minDist = dist;
+			}
+			return minDist;
+		}
+		
+		private int getMaxMagRupIndex() {
+			int maxIndex = rupStart;
+			for (int r=rupStart; r<rupEnd; r++)
+				if (erf.mags[r] > erf.mags[maxIndex])
+					maxIndex = r;
+			return maxIndex;
+		}
+
+		@Override
+		public int getNumRuptures() {
+			return rupEnd - rupStart;
+		}
+
+		@Override
+		public ProbEqkRupture getRupture(int nRupture) {
+			Preconditions.checkElementIndex(nRupture, getNumRuptures());
+			return erf.getRupture(rupStart + nRupture);
+		}
+
+		@Override
+		public LocationList getAllSourceLocs() {
+			return getSourceSurface().getEvenlyDiscritizedListOfLocsOnSurface();
+		}
+
+		@Override
+		public RuptureSurface getSourceSurface() {
+			// largest magnitude rupture, same as CyberShakeProbEqkSource
+			return erf.getRupture(getMaxMagRupIndex()).getRuptureSurface();
+		}
+
+		@Override
+		public boolean isPoissonianSource() {
+			return erf.poissonian[sourceID];
+		}
+
+	}
+
+	private static class SnapshotRupture extends ProbEqkRupture {
+
+		private SnapshotERF erf;
+		private int rupIndex;
+
+		public SnapshotRupture(SnapshotERF erf, int rupIndex) {
+			this.erf = erf;
+			this.rupIndex = rupIndex;
+			this.mag = erf.mags[rupIndex];
+			this.probability = erf.probs[rupIndex];
+			this.aveRake = erf.rakes[rupIndex];
+		}
+
+		@Override
+		public RuptureSurface getRuptureSurface() {
+			if (ruptureSurface == null) {
+				// benign race, both threads will build identical surfaces
+				int rows = erf.numRows[rupIndex];
+				int cols = erf.numCols[rupIndex];
+				SnapshotSurface surf = new SnapshotSurface(rows, cols, erf.spacings[rupIndex], erf.dips[rupIndex],
+						erf.dipDirs[rupIndex], erf.strikes[rupIndex], erf.topDepths[rupIndex]);
+				long p = erf.pointOffsets[rupIndex];
+				for (int i=0; i<rows; i++)
+					for (int j=0; j<cols; j++, p++)
+						surf.set(i, j, erf.getPoint(p));
+				ruptureSurface = surf;
+			}
+			return ruptureSurface;
+		}
+
+	}
+
+	private static class SnapshotSurface extends CyberShakeEvenlyGriddedSurface {
+
+		private double dip;
+		private double dipDir;
+		private double strike;
+		private double topDepth;
+
+		public SnapshotSurface(int numRows, int numCols, double gridSpacing, double dip, double dipDir,
+				double strike, double topDepth) {
+			super(numRows, numCols, gridSpacing);
+			this.dip = dip;
+			this.dipDir = dipDir;
+			this.strike = strike;
+			this.topDepth = topDepth;
+		}
+
+		@Override
+		public double getAveDip() {
+			return dip;
+		}
+
+		@Override
+		public double getAveDipDirection() {
+			return dipDir;
+		}
+
+		@Override
+		public double getAveRupTopDepth() {
+			return topDepth;
+		}
+
+		@Override
+		public double getAveStrike() {
+			return strike;
+		}
+
+		@Override
+		public FaultTrace getUpperEdge() {
+			FaultTrace trace = new FaultTrace(null);
+			for (int col=0; col<getNumCols(); col++)
+				trace.add(get(0, col));
+			return trace;
+		}
+
+		@Override
+		public LocationList getPerimeter() {
+			int lastRow = getNumRows()-1;
+			int lastCol = getNumCols()-1;
+			LocationList perim = new LocationList();
+			for (int col=0; col<=lastCol; col++)
+				perim.add(get(0, col));
+			for (int row=1; row<=lastRow; row++)
+				perim.add(get(row, lastCol));
+			if (lastRow > 0)
+				for (int col=lastCol-1; col>=0; col--)
+					perim.add(get(lastRow, col));
+			if (lastCol > 0)
+				for (int row=lastRow-1; row>0; row--)
+					perim.add(get(row, 0));
+			return perim;
+		}
+
+	}
+
+}
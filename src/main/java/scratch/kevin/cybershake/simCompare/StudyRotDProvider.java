@@ -100,7 +100,7 @@ public class StudyRotDProvider implements SimulationRotDProvider<CSRupture> {
 					return ((CyberShakeSiteRun)site).getCS_Run();
 				}
 				Preconditions.checkNotNull(site.getName() != null, "Must supply site, or site with name set to CS Short Name");
-				List<CybershakeRun> runs = study.runFetcher().forSiteNames(site.getName()).fetch();
+				List<CybershakeRun> runs = study.getRunIndex().getRunsForSite(site.getName());
 				Preconditions.checkState(!runs.isEmpty(), "No runs found for Study %s, Site '%s'", study.getName(), site.getName());
 				return runs.get(0);
 			}
@@ -459,7 +459,7 @@ public class StudySiteHazardCurvePageGen extends SiteHazardCurveComarePageGen<CS
 			}
 			
 			for (String siteName : siteNames) {
-				List<CybershakeRun> matchingRuns = study.runFetcher().forSiteNames(siteName).fetch();
+				List<CybershakeRun> matchingRuns = study.getRunIndex().getRunsForSite(siteName);
 				Preconditions.checkState(!matchingRuns.isEmpty(), "Must have at least 1 run for the given site/study");
 				Site site = CyberShakeSiteBuilder.buildSites(study, vs30Source, matchingRuns).get(0);
 				
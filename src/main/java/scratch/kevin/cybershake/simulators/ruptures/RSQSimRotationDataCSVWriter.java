@@ -50,7 +50,7 @@ public class RSQSimRotationDataCSVWriter {
 		Preconditions.checkState(studyDir.exists() || studyDir.mkdir());
 		
 		for (String siteName : siteNames) {
-			List<CybershakeRun> matchingRuns = study.runFetcher().forSiteNames(siteName).fetch();
+			List<CybershakeRun> matchingRuns = study.getRunIndex().getRunsForSite(siteName);
 			Preconditions.checkState(!matchingRuns.isEmpty(), "Must have at least 1 run for the given site/study");
 			Site site = CyberShakeSiteBuilder.buildSites(study, Vs30_Source.Simulation, matchingRuns).get(0);
 			
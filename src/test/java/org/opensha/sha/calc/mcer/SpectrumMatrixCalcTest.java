@@ -0,0 +1,120 @@
+package org.opensha.sha.calc.mcer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+
+public class SpectrumMatrixCalcTest {
+
+	private static final double[] periods = { 0.5, 1d, 2d, 5d };
+
+	private static List<Site> buildSites() {
+		List<Site> sites = new ArrayList<>();
+		for (int i=0; i<10; i++)
+			sites.add(new Site(new Location(34d + 0.05*i, -118d - 0.03*i)));
+		return sites;
+	}
+
+	// site and period dependent scale factor
+	private static double scale(Site site, double period) {
+		return (1d + 10d*(site.getLocation().getLatitude() - 34d))/Math.sqrt(period);
+	}
+
+	private static class SyntheticProbCalc extends CurveBasedMCErProbabilisitCalc {
+
+		@Override
+		protected Map<Double, DiscretizedFunc> calcHazardCurves(Site site, Collection<Double> periods) {
+			Map<Double, DiscretizedFunc> curves = new HashMap<>();
+			for (double period : periods) {
+				double scale = scale(site, period);
+				ArbitrarilyDiscretizedFunc curve = new ArbitrarilyDiscretizedFunc();
+				for (int i=0; i<40; i++) {
+					double x = 1e-3*Math.pow(10, i/10d);
+					double rate = 1e-2*Math.pow(x/(0.1*scale), -2.5);
+					curve.set(x, 1d - Math.exp(-rate));
+				}
+				curves.put(period, curve);
+			}
+			return curves;
+		}
+
+		@Override
+		public void setXVals(DiscretizedFunc xVals) {}
+
+	}
+
+	private static class SyntheticDetCalc extends AbstractMCErDeterministicCalc {
+
+		@Override
+		public Map<Double, DeterministicResult> calc(Site site, Collection<Double> periods) {
+			Map<Double, DeterministicResult> results = new HashMap<>();
+			for (double period : periods)
+				results.put(period, new DeterministicResult(0, 0, 7d, "synthetic", 0.5*scale(site, period)));
+			return results;
+		}
+
+	}
+
+	@Test
+	public void testProbMatchesPerSite() {
+		List<Site> sites = buildSites();
+		SyntheticProbCalc calc = new SyntheticProbCalc();
+		for (boolean uhs : new boolean[] { false, true }) {
+			if (uhs)
+				calc.setUseUHS(2e-4);
+			SpectrumMatrix matrix = calc.calc(sites, periods);
+			for (int s=0; s<sites.size(); s++)
+				for (int p=0; p<periods.length; p++)
+					assertEquals(calc.calc(sites.get(s), periods[p]), matrix.get(s, p), 1e-10);
+		}
+	}
+
+	@Test
+	public void testMCERMatchesPerSite() {
+		List<Site> sites = buildSites();
+		SyntheticProbCalc probCalc = new SyntheticProbCalc();
+		SyntheticDetCalc detCalc = new SyntheticDetCalc();
+		SpectrumMatrix prob = probCalc.calc(sites, periods);
+		SpectrumMatrix det = detCalc.calc(sites, periods);
+		SpectrumMatrix detLower = new SpectrumMatrix(sites.size(), periods);
+		for (int s=0; s<sites.size(); s++)
+			for (int p=0; p<periods.length; p++)
+				detLower.set(s, p, 0.3/periods[p]);
+		SpectrumMatrix mcer = MCErCalcUtils.calcMCER(det, prob, detLower);
+		for (int s=0; s<sites.size(); s++) {
+			for (int p=0; p<periods.length; p++) {
+				double detVal = detCalc.calc(sites.get(s), periods[p]).getVal();
+				assertEquals(detVal, det.get(s, p), 0d);
+				double probVal = probCalc.calc(sites.get(s), periods[p]);
+				double expected = MCErCalcUtils.calcMCER(detVal, probVal, 0.3/periods[p]);
+				assertEquals(expected, mcer.get(s, p), 1e-10);
+			}
+		}
+	}
+
+	@Test
+	public void testMaxNaNSymmetric() {
+		double[] twoPeriods = { 1d, 2d };
+		SpectrumMatrix withNaN = new SpectrumMatrix(twoPeriods, new double[][] { { Double.NaN, 2d } });
+		SpectrumMatrix defined = new SpectrumMatrix(twoPeriods, new double[][] { { 1d, Double.NaN } });
+		SpectrumMatrix allNaN = new SpectrumMatrix(1, twoPeriods);
+		for (List<SpectrumMatrix> matrices : List.of(List.of(withNaN, defined), List.of(defined, withNaN),
+				List.of(allNaN, withNaN, defined), List.of(defined, allNaN, withNaN))) {
+			SpectrumMatrix max = SpectrumMatrix.max(matrices);
+			assertEquals(1d, max.get(0, 0), 0d);
+			assertEquals(2d, max.get(0, 1), 0d);
+		}
+		assertTrue(Double.isNaN(SpectrumMatrix.max(List.of(allNaN, allNaN)).get(0, 0)));
+	}
+
+}
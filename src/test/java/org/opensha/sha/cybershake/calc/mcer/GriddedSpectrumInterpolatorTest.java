@@ -0,0 +1,80 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.Location;
+
+public class GriddedSpectrumInterpolatorTest {
+
+	private static final double spacing = 0.1;
+	private static final double[] periods = { 0.2, 1d, 3d };
+
+	private static GriddedSpectrumInterpolator interp;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Map<Location, ArbitrarilyDiscretizedFunc> spectra = new HashMap<>();
+		for (int i=0; i<=3; i++) {
+			for (int j=0; j<=3; j++) {
+				Location loc = new Location(34d + i*spacing, -118d + j*spacing);
+				ArbitrarilyDiscretizedFunc spectrum = new ArbitrarilyDiscretizedFunc();
+				// unique value per node so that wrapping into another row would be detected
+				for (double period : periods)
+					spectrum.set(period, 10*i + j + period);
+				spectra.put(loc, spectrum);
+			}
+		}
+		interp = new GriddedSpectrumInterpolator(spectra, spacing);
+	}
+
+	@Test
+	public void testClosestInGrid() {
+		assertEquals(10*2 + 1 + periods[1], interp.getClosest(new Location(34.21, -117.89)).getY(1), 1e-10);
+		Location gridLoc = interp.getClosestGridLoc(new Location(34.21, -117.89));
+		assertEquals(34.2, gridLoc.getLatitude(), 1e-10);
+		assertEquals(-117.9, gridLoc.getLongitude(), 1e-10);
+		// within half a spacing of the edge snaps to the edge
+		assertEquals(10*1 + 3 + periods[0], interp.getClosest(new Location(34.1, -117.66)).getY(0), 1e-10);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testClosestOutsideEast() {
+		// would wrap to the first column of the next row without bounds checks
+		interp.getClosest(new Location(34.1, -117.6));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testClosestOutsideNorth() {
+		interp.getClosest(new Location(34.5, -117.9));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testClosestGridLocOutside() {
+		interp.getClosestGridLoc(new Location(33.8, -117.9));
+	}
+
+	@Test
+	public void testClosestDefinedNearEdge() {
+		// closest node is just off the grid, but its neighbors on the edge are defined
+		Location loc = interp.getClosestDefinedGridLoc(new Location(34.1, -117.64));
+		assertEquals(34.1, loc.getLatitude(), 1e-10);
+		assertEquals(-117.7, loc.getLongitude(), 1e-10);
+	}
+
+	@Test
+	public void testInterpolateOutside() {
+		double[] output = new double[2*periods.length];
+		int num = interp.interpolate(new double[] { 34.15, 34.15 }, new double[] { -117.95, -117.5 }, output);
+		assertEquals(1, num);
+		assertFalse(Double.isNaN(output[0]));
+		for (int p=0; p<periods.length; p++)
+			assertTrue(Double.isNaN(output[periods.length+p]));
+	}
+
+}
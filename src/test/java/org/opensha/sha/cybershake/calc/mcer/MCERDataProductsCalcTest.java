@@ -0,0 +1,57 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.sha.calc.mcer.SpectrumMatrix;
+
+public class MCERDataProductsCalcTest {
+
+	// spans the CyberShake/GMPE weight transition
+	private static final double[] periods = { 0.1, 0.5, 1d, 1.5, 2d, 3d, 5d, 7.5, 10d };
+
+	@Test
+	public void testBulkFinalMCERMatchesScalar() {
+		List<DiscretizedFunc> csSpectra = new ArrayList<>();
+		List<DiscretizedFunc> gmpeSpectra = new ArrayList<>();
+		for (int s=0; s<8; s++) {
+			ArbitrarilyDiscretizedFunc cs = new ArbitrarilyDiscretizedFunc();
+			ArbitrarilyDiscretizedFunc gmpe = new ArbitrarilyDiscretizedFunc();
+			for (int p=0; p<periods.length; p++) {
+				// CyberShake above GMPE for some sites/periods, below for others
+				double gmpeVal = 0.5/periods[p];
+				double csVal = gmpeVal*(0.6 + 0.15*s + 0.05*p);
+				if (s == 5 && p % 2 == 0)
+					csVal = Double.NaN;
+				if (s == 6 && p % 3 == 0)
+					gmpeVal = Double.NaN;
+				if (s == 7 && p == 4) {
+					csVal = Double.NaN;
+					gmpeVal = Double.NaN;
+				}
+				cs.set(periods[p], csVal);
+				gmpe.set(periods[p], gmpeVal);
+			}
+			csSpectra.add(cs);
+			gmpeSpectra.add(gmpe);
+		}
+		SpectrumMatrix bulk = MCERDataProductsCalc.calcFinalMCER(SpectrumMatrix.fromSpectra(csSpectra, periods),
+				SpectrumMatrix.fromSpectra(gmpeSpectra, periods));
+		for (int s=0; s<csSpectra.size(); s++) {
+			DiscretizedFunc scalar = MCERDataProductsCalc.calcFinalMCER(csSpectra.get(s), gmpeSpectra.get(s));
+			assertEquals(periods.length, scalar.size());
+			for (int p=0; p<periods.length; p++) {
+				double expected = scalar.getY(p);
+				double actual = bulk.get(s, p);
+				assertEquals("Mismatch for site "+s+", period "+periods[p], Double.doubleToLongBits(expected),
+						Double.doubleToLongBits(actual));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.opensha.sha.cybershake.calc.mcer;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.calc.hazardMap.BinaryHazardCurveWriter;
+import org.opensha.sha.cybershake.calc.mcer.UGMS_WebToolCalc.SpectraType;
+
+import com.google.common.base.Splitter;
+
+public class UGMS_QueryServerTest {
+
+	private static final double spacing = 0.1;
+	private static final double[] periods = { 0.2, 0.3, 0.5, 1d, 2d, 3d, 5d };
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private static void writeGrid(File file, double scale) throws IOException {
+		Map<Location, ArbitrarilyDiscretizedFunc> spectra = new HashMap<>();
+		for (int i=0; i<=5; i++) {
+			for (int j=0; j<=5; j++) {
+				Location loc = new Location(34d + i*spacing, -118.5d + j*spacing);
+				ArbitrarilyDiscretizedFunc spectrum = new ArbitrarilyDiscretizedFunc();
+				for (double period : periods)
+					spectrum.set(period, scale*Math.min(1d, 1d/period));
+				spectra.put(loc, spectrum);
+			}
+		}
+		new BinaryHazardCurveWriter(file).writeCurves(spectra);
+	}
+
+	private UGMS_QueryServer buildServer(int numThreads) throws IOException {
+		File csDir = tempDir.newFolder("cs");
+		File gmpeDir = tempDir.newFolder("gmpe");
+		writeGrid(new File(csDir, SpectraType.MCER.getFileName(spacing)), 1d);
+		// Vs30=760 matches class BC exactly, so that's the only GMPE file needed
+		writeGrid(new File(gmpeDir, "classBC_"+SpectraType.MCER.getFileName(spacing)), 0.8d);
+		return new UGMS_QueryServer(csDir, spacing, gmpeDir, spacing, null, numThreads);
+	}
+
+	private static Thread startServer(UGMS_QueryServer server) throws InterruptedException {
+		Thread thread = new Thread(() -> {
+			try {
+				server.serve(0);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		thread.start();
+		for (int i=0; i<500 && server.getPort() < 0; i++)
+			Thread.sleep(10);
+		assertTrue("Server didn't start", server.getPort() > 0);
+		return thread;
+	}
+
+	private static Socket connect(UGMS_QueryServer server) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		socket.setSoTimeout(60000);
+		return socket;
+	}
+
+	@Test
+	public void testQueryAndClose() throws IOException, InterruptedException {
+		UGMS_QueryServer server = buildServer(2);
+		Thread thread = startServer(server);
+
+		try (Socket socket = connect(server);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+			out.println("HEADER");
+			List<String> header = Splitter.on(',').splitToList(in.readLine());
+			assertEquals("Latitude", header.get(0));
+
+			out.println("34.22,-118.28,760");
+			List<String> result = Splitter.on(',').splitToList(in.readLine());
+			assertEquals(header.size(), result.size());
+			assertEquals(34.22, Double.parseDouble(result.get(0)), 1e-6);
+			assertEquals(-118.28, Double.parseDouble(result.get(1)), 1e-6);
+			assertEquals(760d, Double.parseDouble(result.get(2)), 1e-6);
+			assertEquals(server.query(new Location(34.22, -118.28), 760d).sms,
+					Double.parseDouble(result.get(header.indexOf("SMS"))), 1e-4);
+
+			out.println("not a query");
+			assertTrue(in.readLine().startsWith("ERROR:"));
+		}
+
+		server.close();
+		thread.join(10000);
+		assertFalse("Server still running after close", thread.isAlive());
+	}
+
+	@Test
+	public void testIdleClientsDontBlock() throws IOException, InterruptedException {
+		UGMS_QueryServer server = buildServer(1);
+		Thread thread = startServer(server);
+
+		// more idle connections than query threads
+		try (Socket idle1 = connect(server); Socket idle2 = connect(server);
+				Socket socket = connect(server);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+			out.println("34.22,-118.28,760");
+			String line = in.readLine();
+			assertNotNull(line);
+			assertFalse(line, line.startsWith("ERROR:"));
+		} finally {
+			server.close();
+		}
+		thread.join(10000);
+		assertFalse("Server still running after close", thread.isAlive());
+	}
+
+}
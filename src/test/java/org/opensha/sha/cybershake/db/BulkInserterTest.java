@@ -0,0 +1,167 @@
+package org.opensha.sha.cybershake.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkInserterTest {
+
+	private File tempDir;
+	private DBAccess db;
+
+	@Before
+	public void setUp() throws IOException, SQLException {
+		tempDir = Files.createTempDirectory("bulk_insert_test").toFile();
+		db = Cybershake_OpenSHA_DBApplication.getSQLiteDB(new File(tempDir, "test.sqlite"));
+		db.insertUpdateOrDeleteData("CREATE TABLE Parents (ID INTEGER PRIMARY KEY, Name TEXT)");
+		db.insertUpdateOrDeleteData("CREATE TABLE Children (Parent_ID INTEGER, Val REAL, Opt REAL)");
+	}
+
+	@After
+	public void tearDown() {
+		db.destroy();
+		for (File file : tempDir.listFiles())
+			file.delete();
+		tempDir.delete();
+	}
+
+	private int count(String table) throws SQLException {
+		ResultSet rs = db.selectData("SELECT COUNT(*) FROM "+table);
+		try {
+			assertTrue(rs.next());
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	@Test
+	public void testMultiTableInsert() throws SQLException, IOException {
+		BulkInserter inserter = new BulkInserter(db, 7);
+		assertTrue("SQLite should default to a single transaction", inserter.isSingleTransaction());
+		BulkInserter.TableBatch parents = inserter.forTable("Parents", "ID", "Name");
+		BulkInserter.TableBatch children = inserter.forTable("Children", false, 3);
+		for (int i=0; i<100; i++) {
+			parents.add(i, "parent "+i);
+			for (int j=0; j<5; j++)
+				children.add(i, i+0.1*j, j % 2 == 0 ? null : (double)j);
+		}
+		inserter.close();
+
+		assertEquals(600, inserter.getRowsWritten());
+		assertEquals(100, parents.getRowsWritten());
+		assertEquals(500, children.getRowsWritten());
+		assertEquals(100, count("Parents"));
+		assertEquals(500, count("Children"));
+
+		ResultSet rs = db.selectData("SELECT COUNT(*) FROM Children WHERE Opt IS NULL");
+		assertTrue(rs.next());
+		assertEquals(300, rs.getInt(1));
+		rs.close();
+	}
+
+	@Test
+	public void testAbortRollsBack() throws SQLException, IOException {
+		BulkInserter inserter = new BulkInserter(db, 10);
+		BulkInserter.TableBatch parents = inserter.forTable("Parents", "ID", "Name");
+		for (int i=0; i<95; i++)
+			parents.add(i, "parent "+i);
+		inserter.abort();
+
+		assertEquals("single transaction should have been rolled back", 0, count("Parents"));
+	}
+
+	@Test
+	public void testIgnoreDuplicates() throws SQLException, IOException {
+		BulkInserter inserter = new BulkInserter(db);
+		BulkInserter.TableBatch parents = inserter.forTable("Parents", "ID", "Name");
+		for (int i=0; i<10; i++)
+			parents.add(i, "parent "+i);
+		inserter.close();
+
+		inserter = new BulkInserter(db);
+		parents = inserter.forTable("Parents", true, "ID", "Name");
+		for (int i=5; i<20; i++)
+			parents.add(i, "parent "+i);
+		inserter.close();
+
+		assertEquals(20, count("Parents"));
+	}
+
+	@Test
+	public void testResumeFromProgress() throws SQLException, IOException {
+		File progressFile = new File(tempDir, "progress.txt");
+		assertNull(BulkInserter.readProgress(progressFile));
+
+		// commit after each batch so that we can simulate a failure part way through
+		BulkInserter inserter = new BulkInserter(db, 8);
+		inserter.setSingleTransaction(false);
+		inserter.setProgressFile(progressFile);
+		BulkInserter.TableBatch parents = inserter.forTable("Parents", "ID", "Name");
+		BulkInserter.TableBatch children = inserter.forTable("Children", "Parent_ID", "Val", "Opt");
+		for (int i=0; i<6; i++) {
+			parents.add(i, "parent "+i);
+			for (int j=0; j<3; j++)
+				children.add(i, (double)j, null);
+			inserter.mark(i+"");
+		}
+		// partial unit which is never marked
+		parents.add(6, "parent 6");
+		inserter.abort();
+
+		String progress = BulkInserter.readProgress(progressFile);
+		assertNotNull(progress);
+		int lastDone = Integer.parseInt(progress);
+		// batches are only executed at marker boundaries, so everything up to the marker is there and nothing more
+		assertTrue(lastDone >= 0 && lastDone < 6);
+		assertEquals(lastDone+1, count("Parents"));
+		assertEquals(3*(lastDone+1), count("Children"));
+
+		inserter = new BulkInserter(db, 8);
+		inserter.setProgressFile(progressFile);
+		parents = inserter.forTable("Parents", "ID", "Name");
+		children = inserter.forTable("Children", "Parent_ID", "Val", "Opt");
+		for (int i=lastDone+1; i<10; i++) {
+			parents.add(i, "parent "+i);
+			for (int j=0; j<3; j++)
+				children.add(i, (double)j, null);
+			inserter.mark(i+"");
+		}
+		inserter.close();
+
+		assertEquals("9", BulkInserter.readProgress(progressFile));
+		assertEquals(10, count("Parents"));
+		assertEquals(30, count("Children"));
+	}
+
+	@Test
+	public void testProgressInSingleTransactionMode() throws SQLException, IOException {
+		File progressFile = new File(tempDir, "progress.txt");
+
+		// SQLite defaults to a single transaction, but markers still need to be committed as we go
+		BulkInserter inserter = new BulkInserter(db, 4);
+		inserter.setProgressFile(progressFile);
+		assertFalse(inserter.isSingleTransaction());
+		BulkInserter.TableBatch parents = inserter.forTable("Parents", "ID", "Name");
+		for (int i=0; i<10; i++) {
+			parents.add(i, "parent "+i);
+			parents.add(100+i, "extra "+i);
+			inserter.mark(i+"");
+		}
+		inserter.abort();
+
+		String progress = BulkInserter.readProgress(progressFile);
+		assertNotNull("progress should be committed before close", progress);
+		int lastDone = Integer.parseInt(progress);
+		assertEquals(2*(lastDone+1), count("Parents"));
+	}
+
+}
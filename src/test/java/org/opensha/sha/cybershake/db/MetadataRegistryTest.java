@@ -0,0 +1,163 @@
+package org.opensha.sha.cybershake.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataRegistryTest {
+
+	private File tempDir;
+	private DBAccess db;
+	private SiteInfo2DB sites2db;
+
+	@Before
+	public void setUp() throws IOException, SQLException {
+		tempDir = Files.createTempDirectory("metadata_registry_test").toFile();
+		db = Cybershake_OpenSHA_DBApplication.getSQLiteDB(new File(tempDir, "test.sqlite"));
+		db.insertUpdateOrDeleteData("CREATE TABLE CyberShake_Sites (CS_Site_ID INTEGER PRIMARY KEY, "
+				+ "CS_Site_Name TEXT, CS_Short_Name TEXT UNIQUE, CS_Site_Lat REAL, CS_Site_Lon REAL, "
+				+ "CS_Site_Type_ID INTEGER)");
+		sites2db = new SiteInfo2DB(db);
+		sites2db.insertSite(new CybershakeSite(34.0, -118.0, "First Site", "AAA"));
+		sites2db.insertSite(new CybershakeSite(35.0, -119.0, "Second Site", "BBB"));
+		db.insertUpdateOrDeleteData("CREATE TABLE CyberShake_Runs (Run_ID INTEGER PRIMARY KEY, Site_ID INTEGER, "
+				+ "ERF_ID INTEGER, SGT_Variation_ID INTEGER, Rup_Var_Scenario_ID INTEGER, Velocity_Model_ID INTEGER, "
+				+ "SGT_Time TEXT, PP_Time TEXT, SGT_Host TEXT, PP_Host TEXT, Status TEXT, Status_Time TEXT, "
+				+ "Max_Frequency REAL, Low_Frequency_Cutoff REAL)");
+		db.insertUpdateOrDeleteData("INSERT INTO CyberShake_Runs VALUES (1,1,36,8,4,5,'2020-01-01 00:00:00',"
+				+ "'2020-01-02 00:00:00','host1','host2','PP Started','2020-01-02 00:00:00',0.5,0.5)");
+	}
+
+	@After
+	public void tearDown() {
+		db.destroy();
+		for (File file : tempDir.listFiles())
+			file.delete();
+		tempDir.delete();
+	}
+
+	@Test
+	public void testSiteLookups() {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		CybershakeSite site = registry.getSite("BBB");
+		assertNotNull(site);
+		assertEquals("Second Site", site.name);
+		assertEquals(35.0, site.lat, 1e-10);
+
+		CybershakeSite byID = registry.getSite(site.id);
+		assertNotNull(byID);
+		assertEquals("BBB", byID.short_name);
+		assertNull(registry.getSite("CCC"));
+		assertEquals(2, registry.getAllSites().size());
+
+		// returned sites are copies
+		byID.lat = 0d;
+		assertEquals(35.0, registry.getSite(site.id).lat, 1e-10);
+	}
+
+	@Test
+	public void testInvalidateOnWrite() {
+		assertEquals(2, sites2db.getAllSitesFromDB().size());
+		int id = sites2db.insertSite(new CybershakeSite(36.0, -120.0, "Third Site", "CCC"));
+		assertTrue(id > 0);
+		assertEquals(3, sites2db.getAllSitesFromDB().size());
+
+		sites2db.setSiteLongName(id, "Renamed");
+		assertEquals("Renamed", sites2db.getSiteFromDB(id).name);
+	}
+
+	@Test
+	public void testFallbackOnMiss() throws SQLException {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		assertNotNull(registry.getSite("AAA"));
+		// written behind the DAO's back, so not seen by the registry until it is refreshed
+		db.insertUpdateOrDeleteData("INSERT INTO CyberShake_Sites (CS_Site_Name,CS_Short_Name,CS_Site_Lat,"
+				+ "CS_Site_Lon,CS_Site_Type_ID) VALUES ('Hidden','HID',33.0,-117.0,1)");
+		assertNull(registry.getSite("HID"));
+		// but the DAO falls back to the database
+		assertNotNull(sites2db.getSiteFromDB("HID"));
+
+		registry.refresh();
+		assertNotNull(registry.getSite("HID"));
+
+		registry.setEnabled(false);
+		assertNull(registry.getSite("AAA"));
+		assertNotNull(sites2db.getSiteFromDB("AAA"));
+	}
+
+	@Test
+	public void testRunCopies() {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		CybershakeRun run = registry.getRun(1);
+		assertNotNull(run);
+		assertEquals(1, run.getSiteID());
+		assertNotSame(run, registry.getRun(1));
+
+		Timestamp ppTime = run.getPPTimestamp();
+		assertNotNull(ppTime);
+		long origTime = ppTime.getTime();
+		ppTime.setTime(0l);
+		assertEquals(origTime, registry.getRun(1).getPPTimestamp().getTime());
+		assertEquals(origTime, new Runs2DB(db).getRun(1).getPPTimestamp().getTime());
+	}
+
+	@Test
+	public void testERFCopies() throws SQLException {
+		db.insertUpdateOrDeleteData("CREATE TABLE ERF_IDs (ERF_ID INTEGER PRIMARY KEY, ERF_Name TEXT, "
+				+ "ERF_Description TEXT, Default_Prob_Model_ID INTEGER, Default_Time_Span_ID INTEGER)");
+		db.insertUpdateOrDeleteData("INSERT INTO ERF_IDs VALUES (36,'UCERF2','Mean UCERF2',1,1)");
+		MetadataRegistry registry = db.getMetadataRegistry();
+		CybershakeERF erf = registry.getERF(36);
+		assertNotNull(erf);
+		assertEquals("UCERF2", erf.name);
+		assertNotSame(erf, registry.getERF(36));
+
+		erf.name = "modified";
+		assertEquals("UCERF2", registry.getERF(36).name);
+		registry.getAllERFs().get(0).description = "modified";
+		assertEquals("Mean UCERF2", registry.getAllERFs().get(0).description);
+	}
+
+	@Test
+	public void testRunsInvalidatedOnUpdate() throws SQLException {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		assertEquals(MetadataRegistry.DEFAULT_RUNS_MAX_AGE_SECS, registry.getRunsMaxAge(TimeUnit.SECONDS));
+		assertNotNull(registry.getRun(1));
+		assertNull(registry.getRun(2));
+		// any write to the runs table through the DBAccess invalidates the cached runs
+		db.insertUpdateOrDeleteData("INSERT INTO CyberShake_Runs VALUES (2,2,36,8,4,5,NULL,NULL,NULL,NULL,"
+				+ "'Initial',NULL,0.5,0.5)");
+		assertNotNull(registry.getRun(2));
+		assertEquals(2, registry.getRun(2).getSiteID());
+		db.insertUpdateOrDeleteData("UPDATE CyberShake_Runs SET Site_ID=3 WHERE Run_ID=2");
+		assertEquals(3, registry.getRun(2).getSiteID());
+	}
+
+	@Test
+	public void testRunsExpire() throws SQLException, InterruptedException {
+		MetadataRegistry registry = db.getMetadataRegistry();
+		registry.setRunsMaxAge(50l, TimeUnit.MILLISECONDS);
+		assertEquals(1, registry.getRun(1).getSiteID());
+		// written behind the registry's back, e.g. by the workflow tools
+		Connection conn = db.getConnection();
+		try (Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("UPDATE CyberShake_Runs SET Site_ID=2 WHERE Run_ID=1");
+		} finally {
+			db.freeConnection(conn);
+		}
+		Thread.sleep(100l);
+		assertEquals(2, registry.getRun(1).getSiteID());
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.opensha.sha.cybershake.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunIndexTest {
+
+	private File tempDir;
+	private DBAccess db;
+
+	@Before
+	public void setUp() throws IOException, SQLException {
+		tempDir = Files.createTempDirectory("run_index_test").toFile();
+		db = Cybershake_OpenSHA_DBApplication.getSQLiteDB(new File(tempDir, "test.sqlite"));
+		db.insertUpdateOrDeleteData("CREATE TABLE CyberShake_Sites (CS_Site_ID INTEGER PRIMARY KEY, "
+				+ "CS_Site_Name TEXT, CS_Short_Name TEXT UNIQUE, CS_Site_Lat REAL, CS_Site_Lon REAL, "
+				+ "CS_Site_Type_ID INTEGER)");
+		db.insertUpdateOrDeleteData("CREATE TABLE CyberShake_Runs (Run_ID INTEGER PRIMARY KEY, Site_ID INTEGER, "
+				+ "ERF_ID INTEGER, SGT_Variation_ID INTEGER, Rup_Var_Scenario_ID INTEGER, Velocity_Model_ID INTEGER, "
+				+ "SGT_Time TEXT, PP_Time TEXT, SGT_Host TEXT, PP_Host TEXT, Status TEXT, Status_Time TEXT, "
+				+ "Max_Frequency REAL, Low_Frequency_Cutoff REAL)");
+		SiteInfo2DB sites2db = new SiteInfo2DB(db);
+		sites2db.insertSite(new CybershakeSite(34.0, -118.0, "First Site", "AAA"));
+		sites2db.insertSite(new CybershakeSite(35.0, -119.0, "Second Site", "BBB"));
+		int siteA = sites2db.getSiteId("AAA");
+		int siteB = sites2db.getSiteId("BBB");
+		insertRun(1, siteA, 36);
+		insertRun(2, siteB, 36);
+		insertRun(3, siteA, 36);
+		insertRun(4, siteB, 35);
+	}
+
+	private void insertRun(int runID, int siteID, int erfID) throws SQLException {
+		db.insertUpdateOrDeleteData("INSERT INTO CyberShake_Runs VALUES ("+runID+","+siteID+","+erfID
+				+",8,4,5,'2020-01-01 00:00:00','2020-01-02 00:00:00','host1','host2','Verified',"
+				+ "'2020-01-03 00:00:00',0.5,0.5)");
+	}
+
+	@After
+	public void tearDown() {
+		RunIDFetcher.clearCache();
+		db.destroy();
+		for (File file : tempDir.listFiles())
+			file.delete();
+		tempDir.delete();
+	}
+
+	private static List<Integer> getRunIDs(List<CybershakeRun> runs) {
+		List<Integer> ids = new ArrayList<>();
+		for (CybershakeRun run : runs)
+			ids.add(run.getRunID());
+		return ids;
+	}
+
+	@Test
+	public void testLookups() {
+		RunIndex index = new RunIDFetcher(db).forERF(36).fetchIndex();
+		assertNotNull(index);
+		assertEquals(3, index.size());
+		assertEquals(getRunIDs(new RunIDFetcher(db).forERF(36).fetch()), getRunIDs(index.getRuns()));
+		assertEquals(2, index.getRunsForSite("AAA").size());
+		assertEquals(1, index.getRunsForSite("BBB").size());
+		assertTrue(index.getRunsForSite("CCC").isEmpty());
+		int siteB = index.getRunForSite("BBB").getSiteID();
+		assertTrue(index.hasSite(siteB));
+		assertEquals(2, index.getRunForSite(siteB).getRunID());
+		assertNull(index.getRun(4));
+
+		// memoized
+		assertSame(index, new RunIDFetcher(db).forERF(36).fetchIndex());
+		// but fetch is not
+		assertNotSame(new RunIDFetcher(db).forERF(36).fetch().get(0), new RunIDFetcher(db).forERF(36).fetch().get(0));
+	}
+
+	@Test
+	public void testReturnsCopies() {
+		RunIndex index = new RunIDFetcher(db).forERF(36).fetchIndex();
+		CybershakeRun run = index.getRun(1);
+		assertNotSame(run, index.getRun(1));
+		long origTime = run.getPPTimestamp().getTime();
+		run.getPPTimestamp().setTime(0l);
+		assertEquals(origTime, index.getRun(1).getPPTimestamp().getTime());
+		assertEquals(origTime, index.getRunsForSite("AAA").get(0).getPPTimestamp().getTime());
+
+		List<CybershakeRun> runs = index.getRuns();
+		runs.clear();
+		assertEquals(3, index.getRuns().size());
+	}
+
+	@Test
+	public void testWriteLoad() throws IOException {
+		RunIDFetcher fetcher = new RunIDFetcher(db).forERF(36);
+		RunIndex index = fetcher.fetchIndex();
+		File file = RunIndex.getSnapshotFile(new File(tempDir, "test.sqlite"));
+		index.write(file);
+		assertFalse(new File(file.getAbsolutePath()+".tmp").exists());
+
+		RunIndex loaded = RunIndex.load(file, fetcher.getCacheKey(), db);
+		assertNotNull(loaded);
+		assertEquals(index.getKey(), loaded.getKey());
+		assertEquals(getRunIDs(index.getRuns()), getRunIDs(loaded.getRuns()));
+		for (String siteName : new String[] { "AAA", "BBB" })
+			assertEquals(getRunIDs(index.getRunsForSite(siteName)), getRunIDs(loaded.getRunsForSite(siteName)));
+
+		// no key validation
+		assertNotNull(RunIndex.load(file, null, db));
+	}
+
+	@Test
+	public void testKeyMismatch() throws IOException {
+		File file = RunIndex.getSnapshotFile(new File(tempDir, "test.sqlite"));
+		RunIDFetcher fetcher36 = new RunIDFetcher(db).forERF(36);
+		RunIDFetcher fetcher35 = new RunIDFetcher(db).forERF(35);
+		assertNotEquals(fetcher36.getCacheKey(), fetcher35.getCacheKey());
+		fetcher36.fetchIndex().write(file);
+
+		assertNull("Should not load an index written for a different filter",
+				RunIndex.load(file, fetcher35.getCacheKey(), db));
+
+		// fetcher refetches and replaces the file
+		RunIndex index = fetcher35.fetchIndex(file);
+		assertEquals(List.of(4), getRunIDs(index.getRuns()));
+		assertNotNull(RunIndex.load(file, fetcher35.getCacheKey(), db));
+		assertNull(RunIndex.load(file, fetcher36.getCacheKey(), db));
+	}
+
+	@Test
+	public void testUnwritableFile() {
+		// parent directory doesn't exist, so the index can't be persisted
+		File file = new File(new File(tempDir, "missing"), "test.sqlite.runs.csv");
+		RunIndex index = new RunIDFetcher(db).forERF(36).fetchIndex(file);
+		assertNotNull(index);
+		assertEquals(3, index.size());
+		assertFalse(file.exists());
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.opensha.sha.cybershake.maps;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.Region;
+import org.opensha.sha.calc.hazardMap.HazardDataSetLoader;
+import org.opensha.sha.cybershake.maps.BasemapCurveStore.Basemap;
+import org.opensha.sha.cybershake.maps.BasemapCurveStore.MappedTile;
+import org.opensha.sha.cybershake.maps.BasemapCurveStore.Tile;
+
+public class BasemapCurveStoreTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private static Map<Location, DiscretizedFunc> randomCurves(Random r, int num) {
+		Map<Location, DiscretizedFunc> curves = new HashMap<>();
+		for (int n=0; n<num; n++) {
+			ArbitrarilyDiscretizedFunc curve = new ArbitrarilyDiscretizedFunc();
+			double scale = 0.5d + r.nextDouble();
+			for (int i=0; i<20; i++) {
+				double x = 1e-3*Math.pow(1.5, i);
+				curve.set(x, Math.exp(-x/(0.1d*scale)));
+			}
+			curves.put(new Location(34d + r.nextDouble(), -118d + r.nextDouble()), curve);
+		}
+		return curves;
+	}
+
+	@Test
+	public void testTileRoundTrip() throws IOException {
+		Map<Location, DiscretizedFunc> curves = randomCurves(new Random(1234l), 100);
+		File file = new File(tempDir.getRoot(), "tile_0_0.bin");
+		BasemapCurveStore.writeTile(file, 42l, curves);
+
+		MappedTile tile = BasemapCurveStore.mapTile(file, 42l);
+		assertNotNull(tile);
+		assertEquals(curves.size(), tile.numNodes);
+		Basemap basemap = new Basemap(List.of(tile));
+		Map<Location, DiscretizedFunc> loaded = basemap.getCurves();
+		assertEquals(curves.keySet(), loaded.keySet());
+
+		List<Double> levels = List.of(0.01d, 0.002d);
+		List<GeoDataSet> maps = basemap.getMaps(false, levels);
+		for (int l=0; l<levels.size(); l++) {
+			GeoDataSet map = maps.get(l);
+			assertEquals(curves.size(), map.size());
+			for (int i=0; i<map.size(); i++) {
+				Location loc = map.getLocation(i);
+				double expected = HazardDataSetLoader.getCurveVal(curves.get(loc), false, levels.get(l));
+				assertEquals(expected, map.get(i), 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidTiles() throws IOException {
+		File file = new File(tempDir.getRoot(), "tile_0_0.bin");
+		assertNull(BasemapCurveStore.mapTile(file, 42l));
+		BasemapCurveStore.writeTile(file, 42l, randomCurves(new Random(5678l), 10));
+		assertNotNull(BasemapCurveStore.mapTile(file, 42l));
+		// stale key
+		assertNull(BasemapCurveStore.mapTile(file, 43l));
+		// corrupt the body
+		try (RandomAccessFile raFile = new RandomAccessFile(file, "rw")) {
+			raFile.seek(raFile.length()-1);
+			int last = raFile.read();
+			raFile.seek(raFile.length()-1);
+			raFile.write(last ^ 0xff);
+		}
+		assertNull(BasemapCurveStore.mapTile(file, 42l));
+	}
+
+	@Test
+	public void testTilesPartitionRegion() {
+		Region reg = new Region(new Location(33.5d, -119.5d), new Location(35.7d, -116.5d));
+		List<Tile> tiles = BasemapCurveStore.getTiles(reg, 1d);
+		assertEquals(3*3, tiles.size());
+		for (double lat=33.5d; lat<=35.7d+1e-10; lat+=0.1d) {
+			for (double lon=-119.5d; lon<=-116.5d+1e-10; lon+=0.1d) {
+				Location loc = new Location(Math.min(lat, 35.7d), Math.min(lon, -116.5d));
+				int count = 0;
+				for (Tile tile : tiles)
+					if (tile.contains(loc))
+						count++;
+				assertEquals("Location "+loc+" is in "+count+" tiles", 1, count);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.opensha.sha.cybershake.maps;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.Region;
+import org.opensha.commons.util.XYZClosestPointFinder;
+import org.opensha.sha.cybershake.maps.BasemapDiffCalculator.DiffType;
+
+public class BasemapDiffCalculatorTest {
+
+	private static GeoDataSet randomScatter(Random r, int num) {
+		GeoDataSet scatter = new ArbDiscrGeoDataSet(true);
+		for (int i=0; i<num; i++)
+			scatter.set(new Location(33d + 2d*r.nextDouble(), -120d + 2d*r.nextDouble()), 1d + r.nextDouble());
+		return scatter;
+	}
+
+	@Test
+	public void testArbitraryMatchesClosestPoint() {
+		Random r = new Random(1234l);
+		GeoDataSet baseMap = new ArbDiscrGeoDataSet(true);
+		for (int i=0; i<5000; i++)
+			baseMap.set(new Location(32.5d + 3d*r.nextDouble(), -120.5d + 3d*r.nextDouble()), 1d + r.nextDouble());
+		GeoDataSet scatter = randomScatter(r, 200);
+
+		BasemapDiffCalculator calc = new BasemapDiffCalculator(baseMap);
+		Map<DiffType, GeoDataSet> diffs = calc.calc(scatter, DiffType.DIFFERENCE, DiffType.RATIO);
+		XYZClosestPointFinder xyz = new XYZClosestPointFinder(baseMap);
+		for (int i=0; i<scatter.size(); i++) {
+			double base = xyz.getClosestVal(scatter.getLocation(i));
+			assertEquals(scatter.get(i) - base, diffs.get(DiffType.DIFFERENCE).get(i), 1e-12);
+			assertEquals(scatter.get(i) / base, diffs.get(DiffType.RATIO).get(i), 1e-12);
+		}
+	}
+
+	@Test
+	public void testGridded() {
+		GriddedRegion gridReg = new GriddedRegion(new Region(new Location(32.5, -120.5), new Location(35.5, -117.5)),
+				0.05, new Location(32.5, -120.5));
+		GriddedGeoDataSet baseMap = new GriddedGeoDataSet(gridReg, true);
+		for (int i=0; i<baseMap.size(); i++) {
+			Location loc = baseMap.getLocation(i);
+			baseMap.set(i, 10d + loc.getLatitude() - 0.5*loc.getLongitude());
+		}
+		GeoDataSet scatter = randomScatter(new Random(5678l), 200);
+
+		BasemapDiffCalculator calc = new BasemapDiffCalculator(baseMap);
+		XYZClosestPointFinder xyz = new XYZClosestPointFinder(baseMap);
+		double[] closest = calc.getBaseValues(scatter);
+		calc.setBilinear(true);
+		double[] bilinear = calc.getBaseValues(scatter);
+		for (int i=0; i<scatter.size(); i++) {
+			Location loc = scatter.getLocation(i);
+			assertEquals(xyz.getClosestVal(loc), closest[i], 1e-12);
+			// basemap is a plane, so bilinear should be exact
+			assertEquals(10d + loc.getLatitude() - 0.5*loc.getLongitude(), bilinear[i], 1e-10);
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.opensha.sha.cybershake.maps;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.cybershake.maps.ContinuousCurvatureInterpolator.Surface;
+
+public class ContinuousCurvatureInterpolatorTest {
+
+	private static final double MIN_LON = -119d;
+	private static final double MIN_LAT = 33.5d;
+	private static final double SPACING = 0.02;
+	private static final int NX = 101;
+	private static final int NY = 76;
+
+	private double[] lons, lats;
+
+	private void buildLocs(int num) {
+		Random r = new Random(12345l);
+		lons = new double[num];
+		lats = new double[num];
+		for (int i=0; i<num; i++) {
+			lons[i] = MIN_LON + 2d*r.nextDouble();
+			lats[i] = MIN_LAT + 1.5d*r.nextDouble();
+		}
+	}
+
+	private static double smooth(double lon, double lat) {
+		return Math.sin(3d*lon)*Math.cos(4d*lat);
+	}
+
+	@Test
+	public void testPlane() {
+		buildLocs(50);
+		double[] vals = new double[lons.length];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = 1d + 0.3*lons[i] - 0.2*lats[i];
+		Surface surface = new ContinuousCurvatureInterpolator(Double.NaN, 0d, 0.25)
+				.interpolate(lons, lats, vals, MIN_LON, MIN_LAT, SPACING, NX, NY);
+		for (int j=0; j<NY; j++) {
+			for (int i=0; i<NX; i++) {
+				double expected = 1d + 0.3*(MIN_LON + i*SPACING) - 0.2*(MIN_LAT + j*SPACING);
+				assertEquals(expected, surface.get(i, j), 1e-10);
+			}
+		}
+	}
+
+	@Test
+	public void testHonorsData() {
+		buildLocs(300);
+		double[] vals = new double[lons.length];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = smooth(lons[i], lats[i]);
+		Surface surface = new ContinuousCurvatureInterpolator(Double.NaN, 0.1, 0d)
+				.interpolate(lons, lats, vals, MIN_LON, MIN_LAT, SPACING, NX, NY);
+		// data range is 2, sampling between nodes adds a little error
+		for (int i=0; i<vals.length; i++)
+			assertEquals(vals[i], surface.getValue(new Location(lats[i], lons[i]), false), 0.02);
+		// well sampled, so should be close to the true function away from the edges
+		for (int j=10; j<NY-10; j++)
+			for (int i=10; i<NX-10; i++)
+				assertEquals(smooth(MIN_LON + i*SPACING, MIN_LAT + j*SPACING), surface.get(i, j), 0.05);
+		assertTrue(Double.isNaN(surface.getValue(new Location(MIN_LAT - 1d, MIN_LON), false)));
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		buildLocs(300);
+		double[] vals = new double[lons.length];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = smooth(lons[i], lats[i]);
+		int nx = 401, ny = 301;
+		double spacing = 0.005;
+		ContinuousCurvatureInterpolator interp = new ContinuousCurvatureInterpolator(Double.NaN, 0.1, 0.25);
+		interp.setParallel(false);
+		Surface serial = interp.interpolate(lons, lats, vals, MIN_LON, MIN_LAT, spacing, nx, ny);
+		interp.setParallel(true);
+		Surface parallel = interp.interpolate(lons, lats, vals, MIN_LON, MIN_LAT, spacing, nx, ny);
+		for (int j=0; j<ny; j++)
+			for (int i=0; i<nx; i++)
+				assertEquals(serial.get(i, j), parallel.get(i, j), 0d);
+	}
+
+	@Test
+	public void testParseArgs() {
+		assertEquals(0.1, ContinuousCurvatureInterpolator.parseSearchRadius("-S6m"), 1e-10);
+		assertEquals(0.1, ContinuousCurvatureInterpolator.parseSearchRadius("-S360s"), 1e-10);
+		assertEquals(0.1, ContinuousCurvatureInterpolator.parseSearchRadius("-S0.1"), 1e-10);
+		assertEquals(0d, ContinuousCurvatureInterpolator.parseSearchRadius(""), 0d);
+		assertEquals(0.25, ContinuousCurvatureInterpolator.parseTension("-T0.25"), 0d);
+		assertEquals(0.5, ContinuousCurvatureInterpolator.parseTension("-Ti0.5"), 0d);
+	}
+
+}
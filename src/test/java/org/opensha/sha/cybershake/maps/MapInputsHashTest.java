@@ -0,0 +1,61 @@
+package org.opensha.sha.cybershake.maps;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
+import org.opensha.commons.data.xyz.GeoDataSet;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.Region;
+import org.opensha.sha.cybershake.maps.InterpDiffMap.InterpDiffMapType;
+
+public class MapInputsHashTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private static GeoDataSet scatter(double val) {
+		GeoDataSet scatter = new ArbDiscrGeoDataSet(true);
+		scatter.set(new Location(34d, -118d), 0.5d);
+		scatter.set(new Location(34.5d, -118.5d), val);
+		return scatter;
+	}
+
+	private static String hash(GeoDataSet scatter, String title) {
+		Region region = new Region(new Location(33d, -119d), new Location(35d, -117d));
+		InterpDiffMapType[] types = { InterpDiffMapType.INTERP_NOMARKS, InterpDiffMapType.BASEMAP };
+		return new MapInputsHash().add(scatter).add(title, region, types, 0.4d).getHash();
+	}
+
+	@Test
+	public void testHashChanges() {
+		String orig = hash(scatter(0.3d), "title");
+		assertEquals(orig, hash(scatter(0.3d), "title"));
+		assertNotEquals(orig, hash(scatter(0.30001d), "title"));
+		assertNotEquals(orig, hash(scatter(0.3d), "other title"));
+	}
+
+	@Test
+	public void testIsCurrent() throws IOException {
+		File dir = tempDir.getRoot();
+		File output = new File(dir, "map.png");
+		File hashFile = MapInputsHash.getHashFile(dir, "map");
+
+		MapInputsHash hash = new MapInputsHash().add(scatter(0.3d));
+		assertFalse(hash.isCurrent(hashFile, output));
+		assertTrue(output.createNewFile());
+		// outputs exist, but were never hashed
+		assertFalse(hash.isCurrent(hashFile, output));
+		hash.write(hashFile);
+		assertTrue(new MapInputsHash().add(scatter(0.3d)).isCurrent(hashFile, output));
+		assertFalse(new MapInputsHash().add(scatter(0.4d)).isCurrent(hashFile, output));
+		assertTrue(output.delete());
+		assertFalse(new MapInputsHash().add(scatter(0.3d)).isCurrent(hashFile, output));
+	}
+
+}
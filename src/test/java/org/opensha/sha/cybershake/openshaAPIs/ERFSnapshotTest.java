@@ -0,0 +1,187 @@
+package org.opensha.sha.cybershake.openshaAPIs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.TimeSpan;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.faultSurface.EvenlyGriddedSurface;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+
+public class ERFSnapshotTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private static class TestSource extends ProbEqkSource {
+
+		private List<ProbEqkRupture> rups = new ArrayList<>();
+
+		public TestSource(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public double getMinDistance(Site site) {
+			return getSourceSurface().getDistanceJB(site.getLocation());
+		}
+
+		@Override
+		public int getNumRuptures() {
+			return rups.size();
+		}
+
+		@Override
+		public ProbEqkRupture getRupture(int nRupture) {
+			return rups.get(nRupture);
+		}
+
+		@Override
+		public LocationList getAllSourceLocs() {
+			return getSourceSurface().getEvenlyDiscritizedListOfLocsOnSurface();
+		}
+
+		@Override
+		public RuptureSurface getSourceSurface() {
+			return rups.get(rups.size()-1).getRuptureSurface();
+		}
+
+	}
+
+	private static class TestERF extends AbstractERF {
+
+		private List<TestSource> sources = new ArrayList<>();
+
+		public TestERF() {
+			timeSpan = new TimeSpan(TimeSpan.NONE, TimeSpan.YEARS);
+			timeSpan.setDuration(1d);
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.size();
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			return sources.get(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return "Test ERF";
+		}
+
+	}
+
+	private static TestERF buildERF() {
+		TestERF erf = new TestERF();
+		for (int s=0; s<3; s++) {
+			TestSource source = new TestSource("Source "+s);
+			for (int r=0; r<=s+1; r++) {
+				FaultTrace trace = new FaultTrace("Trace "+s+" "+r);
+				trace.add(new Location(34d + 0.1*s, -118d));
+				trace.add(new Location(34d + 0.1*s + 0.05*(r+1), -118d + 0.1*(r+1)));
+				double dip = 90d - 15d*s;
+				StirlingGriddedSurface surf = new StirlingGriddedSurface(trace, dip, 0d, 5d + 2d*r, 1d);
+				source.rups.add(new ProbEqkRupture(6d + 0.25*r, 10d*s, 1e-3/(r+1), surf, null));
+			}
+			erf.sources.add(source);
+		}
+		return erf;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		TestERF erf = buildERF();
+		File file = new File(tempDir.getRoot(), "snapshot.bin");
+		ERFSnapshot.write(erf, file);
+		assertTrue(file.exists());
+		assertFalse(new File(file.getAbsolutePath()+".tmp").exists());
+
+		for (boolean verifyPoints : new boolean[] { false, true }) {
+			ERF loaded = ERFSnapshot.load(file, ERFSnapshot.getParamsHash(erf), verifyPoints);
+			assertEquals(erf.getName(), loaded.getName());
+			assertEquals(erf.getTimeSpan().getDuration(), loaded.getTimeSpan().getDuration(), 0d);
+			assertEquals(erf.getNumSources(), loaded.getNumSources());
+			for (int s=0; s<erf.getNumSources(); s++) {
+				ProbEqkSource origSource = erf.getSource(s);
+				ProbEqkSource loadedSource = loaded.getSource(s);
+				assertEquals(origSource.getName(), loadedSource.getName());
+				assertEquals(origSource.getNumRuptures(), loadedSource.getNumRuptures());
+				for (int r=0; r<origSource.getNumRuptures(); r++) {
+					ProbEqkRupture origRup = origSource.getRupture(r);
+					ProbEqkRupture loadedRup = loadedSource.getRupture(r);
+					assertEquals(origRup.getMag(), loadedRup.getMag(), 0d);
+					assertEquals(origRup.getProbability(), loadedRup.getProbability(), 0d);
+					assertEquals(origRup.getAveRake(), loadedRup.getAveRake(), 0d);
+					EvenlyGriddedSurface origSurf = (EvenlyGriddedSurface)origRup.getRuptureSurface();
+					EvenlyGriddedSurface loadedSurf = (EvenlyGriddedSurface)loadedRup.getRuptureSurface();
+					assertEquals(origSurf.getNumRows(), loadedSurf.getNumRows());
+					assertEquals(origSurf.getNumCols(), loadedSurf.getNumCols());
+					assertEquals(origSurf.getAveDip(), loadedSurf.getAveDip(), 0d);
+					assertEquals(origSurf.getAveStrike(), loadedSurf.getAveStrike(), 0d);
+					assertEquals(origSurf.getAveRupTopDepth(), loadedSurf.getAveRupTopDepth(), 0d);
+					for (int row=0; row<origSurf.getNumRows(); row++) {
+						for (int col=0; col<origSurf.getNumCols(); col++) {
+							Location origLoc = origSurf.get(row, col);
+							Location loadedLoc = loadedSurf.get(row, col);
+							assertEquals(origLoc.getLatitude(), loadedLoc.getLatitude(), 1e-10);
+							assertEquals(origLoc.getLongitude(), loadedLoc.getLongitude(), 1e-10);
+							assertEquals(origLoc.getDepth(), loadedLoc.getDepth(), 1e-10);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testParamsMismatch() throws IOException {
+		TestERF erf = buildERF();
+		File file = new File(tempDir.getRoot(), "snapshot.bin");
+		ERFSnapshot.write(erf, file);
+		ERFSnapshot.load(file, ERFSnapshot.getParamsHash(erf)+1, false);
+	}
+
+	@Test
+	public void testFailedWriteKeepsExisting() throws IOException {
+		File file = new File(tempDir.getRoot(), "snapshot.bin");
+		ERFSnapshot.write(buildERF(), file);
+		long length = file.length();
+
+		// point surfaces aren't supported
+		TestERF erf = buildERF();
+		TestSource source = new TestSource("Point Source");
+		source.rups.add(new ProbEqkRupture(6d, 0d, 1e-3, new PointSurface(new Location(34d, -118d)), null));
+		erf.sources.add(source);
+		try {
+			ERFSnapshot.write(erf, file);
+			fail("Write should have failed");
+		} catch (IllegalStateException e) {}
+
+		assertFalse(new File(file.getAbsolutePath()+".tmp").exists());
+		assertEquals(length, file.length());
+		assertEquals(3, ERFSnapshot.load(file).getNumSources());
+	}
+
+}